@@ -29,12 +29,11 @@ import org.opennms.newts.api.Measurement;
 import org.opennms.newts.api.Resource;
 import org.opennms.newts.api.Results.Row;
 import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.api.query.Accumulator;
 import org.opennms.newts.api.query.Datasource;
 import org.opennms.newts.api.query.ResultDescriptor;
 
-import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Multimap;
 
 
 /**
@@ -46,34 +45,38 @@ class Aggregation implements Iterable<Row<Measurement>>, Iterator<Row<Measuremen
 
     private final ResultDescriptor m_resultDescriptor;
     private final Resource m_resource;
-    private final Iterator<Timestamp> m_timestamps;
-    private final Duration m_resolution;
+    private final MillisIntervalGenerator m_timestamps;
+    private final long m_resolution;
     private final Iterator<Row<Measurement>> m_input;
     private final double m_intervalsPer;
+    private final Map<String, Accumulator> m_accumulators = Maps.newHashMap();
 
     private Row<Measurement> m_working;
     private Row<Measurement> m_nextOut;
+    // The range of the next output row, (lower, upper], in epoch millis
+    private long m_rangeLower, m_rangeUpper;
 
     Aggregation(Resource resource, Timestamp start, Timestamp end, ResultDescriptor resultDescriptor, Duration resolution, Iterator<Row<Measurement>> input) {
         m_resultDescriptor = checkNotNull(resultDescriptor, "result descriptor argument");
         m_resource = checkNotNull(resource, "resource argument");
         checkNotNull(start, "start argument");
         checkNotNull(end, "end argument");
-        m_resolution = checkNotNull(resolution, "resolution argument");
+        checkNotNull(resolution, "resolution argument");
+        m_resolution = resolution.asMillis();
         m_input = checkNotNull(input, "input argument");
 
         Duration interval = resultDescriptor.getInterval();
         checkArgument(resolution.isMultiple(interval), "resolution must be a multiple of interval");
 
-        m_timestamps = new IntervalGenerator(start.stepFloor(m_resolution), end.stepCeiling(m_resolution), m_resolution);
+        m_timestamps = new MillisIntervalGenerator(start.stepFloor(resolution), end.stepCeiling(resolution), resolution);
         m_intervalsPer = resolution.divideBy(interval);
 
         m_working = m_input.hasNext() ? m_input.next() : null;
-        m_nextOut = m_timestamps.hasNext() ? new Row<>(m_timestamps.next(), m_resource) : null;
+        m_nextOut = nextOut();
 
         // If the input stream contains any Samples earlier than what's relevant, iterate past them.
         if (m_nextOut != null) {
-            while (m_working != null && m_working.getTimestamp().lte(m_nextOut.getTimestamp().minus(m_resolution))) {
+            while (m_working != null && m_working.getTimestamp().asMillis() <= m_rangeLower) {
                 m_working = nextWorking();
             }
         }
@@ -90,14 +93,22 @@ class Aggregation implements Iterable<Row<Measurement>>, Iterator<Row<Measuremen
 
         if (!hasNext()) throw new NoSuchElementException();
 
-        Multimap<String, Double> values = ArrayListMultimap.create();
+        Collection<Datasource> datasources = getDatasources();
+        int values = 0;
         Map<String, Map<String, String>> aggregatedAttrs = Maps.newHashMap();
 
+        for (Datasource ds : datasources) {
+            Accumulator accumulator = m_accumulators.get(ds.getLabel());
+            if (accumulator != null) {
+                accumulator.reset();
+            }
+        }
+
         while (inRange()) {
             // accumulate
-            for (Datasource ds : getDatasources()) {
+            for (Datasource ds : datasources) {
                 Measurement metric = m_working.getElement(ds.getSource());
-                values.put(ds.getLabel(), metric != null ? metric.getValue() : Double.NaN);
+                getAccumulator(ds).accept(metric != null ? metric.getValue() : Double.NaN);
 
                 Map<String, String> metricAttrs = aggregatedAttrs.get(ds.getLabel());
                 if (metricAttrs == null) {
@@ -111,11 +122,12 @@ class Aggregation implements Iterable<Row<Measurement>>, Iterator<Row<Measuremen
 
             }
 
+            values += 1;
             m_working = nextWorking();
         }
 
-        for (Datasource ds : getDatasources()) {
-            Double v = aggregate(ds, values.get(ds.getLabel()));
+        for (Datasource ds : datasources) {
+            double v = aggregate(ds, values);
             Map<String, String> attrs = aggregatedAttrs.get(ds.getLabel());
             m_nextOut.addElement(new Measurement(m_nextOut.getTimestamp(), m_resource, ds.getLabel(), v, attrs));
         }
@@ -124,14 +136,34 @@ class Aggregation implements Iterable<Row<Measurement>>, Iterator<Row<Measuremen
             return m_nextOut;
         }
         finally {
-            m_nextOut = m_timestamps.hasNext() ? new Row<>(m_timestamps.next(), m_resource) : null;
+            m_nextOut = nextOut();
         }
     }
 
+    private Row<Measurement> nextOut() {
+        if (!m_timestamps.hasNext()) {
+            return null;
+        }
+
+        m_rangeUpper = m_timestamps.nextLong();
+        m_rangeLower = m_rangeUpper - m_resolution;
+        return new Row<>(Timestamp.fromEpochMillis(m_rangeUpper), m_resource);
+    }
+
     // Return the result of this Datasource's aggregation function if the number of values
     // is within XFF, otherwise return NaN.
-    private Double aggregate(Datasource ds, Collection<Double> values) {
-        return ((values.size() / m_intervalsPer) > ds.getXff()) ? ds.getAggregationFuction().apply(values) : Double.NaN;
+    private double aggregate(Datasource ds, int values) {
+        return ((values / m_intervalsPer) > ds.getXff()) ? getAccumulator(ds).result() : Double.NaN;
+    }
+
+    // Accumulators are created as first needed (and reused for every step that follows)
+    private Accumulator getAccumulator(Datasource ds) {
+        Accumulator accumulator = m_accumulators.get(ds.getLabel());
+        if (accumulator == null) {
+            accumulator = ds.getAggregationFuction().accumulator();
+            m_accumulators.put(ds.getLabel(), accumulator);
+        }
+        return accumulator;
     }
 
     // true if the working input Row is within the Range of the next output Row; false otherwise
@@ -140,10 +172,8 @@ class Aggregation implements Iterable<Row<Measurement>>, Iterator<Row<Measuremen
             return false;
         }
 
-        Timestamp rangeUpper = m_nextOut.getTimestamp();
-        Timestamp rangeLower = m_nextOut.getTimestamp().minus(m_resolution);
-
-        return m_working.getTimestamp().lte(rangeUpper) && m_working.getTimestamp().gt(rangeLower);
+        long working = m_working.getTimestamp().asMillis();
+        return working <= m_rangeUpper && working > m_rangeLower;
     }
 
     private Row<Measurement> nextWorking() {
@@ -0,0 +1,496 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.aggregate;
+
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.opennms.newts.api.Duration;
+import org.opennms.newts.api.Measurement;
+import org.opennms.newts.api.MetricType;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Results.Row;
+import org.opennms.newts.api.Sample;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.api.ValueType;
+import org.opennms.newts.api.query.Accumulator;
+import org.opennms.newts.api.query.CalculationPlan;
+import org.opennms.newts.api.query.Datasource;
+import org.opennms.newts.api.query.ResultDescriptor;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+
+/**
+ * A {@link ResultProcessor} that processes each datasource as primitive columns, rather than as
+ * rows of elements. Samples are read once, into a column of timestamps and (rate converted) values
+ * per source; Primary data points, aggregates, and calculations are then computed a column at a
+ * time, and rows built only for the results read. Results are identical to those of
+ * {@link ResultProcessor}.
+ *
+ * <p>
+ * {@link #stream(Iterator)} (and so {@link #process(Iterator)}), and {@link #aggregate(Iterator)}
+ * are processed this way; {@link #export(Iterator)}, whose input is already rows, is not.
+ * </p>
+ *
+ * <p>
+ * Once the samples are read (and their rates calculated, in order), columns are computed in
+ * segments of about {@value #SEGMENT_SIZE} primary data points; Each segment of each source, or
+ * of each datasource, independent of the others. Segments begin with the state that those before
+ * them end with (the sample, and interval, primary data points are calculated from), so results
+ * are the same however they are computed. When there are enough samples and steps to be worth it
+ * ({@value #PARALLEL_THRESHOLD}, or more), segments are computed in parallel on a fork-join pool.
+ * Queries that will be, by their size alone, can be told with
+ * {@link #isParallel(Timestamp, Timestamp, ResultDescriptor, Duration)}.
+ * </p>
+ */
+public class ColumnarResultProcessor extends ResultProcessor {
+
+    private static final EnumSet<MetricType> COUNTERS = EnumSet.of(MetricType.COUNTER, MetricType.ABSOLUTE, MetricType.DERIVE);
+
+    static final int SEGMENT_SIZE = 4096;
+    static final int PARALLEL_THRESHOLD = 65536;
+
+    private final Resource m_resource;
+    private final Timestamp m_start;
+    private final Timestamp m_end;
+    private final ResultDescriptor m_resultDescriptor;
+    private final Duration m_resolution;
+    private final ForkJoinPool m_pool;
+    private final int m_segmentSize;
+    private final int m_parallelThreshold;
+
+    public ColumnarResultProcessor(Resource resource, Timestamp start, Timestamp end, ResultDescriptor descriptor, Duration resolution) {
+        this(resource, start, end, descriptor, resolution, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param pool
+     *            the pool to compute segments on, when in parallel; null to always compute them on
+     *            the calling thread
+     */
+    public ColumnarResultProcessor(Resource resource, Timestamp start, Timestamp end, ResultDescriptor descriptor, Duration resolution, ForkJoinPool pool) {
+        this(resource, start, end, descriptor, resolution, pool, SEGMENT_SIZE, PARALLEL_THRESHOLD);
+    }
+
+    ColumnarResultProcessor(Resource resource, Timestamp start, Timestamp end, ResultDescriptor descriptor, Duration resolution, ForkJoinPool pool, int segmentSize, int parallelThreshold) {
+        super(resource, start, end, descriptor, resolution);
+        m_resource = resource;
+        m_start = start;
+        m_end = end;
+        m_resultDescriptor = descriptor;
+        m_resolution = resolution;
+        m_pool = pool;
+        checkArgument(segmentSize > 0, "segment size must be positive");
+        m_segmentSize = segmentSize;
+        m_parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * Whether a query has enough primary data points (steps of every datasource) that its columns
+     * will be computed in parallel, on the common pool, whatever samples are read.
+     */
+    public static boolean isParallel(Timestamp start, Timestamp end, ResultDescriptor descriptor, Duration resolution) {
+        long points = primaryDataPoints(start, end, descriptor.getInterval(), resolution) * descriptor.getCalculationPlan().getDatasourceCount();
+        return ForkJoinPool.getCommonPoolParallelism() > 1 && points >= PARALLEL_THRESHOLD;
+    }
+
+    /** The number of primary data points (of each source) between start and end. */
+    private static int primaryDataPoints(Timestamp start, Timestamp end, Duration interval, Duration resolution) {
+        long first = start.minus(resolution).stepFloor(interval).asMillis();
+        long last = end.stepCeiling(interval).asMillis();
+        return (last < first) ? 0 : (int) ((last - first) / interval.asMillis()) + 1;
+    }
+
+    @Override
+    public Iterator<Row<Measurement>> stream(Iterator<Row<Sample>> samples) {
+        return execute(samples, true);
+    }
+
+    @Override
+    public Iterator<Row<Measurement>> aggregate(Iterator<Row<Sample>> samples) {
+        return execute(samples, false);
+    }
+
+    /**
+     * Reads the samples, and computes every column; Rows are built as the returned iterator is read.
+     *
+     * @param export
+     *            true to apply calculations and select the exports, false for rows of (all) the
+     *            aggregated datasources
+     */
+    private Iterator<Row<Measurement>> execute(Iterator<Row<Sample>> samples, boolean export) {
+        checkNotNull(samples, "samples argument");
+
+        Duration interval = m_resultDescriptor.getInterval();
+        checkArgument(m_resolution.isMultiple(interval), "resolution must be a multiple of interval");
+
+        // Datasources (in the order of the columns of the plan) of the same metric share its primary
+        // data points (calculated with the heartbeat of the first)
+        CalculationPlan plan = m_resultDescriptor.getCalculationPlan();
+        List<Datasource> datasources = Lists.newArrayList();
+        for (String label : plan.getLabels().subList(0, plan.getDatasourceCount())) {
+            datasources.add(m_resultDescriptor.getDatasources().get(label));
+        }
+        Map<String, Source> sources = Maps.newHashMap();
+        for (Datasource ds : datasources) {
+            sources.computeIfAbsent(ds.getSource(), k -> new Source(ds.getHeartbeat().asMillis()));
+        }
+
+        long read = 0;
+        while (samples.hasNext()) {
+            Row<Sample> row = samples.next();
+            for (Map.Entry<String, Source> source : sources.entrySet()) {
+                Sample sample = row.getElement(source.getKey());
+                if (sample != null) {
+                    source.getValue().add(sample);
+                    read += 1;
+                }
+            }
+        }
+
+        long first = m_start.minus(m_resolution).stepFloor(interval).asMillis();
+        long step = interval.asMillis();
+        int count = primaryDataPoints(m_start, m_end, interval, m_resolution);
+
+        boolean parallel = m_pool != null && m_pool.getParallelism() > 1 && read + (long) count * datasources.size() >= m_parallelThreshold;
+
+        List<Runnable> segments = Lists.newArrayList();
+        for (Source source : sources.values()) {
+            source.allocate(count);
+            for (int p = 0; p < count; p += m_segmentSize) {
+                int from = p, to = Math.min(count, p + m_segmentSize);
+                segments.add(() -> source.primaryData(first, step, from, to));
+            }
+        }
+        run(segments, parallel);
+
+        List<Timestamp> timestamps = Lists.newArrayList(new IntervalGenerator(m_start.stepFloor(m_resolution), m_end.stepCeiling(m_resolution), m_resolution).iterator());
+        Columns columns = new Columns(timestamps, plan, export);
+
+        // The primary data points aggregated by each step; Those within (step - resolution, step]
+        int[] from = new int[timestamps.size()];
+        int[] to = new int[timestamps.size()];
+        long resolution = m_resolution.asMillis();
+        int pdp = 0;
+        for (int i = 0; i < timestamps.size(); i++) {
+            long upper = timestamps.get(i).asMillis();
+            while (pdp < count && first + pdp * step <= upper - resolution) {
+                pdp++;
+            }
+            from[i] = pdp;
+            while (pdp < count && first + pdp * step <= upper) {
+                pdp++;
+            }
+            to[i] = pdp;
+        }
+
+        double intervalsPer = m_resolution.divideBy(interval);
+        // Segments of steps, of about as many primary data points as those of sources
+        int steps = Math.max(1, (int) (m_segmentSize / intervalsPer));
+
+        segments.clear();
+        for (int c = 0; c < datasources.size(); c++) {
+            for (int i = 0; i < timestamps.size(); i += steps) {
+                int column = c, fromStep = i, toStep = Math.min(timestamps.size(), i + steps);
+                segments.add(() -> {
+                    Datasource ds = datasources.get(column);
+                    Source source = sources.get(ds.getSource());
+                    Accumulator accumulator = null;
+                    for (int s = fromStep; s < toStep; s++) {
+                        int values = to[s] - from[s];
+                        if ((values / intervalsPer) > ds.getXff()) {
+                            if (accumulator == null) {
+                                accumulator = ds.getAggregationFuction().accumulator();
+                            }
+                            columns.m_values[column][s] = accumulate(accumulator, source.m_primaryData, from[s], to[s]);
+                        }
+                        else {
+                            columns.m_values[column][s] = Double.NaN;
+                        }
+                        columns.m_attributes[column][s] = (values > 0) ? source.attributes(from[s], to[s]) : null;
+                    }
+                });
+            }
+        }
+        run(segments, parallel);
+
+        if (export) {
+            segments.clear();
+            for (int i = 0; i < timestamps.size(); i += m_segmentSize) {
+                int fromRow = i, toRow = Math.min(timestamps.size(), i + m_segmentSize);
+                segments.add(() -> plan.evaluate(columns.m_values, fromRow, toRow));
+            }
+            run(segments, parallel);
+        }
+
+        return export ? downsample(columns.rows(m_resultDescriptor.getExports())) : columns.rows(m_resultDescriptor.getDatasources().keySet());
+    }
+
+    /** Runs segments; In parallel on the pool, or in order on the calling thread. */
+    private void run(List<Runnable> segments, boolean parallel) {
+        if (!parallel || segments.size() < 2) {
+            segments.forEach(Runnable::run);
+            return;
+        }
+
+        m_pool.invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                invokeAll(segments.stream().map(ForkJoinTask::adapt).toArray(ForkJoinTask<?>[]::new));
+            }
+        });
+    }
+
+    /** The result of an aggregation function over primary data points from (inclusive) to to (exclusive). */
+    private static double accumulate(Accumulator accumulator, double[] values, int from, int to) {
+        accumulator.reset();
+        for (int i = from; i < to; i++) {
+            accumulator.accept(values[i]);
+        }
+        return accumulator.result();
+    }
+
+    /** The samples of a source, as columns; And the primary data points calculated from them. */
+    private static class Source {
+
+        private final long m_heartbeat;
+
+        private long[] m_timestamps = new long[64];
+        private double[] m_values = new double[64];
+        private Map<String, String>[] m_attributes = null;
+        private int m_size = 0;
+
+        // The previous sample, to calculate rates from
+        private Sample m_previous = null;
+
+        private double[] m_primaryData;
+        private Map<String, String>[] m_primaryAttributes = null;
+
+        private Source(long heartbeat) {
+            m_heartbeat = heartbeat;
+        }
+
+        /** Adds a sample; The rate (per-second) of counter types, the value of others. */
+        private void add(Sample sample) {
+            if (m_size == m_timestamps.length) {
+                m_timestamps = Arrays.copyOf(m_timestamps, m_size * 2);
+                m_values = Arrays.copyOf(m_values, m_size * 2);
+                if (m_attributes != null) {
+                    m_attributes = Arrays.copyOf(m_attributes, m_size * 2);
+                }
+            }
+
+            m_timestamps[m_size] = sample.getTimestamp().asMillis();
+            m_values[m_size] = COUNTERS.contains(sample.getType()) ? rate(sample) : sample.getValue().doubleValue();
+
+            Map<String, String> attributes = sample.getAttributes();
+            if (attributes != null && !attributes.isEmpty()) {
+                if (m_attributes == null) {
+                    m_attributes = newMapArray(m_timestamps.length);
+                }
+                m_attributes[m_size] = attributes;
+            }
+
+            m_size += 1;
+            m_previous = sample;
+        }
+
+        private double rate(Sample sample) {
+            if (m_previous == null) {
+                return Double.NaN;
+            }
+
+            long elapsed = sample.getTimestamp().asSeconds() - m_previous.getTimestamp().asSeconds();
+            try {
+                ValueType<?> delta = sample.getValue().delta(m_previous.getValue());
+                return delta.doubleValue() / elapsed;
+            }
+            catch (ArithmeticException e) {
+                return Double.NaN;
+            }
+        }
+
+        /** Allocates the primary data points (of count intervals). */
+        private void allocate(int count) {
+            m_primaryData = new double[count];
+            if (m_attributes != null) {
+                m_primaryAttributes = newMapArray(count);
+            }
+        }
+
+        /**
+         * Calculates the primary data points of intervals first + from * step, through (but not)
+         * first + to * step; The average of the values in each, weighted by time, where known (less
+         * than a heartbeat apart) for at least half of it.
+         */
+        private void primaryData(long first, long step, int from, int to) {
+            // Begins where the intervals before would have left off; At the last sample (but one)
+            // not after the ceiling of the previous interval
+            long previousCeiling = (from == 0) ? Long.MIN_VALUE : first + (from - 1) * step;
+            int lastIndex = (from == 0) ? 0 : floorIndex(previousCeiling);
+
+            for (int p = from; p < to; p++) {
+                long ceiling = first + p * step;
+                long known = 0, unknown = 0;
+                double value = 0.0d;
+                Map<String, String> attributes = null;
+
+                int last = -1;
+                for (int i = lastIndex; i < m_size; i++) {
+                    if (last < 0) {
+                        last = i;
+                        continue;
+                    }
+
+                    // Accumulate nothing when samples are beyond this interval
+                    if (ceiling < m_timestamps[last]) {
+                        break;
+                    }
+
+                    long lower = Math.max(m_timestamps[last], previousCeiling);
+                    long upper = Math.min(m_timestamps[i], ceiling);
+                    if (lower > upper) {
+                        lower = upper;
+                    }
+
+                    long elapsedWithinInterval = upper - lower;
+                    lastIndex = last;
+
+                    if (m_timestamps[i] - m_timestamps[last] < m_heartbeat) {
+                        known += elapsedWithinInterval;
+                        value += m_values[i] * elapsedWithinInterval;
+                    }
+                    else {
+                        unknown += elapsedWithinInterval;
+                    }
+
+                    if (m_attributes != null && m_attributes[i] != null) {
+                        if (attributes == null) {
+                            attributes = Maps.newHashMap();
+                        }
+                        attributes.putAll(m_attributes[i]);
+                    }
+
+                    last = i;
+                }
+
+                m_primaryData[p] = (unknown < (known + unknown) / 2.0d) ? value / known : Double.NaN;
+                if (m_primaryAttributes != null) {
+                    m_primaryAttributes[p] = attributes;
+                }
+
+                previousCeiling = ceiling;
+            }
+        }
+
+        /** The index of the last sample, but one, at or before a timestamp; Or 0, if none are. */
+        private int floorIndex(long timestamp) {
+            int index = Arrays.binarySearch(m_timestamps, 0, Math.max(0, m_size - 1), timestamp);
+            return Math.max(0, (index >= 0) ? index : -index - 2);
+        }
+
+        /** The attributes of primary data points from (inclusive) to to (exclusive), combined. */
+        private Map<String, String> attributes(int from, int to) {
+            if (m_primaryAttributes == null) {
+                return Collections.emptyMap();
+            }
+
+            Map<String, String> attributes = Maps.newHashMap();
+            for (int p = from; p < to; p++) {
+                if (m_primaryAttributes[p] != null) {
+                    attributes.putAll(m_primaryAttributes[p]);
+                }
+            }
+            return attributes;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Map<String, String>[] newMapArray(int length) {
+            return new Map[length];
+        }
+    }
+
+    /** A column of values (and attributes) for each label of the plan, a row per step. */
+    private class Columns {
+
+        private final List<Timestamp> m_timestamps;
+        private final CalculationPlan m_plan;
+        private final double[][] m_values;
+        private final Map<String, String>[][] m_attributes;
+
+        /**
+         * @param calculations
+         *            true for columns of the calculations too, false for the datasources only
+         */
+        @SuppressWarnings("unchecked")
+        private Columns(List<Timestamp> timestamps, CalculationPlan plan, boolean calculations) {
+            m_timestamps = timestamps;
+            m_plan = plan;
+            m_values = new double[calculations ? plan.getLabels().size() : plan.getDatasourceCount()][timestamps.size()];
+            m_attributes = new Map[plan.getDatasourceCount()][timestamps.size()];
+        }
+
+        /** Rows of the given labels. */
+        private Iterator<Row<Measurement>> rows(Iterable<String> labels) {
+            return new AbstractIterator<Row<Measurement>>() {
+                private int m_index = 0;
+
+                @Override
+                protected Row<Measurement> computeNext() {
+                    if (m_index >= m_timestamps.size()) {
+                        return endOfData();
+                    }
+
+                    Timestamp timestamp = m_timestamps.get(m_index);
+                    Row<Measurement> row = new Row<>(timestamp, m_resource);
+
+                    for (String label : labels) {
+                        int column = m_plan.indexOf(label);
+                        if (column < 0 || column >= m_values.length) {
+                            row.addElement(new Measurement(timestamp, m_resource, label, Double.NaN));
+                        }
+                        else if (column < m_attributes.length) {
+                            row.addElement(new Measurement(timestamp, m_resource, label, m_values[column][m_index], m_attributes[column][m_index]));
+                        }
+                        else {
+                            row.addElement(new Measurement(timestamp, m_resource, label, m_values[column][m_index]));
+                        }
+                    }
+
+                    m_index += 1;
+                    return row;
+                }
+            };
+        }
+    }
+
+}
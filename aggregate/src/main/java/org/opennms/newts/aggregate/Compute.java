@@ -19,23 +19,28 @@ package org.opennms.newts.aggregate;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 import org.opennms.newts.api.Measurement;
 import org.opennms.newts.api.Results.Row;
+import org.opennms.newts.api.query.CalculationPlan;
 import org.opennms.newts.api.query.ResultDescriptor;
-import org.opennms.newts.api.query.Calculation;
-
-import com.google.common.base.Optional;
 
 
 class Compute implements Iterator<Row<Measurement>>, Iterable<Row<Measurement>> {
 
-    private final ResultDescriptor m_resultDescriptor;
+    private final CalculationPlan m_plan;
+    private final List<String> m_labels;
+    private final int[] m_inputs;
+    private final double[] m_values;
     private final Iterator<Row<Measurement>> m_input;
 
     Compute(ResultDescriptor resultDescriptor, Iterator<Row<Measurement>> input) {
-        m_resultDescriptor = checkNotNull(resultDescriptor, "result descriptor argument");
+        m_plan = checkNotNull(resultDescriptor, "result descriptor argument").getCalculationPlan();
+        m_labels = m_plan.getLabels();
+        m_inputs = m_plan.getInputs();
+        m_values = new double[m_labels.size()];
         m_input = checkNotNull(input, "input argument");
     }
 
@@ -51,32 +56,22 @@ class Compute implements Iterator<Row<Measurement>>, Iterable<Row<Measurement>>
 
         Row<Measurement> row = m_input.next();
 
-        for (Calculation calc : m_resultDescriptor.getCalculations().values()) {
-            double v = calc.getCalculationFunction().apply(getValues(row, calc.getArgs()));
-            row.addElement(new Measurement(row.getTimestamp(), row.getResource(), calc.getLabel(), v));
+        if (m_labels.size() == m_plan.getDatasourceCount()) {
+            return row;
         }
 
-        return row;
-    }
+        // Only the datasources calculations take as arguments are read
+        for (int index : m_inputs) {
+            m_values[index] = checkNotNull(row.getElement(m_labels.get(index)), "Missing measurement; Upstream iterator is bugged").getValue();
+        }
 
-    private double[] getValues(Row<Measurement> row, String[] names) {
-        double[] values = new double[names.length];
+        m_plan.evaluate(m_values);
 
-        for (int i = 0; i < names.length; i++) {
-            String name = names[i];
-            Optional<Double> d = parseDouble(name);
-            values[i] = d.isPresent() ? d.get() : checkNotNull(row.getElement(name), "Missing measurement; Upstream iterator is bugged").getValue();
+        for (int index = m_plan.getDatasourceCount(); index < m_labels.size(); index++) {
+            row.addElement(new Measurement(row.getTimestamp(), row.getResource(), m_labels.get(index), m_values[index]));
         }
 
-        return values;
-    }
-    
-    Optional<Double> parseDouble(String maybeNum) {
-        try {
-            return Optional.of(Double.parseDouble(maybeNum));
-        } catch (NumberFormatException e) {
-            return Optional.absent();
-        }
+        return row;
     }
 
     @Override
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.aggregate;
+
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.opennms.newts.api.Measurement;
+import org.opennms.newts.api.Results.Row;
+
+import com.google.common.collect.Lists;
+
+
+/**
+ * Downsample rows to a number of them, by Largest-Triangle-Three-Buckets; The first and last rows
+ * are kept, and the rows between are split into even buckets, from each of which the row that
+ * forms the largest triangle, with the row kept before it and the average of the bucket after it,
+ * is kept.
+ *
+ * <p>
+ * The rows of a query share their timestamps, so one row is kept for every export; Its triangle
+ * is the sum of those of the exports (NaNs, and the gaps they stand for, have none). Rows are
+ * read a bucket ahead of those returned.
+ * </p>
+ */
+class Downsample implements Iterable<Row<Measurement>>, Iterator<Row<Measurement>> {
+
+    private final Set<String> m_exports;
+    private final int m_buckets;
+    private final int m_count;
+    private final Iterator<Row<Measurement>> m_input;
+
+    // Rows read, and not yet passed over; The first is row m_offset
+    private final List<Row<Measurement>> m_buffer = Lists.newArrayList();
+    private int m_offset = 0;
+    private int m_bucket = 0;
+    private Row<Measurement> m_previous;
+
+    /**
+     * @param exports
+     *            the measurements of each row
+     * @param threshold
+     *            the number of rows to downsample to (at least 3)
+     * @param count
+     *            the number of rows input (rows beyond them are passed through)
+     * @param input
+     *            the rows to downsample
+     */
+    Downsample(Set<String> exports, int threshold, int count, Iterator<Row<Measurement>> input) {
+        m_exports = checkNotNull(exports, "exports argument");
+        checkArgument(threshold > 2, "threshold must be greater than 2");
+        checkArgument(count > threshold, "count must be greater than threshold");
+        m_buckets = threshold - 2;
+        m_count = count;
+        m_input = checkNotNull(input, "input argument");
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !m_buffer.isEmpty() || m_input.hasNext();
+    }
+
+    @Override
+    public Row<Measurement> next() {
+
+        if (!hasNext()) throw new NoSuchElementException();
+
+        // The first row, and those following the last bucket, are passed through
+        if (m_previous == null || m_bucket == m_buckets) {
+            m_offset++;
+            return m_previous = m_buffer.isEmpty() ? m_input.next() : m_buffer.remove(0);
+        }
+
+        int lower = start(m_bucket), upper = start(m_bucket + 1);
+        int nextUpper = (m_bucket + 1 < m_buckets) ? start(m_bucket + 2) : m_count;
+        m_bucket++;
+
+        fill(nextUpper);
+        int read = m_offset + m_buffer.size();
+        upper = Math.min(upper, read);
+        nextUpper = Math.min(nextUpper, read);
+
+        // Fewer rows than counted; This is the last bucket, and the last row read follows it
+        if (upper >= nextUpper && upper - lower > 1) {
+            nextUpper = upper--;
+            m_bucket = m_buckets;
+        }
+
+        Row<Measurement> selected = (upper < nextUpper) ? largestTriangle(lower, upper, nextUpper) : row(upper - 1);
+
+        m_buffer.subList(0, upper - m_offset).clear();
+        m_offset = upper;
+
+        return m_previous = selected;
+    }
+
+    /** The row, of those from lower to upper, forming the largest triangle with the next bucket. */
+    private Row<Measurement> largestTriangle(int lower, int upper, int nextUpper) {
+        double ax = m_previous.getTimestamp().asMillis();
+        double cx = 0.0d;
+        for (int i = upper; i < nextUpper; i++) {
+            cx += row(i).getTimestamp().asMillis();
+        }
+        cx /= nextUpper - upper;
+
+        double[] ay = new double[m_exports.size()], cy = new double[m_exports.size()];
+        int e = 0;
+        for (String export : m_exports) {
+            ay[e] = value(m_previous, export);
+            cy[e] = average(export, upper, nextUpper);
+            e++;
+        }
+
+        Row<Measurement> selected = row(lower);
+        double largest = -1.0d;
+
+        for (int i = lower; i < upper; i++) {
+            Row<Measurement> row = row(i);
+            double bx = row.getTimestamp().asMillis(), area = 0.0d;
+            e = 0;
+            for (String export : m_exports) {
+                double triangle = Math.abs((ax - cx) * (value(row, export) - ay[e]) - (ax - bx) * (cy[e] - ay[e]));
+                if (!Double.isNaN(triangle)) {
+                    area += triangle;
+                }
+                e++;
+            }
+            if (area > largest) {
+                largest = area;
+                selected = row;
+            }
+        }
+
+        return selected;
+    }
+
+    private double average(String export, int lower, int upper) {
+        double sum = 0.0d;
+        int count = 0;
+        for (int i = lower; i < upper; i++) {
+            double value = value(row(i), export);
+            if (!Double.isNaN(value)) {
+                sum += value;
+                count++;
+            }
+        }
+        return (count == 0) ? Double.NaN : sum / count;
+    }
+
+    private static double value(Row<Measurement> row, String export) {
+        Measurement measurement = row.getElement(export);
+        return (measurement != null) ? measurement.getValue() : Double.NaN;
+    }
+
+    /** The first row of a bucket; Bucket 0 begins after the first row. */
+    private int start(int bucket) {
+        return (int) ((long) bucket * (m_count - 2) / m_buckets) + 1;
+    }
+
+    private Row<Measurement> row(int index) {
+        return m_buffer.get(index - m_offset);
+    }
+
+    /** Reads rows, while there are any, up to (not including) row upper. */
+    private void fill(int upper) {
+        while (m_offset + m_buffer.size() < upper && m_input.hasNext()) {
+            m_buffer.add(m_input.next());
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Iterator<Row<Measurement>> iterator() {
+        return this;
+    }
+
+}
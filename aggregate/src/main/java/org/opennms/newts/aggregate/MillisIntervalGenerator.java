@@ -0,0 +1,93 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.aggregate;
+
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+import org.opennms.newts.api.Duration;
+import org.opennms.newts.api.Timestamp;
+
+
+/**
+ * Aligned, fixed-interval iterator of epoch milliseconds; The primitive counterpart of
+ * {@link IntervalGenerator}, for loops that would otherwise create (and compare) a
+ * {@link Timestamp} for each interval.
+ *
+ * <p>
+ * Time is normalized to milliseconds, the resolution samples are stored at; Intervals must be
+ * whole milliseconds.
+ * </p>
+ */
+public class MillisIntervalGenerator implements PrimitiveIterator.OfLong {
+
+    private final long m_interval;
+    private final long m_final;
+    private final boolean m_reversed;
+    private long m_current;
+    private boolean m_done;
+
+    public MillisIntervalGenerator(Timestamp start, Timestamp finish, Duration interval) {
+        this(checkNotNull(start, "start argument").asMillis(), checkNotNull(finish, "finish argument").asMillis(), checkNotNull(interval, "interval argument").asMillis(), false);
+    }
+
+    /**
+     * @param start
+     *            the first interval (epoch milliseconds)
+     * @param finish
+     *            the last interval, if it is one (epoch milliseconds)
+     * @param interval
+     *            milliseconds between intervals
+     * @param reversed
+     *            true to iterate from finish to start
+     */
+    public MillisIntervalGenerator(long start, long finish, long interval, boolean reversed) {
+        checkArgument(interval > 0, "interval must be a positive number of milliseconds");
+        m_interval = interval;
+        m_current = reversed ? finish : start;
+        m_final = reversed ? start : finish;
+        m_reversed = reversed;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !m_done && (m_reversed ? m_current >= m_final : m_current <= m_final);
+    }
+
+    @Override
+    public long nextLong() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        long current = m_current;
+        if (m_reversed) {
+            m_done = current - m_interval > current;
+            m_current = current - m_interval;
+        }
+        else {
+            // Ends, rather than overflows, at the end of time
+            m_done = current + m_interval < current;
+            m_current = current + m_interval;
+        }
+        return current;
+    }
+
+}
@@ -18,7 +18,8 @@ package org.opennms.newts.aggregate;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.NoSuchElementException;
@@ -34,14 +35,17 @@ import org.opennms.newts.api.ValueType;
 import org.opennms.newts.api.query.Datasource;
 import org.opennms.newts.api.query.ResultDescriptor;
 
-import com.google.common.collect.Iterators;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 
 /**
  * Generate primary data point measurements from a stream of samples.
  *
+ * <p>
+ * Samples are read as intervals are, and held per datasource only until no interval that follows
+ * can draw on them; The samples of an interval, and the one after it (of each datasource).
+ * </p>
+ *
  * @author eevans
  */
 class PrimaryData implements Iterator<Row<Measurement>>, Iterable<Row<Measurement>> {
@@ -55,13 +59,14 @@ class PrimaryData implements Iterator<Row<Measurement>>, Iterable<Row<Measuremen
             reset();
         }
 
-        private Accumulation accumulateValue(Duration elapsedWithinInterval, Duration elapsedBetweenSamples, Duration heartbeat, ValueType<?> value) {
-            if (elapsedBetweenSamples.lt(heartbeat)) {
-                m_known += elapsedWithinInterval.asMillis();
-                m_value = m_value.plus(value.times(elapsedWithinInterval.asMillis()));
+        /** Elapsed times, and the heartbeat, are in milliseconds. */
+        private Accumulation accumulateValue(long elapsedWithinInterval, long elapsedBetweenSamples, long heartbeat, ValueType<?> value) {
+            if (elapsedBetweenSamples < heartbeat) {
+                m_known += elapsedWithinInterval;
+                m_value = m_value.plus(value.times(elapsedWithinInterval));
             }
             else {
-                m_unknown += elapsedWithinInterval.asMillis();
+                m_unknown += elapsedWithinInterval;
             }
             return this;
         }
@@ -105,11 +110,13 @@ class PrimaryData implements Iterator<Row<Measurement>>, Iterable<Row<Measuremen
 
     private final ResultDescriptor m_resultDescriptor;
     private final Resource m_resource;
-    private final Iterator<Timestamp> m_timestamps;
+    // Intervals, and the timestamps compared with them, are in epoch millis
+    private final MillisIntervalGenerator m_timestamps;
     private final Duration m_interval;
-    private Timestamp lastIntervalCeiling = null;
-    private final ArrayList<Row<Sample>> m_samples = Lists.newArrayList();
-    private final Map<String, Integer> m_lastSampleIndex = Maps.newHashMap();
+    private final Iterator<Row<Sample>> m_input;
+    private long lastIntervalCeiling = Long.MIN_VALUE;
+    private long m_lastRead = Long.MIN_VALUE;
+    private final Map<String, Deque<Sample>> m_samples = Maps.newHashMap();
     private final Map<String, Accumulation> m_accumulation = Maps.newHashMap();
 
     PrimaryData(Resource resource, Timestamp start, Timestamp end, ResultDescriptor resultDescriptor, Iterator<Row<Sample>> input) {
@@ -118,12 +125,13 @@ class PrimaryData implements Iterator<Row<Measurement>>, Iterable<Row<Measuremen
         checkNotNull(start, "start argument");
         checkNotNull(end, "end argument");
         m_interval = resultDescriptor.getInterval();
+        m_input = checkNotNull(input, "input argument");
 
-        m_timestamps = new IntervalGenerator(start.stepFloor(m_interval), end.stepCeiling(m_interval), m_interval);
+        m_timestamps = new MillisIntervalGenerator(start.stepFloor(m_interval), end.stepCeiling(m_interval), m_interval);
 
-        // Gather the whole collection of rows.
-        // We need these since the next sample for a given metric may only appear a few rows ahead
-        Iterators.addAll(m_samples, checkNotNull(input, "input argument"));
+        for (Datasource ds : m_resultDescriptor.getDatasources().values()) {
+            m_samples.put(ds.getSource(), new ArrayDeque<Sample>());
+        }
     }
 
     @Override
@@ -135,64 +143,64 @@ class PrimaryData implements Iterator<Row<Measurement>>, Iterable<Row<Measuremen
     public Row<Measurement> next() {
         if (!hasNext()) throw new NoSuchElementException();
 
-        Timestamp intervalCeiling = m_timestamps.next();
-        Row<Measurement> output = new Row<>(intervalCeiling, m_resource);
+        long intervalCeiling = m_timestamps.nextLong();
+        Row<Measurement> output = new Row<>(Timestamp.fromEpochMillis(intervalCeiling), m_resource);
+
+        read(intervalCeiling);
 
         for (Datasource ds : m_resultDescriptor.getDatasources().values()) {
+            // Datasources of the same metric share its primary data points
+            if (output.getElement(ds.getSource()) != null) {
+                continue;
+            }
+
             Accumulation accumulation = getOrCreateAccumulation(ds.getSource());
             accumulation.reset();
+            long heartbeat = ds.getHeartbeat().asMillis();
 
-            int lastSampleIdx = 0;
-            if (m_lastSampleIndex.containsKey(ds.getSource())) {
-                lastSampleIdx = m_lastSampleIndex.get(ds.getSource());
-            }
+            // The samples of this datasource, from the first of the last pair accumulated on
+            Deque<Sample> samples = m_samples.get(ds.getSource());
+            int sampleIdx = 0, lastSampleIdx = 0, firstNeeded = 0;
 
             Sample last = null;
-            for (int sampleIdx = lastSampleIdx; sampleIdx < m_samples.size(); sampleIdx++) {
-                Row<Sample> row = m_samples.get(sampleIdx);
-                Sample current;
-
-                current = row.getElement(ds.getSource());
-
-                // Skip the row if it does not contain a sample for the current datasource
-                if (current == null) {
-                    continue;
-                }
+            long lastTimestamp = 0;
+            for (Sample current : samples) {
+                long currentTimestamp = current.getTimestamp().asMillis();
 
                 if (last == null) {
                     last = current;
-                    lastSampleIdx = sampleIdx;
+                    lastTimestamp = currentTimestamp;
+                    lastSampleIdx = sampleIdx++;
                     continue;
                 }
 
                 // Accumulate nothing when samples are beyond this interval
-                if (intervalCeiling.lt(last.getTimestamp())) {
+                if (intervalCeiling < lastTimestamp) {
                     break;
                 }
 
-                Timestamp lowerBound = last.getTimestamp();
-                if (lastIntervalCeiling != null && lastIntervalCeiling.gt(lowerBound)) {
-                    lowerBound = lastIntervalCeiling;
-                }
-
-                Timestamp upperBound = current.getTimestamp();
-                if (intervalCeiling.lt(upperBound)) {
-                    upperBound = intervalCeiling;
-                }
-                if (lowerBound.gt(upperBound)) {
+                long lowerBound = Math.max(lastTimestamp, lastIntervalCeiling);
+                long upperBound = Math.min(currentTimestamp, intervalCeiling);
+                if (lowerBound > upperBound) {
                     lowerBound = upperBound;
                 }
 
-                Duration elapsedWithinInterval = upperBound.minus(lowerBound);
-                Duration elapsedBetweenSamples = current.getTimestamp().minus(last.getTimestamp());
+                long elapsedWithinInterval = upperBound - lowerBound;
+                long elapsedBetweenSamples = currentTimestamp - lastTimestamp;
 
-                m_lastSampleIndex.put(ds.getSource(), lastSampleIdx);
+                firstNeeded = lastSampleIdx;
                 accumulation.accumulateValue(elapsedWithinInterval, elapsedBetweenSamples,
-                        ds.getHeartbeat(), current.getValue())
+                        heartbeat, current.getValue())
                     .accumlateAttrs(current.getAttributes());
 
                 last = current;
-                lastSampleIdx = sampleIdx;
+                lastTimestamp = currentTimestamp;
+                lastSampleIdx = sampleIdx++;
+            }
+
+            // Samples before the last pair accumulated are not needed by the intervals that follow
+            for (int i = 0; i < firstNeeded; i++) {
+                samples.removeFirst();
             }
 
             // Add sample with accumulated value to output row
@@ -208,6 +216,35 @@ class PrimaryData implements Iterator<Row<Measurement>>, Iterable<Row<Measuremen
         return output;
     }
 
+    /**
+     * Reads input until every sample at or before the interval ceiling has been, and each
+     * datasource with one has the sample that follows it (if any); Only those samples are held.
+     */
+    private void read(long intervalCeiling) {
+        while (m_input.hasNext() && (m_lastRead <= intervalCeiling || isAwaitingSample(intervalCeiling))) {
+            Row<Sample> row = m_input.next();
+
+            for (Map.Entry<String, Deque<Sample>> entry : m_samples.entrySet()) {
+                Sample sample = row.getElement(entry.getKey());
+                if (sample != null) {
+                    entry.getValue().addLast(sample);
+                }
+            }
+
+            m_lastRead = row.getTimestamp().asMillis();
+        }
+    }
+
+    /** True if a datasource's samples end at or before the interval ceiling. */
+    private boolean isAwaitingSample(long intervalCeiling) {
+        for (Deque<Sample> samples : m_samples.values()) {
+            if (!samples.isEmpty() && samples.peekLast().getTimestamp().asMillis() <= intervalCeiling) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private Accumulation getOrCreateAccumulation(String name) {
         Accumulation result = m_accumulation.get(name);
 
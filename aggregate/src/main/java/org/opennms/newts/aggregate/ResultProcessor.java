@@ -29,6 +29,8 @@ import org.opennms.newts.api.Sample;
 import org.opennms.newts.api.Timestamp;
 import org.opennms.newts.api.query.ResultDescriptor;
 
+import com.google.common.primitives.Ints;
+
 // Encapsulation of results processing.
 
 public class ResultProcessor {
@@ -48,22 +50,91 @@ public class ResultProcessor {
     }
 
     public Results<Measurement> process(Iterator<Row<Sample>> samples) {
+        Results<Measurement> measurements = new Results<>();
+
+        Iterator<Row<Measurement>> rows = stream(samples);
+        while (rows.hasNext()) {
+            measurements.addRow(rows.next());
+        }
+
+        return measurements;
+    }
+
+    /**
+     * Processes samples lazily; Each measurement row is computed as it is read from the returned
+     * iterator, rather than all up front.
+     *
+     * @param samples
+     *            samples to process
+     * @return an iterator of measurement rows
+     */
+    public Iterator<Row<Measurement>> stream(Iterator<Row<Sample>> samples) {
+        return export(aggregate(samples));
+    }
+
+    /**
+     * The first half of processing; Calculates rates, primary data points, and applies the
+     * aggregation functions, yielding a row for every resolution step.
+     *
+     * @param samples
+     *            samples to process
+     * @return an iterator of aggregated rows
+     */
+    public Iterator<Row<Measurement>> aggregate(Iterator<Row<Sample>> samples) {
         checkNotNull(samples, "samples argument");
 
-        // Build chain of iterators to process results as a stream
-        Rate rate = new Rate(samples, m_resultDescriptor.getSourceNames());
-        PrimaryData primaryData = new PrimaryData(m_resource, m_start.minus(m_resolution), m_end, m_resultDescriptor, rate);
-        Aggregation aggregation = new Aggregation(m_resource, m_start, m_end, m_resultDescriptor, m_resolution, primaryData);
-        Compute compute = new Compute(m_resultDescriptor, aggregation);
-        Export exports = new Export(m_resultDescriptor.getExports(), compute);
+        PrimaryData primaryData = new PrimaryData(m_resource, m_start.minus(m_resolution), m_end, m_resultDescriptor, new Rate(samples, m_resultDescriptor.getSourceNames()));
 
-        Results<Measurement> measurements = new Results<>();
+        return new Aggregation(m_resource, m_start, m_end, m_resultDescriptor, m_resolution, primaryData);
+    }
 
-        for (Row<Measurement> row : exports) {
-            measurements.addRow(row);
+    /**
+     * The second half of processing; Applies calculations to aggregated rows (as produced by
+     * {@link #aggregate(Iterator)}, or an equivalent), selects the exports, and downsamples them
+     * to the descriptor's {@link ResultDescriptor#getMaxDataPoints() maxDataPoints} (if any).
+     *
+     * @param aggregated
+     *            aggregated rows
+     * @return an iterator of measurement rows
+     */
+    public Iterator<Row<Measurement>> export(Iterator<Row<Measurement>> aggregated) {
+        checkNotNull(aggregated, "aggregated argument");
+        return downsample(new Export(m_resultDescriptor.getExports(), new Compute(m_resultDescriptor, aggregated)));
+    }
+
+    /** Downsamples exported rows, if there are more than the descriptor's maxDataPoints. */
+    Iterator<Row<Measurement>> downsample(Iterator<Row<Measurement>> exported) {
+        int maxDataPoints = m_resultDescriptor.getMaxDataPoints();
+        if (maxDataPoints == 0) {
+            return exported;
         }
 
-        return measurements;
+        long first = m_start.stepFloor(m_resolution).asMillis(), last = m_end.stepCeiling(m_resolution).asMillis();
+        long count = (last < first) ? 0 : (last - first) / m_resolution.asMillis() + 1;
+
+        return (count > maxDataPoints) ? new Downsample(m_resultDescriptor.getExports(), maxDataPoints, Ints.saturatedCast(count), exported) : exported;
+    }
+
+    /**
+     * Calculates the primary data points (one per descriptor interval) of samples, without
+     * aggregating them.
+     *
+     * @param resource
+     *            the resource the samples belong to
+     * @param start
+     *            start of the range (rounded down to the interval)
+     * @param end
+     *            end of the range (rounded up to the interval)
+     * @param descriptor
+     *            interval, and datasources (heartbeats) to calculate
+     * @param samples
+     *            samples, beginning at least a heartbeat before start
+     * @return an iterator of primary data rows
+     */
+    public static Iterator<Row<Measurement>> processPrimaryData(Resource resource, Timestamp start, Timestamp end, ResultDescriptor descriptor, Iterator<Row<Sample>> samples) {
+        checkNotNull(descriptor, "descriptor argument");
+        checkNotNull(samples, "samples argument");
+        return new PrimaryData(resource, start, end, descriptor, new Rate(samples, descriptor.getSourceNames()));
     }
 
 }
@@ -19,9 +19,13 @@ package org.opennms.newts.aggregate;
 import static java.lang.Double.NaN;
 import static org.opennms.newts.aggregate.Utils.assertRowsEqual;
 import static org.opennms.newts.api.query.StandardAggregationFunctions.AVERAGE;
+import static org.opennms.newts.api.query.StandardAggregationFunctions.COUNT;
+import static org.opennms.newts.api.query.StandardAggregationFunctions.LAST;
 import static org.opennms.newts.api.query.StandardAggregationFunctions.MAX;
 import static org.opennms.newts.api.query.StandardAggregationFunctions.MIN;
+import static org.opennms.newts.api.query.StandardAggregationFunctions.SUM;
 
+import java.util.Collection;
 import java.util.Iterator;
 
 import org.junit.Test;
@@ -31,6 +35,7 @@ import org.opennms.newts.api.Measurement;
 import org.opennms.newts.api.Resource;
 import org.opennms.newts.api.Results.Row;
 import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.api.query.AggregationFunction;
 import org.opennms.newts.api.query.ResultDescriptor;
 
 
@@ -76,4 +81,56 @@ public class AggregationTest {
 
     }
 
+    @Test
+    public void testAccumulators() {
+
+        // m0 is missing at 2100
+        Iterator<Row<Measurement>> testData = new MeasurementRowsBuilder(new Resource("localhost"))
+                .row( 300).element("m0",  1)
+                .row( 600).element("m0",  2)
+                .row( 900).element("m0",  3)
+                .row(1200).element("m0",  4)
+                .row(1500).element("m0",  5)
+                .row(1800).element("m0",  6)
+                .row(2100).element("m1",  7)
+                .row(2400).element("m0",  8)
+                .row(2700).element("m0",  9)
+                .row(3000).element("m0", 10)
+                .row(3300).element("m0", 11)
+                .row(3600).element("m0", 12)
+                .build();
+
+        // A custom function (the number of values, known or not), through the default accumulator
+        AggregationFunction size = new AggregationFunction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public Double apply(Collection<Double> input) {
+                return (double) input.size();
+            }
+        };
+
+        ResultDescriptor rDescriptor = new ResultDescriptor(Duration.seconds(300))
+                .datasource("m0-sum", "m0", Duration.seconds(600), SUM)
+                .datasource("m0-count", "m0", Duration.seconds(600), COUNT)
+                .datasource("m0-last", "m0", Duration.seconds(600), LAST)
+                .datasource("m0-size", "m0", Duration.seconds(600), size);
+
+        Iterator<Row<Measurement>> expected = new MeasurementRowsBuilder(new Resource("localhost"))
+                .row(   0).element("m0-sum", NaN).element("m0-count", NaN).element("m0-last", NaN).element("m0-size", NaN)
+                .row(3600).element("m0-sum",  71).element("m0-count",  11).element("m0-last",  12).element("m0-size",  12)
+                .build();
+
+        Aggregation aggregation = new Aggregation(
+                new Resource("localhost"),
+                Timestamp.fromEpochSeconds( 300),
+                Timestamp.fromEpochSeconds(3600),
+                rDescriptor,
+                Duration.minutes(60),
+                testData);
+
+        assertRowsEqual(expected, aggregation);
+
+    }
+
 }
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.aggregate;
+
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.opennms.newts.api.query.StandardAggregationFunctions.AVERAGE;
+import static org.opennms.newts.api.query.StandardAggregationFunctions.MAX;
+import static org.opennms.newts.api.query.StandardAggregationFunctions.MIN;
+import static org.opennms.newts.api.query.StandardAggregationFunctions.STDDEV;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import org.opennms.newts.api.Counter;
+import org.opennms.newts.api.Duration;
+import org.opennms.newts.api.Gauge;
+import org.opennms.newts.api.Measurement;
+import org.opennms.newts.api.MetricType;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Results;
+import org.opennms.newts.api.Results.Row;
+import org.opennms.newts.api.Sample;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.api.query.AggregationFunction;
+import org.opennms.newts.api.query.ResultDescriptor;
+import org.opennms.newts.api.query.ResultDescriptor.BinaryFunction;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+
+/**
+ * Runs the {@link ResultProcessorTest} cases against {@link ColumnarResultProcessor}, and compares
+ * the results of both engines on irregular samples.
+ */
+public class ColumnarResultProcessorTest extends ResultProcessorTest {
+
+    private static final Resource RESOURCE = new Resource("localhost");
+
+    @Override
+    protected ResultProcessor processor(Resource resource, Timestamp start, Timestamp end, ResultDescriptor descriptor, Duration resolution) {
+        return new ColumnarResultProcessor(resource, start, end, descriptor, resolution);
+    }
+
+    @Test
+    public void testSameResultsAsRows() {
+        Random random = new Random(42);
+        ResultDescriptor descriptor = descriptor();
+
+        int known = 0;
+        for (int run = 0; run < 20; run++) {
+            List<Row<Sample>> samples = samples(random);
+
+            Timestamp start = Timestamp.fromEpochSeconds(900000000 + random.nextInt(3600));
+            Timestamp end = start.plus(Duration.seconds(3600 * (1 + random.nextInt(12))));
+            Duration resolution = Duration.seconds(300 * (1 + random.nextInt(6)));
+
+            Results<Measurement> expected = new ResultProcessor(RESOURCE, start, end, descriptor, resolution).process(samples.iterator());
+            Results<Measurement> actual = new ColumnarResultProcessor(RESOURCE, start, end, descriptor, resolution).process(samples.iterator());
+            assertThat(actual, equalTo(expected));
+
+            for (Row<Measurement> row : actual) {
+                known += Double.isNaN(row.getElement("total").getValue()) ? 0 : 1;
+            }
+
+            Iterator<Row<Measurement>> expectedRows = new ResultProcessor(RESOURCE, start, end, descriptor, resolution).aggregate(samples.iterator());
+            Iterator<Row<Measurement>> actualRows = new ColumnarResultProcessor(RESOURCE, start, end, descriptor, resolution).aggregate(samples.iterator());
+            assertThat(Lists.newArrayList(actualRows), equalTo(Lists.newArrayList(expectedRows)));
+        }
+
+        // Not (just) NaNs
+        assertTrue(known > 100);
+    }
+
+    @Test
+    public void testSameResultsInParallel() {
+        Random random = new Random(42);
+        ResultDescriptor descriptor = descriptor();
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        try {
+            for (int run = 0; run < 20; run++) {
+                List<Row<Sample>> samples = samples(random);
+
+                Timestamp start = Timestamp.fromEpochSeconds(900000000 + random.nextInt(3600));
+                Timestamp end = start.plus(Duration.seconds(3600 * (1 + random.nextInt(12))));
+                Duration resolution = Duration.seconds(300 * (1 + random.nextInt(6)));
+
+                // Segments of every size, from a single primary data point, always in parallel
+                int segmentSize = 1 + random.nextInt(16);
+
+                Results<Measurement> expected = new ResultProcessor(RESOURCE, start, end, descriptor, resolution).process(samples.iterator());
+                Results<Measurement> actual = new ColumnarResultProcessor(RESOURCE, start, end, descriptor, resolution, pool, segmentSize, 0).process(samples.iterator());
+                assertThat("segments of " + segmentSize, actual, equalTo(expected));
+
+                Iterator<Row<Measurement>> expectedRows = new ResultProcessor(RESOURCE, start, end, descriptor, resolution).aggregate(samples.iterator());
+                Iterator<Row<Measurement>> actualRows = new ColumnarResultProcessor(RESOURCE, start, end, descriptor, resolution, pool, segmentSize, 0).aggregate(samples.iterator());
+                assertThat(Lists.newArrayList(actualRows), equalTo(Lists.newArrayList(expectedRows)));
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testIsParallel() {
+        ResultDescriptor descriptor = new ResultDescriptor(Duration.seconds(300))
+                .datasource("a", AVERAGE).datasource("b", AVERAGE).datasource("c", MAX).datasource("d", MIN);
+        Timestamp start = Timestamp.fromEpochSeconds(900000000);
+
+        // A day of four datasources is too little to be worth it...
+        assertThat(ColumnarResultProcessor.isParallel(start, start.plus(Duration.days(1)), descriptor, Duration.seconds(3600)), equalTo(false));
+
+        // ...unlike ninety, given more than one thread to run on
+        assertThat(ColumnarResultProcessor.isParallel(start, start.plus(Duration.days(90)), descriptor, Duration.seconds(3600)),
+                equalTo(ForkJoinPool.getCommonPoolParallelism() > 1));
+    }
+
+    private static ResultDescriptor descriptor() {
+        // A custom function, applied to the boxed values
+        AggregationFunction last = new AggregationFunction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public Double apply(Collection<Double> input) {
+                return input.isEmpty() ? Double.NaN : Lists.newArrayList(input).get(input.size() - 1);
+            }
+        };
+
+        BinaryFunction ratio = new BinaryFunction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public double apply(double a, double b) {
+                return a / b;
+            }
+        };
+
+        ResultDescriptor descriptor = new ResultDescriptor(Duration.seconds(300))
+                .datasource("inAvg", "in", Duration.seconds(600), AVERAGE)
+                .datasource("inMax", "in", Duration.seconds(900), MAX)
+                .datasource("outMin", "out", Duration.seconds(600), 0.8, MIN)
+                .datasource("temp", "temp", Duration.seconds(600), 0.0, AVERAGE)
+                .datasource("tempLast", "temp", Duration.seconds(600), last)
+                .datasource("tempStddev", "temp", Duration.seconds(600), STDDEV)
+                .calculate("ratio", ratio, "inAvg", "outMin")
+                .calculate("scaled", ratio, "ratio", "8")
+                .export("inAvg", "inMax", "outMin", "tempLast", "tempStddev", "scaled");
+        descriptor.expression("total", "inAvg + outMin").export("total");
+
+        return descriptor;
+    }
+
+    /** Twelve hours of samples, collected irregularly, with gaps, counter wraps, and attributes. */
+    private static List<Row<Sample>> samples(Random random) {
+        List<Row<Sample>> rows = Lists.newArrayList();
+        long in = 0, out = Integer.MAX_VALUE * 2L - 100000;
+
+        for (long time = 899990000L; time < 900043200L; time += 30 + random.nextInt(600)) {
+            Timestamp timestamp = Timestamp.fromEpochMillis(time * 1000 + random.nextInt(1000));
+            Row<Sample> row = new Row<>(timestamp, RESOURCE);
+
+            in += random.nextInt(100000);
+            out = (out + random.nextInt(50000)) % (Integer.MAX_VALUE * 2L);
+
+            if (random.nextInt(10) > 0) {
+                row.addElement(new Sample(timestamp, RESOURCE, "in", MetricType.COUNTER, new Counter(in)));
+            }
+            if (random.nextInt(10) > 1) {
+                row.addElement(new Sample(timestamp, RESOURCE, "out", MetricType.COUNTER, new Counter(out),
+                        random.nextBoolean() ? ImmutableMap.of("ifName", "eth" + random.nextInt(2)) : null));
+            }
+            if (random.nextInt(10) > 2) {
+                double temp = random.nextInt(20) == 0 ? Double.NaN : 20 + random.nextGaussian();
+                row.addElement(new Sample(timestamp, RESOURCE, "temp", MetricType.GAUGE, new Gauge(temp)));
+            }
+
+            rows.add(row);
+        }
+
+        return rows;
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.aggregate;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import org.opennms.newts.aggregate.Utils.MeasurementRowsBuilder;
+import org.opennms.newts.api.Measurement;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Results.Row;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+
+public class DownsampleTest {
+
+    private static final Set<String> EXPORTS = ImmutableSet.of("in", "out");
+
+    @Test
+    public void test() {
+        List<Row<Measurement>> rows = Lists.newArrayList(rows(100));
+        List<Row<Measurement>> downsampled = Lists.newArrayList((Iterator<Row<Measurement>>) new Downsample(EXPORTS, 10, 100, rows.iterator()));
+
+        assertEquals(10, downsampled.size());
+        assertTrue(rows.containsAll(downsampled));
+        for (int i = 1; i < downsampled.size(); i++) {
+            assertTrue(downsampled.get(i).getTimestamp().gt(downsampled.get(i - 1).getTimestamp()));
+        }
+
+        // The first and last rows, the spike of one export, and the dip of the other, are kept
+        assertEquals(rows.get(0), downsampled.get(0));
+        assertEquals(rows.get(99), downsampled.get(9));
+        assertTrue(downsampled.contains(rows.get(37)));
+        assertTrue(downsampled.contains(rows.get(71)));
+    }
+
+    @Test
+    public void testFewerRows() {
+        List<Row<Measurement>> rows = Lists.newArrayList(rows(40));
+        List<Row<Measurement>> downsampled = Lists.newArrayList((Iterator<Row<Measurement>>) new Downsample(EXPORTS, 10, 100, rows.iterator()));
+
+        assertTrue(downsampled.size() <= 10);
+        assertEquals(rows.get(0), downsampled.get(0));
+        assertEquals(rows.get(39), downsampled.get(downsampled.size() - 1));
+        assertTrue(downsampled.contains(rows.get(37)));
+    }
+
+    @Test
+    public void testMoreRows() {
+        List<Row<Measurement>> rows = Lists.newArrayList(rows(60));
+        List<Row<Measurement>> downsampled = Lists.newArrayList((Iterator<Row<Measurement>>) new Downsample(EXPORTS, 10, 50, rows.iterator()));
+
+        // Rows beyond those counted are passed through
+        assertEquals(20, downsampled.size());
+        assertEquals(rows.subList(49, 60), downsampled.subList(9, 20));
+    }
+
+    @Test
+    public void testNaNs() {
+        MeasurementRowsBuilder builder = new MeasurementRowsBuilder(new Resource("localhost"));
+        for (int i = 1; i <= 50; i++) {
+            builder.row(i * 300).element("in", (i % 7 == 0) ? Double.NaN : i).element("out", Double.NaN);
+        }
+
+        List<Row<Measurement>> downsampled = Lists.newArrayList((Iterator<Row<Measurement>>) new Downsample(EXPORTS, 5, 50, builder.build()));
+        assertEquals(5, downsampled.size());
+    }
+
+    /** Flat exports, but for a spike of in (at row 37), and a dip of out (at row 71). */
+    private static Iterator<Row<Measurement>> rows(int count) {
+        MeasurementRowsBuilder builder = new MeasurementRowsBuilder(new Resource("localhost"));
+        for (int i = 0; i < count; i++) {
+            builder.row(900000000 + i * 300).element("in", (i == 37) ? 100 : 1).element("out", (i == 71) ? -50 : 2);
+        }
+        return builder.build();
+    }
+
+}
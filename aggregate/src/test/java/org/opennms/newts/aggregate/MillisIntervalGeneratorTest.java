@@ -0,0 +1,91 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.aggregate;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.opennms.newts.api.Timestamp.fromEpochSeconds;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+import org.opennms.newts.api.Duration;
+import org.opennms.newts.api.Timestamp;
+
+import com.google.common.collect.Lists;
+
+
+public class MillisIntervalGeneratorTest {
+
+    private static final Duration DEFAULT_INTERVAL = Duration.seconds(300);
+
+    @Test
+    public void test() {
+        assertSameIntervals(150, 3500, false);
+        assertSameIntervals(0, 3600, false);
+        assertSameIntervals(3600, 0, false);
+    }
+
+    @Test
+    public void testReversed() {
+        assertSameIntervals(150, 3500, true);
+        assertSameIntervals(0, 3600, true);
+        assertSameIntervals(3600, 0, true);
+    }
+
+    @Test
+    public void testEndOfTime() {
+        MillisIntervalGenerator millis = new MillisIntervalGenerator(Long.MAX_VALUE - 10, Long.MAX_VALUE, 7, false);
+        assertEquals(Long.MAX_VALUE - 10, millis.nextLong());
+        assertEquals(Long.MAX_VALUE - 3, millis.nextLong());
+        assertFalse(millis.hasNext());
+
+        millis = new MillisIntervalGenerator(Long.MIN_VALUE, Long.MIN_VALUE + 10, 7, true);
+        assertEquals(Long.MIN_VALUE + 10, millis.nextLong());
+        assertEquals(Long.MIN_VALUE + 3, millis.nextLong());
+        assertFalse(millis.hasNext());
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void testExhausted() {
+        MillisIntervalGenerator millis = new MillisIntervalGenerator(0, 0, 1, false);
+        millis.nextLong();
+        millis.nextLong();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonPositiveInterval() {
+        new MillisIntervalGenerator(0, 1000, 0, false);
+    }
+
+    private void assertSameIntervals(long startSecs, long endSecs, boolean reversed) {
+        Timestamp start = fromEpochSeconds(startSecs).stepFloor(DEFAULT_INTERVAL);
+        Timestamp end = fromEpochSeconds(endSecs).stepCeiling(DEFAULT_INTERVAL);
+
+        List<Long> expected = Lists.newArrayList();
+        for (Timestamp timestamp : new IntervalGenerator(start, end, DEFAULT_INTERVAL, reversed)) {
+            expected.add(timestamp.asMillis());
+        }
+
+        List<Long> actual = Lists.newArrayList();
+        new MillisIntervalGenerator(start.asMillis(), end.asMillis(), DEFAULT_INTERVAL.asMillis(), reversed).forEachRemaining((long millis) -> actual.add(millis));
+
+        assertEquals(expected, actual);
+    }
+
+}
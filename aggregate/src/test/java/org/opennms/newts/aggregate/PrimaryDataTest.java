@@ -16,6 +16,8 @@
 package org.opennms.newts.aggregate;
 
 
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
 import static org.opennms.newts.aggregate.Utils.assertRowsEqual;
 
 import java.util.Iterator;
@@ -102,6 +104,38 @@ public class PrimaryDataTest {
 
     }
 
+    @Test
+    public void testSharedSource() {
+
+        // Datasources of the same metric see the same primary data points
+        Iterator<Row<Sample>> testData = new SampleRowsBuilder(new Resource("localhost"), MetricType.GAUGE)
+                .row(000).element("m0", 0)
+                .row(250).element("m0", 1)
+                .row(550).element("m0", 2)
+                .row(850).element("m0", 3)
+                .build();
+
+        ResultDescriptor rDescriptor = new ResultDescriptor().step(Duration.seconds(300))
+                .datasource("avg", "m0", Duration.seconds(600), null).datasource("max", "m0", Duration.seconds(600), null);
+
+        // Expected results
+        Iterator<Row<Measurement>> expected = new MeasurementRowsBuilder(new Resource("localhost"))
+                .row(300).element("m0", 1.16666667)
+                .row(600).element("m0", 2.16666667)
+                .row(900).element("m0",        3.0)
+                .build();
+
+        PrimaryData primaryData = new PrimaryData(
+                new Resource("localhost"),
+                Timestamp.fromEpochSeconds(300),
+                Timestamp.fromEpochSeconds(900),
+                rDescriptor,
+                testData);
+
+        assertRowsEqual(expected, primaryData);
+
+    }
+
     @Test
     public void testVeryShortSamples() {
 
@@ -430,4 +464,50 @@ public class PrimaryDataTest {
         assertRowsEqual(expected, primaryData);
 
     }
+
+    @Test
+    public void testReadsAsIntervalsAre() {
+
+        // A day of samples, at 300s
+        SampleRowsBuilder builder = new SampleRowsBuilder(new Resource("localhost"), MetricType.GAUGE);
+        for (int i = 0; i <= 288; i++) {
+            builder.row(i * 300).element("m0", i).element("m1", i);
+        }
+        final Iterator<Row<Sample>> samples = builder.build();
+        final int[] read = { 0 };
+
+        Iterator<Row<Sample>> testData = new Iterator<Row<Sample>>() {
+            @Override
+            public boolean hasNext() {
+                return samples.hasNext();
+            }
+
+            @Override
+            public Row<Sample> next() {
+                read[0]++;
+                return samples.next();
+            }
+        };
+
+        ResultDescriptor rDescriptor = new ResultDescriptor().step(Duration.seconds(300))
+                .datasource("m0", "m0", Duration.seconds(600), null)
+                .datasource("m1", "m1", Duration.seconds(600), null);
+
+        PrimaryData primaryData = new PrimaryData(
+                new Resource("localhost"),
+                Timestamp.fromEpochSeconds(0),
+                Timestamp.fromEpochSeconds(86400),
+                rDescriptor,
+                testData);
+
+        assertThat(read[0], equalTo(0));
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(primaryData.next().getElement("m0").getValue(), equalTo(i == 0 ? Double.NaN : i));
+            // The samples of the interval, and the one that follows
+            assertThat(read[0], equalTo(i + 2));
+        }
+
+    }
+
 }
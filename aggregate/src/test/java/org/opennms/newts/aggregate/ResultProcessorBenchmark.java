@@ -0,0 +1,142 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.aggregate;
+
+
+import static org.opennms.newts.api.query.StandardAggregationFunctions.AVERAGE;
+import static org.opennms.newts.api.query.StandardAggregationFunctions.MAX;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.newts.api.Counter;
+import org.opennms.newts.api.Duration;
+import org.opennms.newts.api.Gauge;
+import org.opennms.newts.api.Measurement;
+import org.opennms.newts.api.MetricType;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Results.Row;
+import org.opennms.newts.api.Sample;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.api.query.ResultDescriptor;
+import org.opennms.newts.api.query.ResultDescriptor.BinaryFunction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.common.collect.Lists;
+
+
+/**
+ * Time and allocation to process days of samples (4 metrics, every 5 minutes) into hourly
+ * measurements, by each engine; Run {@link #main(String...)} (from the test classpath). The
+ * columnar engine is run as it chooses (in parallel, for the larger input), and always sequentially.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@org.openjdk.jmh.annotations.Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultProcessorBenchmark {
+
+    private static final Resource RESOURCE = new Resource("localhost:snmp:ifIndex=1");
+    private static final Timestamp START = Timestamp.fromEpochSeconds(900000000);
+
+    @Param({ "rows", "columnar", "sequential" })
+    public String engine;
+
+    @Param({ "1", "90" })
+    public int days;
+
+    private Timestamp m_end;
+
+    private List<Row<Sample>> m_samples;
+    private ResultDescriptor m_descriptor;
+
+    @Setup
+    public void setUp() {
+        m_end = START.plus(Duration.seconds(86400L * days));
+        m_samples = Lists.newArrayList();
+        for (Timestamp t = START.minus(Duration.seconds(7200)); t.lte(m_end); t = t.plus(Duration.seconds(300))) {
+            long n = t.asSeconds() - START.asSeconds();
+            Row<Sample> row = new Row<>(t, RESOURCE);
+            row.addElement(new Sample(t, RESOURCE, "ifInOctets", MetricType.COUNTER, new Counter(n * 1000)));
+            row.addElement(new Sample(t, RESOURCE, "ifOutOctets", MetricType.COUNTER, new Counter(n * 500)));
+            row.addElement(new Sample(t, RESOURCE, "ifInErrors", MetricType.COUNTER, new Counter(n / 60)));
+            row.addElement(new Sample(t, RESOURCE, "ifSpeed", MetricType.GAUGE, new Gauge(1e9)));
+            m_samples.add(row);
+        }
+
+        BinaryFunction ratio = new BinaryFunction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public double apply(double a, double b) {
+                return a / b;
+            }
+        };
+
+        m_descriptor = new ResultDescriptor(Duration.seconds(300))
+                .datasource("in", "ifInOctets", AVERAGE)
+                .datasource("inMax", "ifInOctets", MAX)
+                .datasource("out", "ifOutOctets", AVERAGE)
+                .datasource("errors", "ifInErrors", AVERAGE)
+                .datasource("speed", "ifSpeed", AVERAGE)
+                .calculate("utilization", ratio, "in", "speed")
+                .export("in", "inMax", "out", "errors", "utilization");
+    }
+
+    @Benchmark
+    public void process(Blackhole blackhole) {
+        ResultProcessor processor;
+        if ("columnar".equals(engine)) {
+            processor = new ColumnarResultProcessor(RESOURCE, START, m_end, m_descriptor, Duration.seconds(3600));
+        }
+        else if ("sequential".equals(engine)) {
+            processor = new ColumnarResultProcessor(RESOURCE, START, m_end, m_descriptor, Duration.seconds(3600), null);
+        }
+        else {
+            processor = new ResultProcessor(RESOURCE, START, m_end, m_descriptor, Duration.seconds(3600));
+        }
+
+        Iterator<Row<Measurement>> rows = processor.stream(m_samples.iterator());
+        while (rows.hasNext()) {
+            blackhole.consume(rows.next());
+        }
+    }
+
+    public static void main(String... args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ResultProcessorBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+}
@@ -15,10 +15,13 @@
  */
 package org.opennms.newts.aggregate;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.opennms.newts.aggregate.Utils.assertRowsEqual;
 import static org.opennms.newts.api.query.StandardAggregationFunctions.AVERAGE;
 
 import java.util.Iterator;
+import java.util.List;
 
 import org.junit.Test;
 import org.opennms.newts.aggregate.Utils.MeasurementRowsBuilder;
@@ -33,6 +36,8 @@ import org.opennms.newts.api.Timestamp;
 import org.opennms.newts.api.query.ResultDescriptor;
 import org.opennms.newts.api.query.ResultDescriptor.BinaryFunction;
 
+import com.google.common.collect.Lists;
+
 public class ResultProcessorTest {
 
     @Test
@@ -87,7 +92,7 @@ public class ResultProcessorTest {
                 .row(900007200).element("total", 20)
                 .build();
 
-        ResultProcessor processor = new ResultProcessor(
+        ResultProcessor processor = processor(
                 new Resource("localhost"),
                 Timestamp.fromEpochSeconds(900003600),
                 Timestamp.fromEpochSeconds(900007200),
@@ -136,7 +141,7 @@ public class ResultProcessorTest {
                 .row(900007200).element("m0", 10.0)
                 .build();
 
-        ResultProcessor processor = new ResultProcessor(
+        ResultProcessor processor = processor(
                 new Resource("localhost"),
                 Timestamp.fromEpochSeconds(900003600),
                 Timestamp.fromEpochSeconds(900007200),
@@ -186,7 +191,7 @@ public class ResultProcessorTest {
                 .row(900007200).element("m0-avg", 2.0)
                 .build();
 
-        ResultProcessor processor = new ResultProcessor(
+        ResultProcessor processor = processor(
                 new Resource("localhost"),
                 Timestamp.fromEpochSeconds(900003600),
                 Timestamp.fromEpochSeconds(900007200),
@@ -197,4 +202,45 @@ public class ResultProcessorTest {
 
     }
 
+    @Test
+    public void testMaxDataPoints() {
+
+        // A gauge, flat but for a spike
+        SampleRowsBuilder builder = new SampleRowsBuilder(new Resource("localhost"), MetricType.GAUGE);
+        for (int i = 0; i <= 24; i++) {
+            builder.row(900000000 + i * 300).element("m0", (i == 13) ? 100 : 1);
+        }
+        List<Row<Sample>> testData = Lists.newArrayList(builder.build());
+
+        ResultDescriptor rDescriptor = new ResultDescriptor(Duration.seconds(300))
+                .datasource("m0", AVERAGE)
+                .export("m0");
+
+        Timestamp start = Timestamp.fromEpochSeconds(900000300), end = Timestamp.fromEpochSeconds(900007200);
+
+        List<Row<Measurement>> all = Lists.newArrayList(processor(new Resource("localhost"), start, end, rDescriptor, Duration.seconds(300)).process(testData.iterator()));
+        List<Row<Measurement>> downsampled = Lists.newArrayList(processor(new Resource("localhost"), start, end, new ResultDescriptor(rDescriptor).maxDataPoints(6), Duration.seconds(300)).process(testData.iterator()));
+
+        assertEquals(24, all.size());
+        assertEquals(6, downsampled.size());
+        assertTrue(all.containsAll(downsampled));
+
+        // The first and last rows, and the spike, are kept
+        assertEquals(all.get(0), downsampled.get(0));
+        assertEquals(all.get(23), downsampled.get(5));
+        assertEquals(max(all), max(downsampled), 0.0d);
+    }
+
+    private static double max(List<Row<Measurement>> rows) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (Row<Measurement> row : rows) {
+            max = Math.max(max, row.getElement("m0").getValue());
+        }
+        return max;
+    }
+
+    protected ResultProcessor processor(Resource resource, Timestamp start, Timestamp end, ResultDescriptor descriptor, Duration resolution) {
+        return new ResultProcessor(resource, start, end, descriptor, resolution);
+    }
+
 }
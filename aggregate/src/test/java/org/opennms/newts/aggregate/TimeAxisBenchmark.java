@@ -0,0 +1,106 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.aggregate;
+
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.newts.api.Duration;
+import org.opennms.newts.api.Timestamp;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.common.collect.Lists;
+
+
+/**
+ * Time and allocation to walk a time axis (90 days of 5 minute intervals) and bucket a sample
+ * timestamp for each interval, as the aggregation loops do; With {@link IntervalGenerator} and
+ * {@link Timestamp} comparisons, and with {@link MillisIntervalGenerator} and epoch milliseconds.
+ * Run {@link #main(String...)} (from the test classpath).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@org.openjdk.jmh.annotations.Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimeAxisBenchmark {
+
+    private static final Duration INTERVAL = Duration.seconds(300);
+    private static final Timestamp START = Timestamp.fromEpochSeconds(900000000);
+    private static final Timestamp END = START.plus(Duration.seconds(86400L * 90));
+
+    private List<Timestamp> m_samples;
+
+    @Setup
+    public void setUp() {
+        // Samples are stored (and read) at millisecond resolution, a little after each interval
+        m_samples = Lists.newArrayList();
+        for (Timestamp t = START; t.lte(END); t = t.plus(INTERVAL)) {
+            m_samples.add(Timestamp.fromEpochMillis(t.asMillis() + 1500));
+        }
+    }
+
+    @Benchmark
+    public int timestamps() {
+        int bucketed = 0, i = 0;
+        for (Timestamp upper : new IntervalGenerator(START.plus(INTERVAL), END.plus(INTERVAL), INTERVAL)) {
+            Timestamp lower = upper.minus(INTERVAL);
+            while (i < m_samples.size() && m_samples.get(i).lte(upper)) {
+                if (m_samples.get(i++).gt(lower)) {
+                    bucketed++;
+                }
+            }
+        }
+        return bucketed;
+    }
+
+    @Benchmark
+    public int millis() {
+        int bucketed = 0, i = 0;
+        long interval = INTERVAL.asMillis();
+        for (MillisIntervalGenerator uppers = new MillisIntervalGenerator(START.plus(INTERVAL), END.plus(INTERVAL), INTERVAL); uppers.hasNext();) {
+            long upper = uppers.nextLong(), lower = upper - interval;
+            while (i < m_samples.size() && m_samples.get(i).asMillis() <= upper) {
+                if (m_samples.get(i++).asMillis() > lower) {
+                    bucketed++;
+                }
+            }
+        }
+        return bucketed;
+    }
+
+    public static void main(String... args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(TimeAxisBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+}
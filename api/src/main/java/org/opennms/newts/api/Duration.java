@@ -19,7 +19,6 @@ package org.opennms.newts.api;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.io.Serializable;
-import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -39,7 +38,7 @@ public class Duration implements Comparable<Duration>, Serializable {
     }
 
     public long convert(TimeUnit unit) {
-        return unit.convert(getDuration(), getUnit());
+        return (unit == m_unit) ? m_duration : unit.convert(m_duration, m_unit);
     }
 
     public long asMillis() {
@@ -157,8 +156,11 @@ public class Duration implements Comparable<Duration>, Serializable {
 
     @Override
     public int compareTo(Duration o) {
+        if (m_unit == o.m_unit) {
+            return Long.compare(m_duration, o.m_duration);
+        }
         TimeUnit unit = Timestamp.finest(getUnit(), o.getUnit());
-        return convert(unit) < o.convert(unit) ? -1 : (convert(unit) > o.convert(unit) ? 1 : 0);
+        return Long.compare(convert(unit), o.convert(unit));
     }
 
     @Override
@@ -169,7 +171,7 @@ public class Duration implements Comparable<Duration>, Serializable {
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(Long.valueOf(convert(TimeUnit.NANOSECONDS)));
+        return Long.hashCode(convert(TimeUnit.NANOSECONDS));
     }
 
     public boolean lt(Duration o) {
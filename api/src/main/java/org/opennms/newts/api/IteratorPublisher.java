@@ -0,0 +1,140 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.api;
+
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Iterator;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+
+/**
+ * A {@link Flow.Publisher} that emits the elements of an {@link Iterator}, honoring subscriber
+ * demand. Each subscriber gets its own iterator, obtained from the supplier on first demand, and
+ * elements are pulled from it only as they are requested. Elements are emitted on the thread that
+ * calls {@link Flow.Subscription#request(long)}; Requests made from within
+ * {@link Flow.Subscriber#onNext(Object)} are queued (as demand) rather than recursed into.
+ *
+ * @param <T>
+ *            the published element type
+ */
+public class IteratorPublisher<T> implements Flow.Publisher<T> {
+
+    private final Supplier<? extends Iterator<? extends T>> m_source;
+
+    public IteratorPublisher(Supplier<? extends Iterator<? extends T>> source) {
+        m_source = checkNotNull(source, "source argument");
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        checkNotNull(subscriber, "subscriber argument");
+        subscriber.onSubscribe(new IteratorSubscription<T>(subscriber, m_source));
+    }
+
+    private static class IteratorSubscription<T> implements Flow.Subscription {
+
+        private final Flow.Subscriber<? super T> m_subscriber;
+        private final Supplier<? extends Iterator<? extends T>> m_source;
+
+        // Outstanding demand; Whichever thread raises it from zero drains it.
+        private final AtomicLong m_demand = new AtomicLong();
+
+        private Iterator<? extends T> m_iterator;
+        private volatile boolean m_done = false;
+
+        private IteratorSubscription(Flow.Subscriber<? super T> subscriber, Supplier<? extends Iterator<? extends T>> source) {
+            m_subscriber = subscriber;
+            m_source = source;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                if (!m_done) {
+                    m_done = true;
+                    m_subscriber.onError(new IllegalArgumentException("non-positive subscription request: " + n));
+                }
+                return;
+            }
+
+            long previous, next;
+            do {
+                previous = m_demand.get();
+                next = previous + n;
+                // Saturate; Long.MAX_VALUE is effectively unbounded
+                if (next < 0) {
+                    next = Long.MAX_VALUE;
+                }
+            } while (!m_demand.compareAndSet(previous, next));
+
+            if (previous == 0) {
+                drain();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            m_done = true;
+        }
+
+        private void drain() {
+            long emitted = 0;
+
+            while (true) {
+                long demand = m_demand.get();
+
+                while (emitted != demand) {
+                    if (m_done) {
+                        return;
+                    }
+
+                    T element;
+                    try {
+                        if (m_iterator == null) {
+                            m_iterator = m_source.get();
+                        }
+                        if (!m_iterator.hasNext()) {
+                            m_done = true;
+                            m_subscriber.onComplete();
+                            return;
+                        }
+                        element = m_iterator.next();
+                    }
+                    catch (RuntimeException e) {
+                        m_done = true;
+                        m_subscriber.onError(e);
+                        return;
+                    }
+
+                    m_subscriber.onNext(element);
+                    emitted++;
+                }
+
+                if (m_demand.addAndGet(-emitted) == 0) {
+                    return;
+                }
+
+                emitted = 0;
+            }
+        }
+
+    }
+
+}
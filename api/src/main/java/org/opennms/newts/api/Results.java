@@ -93,6 +93,7 @@ public class Results<T extends Element<?>> implements Iterable<Results.Row<T>>,
     }
 
     Map<Timestamp, Row<T>> m_rows = Maps.newTreeMap();
+    private boolean m_truncated = false;
 
     public void addElement(T sample) {
 
@@ -115,6 +116,16 @@ public class Results<T extends Element<?>> implements Iterable<Results.Row<T>>,
         return m_rows.values();
     }
 
+    /** Marks the results cut short; By a query over budget, for one. */
+    public void setTruncated(boolean truncated) {
+        m_truncated = truncated;
+    }
+
+    /** @return true if the results were cut short, and are missing rows (or elements) */
+    public boolean isTruncated() {
+        return m_truncated;
+    }
+
     @Override
     public Iterator<Row<T>> iterator() {
         return getRows().iterator();
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.api;
+
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+import com.google.common.primitives.UnsignedLong;
+
+
+/**
+ * Samples of a single context, stored a column at a time: Parallel arrays of timestamps, types and
+ * values, with resources and metric names dictionary-encoded (each distinct one is held once, and
+ * samples refer to it by index).
+ *
+ * <p>
+ * Building a batch allocates nothing per sample (beyond the occasional growth of its arrays), and a
+ * repository can write one without ever materializing {@link Sample}s. Values are held as their raw
+ * 64 bits; Those of gauges are the bits of a double, and those of the other types are (unsigned)
+ * longs. Samples of a batch do not have attributes of their own (those of their {@link Resource}
+ * are kept).
+ * </p>
+ *
+ * <p>
+ * Batches are built using a {@link Builder}, and are immutable once built.
+ * </p>
+ */
+public class SampleBatch implements Iterable<Sample> {
+
+    private final Context m_context;
+    private final int m_size;
+    private final long[] m_timestamps;
+    private final byte[] m_types;
+    private final long[] m_values;
+    private final int[] m_resourceIds;
+    private final int[] m_metricIds;
+    private final Resource[] m_resources;
+    private final String[] m_metrics;
+
+    private SampleBatch(Builder builder) {
+        m_context = builder.m_context;
+        m_size = builder.m_size;
+        m_timestamps = builder.m_timestamps;
+        m_types = builder.m_types;
+        m_values = builder.m_values;
+        m_resourceIds = builder.m_resourceIds;
+        m_metricIds = builder.m_metricIds;
+        m_resources = builder.m_resources.values().toArray(new Resource[0]);
+        m_metrics = builder.m_metrics.keySet().toArray(new String[0]);
+    }
+
+    public Context getContext() {
+        return m_context;
+    }
+
+    /** @return the number of samples in the batch */
+    public int size() {
+        return m_size;
+    }
+
+    public boolean isEmpty() {
+        return m_size == 0;
+    }
+
+    /** @return the timestamp of the i'th sample, in milliseconds since the epoch */
+    public long getTimestamp(int i) {
+        checkElementIndex(i, m_size);
+        return m_timestamps[i];
+    }
+
+    public MetricType getType(int i) {
+        checkElementIndex(i, m_size);
+        return MetricType.fromCode(m_types[i]);
+    }
+
+    /** @return the value of the i'th sample, as a long (the bits of the value, for any type but a gauge) */
+    public long getLongValue(int i) {
+        checkElementIndex(i, m_size);
+        return (m_types[i] == MetricType.GAUGE.getCode()) ? (long) Double.longBitsToDouble(m_values[i]) : m_values[i];
+    }
+
+    /** @return the value of the i'th sample, as a double */
+    public double getDoubleValue(int i) {
+        checkElementIndex(i, m_size);
+        return (m_types[i] == MetricType.GAUGE.getCode()) ? Double.longBitsToDouble(m_values[i]) : UnsignedLong.fromLongBits(m_values[i]).doubleValue();
+    }
+
+    /** @return the index (in {@link #getResources()}) of the i'th sample's resource */
+    public int getResourceId(int i) {
+        checkElementIndex(i, m_size);
+        return m_resourceIds[i];
+    }
+
+    /** @return the index (in {@link #getMetrics()}) of the i'th sample's metric name */
+    public int getMetricId(int i) {
+        checkElementIndex(i, m_size);
+        return m_metricIds[i];
+    }
+
+    /** @return the distinct resources of the batch, in the order they were first added */
+    public List<Resource> getResources() {
+        return Arrays.asList(m_resources);
+    }
+
+    /** @return the distinct metric names of the batch, in the order they were first added */
+    public List<String> getMetrics() {
+        return Arrays.asList(m_metrics);
+    }
+
+    /**
+     * Writes the i'th sample's value at the buffer's current position, in the encoding of
+     * {@link ValueType#decompose(ValueType)} (9 bytes), and advances the position.
+     */
+    public void encodeValue(int i, ByteBuffer buffer) {
+        checkElementIndex(i, m_size);
+        buffer.put(m_types[i]).putLong(m_values[i]);
+    }
+
+    /** @return the i'th sample */
+    public Sample getSample(int i) {
+        checkElementIndex(i, m_size);
+        MetricType type = MetricType.fromCode(m_types[i]);
+        ValueType<?> value = (type == MetricType.GAUGE)
+                ? new Gauge(Double.longBitsToDouble(m_values[i]))
+                : ValueType.compose(m_values[i], type);
+        return new Sample(Timestamp.fromEpochMillis(m_timestamps[i]), m_context, m_resources[m_resourceIds[i]],
+                m_metrics[m_metricIds[i]], type, value);
+    }
+
+    /** @return a view of the batch as samples, each materialized as it is accessed */
+    public List<Sample> toSamples() {
+        return new AbstractList<Sample>() {
+
+            @Override
+            public Sample get(int index) {
+                return getSample(index);
+            }
+
+            @Override
+            public int size() {
+                return m_size;
+            }
+        };
+    }
+
+    @Override
+    public Iterator<Sample> iterator() {
+        return toSamples().iterator();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[context=%s, size=%d, resources=%d, metrics=%d]", getClass().getSimpleName(), m_context, m_size,
+                m_resources.length, m_metrics.length);
+    }
+
+    public static Builder builder(Context context) {
+        return new Builder(context, Builder.DEFAULT_CAPACITY);
+    }
+
+    public static class Builder {
+
+        private static final int DEFAULT_CAPACITY = 256;
+
+        private final Context m_context;
+        private final Map<String, Resource> m_resources = Maps.newLinkedHashMap();
+        private final Map<String, Integer> m_resourceIndex = Maps.newHashMap();
+        private final Map<String, Integer> m_metrics = Maps.newLinkedHashMap();
+        private int m_size = 0;
+        private long[] m_timestamps;
+        private byte[] m_types;
+        private long[] m_values;
+        private int[] m_resourceIds;
+        private int[] m_metricIds;
+        private boolean m_built = false;
+
+        public Builder(Context context, int capacity) {
+            m_context = checkNotNull(context, "context argument");
+            checkArgument(capacity >= 0, "capacity must be non-negative");
+            m_timestamps = new long[capacity];
+            m_types = new byte[capacity];
+            m_values = new long[capacity];
+            m_resourceIds = new int[capacity];
+            m_metricIds = new int[capacity];
+        }
+
+        /** Adds a sample of a gauge. */
+        public Builder addGauge(long timestampMillis, Resource resource, String metric, double value) {
+            return add(timestampMillis, resource, metric, MetricType.GAUGE.getCode(), Double.doubleToRawLongBits(value));
+        }
+
+        /** Adds a sample of a counter. */
+        public Builder addCounter(long timestampMillis, Resource resource, String metric, long value) {
+            return add(timestampMillis, resource, metric, MetricType.COUNTER.getCode(), value);
+        }
+
+        /** Adds a sample of the given type; The value of a gauge is truncated to a long. */
+        public Builder add(long timestampMillis, Resource resource, String metric, MetricType type, long value) {
+            checkNotNull(type, "type argument");
+            return (type == MetricType.GAUGE)
+                    ? addGauge(timestampMillis, resource, metric, value)
+                    : add(timestampMillis, resource, metric, type.getCode(), value);
+        }
+
+        /** Adds a sample of the given type; The value of any type but a gauge is truncated to a long. */
+        public Builder add(long timestampMillis, Resource resource, String metric, MetricType type, double value) {
+            checkNotNull(type, "type argument");
+            return (type == MetricType.GAUGE)
+                    ? addGauge(timestampMillis, resource, metric, value)
+                    : add(timestampMillis, resource, metric, type.getCode(), (long) value);
+        }
+
+        /** Adds a sample. */
+        public Builder add(Sample sample) {
+            checkArgument(sample.getContext().equals(m_context), "sample of another context: %s", sample.getContext());
+            ValueType<?> value = checkNotNull(sample.getValue(), "sample value");
+            long bits = (sample.getType() == MetricType.GAUGE) ? Double.doubleToRawLongBits(value.doubleValue()) : value.longValue();
+            return add(sample.getTimestamp().asMillis(), sample.getResource(), sample.getName(), sample.getType().getCode(), bits);
+        }
+
+        public int size() {
+            return m_size;
+        }
+
+        public SampleBatch build() {
+            m_built = true;
+            return new SampleBatch(this);
+        }
+
+        private Builder add(long timestampMillis, Resource resource, String metric, byte type, long bits) {
+            checkArgument(!m_built, "batch already built");
+            checkNotNull(resource, "resource argument");
+            checkNotNull(metric, "metric argument");
+
+            if (m_size == m_timestamps.length) {
+                grow();
+            }
+
+            Integer resourceId = m_resourceIndex.get(resource.getId());
+            if (resourceId == null) {
+                resourceId = m_resourceIndex.size();
+                m_resourceIndex.put(resource.getId(), resourceId);
+                m_resources.put(resource.getId(), resource);
+            }
+
+            Integer metricId = m_metrics.get(metric);
+            if (metricId == null) {
+                metricId = m_metrics.size();
+                m_metrics.put(metric, metricId);
+            }
+
+            m_timestamps[m_size] = timestampMillis;
+            m_types[m_size] = type;
+            m_values[m_size] = bits;
+            m_resourceIds[m_size] = resourceId;
+            m_metricIds[m_size] = metricId;
+            m_size++;
+
+            return this;
+        }
+
+        private void grow() {
+            int capacity = Math.max(DEFAULT_CAPACITY, m_timestamps.length * 2);
+            m_timestamps = Arrays.copyOf(m_timestamps, capacity);
+            m_types = Arrays.copyOf(m_types, capacity);
+            m_values = Arrays.copyOf(m_values, capacity);
+            m_resourceIds = Arrays.copyOf(m_resourceIds, capacity);
+            m_metricIds = Arrays.copyOf(m_metricIds, capacity);
+        }
+    }
+
+}
@@ -17,6 +17,13 @@ package org.opennms.newts.api;
 
 
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+import org.opennms.newts.api.Results.Row;
 
 import org.opennms.newts.api.query.ResultDescriptor;
 
@@ -65,6 +72,39 @@ public interface SampleRepository {
      */
     public Results<Measurement> select(Context context, Resource resource, Optional<Timestamp> start, Optional<Timestamp> end, ResultDescriptor descriptor, Optional<Duration> resolution, SampleSelectCallback callback);
 
+    /**
+     * Query measurements for a number of resources.
+     *
+     * <p>
+     * The default implementation performs a
+     * {@link #select(Context, Resource, Optional, Optional, ResultDescriptor, Optional)} for each
+     * resource, in turn.
+     * </p>
+     *
+     * @param context
+     *            context to query
+     * @param resources
+     *            names of the sampled resources
+     * @param start
+     *            query start time (defaults to 24 hours less than {@code end}, if absent)
+     * @param end
+     *            query end time (defaults to current time if absent)
+     * @param descriptor
+     *            aggregation descriptor
+     * @param resolution
+     *            temporal resolution of results (defaults to a value resulting in 1-10 measurements, if absent)
+     * @return query results, by resource (in the order the resources were given)
+     */
+    default Map<Resource, Results<Measurement>> select(Context context, Collection<Resource> resources, Optional<Timestamp> start, Optional<Timestamp> end, ResultDescriptor descriptor, Optional<Duration> resolution) {
+        Map<Resource, Results<Measurement>> results = new LinkedHashMap<>();
+        for (Resource resource : resources) {
+            if (!results.containsKey(resource)) {
+                results.put(resource, select(context, resource, start, end, descriptor, resolution));
+            }
+        }
+        return results;
+    }
+
     /**
      * Read stored samples.
      *
@@ -80,6 +120,60 @@ public interface SampleRepository {
      */
     public Results<Sample> select(Context context, Resource resource, Optional<Timestamp> start, Optional<Timestamp> end);
 
+    /**
+     * Query measurements, publishing result rows as they are produced. Unlike
+     * {@link #select(Context, Resource, Optional, Optional, ResultDescriptor, Optional)}, results
+     * are not gathered in memory first; Rows are computed as the subscriber requests them. The query
+     * is not executed until there is demand, and is executed once per subscriber.
+     *
+     * <p>
+     * The default implementation publishes the rows of a (materialized)
+     * {@link #select(Context, Resource, Optional, Optional, ResultDescriptor, Optional)}.
+     * </p>
+     *
+     * @param context
+     *            context to query
+     * @param resource
+     *            name of the sampled resource
+     * @param start
+     *            query start time (defaults to 24 hours less than {@code end}, if absent)
+     * @param end
+     *            query end time (defaults to current time if absent)
+     * @param descriptor
+     *            aggregation descriptor
+     * @param resolution
+     *            temporal resolution of results (defaults to a value resulting in 1-10 measurements, if absent)
+     * @return a publisher of result rows
+     */
+    default Flow.Publisher<Row<Measurement>> selectStream(Context context, Resource resource, Optional<Timestamp> start, Optional<Timestamp> end, ResultDescriptor descriptor, Optional<Duration> resolution) {
+        return new IteratorPublisher<>(() -> select(context, resource, start, end, descriptor, resolution).iterator());
+    }
+
+    /**
+     * Read stored samples, publishing rows as they are read. Unlike
+     * {@link #select(Context, Resource, Optional, Optional)}, results are not gathered in memory
+     * first; Rows are read as the subscriber requests them. The query is not executed until there is
+     * demand, and is executed once per subscriber.
+     *
+     * <p>
+     * The default implementation publishes the rows of a (materialized)
+     * {@link #select(Context, Resource, Optional, Optional)}.
+     * </p>
+     *
+     * @param context
+     *            context to query
+     * @param resource
+     *            name of the sampled resource
+     * @param start
+     *            query start time (defaults to 24 hours less than {@code end}, if absent)
+     * @param end
+     *            query end time (defaults to current time if absent)
+     * @return a publisher of sample rows
+     */
+    default Flow.Publisher<Row<Sample>> selectStream(Context context, Resource resource, Optional<Timestamp> start, Optional<Timestamp> end) {
+        return new IteratorPublisher<>(() -> select(context, resource, start, end).iterator());
+    }
+
     /**
      * Write (store) samples.
      *
@@ -98,6 +192,89 @@ public interface SampleRepository {
      */
     public void insert(Collection<Sample> samples, boolean calculateTimeToLive);
 
+    /**
+     * Write (store) samples asynchronously.
+     *
+     * @param samples
+     *            samples to insert
+     * @return a stage that completes once the samples have been written
+     */
+    default CompletionStage<Void> insertAsync(Collection<Sample> samples) {
+        return insertAsync(samples, false);
+    }
+
+    /**
+     * Write (store) samples asynchronously. Implementations may block the caller when too many
+     * writes are already outstanding; The default implementation simply performs a (blocking)
+     * {@link #insert(Collection, boolean)}.
+     *
+     * @param samples
+     *            samples to insert
+     * @param calculateTimeToLive
+     *            true if the effective TTL should be calculated using the sample timestamps
+     * @return a stage that completes once the samples have been written, or exceptionally if the
+     *         write failed
+     */
+    default CompletionStage<Void> insertAsync(Collection<Sample> samples, boolean calculateTimeToLive) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            insert(samples, calculateTimeToLive);
+            future.complete(null);
+        }
+        catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Write (store) a batch of samples.
+     *
+     * @param batch
+     *            samples to insert
+     */
+    default void insert(SampleBatch batch) {
+        insert(batch, false);
+    }
+
+    /**
+     * Write (store) a batch of samples.
+     *
+     * <p>
+     * The default implementation performs an {@link #insert(Collection, boolean)} of the batch's
+     * samples.
+     * </p>
+     *
+     * @param batch
+     *            samples to insert
+     * @param calculateTimeToLive
+     *            true if the effective TTL should be calculated using the sample timestamps
+     */
+    default void insert(SampleBatch batch, boolean calculateTimeToLive) {
+        insert(batch.toSamples(), calculateTimeToLive);
+    }
+
+    /**
+     * Write (store) a batch of samples asynchronously. Implementations that write batches without
+     * materializing {@link Sample}s avoid most of the per-sample allocation of
+     * {@link #insertAsync(Collection, boolean)}.
+     *
+     * <p>
+     * The default implementation performs an {@link #insertAsync(Collection, boolean)} of the
+     * batch's samples.
+     * </p>
+     *
+     * @param batch
+     *            samples to insert
+     * @param calculateTimeToLive
+     *            true if the effective TTL should be calculated using the sample timestamps
+     * @return a stage that completes once the samples have been written, or exceptionally if the
+     *         write failed
+     */
+    default CompletionStage<Void> insertAsync(SampleBatch batch, boolean calculateTimeToLive) {
+        return insertAsync(batch.toSamples(), calculateTimeToLive);
+    }
+
     /**
      * Delete stored samples.
      *
@@ -106,4 +283,53 @@ public interface SampleRepository {
      */
     public void delete(Context context, Resource resource);
 
+    /**
+     * Delete stored samples asynchronously.
+     *
+     * <p>
+     * The default implementation performs a (blocking) {@link #delete(Context, Resource)}.
+     * </p>
+     *
+     * @param context context to delete from
+     * @param resource name of the resource to delete from
+     * @return a stage that completes once the samples have been deleted
+     */
+    default CompletionStage<Void> deleteAsync(Context context, Resource resource) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            delete(context, resource);
+            future.complete(null);
+        }
+        catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Delete the stored samples of a number of resources.
+     *
+     * <p>
+     * The default implementation performs a (blocking) {@link #delete(Context, Resource)} for each
+     * resource, in turn.
+     * </p>
+     *
+     * @param context context to delete from
+     * @param resources names of the resources to delete from
+     * @return a stage that completes once the samples of every resource have been deleted
+     */
+    default CompletionStage<Void> deleteAsync(Context context, Collection<Resource> resources) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            for (Resource resource : resources) {
+                delete(context, resource);
+            }
+            future.complete(null);
+        }
+        catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
 }
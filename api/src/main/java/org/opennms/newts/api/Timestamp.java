@@ -18,7 +18,6 @@ package org.opennms.newts.api;
 
 import java.io.Serializable;
 import java.util.Date;
-import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 
 
@@ -34,7 +33,7 @@ public class Timestamp implements Comparable<Timestamp>, Serializable {
     }
 
     private long convert(TimeUnit unit) {
-        return unit.convert(m_time, m_unit);
+        return (unit == m_unit) ? m_time : unit.convert(m_time, m_unit);
     }
 
     public long asSeconds() {
@@ -85,7 +84,7 @@ public class Timestamp implements Comparable<Timestamp>, Serializable {
     }
 
     public boolean lte(Timestamp other) {
-        return lt(other) || equals(other);
+        return compareTo(other) <= 0;
     }
 
     public boolean gt(Timestamp other) {
@@ -93,7 +92,7 @@ public class Timestamp implements Comparable<Timestamp>, Serializable {
     }
 
     public boolean gte(Timestamp other) {
-        return gt(other) || equals(other);
+        return compareTo(other) >= 0;
     }
 
     public Timestamp stepFloor(long stepSize, TimeUnit units) {
@@ -121,13 +120,17 @@ public class Timestamp implements Comparable<Timestamp>, Serializable {
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(Long.valueOf(convert(TimeUnit.NANOSECONDS)));
+        return Long.hashCode(convert(TimeUnit.NANOSECONDS));
     }
 
     @Override
     public int compareTo(Timestamp o) {
+        // Timestamps of a query are almost always of the same unit
+        if (m_unit == o.m_unit) {
+            return Long.compare(m_time, o.m_time);
+        }
         TimeUnit unit = finest(getUnit(), o.getUnit());
-        return convert(unit) < o.convert(unit) ? -1 : (convert(unit) > o.convert(unit) ? 1 : 0);
+        return Long.compare(convert(unit), o.convert(unit));
     }
 
     @Override
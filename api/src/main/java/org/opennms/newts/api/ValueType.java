@@ -83,18 +83,19 @@ public abstract class ValueType<T extends Number> extends Number {
 
     public static ValueType<?> compose(ByteBuffer data) {
 
-        ByteBuffer buffer = data.duplicate();
-        MetricType type = MetricType.fromCode(buffer.get());
+        // Absolute reads; The buffer (often the driver's) is neither duplicated nor moved
+        int position = data.position();
+        MetricType type = MetricType.fromCode(data.get(position));
 
         switch (type) {
             case ABSOLUTE:
-                return new Absolute(UnsignedLong.fromLongBits(buffer.getLong()));
+                return new Absolute(UnsignedLong.fromLongBits(data.getLong(position + 1)));
             case COUNTER:
-                return new Counter(UnsignedLong.fromLongBits(buffer.getLong()));
+                return new Counter(UnsignedLong.fromLongBits(data.getLong(position + 1)));
             case DERIVE:
-                return new Derive(UnsignedLong.fromLongBits(buffer.getLong()));
+                return new Derive(UnsignedLong.fromLongBits(data.getLong(position + 1)));
             case GAUGE:
-                return new Gauge(buffer.getDouble());
+                return new Gauge(data.getDouble(position + 1));
             default:
                 throw new IllegalArgumentException(String.format("Unknown metric type: %s", type));
         }
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.api.query;
+
+
+/**
+ * Computes an {@link AggregationFunction} a value at a time, without collecting (or boxing) the
+ * primary data points of a step. Accumulators are reused from one step to the next, being reset
+ * before each, and are not thread-safe.
+ */
+public interface Accumulator {
+
+    /** Discards the values accepted so far. */
+    void reset();
+
+    /**
+     * Accepts the next value.
+     *
+     * @param value
+     *            a primary data point; NaN if unknown
+     */
+    void accept(double value);
+
+    /**
+     * @return the aggregate of the values accepted since the last reset
+     */
+    double result();
+
+}
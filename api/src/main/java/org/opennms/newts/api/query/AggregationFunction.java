@@ -32,4 +32,13 @@ public interface AggregationFunction extends Function<Collection<Double>, Double
      */
     public Double apply(Collection<Double> input);
 
+    /**
+     * Returns a new {@link Accumulator} for this function, to aggregate values as they are read
+     * rather than collected. The default collects the values, and applies this function to them;
+     * Implementations can override it to compute the result a value at a time.
+     */
+    default Accumulator accumulator() {
+        return new CollectingAccumulator(this);
+    }
+
 }
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.api.query;
+
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+
+/**
+ * The calculations of a {@link ResultDescriptor}, compiled for evaluation over rows (or columns)
+ * of doubles; Every label has an index, datasources first, then calculations (in order), and each
+ * argument of a calculation is resolved, once, to a constant or the index of a label.
+ *
+ * <p>
+ * Plans are immutable, and can be evaluated concurrently. Obtain one with
+ * {@link ResultDescriptor#getCalculationPlan()}.
+ * </p>
+ */
+public class CalculationPlan {
+
+    private final List<String> m_labels;
+    private final Map<String, Integer> m_indices = Maps.newHashMap();
+    private final int m_datasources;
+    private final int[] m_inputs;
+
+    private final CalculationFunction[] m_functions;
+    // Of each calculation, the indices of its arguments (-1 for constants), and the constants
+    private final int[][] m_arguments;
+    private final double[][] m_constants;
+
+    CalculationPlan(ResultDescriptor descriptor) {
+        checkNotNull(descriptor, "descriptor argument");
+
+        List<String> labels = Lists.newArrayList(descriptor.getDatasources().keySet());
+        m_datasources = labels.size();
+        labels.addAll(descriptor.getCalculations().keySet());
+        m_labels = Collections.unmodifiableList(labels);
+
+        for (String label : labels) {
+            m_indices.put(label, m_indices.size());
+        }
+
+        List<Calculation> calculations = Lists.newArrayList(descriptor.getCalculations().values());
+        m_functions = new CalculationFunction[calculations.size()];
+        m_arguments = new int[calculations.size()][];
+        m_constants = new double[calculations.size()][];
+
+        boolean[] inputs = new boolean[m_datasources];
+        for (int c = 0; c < calculations.size(); c++) {
+            String[] names = calculations.get(c).getArgs();
+            m_functions[c] = calculations.get(c).getCalculationFunction();
+            m_arguments[c] = new int[names.length];
+            m_constants[c] = new double[names.length];
+
+            for (int a = 0; a < names.length; a++) {
+                m_arguments[c][a] = -1;
+                try {
+                    m_constants[c][a] = Double.parseDouble(names[a]);
+                }
+                catch (NumberFormatException e) {
+                    int index = checkNotNull(m_indices.get(names[a]), "Missing measurement; No such label %s", names[a]);
+                    m_arguments[c][a] = index;
+                    if (index < m_datasources) {
+                        inputs[index] = true;
+                    }
+                }
+            }
+        }
+
+        int count = 0;
+        for (boolean input : inputs) {
+            count += input ? 1 : 0;
+        }
+        m_inputs = new int[count];
+        for (int i = 0, j = 0; i < inputs.length; i++) {
+            if (inputs[i]) {
+                m_inputs[j++] = i;
+            }
+        }
+    }
+
+    /** @return every label, in index order; The datasources, then the calculations */
+    public List<String> getLabels() {
+        return m_labels;
+    }
+
+    /** @return the number of datasources; Those of indices 0 through this (exclusive) */
+    public int getDatasourceCount() {
+        return m_datasources;
+    }
+
+    /** @return the indices of the datasources the calculations take arguments of */
+    public int[] getInputs() {
+        return m_inputs.clone();
+    }
+
+    /** @return the index of a label, or -1 if there is no such label */
+    public int indexOf(String label) {
+        Integer index = m_indices.get(label);
+        return (index == null) ? -1 : index;
+    }
+
+    /**
+     * Evaluates the calculations of a row, in order (each can draw on those before it).
+     *
+     * @param row
+     *            the value of every label, by index; The datasources are read, the calculations
+     *            written
+     */
+    public void evaluate(double[] row) {
+        for (int c = 0; c < m_functions.length; c++) {
+            int[] indices = m_arguments[c];
+            double[] args = new double[indices.length];
+            for (int a = 0; a < indices.length; a++) {
+                args[a] = (indices[a] < 0) ? m_constants[c][a] : row[indices[a]];
+            }
+            row[m_datasources + c] = m_functions[c].apply(args);
+        }
+    }
+
+    /**
+     * Evaluates the calculations of rows from (inclusive) to to (exclusive), a column at a time.
+     *
+     * @param columns
+     *            the column of every label, by index; Those of the datasources are read, and of
+     *            the calculations written
+     */
+    public void evaluate(double[][] columns, int from, int to) {
+        for (int c = 0; c < m_functions.length; c++) {
+            int[] indices = m_arguments[c];
+            double[] args = new double[indices.length];
+            double[] column = columns[m_datasources + c];
+
+            for (int i = from; i < to; i++) {
+                for (int a = 0; a < indices.length; a++) {
+                    args[a] = (indices[a] < 0) ? m_constants[c][a] : columns[indices[a]][i];
+                }
+                column[i] = m_functions[c].apply(args);
+            }
+        }
+    }
+
+    /** @return true if this is (still) the plan of the descriptor; Nothing has been added to it since */
+    boolean isPlanOf(ResultDescriptor descriptor) {
+        return descriptor.getDatasources().size() == m_datasources && descriptor.getCalculations().size() == m_functions.length;
+    }
+
+}
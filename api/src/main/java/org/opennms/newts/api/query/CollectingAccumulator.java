@@ -0,0 +1,54 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.api.query;
+
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+
+/**
+ * Adapts an {@link AggregationFunction} that only implements {@link AggregationFunction#apply},
+ * by collecting the values accepted.
+ */
+class CollectingAccumulator implements Accumulator {
+
+    private final AggregationFunction m_function;
+    private final List<Double> m_values = Lists.newArrayList();
+
+    CollectingAccumulator(AggregationFunction function) {
+        m_function = checkNotNull(function, "function argument");
+    }
+
+    @Override
+    public void reset() {
+        m_values.clear();
+    }
+
+    @Override
+    public void accept(double value) {
+        m_values.add(value);
+    }
+
+    @Override
+    public double result() {
+        return m_function.apply(m_values);
+    }
+
+}
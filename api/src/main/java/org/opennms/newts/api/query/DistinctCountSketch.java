@@ -0,0 +1,105 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.api.query;
+
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+
+
+/**
+ * A mergeable sketch of the number of distinct values in a stream; A HyperLogLog of
+ * 2^{@value #PRECISION} registers, with a standard error of about 1.6%. Small counts are estimated
+ * by linear counting (and are nearly exact).
+ *
+ * <p>
+ * Values are distinguished as doubles are by {@link Double#equals(Object)}, except that zero and
+ * negative zero are not. A sketch is not thread-safe.
+ * </p>
+ */
+public class DistinctCountSketch {
+
+    static final int PRECISION = 12;
+
+    private static final int REGISTERS = 1 << PRECISION;
+    private static final double ALPHA = 0.7213d / (1 + 1.079d / REGISTERS);
+
+    private final byte[] m_registers = new byte[REGISTERS];
+
+    public void add(double value) {
+        long hash = hash(Double.doubleToLongBits(value == 0.0d ? 0.0d : value));
+
+        int register = (int) (hash >>> (Long.SIZE - PRECISION));
+        // The position of the first set bit of what remains (at most Long.SIZE - PRECISION + 1)
+        byte rank = (byte) (Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1);
+
+        if (rank > m_registers[register]) {
+            m_registers[register] = rank;
+        }
+    }
+
+    /**
+     * Merges the values of another sketch into this one.
+     */
+    public void merge(DistinctCountSketch other) {
+        checkNotNull(other, "other argument");
+
+        for (int i = 0; i < REGISTERS; i++) {
+            if (other.m_registers[i] > m_registers[i]) {
+                m_registers[i] = other.m_registers[i];
+            }
+        }
+    }
+
+    /**
+     * @return the estimated number of distinct values added
+     */
+    public long estimate() {
+        double sum = 0.0d;
+        int zeros = 0;
+
+        for (byte rank : m_registers) {
+            sum += Math.scalb(1.0d, -rank);
+            if (rank == 0) {
+                zeros++;
+            }
+        }
+
+        double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+
+        if (estimate <= 2.5d * REGISTERS && zeros > 0) {
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        }
+
+        return Math.round(estimate);
+    }
+
+    public void reset() {
+        Arrays.fill(m_registers, (byte) 0);
+    }
+
+    /** The finalizer of MurmurHash3 (64-bit); Every bit of the input affects every bit of the hash. */
+    private static long hash(long bits) {
+        bits ^= bits >>> 33;
+        bits *= 0xff51afd7ed558ccdL;
+        bits ^= bits >>> 33;
+        bits *= 0xc4ceb9fe1a85ec53L;
+        bits ^= bits >>> 33;
+        return bits;
+    }
+
+}
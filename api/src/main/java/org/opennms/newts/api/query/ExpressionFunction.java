@@ -0,0 +1,365 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.api.query;
+
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.jexl3.JexlContext;
+import org.apache.commons.jexl3.JexlEngine;
+import org.apache.commons.jexl3.JexlExpression;
+import org.apache.commons.jexl3.MapContext;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+
+/**
+ * A {@link CalculationFunction} of a JEXL expression, whose arguments are the values of the labels
+ * it references (in {@link #getLabels()} order).
+ *
+ * <p>
+ * Expressions of only labels, numbers, parentheses, and the arithmetic operators ({@code + - * / %},
+ * and negation) are compiled to a tree evaluated over the arguments; Parts without labels are
+ * evaluated once, by JEXL, so that results are always those of JEXL (integer division of
+ * integers, say). Rows that JEXL would fail to evaluate (dividing by zero) are evaluated by it, to
+ * fail as it would. Other expressions are evaluated by JEXL, with a context of only the labels
+ * referenced.
+ * </p>
+ */
+class ExpressionFunction implements CalculationFunction {
+    private static final long serialVersionUID = 2745028853147052387L;
+
+    private final String m_expression;
+    private final String[] m_labels;
+    /** The number of labels referenced; Expressions of none are passed every label. */
+    private final int m_referenced;
+
+    private transient JexlExpression m_jexl;
+    private transient Node m_tree;
+
+    /**
+     * @param expression
+     *            the expression
+     * @param labels
+     *            labels the expression may reference
+     */
+    ExpressionFunction(String expression, Set<String> labels) {
+        m_expression = checkNotNull(expression, "expression argument");
+        m_jexl = engine().createExpression(expression);
+
+        List<String> referenced = Lists.newArrayList();
+        for (List<String> variable : engine().createScript(expression).getVariables()) {
+            if (labels.contains(variable.get(0)) && !referenced.contains(variable.get(0))) {
+                referenced.add(variable.get(0));
+            }
+        }
+
+        // Calculations take at least one argument
+        m_referenced = referenced.size();
+        if (referenced.isEmpty()) {
+            referenced.addAll(labels);
+        }
+        m_labels = referenced.toArray(new String[0]);
+
+        m_tree = new Parser(expression).parse();
+    }
+
+    String[] getLabels() {
+        return m_labels;
+    }
+
+    /** @return true if the expression is evaluated as a tree (rather than by JEXL) */
+    boolean isCompiled() {
+        return m_tree != null;
+    }
+
+    @Override
+    public double apply(double... ds) {
+        if (m_tree != null) {
+            try {
+                return m_tree.evaluate(ds);
+            }
+            catch (ArithmeticException e) {
+                // Fall through; To fail as JEXL would
+            }
+        }
+
+        JexlContext jc = new MapContext();
+        for (int i = 0; i < m_labels.length; i++) {
+            jc.set(m_labels[i], ds[i]);
+        }
+        return ((Number) m_jexl.evaluate(jc)).doubleValue();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        m_jexl = engine().createExpression(m_expression);
+        m_tree = new Parser(m_expression).parse();
+    }
+
+    private static JexlEngine engine() {
+        return ResultDescriptor.JEXL_ENGINE;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%s]", getClass().getSimpleName(), m_expression);
+    }
+
+    /** Evaluation of (part of) an expression. */
+    private interface Node {
+        double evaluate(double[] args);
+    }
+
+    /**
+     * A recursive-descent parser of arithmetic expressions:
+     *
+     * <pre>
+     * expression := term (('+' | '-') term)*
+     * term       := unary (('*' | '/' | '%') unary)*
+     * unary      := '-' unary | primary
+     * primary    := number | label | '(' expression ')'
+     * </pre>
+     */
+    private class Parser {
+
+        private final String m_input;
+        private final Map<String, Integer> m_arguments = Maps.newHashMap();
+        private int m_position = 0;
+
+        private Parser(String input) {
+            m_input = input;
+            // Identifiers are labels where JEXL takes them for variables
+            for (int i = 0; i < m_referenced; i++) {
+                m_arguments.put(m_labels[i], i);
+            }
+        }
+
+        /** @return the tree of the expression, or null if it is not one this can compile */
+        private Node parse() {
+            // Increments and decrements are operators of JEXL, not negations
+            if (m_input.contains("--") || m_input.contains("++")) {
+                return null;
+            }
+
+            try {
+                Part part = expression();
+                skipWhitespace();
+                return (m_position == m_input.length()) ? part.node() : null;
+            }
+            catch (IllegalStateException e) {
+                return null;
+            }
+        }
+
+        private Part expression() {
+            int start = position();
+            Part left = term();
+            while (true) {
+                if (accept('+')) {
+                    left = binary(start, left, term(), '+');
+                }
+                else if (accept('-')) {
+                    left = binary(start, left, term(), '-');
+                }
+                else {
+                    return left;
+                }
+            }
+        }
+
+        private Part term() {
+            int start = position();
+            Part left = unary();
+            while (true) {
+                if (accept('*')) {
+                    left = binary(start, left, unary(), '*');
+                }
+                else if (accept('/')) {
+                    left = binary(start, left, unary(), '/');
+                }
+                else if (accept('%')) {
+                    left = binary(start, left, unary(), '%');
+                }
+                else {
+                    return left;
+                }
+            }
+        }
+
+        private Part unary() {
+            int start = position();
+            if (accept('-')) {
+                Part operand = unary();
+                if (operand.isConstant()) {
+                    return constant(start);
+                }
+                Node node = operand.node();
+                return new Part(args -> -node.evaluate(args));
+            }
+            return primary();
+        }
+
+        private Part primary() {
+            int start = position();
+
+            if (accept('(')) {
+                Part part = expression();
+                if (!accept(')')) {
+                    throw new IllegalStateException();
+                }
+                return part.isConstant() ? constant(start) : part;
+            }
+
+            char c = peek();
+            if (Character.isDigit(c) || c == '.') {
+                while (m_position < m_input.length() && (Character.isDigit(peek()) || peek() == '.')) {
+                    m_position++;
+                }
+                if (m_position < m_input.length() && (peek() == 'e' || peek() == 'E')) {
+                    m_position++;
+                    if (m_position < m_input.length() && (peek() == '+' || peek() == '-')) {
+                        m_position++;
+                    }
+                    while (m_position < m_input.length() && Character.isDigit(peek())) {
+                        m_position++;
+                    }
+                }
+                return constant(start);
+            }
+
+            if (Character.isJavaIdentifierStart(c)) {
+                while (m_position < m_input.length() && Character.isJavaIdentifierPart(peek())) {
+                    m_position++;
+                }
+                String name = m_input.substring(start, m_position);
+                Integer index = m_arguments.get(name);
+                if (index == null) {
+                    throw new IllegalStateException();
+                }
+                int i = index;
+                return new Part(args -> args[i]);
+            }
+
+            throw new IllegalStateException();
+        }
+
+        private Part binary(int start, Part left, Part right, char operator) {
+            if (left.isConstant() && right.isConstant()) {
+                return constant(start);
+            }
+
+            Node l = left.node(), r = right.node();
+            switch (operator) {
+                case '+':
+                    return new Part(args -> l.evaluate(args) + r.evaluate(args));
+                case '-':
+                    return new Part(args -> l.evaluate(args) - r.evaluate(args));
+                case '*':
+                    return new Part(args -> l.evaluate(args) * r.evaluate(args));
+                case '/':
+                    return new Part(args -> l.evaluate(args) / divisor(r.evaluate(args)));
+                default:
+                    return new Part(args -> l.evaluate(args) % divisor(r.evaluate(args)));
+            }
+        }
+
+        /** The part of the input from start to here, evaluated (once) by JEXL. */
+        private Part constant(int start) {
+            Object value;
+            try {
+                value = engine().createExpression(m_input.substring(start, m_position)).evaluate(new MapContext());
+            }
+            catch (RuntimeException e) {
+                throw new IllegalStateException(e);
+            }
+            if (!(value instanceof Number)) {
+                throw new IllegalStateException();
+            }
+            return new Part(((Number) value).doubleValue());
+        }
+
+        private int position() {
+            skipWhitespace();
+            return m_position;
+        }
+
+        private boolean accept(char c) {
+            skipWhitespace();
+            if (m_position < m_input.length() && m_input.charAt(m_position) == c) {
+                m_position++;
+                return true;
+            }
+            return false;
+        }
+
+        private char peek() {
+            if (m_position >= m_input.length()) {
+                throw new IllegalStateException();
+            }
+            return m_input.charAt(m_position);
+        }
+
+        private void skipWhitespace() {
+            while (m_position < m_input.length() && Character.isWhitespace(m_input.charAt(m_position))) {
+                m_position++;
+            }
+        }
+    }
+
+    private static double divisor(double value) {
+        if (value == 0.0d) {
+            throw new ArithmeticException("/ by zero");
+        }
+        return value;
+    }
+
+    /** A parsed part of an expression; A constant, or a node of (at least one) label. */
+    private static class Part {
+        private final Node m_node;
+        private final double m_constant;
+
+        private Part(Node node) {
+            m_node = node;
+            m_constant = Double.NaN;
+        }
+
+        private Part(double constant) {
+            m_node = null;
+            m_constant = constant;
+        }
+
+        private boolean isConstant() {
+            return m_node == null;
+        }
+
+        private Node node() {
+            if (m_node != null) {
+                return m_node;
+            }
+            double constant = m_constant;
+            return args -> constant;
+        }
+    }
+
+}
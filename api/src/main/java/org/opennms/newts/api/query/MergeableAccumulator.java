@@ -0,0 +1,36 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.api.query;
+
+
+/**
+ * An {@link Accumulator} that can combine with another of the same function; So that values can
+ * be accumulated in parts (in parallel, say), and the parts merged for the result.
+ */
+public interface MergeableAccumulator extends Accumulator {
+
+    /**
+     * Merges the values accepted by another accumulator, of the same function, into this one; As
+     * though they had been accepted here, after those already accepted.
+     *
+     * @param other
+     *            the accumulator to merge (left unchanged)
+     * @throws IllegalArgumentException
+     *             if the other accumulator is not of the same function
+     */
+    void merge(MergeableAccumulator other);
+
+}
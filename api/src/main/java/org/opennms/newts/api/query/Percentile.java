@@ -0,0 +1,107 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.api.query;
+
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Collection;
+
+
+/**
+ * Aggregates to a percentile of the values, estimated by a {@link QuantileSketch} (of default
+ * accuracy); For those not among the {@link StandardAggregationFunctions}. NaN values are ignored,
+ * and no values at all aggregate to NaN.
+ */
+public class Percentile implements AggregationFunction {
+    private static final long serialVersionUID = 4150357921614093467L;
+
+    private final double m_quantile;
+
+    /**
+     * @param quantile
+     *            the quantile (between 0 and 1, inclusive); 0.95 for the 95th percentile
+     */
+    public Percentile(double quantile) {
+        checkArgument(quantile >= 0 && quantile <= 1, "quantile must be between 0 and 1");
+        m_quantile = quantile;
+    }
+
+    public double getQuantile() {
+        return m_quantile;
+    }
+
+    @Override
+    public Double apply(Collection<Double> input) {
+        Accumulator accumulator = accumulator();
+        for (Double value : input) {
+            accumulator.accept(value);
+        }
+        return accumulator.result();
+    }
+
+    @Override
+    public MergeableAccumulator accumulator() {
+        return new SketchAccumulator(m_quantile);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Percentile && ((Percentile) o).m_quantile == m_quantile;
+    }
+
+    @Override
+    public int hashCode() {
+        return Double.hashCode(m_quantile);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%s]", getClass().getSimpleName(), m_quantile);
+    }
+
+    private static class SketchAccumulator implements MergeableAccumulator {
+        private final double m_quantile;
+        private final QuantileSketch m_sketch = new QuantileSketch();
+
+        private SketchAccumulator(double quantile) {
+            m_quantile = quantile;
+        }
+
+        @Override
+        public void reset() {
+            m_sketch.reset();
+        }
+
+        @Override
+        public void accept(double value) {
+            m_sketch.add(value);
+        }
+
+        @Override
+        public double result() {
+            return m_sketch.quantile(m_quantile);
+        }
+
+        @Override
+        public void merge(MergeableAccumulator other) {
+            SketchAccumulator accumulator = StandardAggregationFunctions.checkSameFunction(this, other);
+            checkArgument(accumulator.m_quantile == m_quantile, "cannot merge percentiles of different quantiles");
+            m_sketch.merge(accumulator.m_sketch);
+        }
+    }
+
+}
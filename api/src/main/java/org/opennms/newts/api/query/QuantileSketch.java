@@ -0,0 +1,268 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.api.query;
+
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+
+/**
+ * A mergeable sketch of the distribution of a stream of values, answering quantile queries within
+ * a relative accuracy (of the value, rather than the rank); After DDSketch.
+ *
+ * <p>
+ * Values are counted in logarithmically sized bins, of positive and negative values (and a count
+ * of zeros); The value of a quantile is the midpoint of the bin that holds it. To bound its size,
+ * a sketch keeps at most {@value #MAX_BINS} bins for each sign, collapsing those nearest zero when
+ * it would keep more (the accuracy of the lowest quantiles is then lost, before that of the
+ * highest). Sketches of the same accuracy merge without loss.
+ * </p>
+ *
+ * <p>
+ * NaN and infinite values are ignored. A sketch is not thread-safe.
+ * </p>
+ */
+public class QuantileSketch {
+
+    public static final double DEFAULT_RELATIVE_ACCURACY = 0.01d;
+
+    static final int MAX_BINS = 2048;
+
+    private final double m_relativeAccuracy;
+    private final double m_gamma;
+    private final double m_logGamma;
+
+    private final Bins m_positive = new Bins();
+    private final Bins m_negative = new Bins();
+    private long m_zeros;
+    private double m_min = Double.POSITIVE_INFINITY;
+    private double m_max = Double.NEGATIVE_INFINITY;
+
+    public QuantileSketch() {
+        this(DEFAULT_RELATIVE_ACCURACY);
+    }
+
+    /**
+     * @param relativeAccuracy
+     *            the accuracy of quantiles, relative to their value (between 0 and 1, exclusive)
+     */
+    public QuantileSketch(double relativeAccuracy) {
+        checkArgument(relativeAccuracy > 0 && relativeAccuracy < 1, "relative accuracy must be between 0 and 1");
+        m_relativeAccuracy = relativeAccuracy;
+        m_gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        m_logGamma = Math.log(m_gamma);
+    }
+
+    public double getRelativeAccuracy() {
+        return m_relativeAccuracy;
+    }
+
+    /** @return the number of values added */
+    public long count() {
+        return m_positive.m_total + m_negative.m_total + m_zeros;
+    }
+
+    public void add(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return;
+        }
+
+        if (value > 0) {
+            m_positive.add(index(value), 1);
+        }
+        else if (value < 0) {
+            m_negative.add(index(-value), 1);
+        }
+        else {
+            m_zeros++;
+        }
+
+        m_min = Math.min(m_min, value);
+        m_max = Math.max(m_max, value);
+    }
+
+    /**
+     * Merges the values of another sketch into this one.
+     *
+     * @throws IllegalArgumentException
+     *             if the other sketch is not of the same accuracy
+     */
+    public void merge(QuantileSketch other) {
+        checkNotNull(other, "other argument");
+        checkArgument(other.m_relativeAccuracy == m_relativeAccuracy, "cannot merge sketches of different accuracy");
+
+        m_positive.merge(other.m_positive);
+        m_negative.merge(other.m_negative);
+        m_zeros += other.m_zeros;
+        m_min = Math.min(m_min, other.m_min);
+        m_max = Math.max(m_max, other.m_max);
+    }
+
+    /**
+     * Estimates a quantile; The value at rank {@code floor(q * (count - 1))} of those added (in
+     * order), to within the relative accuracy of the sketch.
+     *
+     * @param q
+     *            the quantile (between 0 and 1, inclusive)
+     * @return the estimate, or NaN if no values were added
+     */
+    public double quantile(double q) {
+        checkArgument(q >= 0 && q <= 1, "quantile must be between 0 and 1");
+
+        long count = count();
+        if (count == 0) {
+            return Double.NaN;
+        }
+
+        long rank = (long) Math.floor(q * (count - 1));
+        double value;
+
+        // The extremes are known exactly
+        if (rank == 0) {
+            return m_min;
+        }
+        if (rank == count - 1) {
+            return m_max;
+        }
+
+        if (rank < m_negative.m_total) {
+            // Negative values, from the greatest magnitude
+            value = -value(m_negative.indexOf(m_negative.m_total - 1 - rank));
+        }
+        else if (rank < m_negative.m_total + m_zeros) {
+            value = 0.0d;
+        }
+        else {
+            value = value(m_positive.indexOf(rank - m_negative.m_total - m_zeros));
+        }
+
+        // Nor are estimates ever beyond them
+        return Math.max(m_min, Math.min(m_max, value));
+    }
+
+    public void reset() {
+        m_positive.reset();
+        m_negative.reset();
+        m_zeros = 0;
+        m_min = Double.POSITIVE_INFINITY;
+        m_max = Double.NEGATIVE_INFINITY;
+    }
+
+    /** The bin (gamma^(i-1), gamma^i] of a (positive) value. */
+    private int index(double value) {
+        return (int) Math.ceil(Math.log(value) / m_logGamma);
+    }
+
+    /** The value of a bin; Within the relative accuracy of every value in it. */
+    private double value(int index) {
+        return Math.exp(index * m_logGamma) * 2 / (m_gamma + 1);
+    }
+
+    /** Counts of the values in (a contiguous range of) bins, by index. */
+    private static class Bins {
+
+        private long[] m_counts = new long[0];
+        /** The index of the first count. */
+        private int m_offset;
+        /** The lowest and highest indices counted, if any are. */
+        private int m_min, m_max;
+        /** Values of lower indices are counted in this one, once bins have been collapsed. */
+        private int m_floor = Integer.MIN_VALUE;
+        private long m_total;
+
+        void add(int index, long count) {
+            index = Math.max(index, m_floor);
+
+            if (m_total == 0) {
+                cover(index, index);
+            }
+            else if (index < m_min || index > m_max) {
+                cover(Math.min(index, m_min), Math.max(index, m_max));
+            }
+
+            index = Math.max(index, m_floor);
+            m_counts[index - m_offset] += count;
+            m_total += count;
+        }
+
+        void merge(Bins other) {
+            for (int i = other.m_min; other.m_total > 0 && i <= other.m_max; i++) {
+                long count = other.m_counts[i - other.m_offset];
+                if (count > 0) {
+                    add(i, count);
+                }
+            }
+        }
+
+        /**
+         * @return the index of the bin holding the value at a rank (from the lowest index)
+         */
+        int indexOf(long rank) {
+            long cumulative = 0;
+            for (int i = m_min; i < m_max; i++) {
+                cumulative += m_counts[i - m_offset];
+                if (cumulative > rank) {
+                    return i;
+                }
+            }
+            return m_max;
+        }
+
+        void reset() {
+            for (int i = m_min; m_total > 0 && i <= m_max; i++) {
+                m_counts[i - m_offset] = 0;
+            }
+            m_floor = Integer.MIN_VALUE;
+            m_total = 0;
+        }
+
+        /** Makes room for bins min through max, collapsing the lowest if there are too many. */
+        private void cover(int min, int max) {
+            long collapsed = 0;
+
+            if (max - min >= MAX_BINS) {
+                m_floor = max - MAX_BINS + 1;
+                for (int i = m_min; m_total > 0 && i <= m_max && i < m_floor; i++) {
+                    collapsed += m_counts[i - m_offset];
+                    m_counts[i - m_offset] = 0;
+                }
+                min = m_floor;
+            }
+
+            if (min < m_offset || max >= m_offset + m_counts.length) {
+                int length = Math.min(MAX_BINS, Math.max(max - min + 1, Math.max(16, 2 * m_counts.length)));
+                // Room to grow in the direction it has
+                int offset = (m_total > 0 && min < m_min) ? max - length + 1 : min;
+                long[] counts = new long[length];
+
+                if (m_total > 0 && m_max >= Math.max(m_min, min)) {
+                    int from = Math.max(m_min, min);
+                    System.arraycopy(m_counts, from - m_offset, counts, from - offset, m_max - from + 1);
+                }
+
+                m_counts = counts;
+                m_offset = offset;
+            }
+
+            m_counts[min - m_offset] += collapsed;
+            m_min = min;
+            m_max = max;
+        }
+
+    }
+
+}
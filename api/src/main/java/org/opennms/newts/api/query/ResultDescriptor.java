@@ -25,10 +25,7 @@ import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.jexl3.JexlBuilder;
-import org.apache.commons.jexl3.JexlContext;
 import org.apache.commons.jexl3.JexlEngine;
-import org.apache.commons.jexl3.JexlExpression;
-import org.apache.commons.jexl3.MapContext;
 import org.apache.commons.jexl3.introspection.JexlSandbox;
 import org.opennms.newts.api.Duration;
 
@@ -41,7 +38,7 @@ import com.google.common.collect.Sets;
 public class ResultDescriptor implements Serializable {
     private static final long serialVersionUID = -6983442401680715547L;
 
-    private final static JexlEngine JEXL_ENGINE;
+    final static JexlEngine JEXL_ENGINE;
 
     static {
         final JexlSandbox jexlSandbox = new JexlSandbox(false);
@@ -82,6 +79,10 @@ public class ResultDescriptor implements Serializable {
 
     private final Set<String> m_exports = Sets.newHashSet();
 
+    private int m_maxDataPoints = 0;
+
+    private transient volatile CalculationPlan m_calculationPlan;
+
     /**
      * Constructs a new {@link ResultDescriptor} with the default step size.
      */
@@ -109,6 +110,22 @@ public class ResultDescriptor implements Serializable {
         m_interval = step;
     }
 
+    /**
+     * Constructs a copy of a {@link ResultDescriptor}; Its calculation plan, if compiled, is shared.
+     *
+     * @param descriptor
+     *            the descriptor to copy
+     */
+    public ResultDescriptor(ResultDescriptor descriptor) {
+        checkNotNull(descriptor, "descriptor argument");
+        m_interval = descriptor.m_interval;
+        m_datasources.putAll(descriptor.m_datasources);
+        m_calculations.putAll(descriptor.m_calculations);
+        m_exports.addAll(descriptor.m_exports);
+        m_maxDataPoints = descriptor.m_maxDataPoints;
+        m_calculationPlan = descriptor.m_calculationPlan;
+    }
+
     public Duration getInterval() {
         return m_interval;
     }
@@ -137,6 +154,21 @@ public class ResultDescriptor implements Serializable {
         }));
     }
 
+    /**
+     * Returns the plan of the calculations, compiled when first asked for (and again once
+     * datasources or calculations are added); So that descriptors used by many queries compile it
+     * once.
+     *
+     * @return the calculation plan
+     */
+    public CalculationPlan getCalculationPlan() {
+        CalculationPlan plan = m_calculationPlan;
+        if (plan == null || !plan.isPlanOf(this)) {
+            m_calculationPlan = plan = new CalculationPlan(this);
+        }
+        return plan;
+    }
+
     public Set<String> getLabels() {
         return Sets.union(m_datasources.keySet(), m_calculations.keySet());
     }
@@ -145,6 +177,14 @@ public class ResultDescriptor implements Serializable {
         return m_exports;
     }
 
+    /**
+     * @return the most rows a query should return, or 0 for no limit
+     * @see #maxDataPoints(int)
+     */
+    public int getMaxDataPoints() {
+        return m_maxDataPoints;
+    }
+
     /**
      * Set the step duration.
      * 
@@ -161,6 +201,21 @@ public class ResultDescriptor implements Serializable {
         return this;
     }
 
+    /**
+     * Limit the rows a query returns to (about) as many as can be drawn. When no resolution is
+     * given, the step is chosen to fit them; Any rows beyond them are downsampled, by
+     * Largest-Triangle-Three-Buckets, to the rows that best preserve the shape of the exports.
+     *
+     * @param maxDataPoints
+     *            the most rows to return (at least 3), or 0 for no limit
+     * @return
+     */
+    public ResultDescriptor maxDataPoints(int maxDataPoints) {
+        checkArgument(maxDataPoints == 0 || maxDataPoints > 2, "maxDataPoints must be 0 (no limit), or greater than 2");
+        m_maxDataPoints = maxDataPoints;
+        return this;
+    }
+
     public ResultDescriptor datasource(String metricName, AggregationFunction aggregationFunction) {
         return datasource(metricName, metricName, aggregationFunction);
     }
@@ -264,23 +319,13 @@ public class ResultDescriptor implements Serializable {
 
     }
     
+    /**
+     * Adds a calculation of a JEXL expression, of the labels already defined; Passed only the labels
+     * it references, and compiled to a tree where it is simple arithmetic.
+     */
     public ResultDescriptor expression(String label, String expression) {
-        final JexlExpression expr = JEXL_ENGINE.createExpression(expression);
-        final String[] labels = getLabels().toArray(new String[0]);
-        CalculationFunction evaluate = new CalculationFunction() {
-            private static final long serialVersionUID = -3328049421398096252L;
-
-            @Override
-            public double apply(double... ds) {
-                JexlContext jc = new MapContext();
-                for(int i = 0; i < labels.length; i++) {
-                    jc.set(labels[i], ds[i]);
-                }
-                return ((Number)expr.evaluate(jc)).doubleValue();
-                
-            }
-        };
-        return calculate(label, evaluate, labels);
+        ExpressionFunction evaluate = new ExpressionFunction(expression, getLabels());
+        return calculate(label, evaluate, evaluate.getLabels());
     }
 
     @Override
@@ -16,9 +16,16 @@
 package org.opennms.newts.api.query;
 
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 import java.util.Collection;
 
 
+/**
+ * The standard aggregation functions; Each computes its result a value at a time, with an
+ * accumulator that can be merged (see {@link #accumulator()}). NaN values are ignored, and no
+ * values at all aggregate to NaN.
+ */
 public enum StandardAggregationFunctions implements AggregationFunction {
 
     // These function assume that the xff calculation is done elsewhere and that the values that
@@ -26,61 +33,387 @@ public enum StandardAggregationFunctions implements AggregationFunction {
     AVERAGE {
 
         @Override
-        public Double apply(Collection<Double> input) {
-            if (input.isEmpty()) {
-                return Double.NaN;
+        public MergeableAccumulator accumulator() {
+            return new Average();
+        }
+
+    },
+    MAX {
+
+        @Override
+        public MergeableAccumulator accumulator() {
+            return new Max();
+        }
+
+    },
+    MIN {
+
+        @Override
+        public MergeableAccumulator accumulator() {
+            return new Min();
+        }
+
+    },
+    /** The sum of the values; NaN if none are known. */
+    SUM {
+
+        @Override
+        public MergeableAccumulator accumulator() {
+            return new Sum();
+        }
+
+    },
+    /** The number of values known. */
+    COUNT {
+
+        @Override
+        public MergeableAccumulator accumulator() {
+            return new Count();
+        }
+
+    },
+    /** The last value known. */
+    LAST {
+
+        @Override
+        public MergeableAccumulator accumulator() {
+            return new Last();
+        }
+
+    },
+    /** The (population) standard deviation of the values known. */
+    STDDEV {
+
+        @Override
+        public MergeableAccumulator accumulator() {
+            return new StdDev();
+        }
+
+    },
+    /** The median, estimated by a {@link QuantileSketch}. */
+    P50 {
+
+        @Override
+        public MergeableAccumulator accumulator() {
+            return new Percentile(0.50d).accumulator();
+        }
+
+    },
+    /** The 90th percentile, estimated by a {@link QuantileSketch}. */
+    P90 {
+
+        @Override
+        public MergeableAccumulator accumulator() {
+            return new Percentile(0.90d).accumulator();
+        }
+
+    },
+    /** The 95th percentile, estimated by a {@link QuantileSketch}. */
+    P95 {
+
+        @Override
+        public MergeableAccumulator accumulator() {
+            return new Percentile(0.95d).accumulator();
+        }
+
+    },
+    /** The 99th percentile, estimated by a {@link QuantileSketch}. */
+    P99 {
+
+        @Override
+        public MergeableAccumulator accumulator() {
+            return new Percentile(0.99d).accumulator();
+        }
+
+    },
+    /** The number of distinct values known, estimated by a {@link DistinctCountSketch}. */
+    DISTINCT_COUNT {
+
+        @Override
+        public MergeableAccumulator accumulator() {
+            return new DistinctCount();
+        }
+
+    };
+
+    @Override
+    public abstract MergeableAccumulator accumulator();
+
+    @Override
+    public Double apply(Collection<Double> input) {
+        Accumulator accumulator = accumulator();
+        for (Double value : input) {
+            accumulator.accept(value);
+        }
+        return accumulator.result();
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T extends MergeableAccumulator> T checkSameFunction(MergeableAccumulator accumulator, MergeableAccumulator other) {
+        checkArgument(other != null && other.getClass() == accumulator.getClass(), "cannot merge %s with %s", accumulator, other);
+        return (T) other;
+    }
+
+    private static class Average implements MergeableAccumulator {
+        private int m_accepted, m_count;
+        private double m_sum;
+
+        @Override
+        public void reset() {
+            m_accepted = m_count = 0;
+            m_sum = 0.0d;
+        }
+
+        @Override
+        public void accept(double value) {
+            m_accepted++;
+            if (!Double.isNaN(value)) {
+                m_sum += value;
+                m_count++;
             }
+        }
+
+        @Override
+        public double result() {
+            return (m_accepted == 0) ? Double.NaN : m_sum / m_count;
+        }
 
-            int count = 0;
-            Double sum = 0.0d;
-            for (Double item : input) {
-                if (!Double.isNaN(item)) {
-                    sum += item;
-                    count++;
-                }
+        @Override
+        public void merge(MergeableAccumulator other) {
+            Average average = checkSameFunction(this, other);
+            m_accepted += average.m_accepted;
+            m_count += average.m_count;
+            m_sum += average.m_sum;
+        }
+    }
+
+    private static class Max implements MergeableAccumulator {
+        private int m_accepted;
+        // Not -Infinity (nor NaN, when all values are); Kept as it always has been
+        private double m_max = Double.MIN_VALUE;
+
+        @Override
+        public void reset() {
+            m_accepted = 0;
+            m_max = Double.MIN_VALUE;
+        }
+
+        @Override
+        public void accept(double value) {
+            m_accepted++;
+            if (!Double.isNaN(value) && value - m_max > 0) {
+                m_max = value;
             }
+        }
 
-            return sum / count;
+        @Override
+        public double result() {
+            return (m_accepted == 0) ? Double.NaN : m_max;
         }
 
-    },
-    MAX {
+        @Override
+        public void merge(MergeableAccumulator other) {
+            Max max = checkSameFunction(this, other);
+            m_accepted += max.m_accepted;
+            if (max.m_max - m_max > 0) {
+                m_max = max.m_max;
+            }
+        }
+    }
+
+    private static class Min implements MergeableAccumulator {
+        private int m_accepted;
+        private double m_min = Double.MAX_VALUE;
 
         @Override
-        public Double apply(Collection<Double> input) {
-            if (input.isEmpty()) {
-                return Double.NaN;
+        public void reset() {
+            m_accepted = 0;
+            m_min = Double.MAX_VALUE;
+        }
+
+        @Override
+        public void accept(double value) {
+            m_accepted++;
+            if (!Double.isNaN(value) && value - m_min < 0) {
+                m_min = value;
             }
+        }
 
-            Double max = Double.MIN_VALUE;
-            for (Double item : input) {
-                if (!Double.isNaN(item)) {
-                    double diff = item - max;
-                    max = diff > 0 ? item : max;
-                }
+        @Override
+        public double result() {
+            return (m_accepted == 0) ? Double.NaN : m_min;
+        }
+
+        @Override
+        public void merge(MergeableAccumulator other) {
+            Min min = checkSameFunction(this, other);
+            m_accepted += min.m_accepted;
+            if (min.m_min - m_min < 0) {
+                m_min = min.m_min;
             }
-            return max;
         }
+    }
 
-    },
-    MIN {
+    private static class Sum implements MergeableAccumulator {
+        private int m_count;
+        private double m_sum;
 
         @Override
-        public Double apply(Collection<Double> input) {
-            if (input.isEmpty()) {
-                return Double.NaN;
+        public void reset() {
+            m_count = 0;
+            m_sum = 0.0d;
+        }
+
+        @Override
+        public void accept(double value) {
+            if (!Double.isNaN(value)) {
+                m_sum += value;
+                m_count++;
             }
+        }
 
-            Double min = Double.MAX_VALUE;
-            for (Double item : input) {
-                if (!Double.isNaN(item)) {
-                    double diff = item - min;
-                    min = diff < 0 ? item : min;
-                }
+        @Override
+        public double result() {
+            return (m_count == 0) ? Double.NaN : m_sum;
+        }
+
+        @Override
+        public void merge(MergeableAccumulator other) {
+            Sum sum = checkSameFunction(this, other);
+            m_count += sum.m_count;
+            m_sum += sum.m_sum;
+        }
+    }
+
+    private static class Count implements MergeableAccumulator {
+        private int m_accepted, m_count;
+
+        @Override
+        public void reset() {
+            m_accepted = m_count = 0;
+        }
+
+        @Override
+        public void accept(double value) {
+            m_accepted++;
+            if (!Double.isNaN(value)) {
+                m_count++;
             }
-            return min;
         }
 
+        @Override
+        public double result() {
+            return (m_accepted == 0) ? Double.NaN : m_count;
+        }
+
+        @Override
+        public void merge(MergeableAccumulator other) {
+            Count count = checkSameFunction(this, other);
+            m_accepted += count.m_accepted;
+            m_count += count.m_count;
+        }
+    }
+
+    private static class Last implements MergeableAccumulator {
+        private double m_last = Double.NaN;
+
+        @Override
+        public void reset() {
+            m_last = Double.NaN;
+        }
+
+        @Override
+        public void accept(double value) {
+            if (!Double.isNaN(value)) {
+                m_last = value;
+            }
+        }
+
+        @Override
+        public double result() {
+            return m_last;
+        }
+
+        @Override
+        public void merge(MergeableAccumulator other) {
+            Last last = checkSameFunction(this, other);
+            accept(last.m_last);
+        }
+    }
+
+    private static class StdDev implements MergeableAccumulator {
+        private int m_count;
+        private double m_mean, m_squares;
+
+        @Override
+        public void reset() {
+            m_count = 0;
+            m_mean = m_squares = 0.0d;
+        }
+
+        @Override
+        public void accept(double value) {
+            if (Double.isNaN(value)) {
+                return;
+            }
+
+            // Welford's method
+            m_count++;
+            double delta = value - m_mean;
+            m_mean += delta / m_count;
+            m_squares += delta * (value - m_mean);
+        }
+
+        @Override
+        public double result() {
+            return (m_count == 0) ? Double.NaN : Math.sqrt(m_squares / m_count);
+        }
+
+        @Override
+        public void merge(MergeableAccumulator other) {
+            StdDev stdDev = checkSameFunction(this, other);
+            if (stdDev.m_count == 0) {
+                return;
+            }
+
+            // Chan et al.'s pairwise update
+            int count = m_count + stdDev.m_count;
+            double delta = stdDev.m_mean - m_mean;
+            m_squares += stdDev.m_squares + delta * delta * ((double) m_count * stdDev.m_count / count);
+            m_mean += delta * stdDev.m_count / count;
+            m_count = count;
+        }
+    }
+
+    private static class DistinctCount implements MergeableAccumulator {
+        private int m_accepted;
+        private final DistinctCountSketch m_sketch = new DistinctCountSketch();
+
+        @Override
+        public void reset() {
+            m_accepted = 0;
+            m_sketch.reset();
+        }
+
+        @Override
+        public void accept(double value) {
+            m_accepted++;
+            if (!Double.isNaN(value)) {
+                m_sketch.add(value);
+            }
+        }
+
+        @Override
+        public double result() {
+            return (m_accepted == 0) ? Double.NaN : m_sketch.estimate();
+        }
+
+        @Override
+        public void merge(MergeableAccumulator other) {
+            DistinctCount distinctCount = checkSameFunction(this, other);
+            m_accepted += distinctCount.m_accepted;
+            m_sketch.merge(distinctCount.m_sketch);
+        }
     }
 
 }
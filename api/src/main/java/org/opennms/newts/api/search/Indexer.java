@@ -16,6 +16,8 @@
 package org.opennms.newts.api.search;
 
 import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 import org.opennms.newts.api.Context;
 import org.opennms.newts.api.Resource;
@@ -24,5 +26,26 @@ import org.opennms.newts.api.Sample;
 public interface Indexer {
     public void update(Collection<Sample> samples);
 
+    /**
+     * Index samples asynchronously. The default implementation simply performs a (blocking)
+     * {@link #update(Collection)}.
+     *
+     * @param samples
+     *            samples to index
+     * @return a stage that completes once the samples have been indexed, or exceptionally if
+     *         indexing failed
+     */
+    default CompletionStage<Void> updateAsync(Collection<Sample> samples) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            update(samples);
+            future.complete(null);
+        }
+        catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
     void delete(Context context, Resource resource);
 }
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.api;
+
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.common.collect.ContiguousSet;
+import com.google.common.collect.DiscreteDomain;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Range;
+
+
+public class IteratorPublisherTest {
+
+    private static class RecordingSubscriber implements Flow.Subscriber<Integer> {
+        private final List<Integer> m_received = Lists.newArrayList();
+        private final long m_batch;
+        private Flow.Subscription m_subscription;
+        private Throwable m_error;
+        private boolean m_complete = false;
+
+        private RecordingSubscriber(long batch) {
+            m_batch = batch;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            m_subscription = subscription;
+        }
+
+        @Override
+        public void onNext(Integer item) {
+            m_received.add(item);
+            // Request more from within onNext, whenever a batch has been consumed
+            if (m_received.size() % m_batch == 0) {
+                m_subscription.request(m_batch);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            m_error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            m_complete = true;
+        }
+    }
+
+    @Test
+    public void testHonorsDemand() {
+
+        AtomicInteger pulled = new AtomicInteger();
+        IteratorPublisher<Integer> publisher = new IteratorPublisher<>(() -> counting(range(100), pulled));
+
+        RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+        publisher.subscribe(subscriber);
+
+        // Nothing is read before there is demand
+        assertThat(pulled.get(), equalTo(0));
+
+        subscriber.m_subscription.request(10);
+
+        assertThat(subscriber.m_received.size(), equalTo(10));
+        assertThat(pulled.get(), equalTo(10));
+        assertThat(subscriber.m_complete, equalTo(false));
+
+        subscriber.m_subscription.request(Long.MAX_VALUE);
+
+        assertThat(subscriber.m_received, equalTo((List<Integer>) Lists.newArrayList(range(100))));
+        assertThat(subscriber.m_complete, equalTo(true));
+        assertThat(subscriber.m_error, nullValue());
+
+    }
+
+    @Test
+    public void testReentrantRequests() {
+
+        // Requesting one at a time from onNext must not recurse (and overflow the stack)
+        RecordingSubscriber subscriber = new RecordingSubscriber(1);
+        new IteratorPublisher<>(() -> range(100000)).subscribe(subscriber);
+        subscriber.m_subscription.request(1);
+
+        assertThat(subscriber.m_received.size(), equalTo(100000));
+        assertThat(subscriber.m_complete, equalTo(true));
+
+    }
+
+    @Test
+    public void testCancel() {
+
+        RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+        new IteratorPublisher<>(() -> range(100)).subscribe(subscriber);
+        subscriber.m_subscription.request(5);
+        subscriber.m_subscription.cancel();
+        subscriber.m_subscription.request(5);
+
+        assertThat(subscriber.m_received.size(), equalTo(5));
+        assertThat(subscriber.m_complete, equalTo(false));
+
+    }
+
+    @Test
+    public void testErrors() {
+
+        RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+        new IteratorPublisher<Integer>(() -> {
+            throw new IllegalStateException("query failed");
+        }).subscribe(subscriber);
+        subscriber.m_subscription.request(1);
+
+        assertThat(subscriber.m_error, instanceOf(IllegalStateException.class));
+
+        subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+        new IteratorPublisher<>(() -> range(10)).subscribe(subscriber);
+        subscriber.m_subscription.request(0);
+
+        assertThat(subscriber.m_error, instanceOf(IllegalArgumentException.class));
+
+    }
+
+    private static Iterator<Integer> range(int count) {
+        return ContiguousSet.create(Range.closedOpen(0, count), DiscreteDomain.integers()).iterator();
+    }
+
+    private static Iterator<Integer> counting(Iterator<Integer> input, AtomicInteger counter) {
+        return new Iterator<Integer>() {
+
+            @Override
+            public boolean hasNext() {
+                return input.hasNext();
+            }
+
+            @Override
+            public Integer next() {
+                counter.incrementAndGet();
+                return input.next();
+            }
+        };
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.api;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.primitives.UnsignedLong;
+
+
+public class SampleBatchTest {
+
+    private static final Context CONTEXT = new Context("c");
+
+    @Test
+    public void testRoundTrip() {
+        List<Sample> samples = Lists.newArrayList(
+                new Sample(Timestamp.fromEpochMillis(1000), CONTEXT, new Resource("r0"), "m0", MetricType.GAUGE, new Gauge(1.5)),
+                new Sample(Timestamp.fromEpochMillis(1000), CONTEXT, new Resource("r0"), "m1", MetricType.COUNTER, new Counter(-1L)),
+                new Sample(Timestamp.fromEpochMillis(2000), CONTEXT, new Resource("r1"), "m0", MetricType.DERIVE, new Derive(UnsignedLong.valueOf(7))),
+                new Sample(Timestamp.fromEpochMillis(2000), CONTEXT, new Resource("r1"), "m1", MetricType.ABSOLUTE, new Absolute(UnsignedLong.valueOf(8))));
+
+        SampleBatch.Builder builder = new SampleBatch.Builder(CONTEXT, 1);
+        for (Sample sample : samples) {
+            builder.add(sample);
+        }
+        SampleBatch batch = builder.build();
+
+        assertEquals(4, batch.size());
+        assertEquals(samples, batch.toSamples());
+        assertEquals(Arrays.asList(new Resource("r0"), new Resource("r1")), batch.getResources());
+        assertEquals(Arrays.asList("m0", "m1"), batch.getMetrics());
+
+        assertEquals(1, batch.getResourceId(2));
+        assertEquals(0, batch.getMetricId(2));
+        assertEquals(1.5d, batch.getDoubleValue(0), 0.0d);
+        assertEquals(-1L, batch.getLongValue(1));
+        assertEquals(Math.pow(2, 64), batch.getDoubleValue(1), 0.0d);
+    }
+
+    @Test
+    public void testEncodeValue() {
+        SampleBatch batch = SampleBatch.builder(CONTEXT)
+                .addGauge(1000, new Resource("r"), "m0", 3.25)
+                .addCounter(1000, new Resource("r"), "m1", 42)
+                .build();
+
+        ByteBuffer buffer = ByteBuffer.allocate(18);
+        batch.encodeValue(0, buffer);
+        batch.encodeValue(1, buffer);
+
+        assertEquals(18, buffer.position());
+
+        buffer.position(0).limit(9);
+        assertEquals(ValueType.decompose(new Gauge(3.25)), buffer);
+        buffer.position(9).limit(18);
+        assertEquals(ValueType.decompose(new Counter(42)), buffer);
+    }
+
+    @Test
+    public void testBuilderGrows() {
+        SampleBatch.Builder builder = SampleBatch.builder(CONTEXT);
+        for (int i = 0; i < 1000; i++) {
+            builder.add(i * 1000L, new Resource("r" + (i % 10)), "m" + (i % 3), MetricType.GAUGE, (double) i);
+        }
+        SampleBatch batch = builder.build();
+
+        assertEquals(1000, batch.size());
+        assertEquals(10, batch.getResources().size());
+        assertEquals(3, batch.getMetrics().size());
+        assertEquals(999000L, batch.getTimestamp(999));
+        assertEquals(999.0d, batch.getDoubleValue(999), 0.0d);
+        assertEquals("r9", batch.getResources().get(batch.getResourceId(999)).getId());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOtherContextRejected() {
+        SampleBatch.builder(CONTEXT).add(new Sample(Timestamp.fromEpochMillis(0), new Resource("r"), "m", MetricType.GAUGE, new Gauge(1)));
+    }
+
+    @Test
+    public void testEmpty() {
+        SampleBatch batch = SampleBatch.builder(CONTEXT).build();
+        assertTrue(batch.isEmpty());
+        assertTrue(batch.toSamples().isEmpty());
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.api.query;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+
+public class DistinctCountSketchTest {
+
+    @Test
+    public void testSmallCounts() {
+        DistinctCountSketch sketch = new DistinctCountSketch();
+        assertThat(sketch.estimate(), equalTo(0L));
+
+        for (int i = 0; i < 3; i++) {
+            for (double value : new double[] { 1.0d, 2.0d, 3.5d, -1.0d, 0.0d, -0.0d, 1e300 }) {
+                sketch.add(value);
+            }
+        }
+
+        assertThat(sketch.estimate(), equalTo(6L));
+    }
+
+    @Test
+    public void testLargeCounts() {
+        Random random = new Random(42);
+
+        for (int distinct : new int[] { 1000, 100000 }) {
+            DistinctCountSketch sketch = new DistinctCountSketch();
+            Set<Double> drawn = Sets.newHashSet();
+            for (int i = 0; i < distinct * 3; i++) {
+                double value = random.nextInt(distinct) * 0.5d;
+                sketch.add(value);
+                drawn.add(value);
+            }
+
+            // Within 3 standard errors
+            long estimate = sketch.estimate();
+            assertTrue(drawn.size() + " estimated as " + estimate, Math.abs(estimate - drawn.size()) <= drawn.size() * 0.05d);
+        }
+    }
+
+    @Test
+    public void testMerge() {
+        DistinctCountSketch whole = new DistinctCountSketch(), first = new DistinctCountSketch(), second = new DistinctCountSketch();
+
+        for (int i = 0; i < 20000; i++) {
+            whole.add(i);
+            // Overlapping halves
+            (i < 12000 ? first : second).add(i);
+            if (i >= 8000 && i < 12000) {
+                second.add(i);
+            }
+        }
+
+        first.merge(second);
+        assertThat(first.estimate(), equalTo(whole.estimate()));
+
+        first.reset();
+        assertThat(first.estimate(), equalTo(0L));
+    }
+
+}
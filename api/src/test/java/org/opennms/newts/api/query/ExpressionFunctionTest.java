@@ -0,0 +1,129 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.api.query;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.commons.jexl3.JexlContext;
+import org.apache.commons.jexl3.JexlException;
+import org.apache.commons.jexl3.MapContext;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+
+public class ExpressionFunctionTest {
+
+    private static final Set<String> LABELS = ImmutableSet.of("in", "out", "speed", "unused");
+
+    @Test
+    public void testSameAsJexl() {
+        String[] expressions = {
+            "in + out",
+            "in - out - speed",
+            "(in + out) * 8 / speed",
+            "in % out",
+            "-in * -out + -(1 - 3)",
+            "in * (1 / 2)",
+            "7 / 2 + in",
+            "in / 3.5e2 - 0.5",
+            "100 * (in - out) / (in + out)",
+        };
+
+        Random random = new Random(42);
+        for (String expression : expressions) {
+            ExpressionFunction function = new ExpressionFunction(expression, LABELS);
+            assertTrue(expression + " not compiled", function.isCompiled());
+
+            for (int i = 0; i < 100; i++) {
+                double[] args = new double[function.getLabels().length];
+                JexlContext jc = new MapContext();
+                for (int a = 0; a < args.length; a++) {
+                    args[a] = (i % 10 == 0) ? Double.NaN : random.nextInt(2000) - 1000 + random.nextDouble();
+                    jc.set(function.getLabels()[a], args[a]);
+                }
+
+                double expected = ((Number) ResultDescriptor.JEXL_ENGINE.createExpression(expression).evaluate(jc)).doubleValue();
+                assertThat(expression, function.apply(args), equalTo(expected));
+            }
+        }
+    }
+
+    @Test
+    public void testReferencedLabels() {
+        assertThat(new ExpressionFunction("out * 8 + out", LABELS).getLabels(), equalTo(new String[] { "out" }));
+        assertThat(new ExpressionFunction("speed > 0 ? in / speed : 0", LABELS).getLabels(), equalTo(new String[] { "speed", "in" }));
+
+        // At least one argument
+        assertThat(new ExpressionFunction("1 + 2", LABELS).getLabels().length, equalTo(LABELS.size()));
+    }
+
+    @Test
+    public void testEvaluatedByJexl() {
+        ExpressionFunction function = new ExpressionFunction("speed > 0 ? in / speed : 0", LABELS);
+        assertFalse(function.isCompiled());
+        assertThat(function.apply(0.0d, 10.0d), equalTo(0.0d));
+        assertThat(function.apply(4.0d, 10.0d), equalTo(2.5d));
+
+        for (String expression : new String[] { "in.class", "out div speed", "max(in, out)", "+in" }) {
+            assertFalse(expression, new ExpressionFunction(expression, LABELS).isCompiled());
+        }
+    }
+
+    @Test
+    public void testDivideByZero() {
+        ExpressionFunction function = new ExpressionFunction("in / out", LABELS);
+        assertTrue(function.isCompiled());
+        assertThat(function.apply(1.0d, Double.NaN), equalTo(Double.NaN));
+
+        // As JEXL would
+        try {
+            function.apply(1.0d, 0.0d);
+            fail("no exception");
+        }
+        catch (JexlException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        ExpressionFunction function = new ExpressionFunction("(in + out) / 2", LABELS);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(function);
+        }
+
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            ExpressionFunction copy = (ExpressionFunction) in.readObject();
+            assertTrue(copy.isCompiled());
+            assertThat(copy.getLabels(), equalTo(function.getLabels()));
+            assertThat(copy.apply(3.0d, 5.0d), equalTo(4.0d));
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.api.query;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class QuantileSketchTest {
+
+    private static final double[] QUANTILES = { 0.0d, 0.01d, 0.25d, 0.5d, 0.75d, 0.9d, 0.95d, 0.99d, 1.0d };
+
+    @Test
+    public void testQuantiles() {
+        Random random = new Random(42);
+        double[] values = new double[10000];
+        QuantileSketch sketch = new QuantileSketch();
+
+        for (int i = 0; i < values.length; i++) {
+            // Log-normal, with some negatives and zeros
+            values[i] = (i % 100 == 0) ? 0.0d : Math.exp(random.nextGaussian() * 3) * ((i % 10 == 0) ? -1 : 1);
+            sketch.add(values[i]);
+        }
+
+        assertThat(sketch.count(), equalTo((long) values.length));
+        assertAccurate(sketch, values);
+    }
+
+    @Test
+    public void testMerge() {
+        Random random = new Random(42);
+        double[] values = new double[5000];
+        QuantileSketch whole = new QuantileSketch(), first = new QuantileSketch(), second = new QuantileSketch();
+
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextDouble() * 1000;
+            whole.add(values[i]);
+            (i % 3 == 0 ? first : second).add(values[i]);
+        }
+
+        first.merge(second);
+
+        for (double q : QUANTILES) {
+            assertThat(first.quantile(q), equalTo(whole.quantile(q)));
+        }
+        assertAccurate(first, values);
+    }
+
+    @Test
+    public void testCollapse() {
+        QuantileSketch sketch = new QuantileSketch();
+
+        // Far more bins than are kept; The lowest collapse, the highest stay accurate
+        double[] values = new double[5000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.pow(10, i / 50.0d - 50);
+            sketch.add(values[i]);
+        }
+
+        Arrays.sort(values);
+        for (double q : new double[] { 0.9d, 0.99d, 1.0d }) {
+            double expected = values[(int) Math.floor(q * (values.length - 1))];
+            assertTrue(q + " not accurate", Math.abs(sketch.quantile(q) - expected) <= expected * QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+        }
+        assertThat(sketch.quantile(0.0d), equalTo(values[0]));
+    }
+
+    @Test
+    public void testReset() {
+        QuantileSketch sketch = new QuantileSketch();
+        assertTrue(Double.isNaN(sketch.quantile(0.5d)));
+
+        sketch.add(-12.0d);
+        sketch.add(Double.NaN);
+        sketch.add(Double.POSITIVE_INFINITY);
+        assertThat(sketch.count(), equalTo(1L));
+        assertThat(sketch.quantile(0.5d), equalTo(-12.0d));
+
+        sketch.reset();
+        assertThat(sketch.count(), equalTo(0L));
+        assertTrue(Double.isNaN(sketch.quantile(0.5d)));
+
+        sketch.add(3.0d);
+        assertThat(sketch.quantile(0.5d), equalTo(3.0d));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeOtherAccuracy() {
+        new QuantileSketch(0.01d).merge(new QuantileSketch(0.05d));
+    }
+
+    private static void assertAccurate(QuantileSketch sketch, double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+
+        for (double q : QUANTILES) {
+            double expected = sorted[(int) Math.floor(q * (sorted.length - 1))];
+            double actual = sketch.quantile(q);
+            assertTrue(
+                    String.format("quantile %s: expected %s, got %s", q, expected, actual),
+                    Math.abs(actual - expected) <= Math.abs(expected) * sketch.getRelativeAccuracy());
+        }
+    }
+
+}
@@ -78,6 +78,38 @@ public class ResultDescriptorTest {
     }
 
 
+    @Test
+    public void testCalculationPlan() {
+        ResultDescriptor descriptor = new ResultDescriptor()
+                .datasource("in", AVERAGE)
+                .datasource("out", AVERAGE)
+                .datasource("speed", AVERAGE)
+                .expression("sum", "in + out")
+                .expression("half", "sum / 2");
+
+        CalculationPlan plan = descriptor.getCalculationPlan();
+        assertEquals(Sets.newHashSet("in", "out", "speed"), Sets.newHashSet(plan.getLabels().subList(0, 3)));
+        assertEquals(3, plan.getDatasourceCount());
+        assertEquals(3, plan.indexOf("sum"));
+        assertEquals(4, plan.indexOf("half"));
+        assertEquals(-1, plan.indexOf("bogus"));
+
+        // Only the datasources referenced are inputs
+        assertEquals(2, plan.getInputs().length);
+
+        double[] row = new double[5];
+        row[plan.indexOf("in")] = 6.0d;
+        row[plan.indexOf("out")] = 4.0d;
+        plan.evaluate(row);
+        assertEquals(10.0d, row[plan.indexOf("sum")], 0.0d);
+        assertEquals(5.0d, row[plan.indexOf("half")], 0.0d);
+
+        // Compiled once, and again once added to
+        assertTrue(plan == descriptor.getCalculationPlan());
+        descriptor.expression("double", "sum * 2");
+        assertEquals(6, descriptor.getCalculationPlan().getLabels().size());
+    }
+
     @Test
     public void testStep() {
         assertEquals(400000, new ResultDescriptor(400000).getInterval().asMillis());
@@ -91,6 +123,32 @@ public class ResultDescriptorTest {
         assertTrue(new ResultDescriptor().step(Duration.millis(1000)) instanceof ResultDescriptor);
     }
 
+    @Test
+    public void testMaxDataPoints() {
+        ResultDescriptor descriptor = new ResultDescriptor()
+                .datasource("in", AVERAGE)
+                .expression("double", "in * 2")
+                .export("double");
+        CalculationPlan plan = descriptor.getCalculationPlan();
+
+        assertEquals(0, descriptor.getMaxDataPoints());
+
+        // Copies share the plan, but not their maxDataPoints
+        ResultDescriptor copy = new ResultDescriptor(descriptor).maxDataPoints(1000);
+        assertEquals(1000, copy.getMaxDataPoints());
+        assertEquals(0, descriptor.getMaxDataPoints());
+        assertEquals(descriptor.getExports(), copy.getExports());
+        assertEquals(descriptor.getLabels(), copy.getLabels());
+        assertTrue(plan == copy.getCalculationPlan());
+
+        assertEquals(0, copy.maxDataPoints(0).getMaxDataPoints());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadMaxDataPoints() {
+        new ResultDescriptor().maxDataPoints(2);
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void testBadExport() {
         new ResultDescriptor().datasource("in", "ifInOctets", AVERAGE).export("bogus");
@@ -15,10 +15,15 @@
  */
 package org.opennms.newts.api.query;
 
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 
 import org.junit.Test;
 
@@ -31,4 +36,102 @@ public class StandardAggregationFunctionsTest {
             assertTrue(fn + "([]) did not return NaN", Double.isNaN(fn.apply(emptyCollection)));
         }
     }
+
+    @Test
+    public void testFunctions() {
+        List<Double> values = Arrays.asList(2.0d, Double.NaN, 4.0d, 4.0d, 4.0d, 5.0d, 5.0d, 7.0d, 9.0d, Double.NaN);
+
+        assertThat(StandardAggregationFunctions.AVERAGE.apply(values), equalTo(5.0d));
+        assertThat(StandardAggregationFunctions.MIN.apply(values), equalTo(2.0d));
+        assertThat(StandardAggregationFunctions.MAX.apply(values), equalTo(9.0d));
+        assertThat(StandardAggregationFunctions.SUM.apply(values), equalTo(40.0d));
+        assertThat(StandardAggregationFunctions.COUNT.apply(values), equalTo(8.0d));
+        assertThat(StandardAggregationFunctions.LAST.apply(values), equalTo(9.0d));
+        assertThat(StandardAggregationFunctions.STDDEV.apply(values), equalTo(2.0d));
+        assertThat(StandardAggregationFunctions.DISTINCT_COUNT.apply(values), equalTo(5.0d));
+
+        // Within the accuracy of the sketch (of 2, 4, 4, 4, 5, 5, 7, 9)
+        assertEquals(4.0d, StandardAggregationFunctions.P50.apply(values), 0.04d);
+        assertEquals(7.0d, StandardAggregationFunctions.P90.apply(values), 0.07d);
+        assertEquals(7.0d, StandardAggregationFunctions.P99.apply(values), 0.07d);
+        assertThat(new Percentile(1.0d).apply(values), equalTo(9.0d));
+    }
+
+    @Test
+    public void testNoneKnown() {
+        List<Double> values = Arrays.asList(Double.NaN, Double.NaN);
+
+        assertTrue(Double.isNaN(StandardAggregationFunctions.AVERAGE.apply(values)));
+        assertTrue(Double.isNaN(StandardAggregationFunctions.SUM.apply(values)));
+        assertTrue(Double.isNaN(StandardAggregationFunctions.LAST.apply(values)));
+        assertTrue(Double.isNaN(StandardAggregationFunctions.STDDEV.apply(values)));
+        assertTrue(Double.isNaN(StandardAggregationFunctions.P50.apply(values)));
+        assertThat(StandardAggregationFunctions.COUNT.apply(values), equalTo(0.0d));
+        assertThat(StandardAggregationFunctions.DISTINCT_COUNT.apply(values), equalTo(0.0d));
+
+        // As they always have
+        assertThat(StandardAggregationFunctions.MAX.apply(values), equalTo(Double.MIN_VALUE));
+        assertThat(StandardAggregationFunctions.MIN.apply(values), equalTo(Double.MAX_VALUE));
+    }
+
+    @Test
+    public void testAccumulatorsReset() {
+        for (StandardAggregationFunctions fn : StandardAggregationFunctions.values()) {
+            Accumulator accumulator = fn.accumulator();
+            for (double value : new double[] { 100.0d, -3.0d, 42.0d }) {
+                accumulator.accept(value);
+            }
+
+            accumulator.reset();
+            assertTrue(fn + " not reset", Double.isNaN(accumulator.result()));
+
+            accumulator.accept(1.0d);
+            accumulator.accept(3.0d);
+            assertThat(fn.toString(), accumulator.result(), equalTo(fn.apply(Arrays.asList(1.0d, 3.0d))));
+        }
+    }
+
+    @Test
+    public void testAccumulatorsMerge() {
+        List<Double> values = Arrays.asList(2.0d, Double.NaN, 4.0d, 4.0d, 4.0d, 5.0d, 5.0d, 7.0d, 9.0d, Double.NaN);
+
+        for (StandardAggregationFunctions fn : StandardAggregationFunctions.values()) {
+            for (int split = 0; split <= values.size(); split++) {
+                MergeableAccumulator first = fn.accumulator(), second = fn.accumulator();
+                for (int i = 0; i < values.size(); i++) {
+                    (i < split ? first : second).accept(values.get(i));
+                }
+
+                first.merge(second);
+                assertEquals(fn + " split at " + split, fn.apply(values), first.result(), 1e-9);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeOtherFunction() {
+        StandardAggregationFunctions.P50.accumulator().merge(StandardAggregationFunctions.P99.accumulator());
+    }
+
+    @Test
+    public void testCustomFunctionsCollected() {
+        AggregationFunction median = new AggregationFunction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public Double apply(Collection<Double> input) {
+                return input.isEmpty() ? Double.NaN : input.toArray(new Double[0])[input.size() / 2];
+            }
+        };
+
+        Accumulator accumulator = median.accumulator();
+        accumulator.accept(1.0d);
+        accumulator.accept(2.0d);
+        accumulator.accept(3.0d);
+        assertThat(accumulator.result(), equalTo(2.0d));
+
+        accumulator.reset();
+        assertTrue(Double.isNaN(accumulator.result()));
+    }
+
 }
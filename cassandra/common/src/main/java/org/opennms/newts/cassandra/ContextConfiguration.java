@@ -13,13 +13,20 @@ public class ContextConfiguration {
     private final Duration m_resourceShard;
     private final ConsistencyLevel m_readConsistency;
     private final ConsistencyLevel m_writeConsistency;
+    private final SampleLayout m_sampleLayout;
 
     public ContextConfiguration(Context context, Duration resourceShard,
             ConsistencyLevel readConsistency, ConsistencyLevel writeConsistency) {
+        this(context, resourceShard, readConsistency, writeConsistency, SampleLayout.TIME_FIRST);
+    }
+
+    public ContextConfiguration(Context context, Duration resourceShard,
+            ConsistencyLevel readConsistency, ConsistencyLevel writeConsistency, SampleLayout sampleLayout) {
         m_context = checkNotNull(context, "context argument");
         m_resourceShard = checkNotNull(resourceShard, "resourceShard argument");
         m_readConsistency = checkNotNull(readConsistency, "readConsistency argument");
         m_writeConsistency = checkNotNull(writeConsistency, "writeConsistency argument");
+        m_sampleLayout = checkNotNull(sampleLayout, "sampleLayout argument");
     }
 
     public Context getContext() { 
@@ -37,4 +44,8 @@ public class ContextConfiguration {
     public ConsistencyLevel getWriteConsistency() {
         return m_writeConsistency;
     }
+
+    public SampleLayout getSampleLayout() {
+        return m_sampleLayout;
+    }
 }
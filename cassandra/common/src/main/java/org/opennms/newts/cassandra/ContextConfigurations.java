@@ -17,6 +17,8 @@ public class ContextConfigurations {
 
     private static final ConsistencyLevel DEFAULT_WRITE_CONSISTENCY = ConsistencyLevel.ANY;
 
+    private static final SampleLayout DEFAULT_SAMPLE_LAYOUT = SampleLayout.TIME_FIRST;
+
     private final Map<Context, ContextConfiguration> m_contexts = Maps.newHashMap();
 
     public ContextConfigurations() { }
@@ -39,6 +41,13 @@ public class ContextConfigurations {
         return this;
     }
 
+    public ContextConfigurations addContextConfig(Context context, Duration resourceShard,
+            ConsistencyLevel readConsistencyLevel, ConsistencyLevel writeConsistencyLevel, SampleLayout sampleLayout) {
+        m_contexts.put(context, new ContextConfiguration(context, resourceShard,
+                readConsistencyLevel, writeConsistencyLevel, sampleLayout));
+        return this;
+    }
+
     public Duration getResourceShard(Context context) {
         ContextConfiguration configConfig = m_contexts.get(context);
         if (configConfig != null) {
@@ -65,4 +74,13 @@ public class ContextConfigurations {
             return DEFAULT_WRITE_CONSISTENCY;
         }
     }
+
+    public SampleLayout getSampleLayout(Context context) {
+        ContextConfiguration configConfig = m_contexts.get(context);
+        if (configConfig != null) {
+            return configConfig.getSampleLayout();
+        } else {
+            return DEFAULT_SAMPLE_LAYOUT;
+        }
+    }
 }
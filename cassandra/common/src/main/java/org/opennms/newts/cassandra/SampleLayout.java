@@ -0,0 +1,36 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.cassandra;
+
+
+/**
+ * Layout of a context's samples within a resource (shard) partition.
+ */
+public enum SampleLayout {
+
+    /**
+     * Ordered by time, then metric ({@code samples}); Every metric of the resource is read,
+     * whichever are selected.
+     */
+    TIME_FIRST,
+
+    /**
+     * Ordered by metric, then time ({@code samples_by_metric}); Only the metrics selected are
+     * read, which suits resources with many metrics, of which few are queried at once.
+     */
+    METRIC_FIRST;
+
+}
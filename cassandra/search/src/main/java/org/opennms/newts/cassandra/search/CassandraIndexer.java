@@ -22,13 +22,25 @@ import static com.datastax.oss.driver.api.querybuilder.QueryBuilder.literal;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -61,9 +73,10 @@ import com.google.common.base.Optional;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 @SuppressWarnings("java:S4738") // we only use Guava Optional internally, it isn't passed around
-public class CassandraIndexer implements Indexer {
+public class CassandraIndexer implements Indexer, AutoCloseable {
     private static final Logger LOG = LoggerFactory.getLogger(CassandraIndexer.class);
 
     private final CassandraSession m_session;
@@ -79,7 +92,20 @@ public class CassandraIndexer implements Indexer {
 
     private final CassandraIndexingOptions m_options;
 
-    private final Set<StatementGenerator> statementsInFlight = Sets.newHashSet();
+    private final ConcurrentMap<StatementGenerator, CompletableFuture<Void>> statementsInFlight = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService m_scheduler;
+    private final Queue<Update> m_pending = new ConcurrentLinkedQueue<>();
+    // Updates pending, queued or in flight, until indexed (or failed)
+    private final Set<Update> m_unindexed = Sets.newConcurrentHashSet();
+    private final AtomicBoolean m_flushScheduled = new AtomicBoolean(false);
+    private final Queue<Write> m_queued = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger m_queuedCount = new AtomicInteger(0);
+    private final AtomicInteger m_inFlight = new AtomicInteger(0);
+    private final ThreadLocal<Boolean> m_dispatching = ThreadLocal.withInitial(() -> false);
+    private final Timer m_lagTimer;
+    private final Meter m_dropped;
+    private volatile boolean m_closed = false;
 
     @Inject
     public CassandraIndexer(CassandraSession session, @Named("search.cassandra.time-to-live") int ttl, ResourceMetadataCache cache, @Named("newtsMetricRegistry") MetricRegistry registry,
@@ -95,6 +121,14 @@ public class CassandraIndexer implements Indexer {
         m_updateTimer = registry.timer(name("search", "update"));
         m_deleteTimer = registry.timer(name("search", "delete"));
         m_inserts = registry.meter(name("search", "inserts"));
+        m_lagTimer = registry.timer(name("search", "lag"));
+        m_dropped = registry.meter(name("search", "updates-dropped"));
+        registry.gauge(name("search", "queued-statements"), () -> m_queuedCount::get);
+        registry.gauge(name("search", "in-flight-statements"), () -> m_inFlight::get);
+
+        m_scheduler = (m_options.getCoalescingWindow().asMillis() > 0)
+                ? new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder().setNameFormat("newts-indexer-%d").setDaemon(true).build())
+                : null;
 
         m_insertTermsStatement = session.prepare(insertInto(Constants.Schema.T_TERMS)
                 .value(Constants.Schema.C_TERMS_CONTEXT, bindMarker(Constants.Schema.C_TERMS_CONTEXT))
@@ -106,90 +140,276 @@ public class CassandraIndexer implements Indexer {
 
     @Override
     public void update(Collection<Sample> samples) {
+        try {
+            updateAsync(samples).toCompletableFuture().join();
+        }
+        catch (CompletionException e) {
+            throw (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Indexes samples asynchronously. The statements needed are worked out on the calling thread,
+     * then held for the coalescing window, merged with those of the updates that follow, and
+     * queued to be executed; The calling thread never waits on Cassandra.
+     *
+     * <p>
+     * Updates flushed while the queue is full are dropped, and fail with a
+     * {@link RejectedExecutionException}; As the cache is only updated once an update is written,
+     * the samples that follow index them instead.
+     * </p>
+     */
+    @Override
+    public CompletionStage<Void> updateAsync(Collection<Sample> samples) {
         Timer.Context ctx = m_updateTimer.time();
 
-        Set<StatementGenerator> generators = Sets.newHashSet();
-        Map<Context, Map<Resource, ResourceMetadata>> cacheQueue = Maps.newHashMap();
+        try {
+            Update update = new Update();
+
+            for (Sample sample : samples) {
+                maybeIndexResource(update.m_cacheQueue, update.m_generators, sample.getContext(), sample.getResource());
+                maybeIndexResourceAttributes(update.m_cacheQueue, update.m_generators, sample.getContext(), sample.getResource());
+                maybeAddMetricName(update.m_cacheQueue, update.m_generators, sample.getContext(), sample.getResource(), sample.getName());
+            }
+
+            if (update.m_generators.isEmpty()) {
+                merge(update.m_cacheQueue);
+                return CompletableFuture.completedFuture(null);
+            }
 
-        for (Sample sample : samples) {
-            maybeIndexResource(cacheQueue, generators, sample.getContext(), sample.getResource());
-            maybeIndexResourceAttributes(cacheQueue, generators, sample.getContext(), sample.getResource());
-            maybeAddMetricName(cacheQueue, generators, sample.getContext(), sample.getResource(), sample.getName());
+            m_unindexed.add(update);
+            update.m_indexed.whenComplete((result, e) -> m_unindexed.remove(update));
+            m_pending.add(update);
+
+            if (m_scheduler == null || m_closed) {
+                flush();
+            }
+            else if (m_flushScheduled.compareAndSet(false, true)) {
+                try {
+                    m_scheduler.schedule(this::flush, m_options.getCoalescingWindow().asMillis(), TimeUnit.MILLISECONDS);
+                }
+                catch (RejectedExecutionException e) {
+                    // Closed in the meantime
+                    flush();
+                }
+            }
+
+            return update.m_indexed;
+        } finally {
+            ctx.stop();
         }
+    }
 
-        try {
-            if (!generators.isEmpty()) {
-                synchronized(statementsInFlight) {
-                    generators.removeAll(statementsInFlight);
-                    statementsInFlight.addAll(generators);
+    /** Queues the statements of the pending updates, those they have in common (or in flight) once. */
+    private void flush() {
+        // Cleared first; Updates pending after this point are flushed next time
+        m_flushScheduled.set(false);
+
+        List<Update> updates = Lists.newArrayList();
+        for (Update update = m_pending.poll(); update != null; update = m_pending.poll()) {
+            updates.add(update);
+        }
+
+        if (updates.isEmpty()) {
+            return;
+        }
+
+        if (m_queuedCount.get() >= m_options.getMaxQueuedStatements()) {
+            LOG.debug("Dropping {} index updates; {} statements are queued already", updates.size(), m_queuedCount.get());
+            m_dropped.mark(updates.size());
+            RejectedExecutionException e = new RejectedExecutionException("Index statement queue is full");
+            for (Update update : updates) {
+                update.m_indexed.completeExceptionally(e);
+            }
+            return;
+        }
+
+        // Statements are claimed (atomically, one at a time); Those already in flight are waited
+        // on, rather than executed again
+        Set<StatementGenerator> claimed = Sets.newHashSet();
+        for (Update update : updates) {
+            for (StatementGenerator generator : update.m_generators) {
+                CompletableFuture<Void> written = new CompletableFuture<>();
+                CompletableFuture<Void> inFlight = statementsInFlight.putIfAbsent(generator, written);
+                if (inFlight == null) {
+                    claimed.add(generator);
                 }
-                m_inserts.mark(generators.size());
+                update.m_written.add((inFlight != null) ? inFlight : written);
+            }
+        }
 
-                // Asynchronously execute the statements
-                List<CompletionStage<AsyncResultSet>> futures = Lists.newArrayList();
-                for (Statement<?> statementToExecute : toStatements(generators)) {
-                    futures.add(m_session.executeAsync(statementToExecute));
+        for (Update update : updates) {
+            CompletableFuture.allOf(update.m_written.toArray(new CompletableFuture<?>[0])).whenComplete((result, e) -> {
+                if (e != null) {
+                    update.m_indexed.completeExceptionally(e);
+                    return;
                 }
 
-                for (CompletionStage<AsyncResultSet> future : futures) {
-                    try {
-                        future.toCompletableFuture().get();
-                    } catch (InterruptedException|ExecutionException e) {
-                        throw new RuntimeException(e);
-                    }
+                // Order matters here; We want the cache updated only after a successful Cassandra write.
+                merge(update.m_cacheQueue);
+                m_lagTimer.update(System.nanoTime() - update.m_submitted, TimeUnit.NANOSECONDS);
+                update.m_indexed.complete(null);
+            });
+        }
+
+        if (claimed.isEmpty()) {
+            return;
+        }
+
+        m_inserts.mark(claimed.size());
+
+        List<Write> writes;
+        try {
+            writes = toWrites(claimed);
+        }
+        catch (RuntimeException e) {
+            LOG.error("Unable to create index statements", e);
+            written(claimed, e);
+            return;
+        }
+
+        m_queuedCount.addAndGet(writes.size());
+        m_queued.addAll(writes);
+        dispatch();
+    }
+
+    /** Executes queued writes, while fewer than the maximum are in flight. */
+    private void dispatch() {
+        // Writes that complete straight away are picked up by the loop, instead of recursing
+        if (m_dispatching.get()) {
+            return;
+        }
+
+        m_dispatching.set(true);
+        try {
+            while (!m_queued.isEmpty()) {
+                int inFlight = m_inFlight.get();
+                if (inFlight >= m_options.getMaxInFlightStatements()) {
+                    return;
+                }
+                if (!m_inFlight.compareAndSet(inFlight, inFlight + 1)) {
+                    continue;
                 }
-            }
 
-            // Order matters here; We want the cache updated only after a successful Cassandra write.
-            for (final Entry<Context,Map<Resource,ResourceMetadata>> queueEntry : cacheQueue.entrySet()) {
-                for (final Map.Entry<Resource, ResourceMetadata> entry : queueEntry.getValue().entrySet()) {
-                    m_cache.merge(queueEntry.getKey(), entry.getKey(), entry.getValue());
+                Write write = m_queued.poll();
+                if (write == null) {
+                    m_inFlight.decrementAndGet();
+                    continue;
                 }
+                m_queuedCount.decrementAndGet();
+
+                execute(write);
             }
         } finally {
-            synchronized(statementsInFlight) {
-                statementsInFlight.removeAll(generators);
+            m_dispatching.set(false);
+        }
+    }
+
+    private void execute(Write write) {
+        CompletionStage<AsyncResultSet> future;
+        try {
+            future = m_session.executeAsync(write.m_statement);
+        }
+        catch (RuntimeException e) {
+            CompletableFuture<AsyncResultSet> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            future = failed;
+        }
+
+        future.whenComplete((result, e) -> {
+            m_inFlight.decrementAndGet();
+            written(write.m_generators, e);
+            dispatch();
+        });
+    }
+
+    /** Releases statements no longer in flight, completing (or failing) those waiting on them. */
+    private void written(Collection<StatementGenerator> generators, Throwable e) {
+        for (StatementGenerator generator : generators) {
+            CompletableFuture<Void> future = statementsInFlight.remove(generator);
+            if (e != null) {
+                future.completeExceptionally(e);
+            }
+            else {
+                future.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Flushes the updates still held for the coalescing window, and waits for all those not yet
+     * indexed (held, queued, or in flight) to be written; Those that follow are flushed straight
+     * away.
+     */
+    @Override
+    public void close() {
+        m_closed = true;
+
+        if (m_scheduler != null) {
+            m_scheduler.shutdownNow();
+        }
+        flush();
+
+        List<CompletableFuture<Void>> pending = Lists.newArrayList();
+        for (Update update : m_unindexed) {
+            pending.add(update.m_indexed);
+        }
+
+        try {
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+        }
+        catch (CompletionException e) {
+            LOG.warn("Unable to index samples on close", e.getCause());
+        }
+    }
+
+    private void merge(Map<Context, Map<Resource, ResourceMetadata>> cacheQueue) {
+        for (final Entry<Context,Map<Resource,ResourceMetadata>> queueEntry : cacheQueue.entrySet()) {
+            for (final Map.Entry<Resource, ResourceMetadata> entry : queueEntry.getValue().entrySet()) {
+                m_cache.merge(queueEntry.getKey(), entry.getKey(), entry.getValue());
             }
-            ctx.stop();
         }
     }
 
     @SuppressWarnings("rawtypes")
-    private List<Statement<?>> toStatements(Set<StatementGenerator> generators) {
-        List<Statement<?>> statementsToExecute = Lists.newArrayList();
+    private List<Write> toWrites(Set<StatementGenerator> generators) {
+        List<Write> writes = Lists.newArrayList();
 
-        Map<String, List<BatchableStatement<?>>> statementsByKey = Maps.newHashMap();
+        Map<String, List<StatementGenerator>> generatorsByKey = Maps.newHashMap();
         for (StatementGenerator generator : generators) {
-            BatchableStatement statement = generator.toStatement()
-                    .setConsistencyLevel(m_contextConfigurations.getWriteConsistency(generator.getContext()));
             String key = generator.getKey();
             if (key == null) {
                 // Don't try batching these
-                statementsToExecute.add(statement);
+                writes.add(new Write(toStatement(generator), Collections.singletonList(generator)));
                 continue;
             }
 
             // Group these by key
-            List<BatchableStatement<?>> statementsForKey = statementsByKey.get(key);
-            if (statementsForKey == null) {
-                statementsForKey = Lists.newArrayList();
-                statementsByKey.put(key, statementsForKey);
+            List<StatementGenerator> generatorsForKey = generatorsByKey.get(key);
+            if (generatorsForKey == null) {
+                generatorsForKey = Lists.newArrayList();
+                generatorsByKey.put(key, generatorsForKey);
             }
-            statementsForKey.add(statement);
+            generatorsForKey.add(generator);
         }
 
         // Consolidate the grouped statements into batches
-        for (List<BatchableStatement<?>> statementsForKey: statementsByKey.values()) {
-            for (List<BatchableStatement<?>> partition : Lists.partition(statementsForKey, m_options.getMaxBatchSize())) {
+        for (List<StatementGenerator> generatorsForKey : generatorsByKey.values()) {
+            for (List<StatementGenerator> partition : Lists.partition(generatorsForKey, m_options.getMaxBatchSize())) {
                 BatchStatementBuilder builder = BatchStatement.builder(DefaultBatchType.UNLOGGED);
-                for (BatchableStatement statement : partition) {
-                    builder.addStatement(statement);
+                for (StatementGenerator generator : partition) {
+                    builder.addStatement(toStatement(generator));
                 }
-                statementsToExecute.add(builder.build());
+                writes.add(new Write(builder.build(), partition));
             }
         }
 
-        return statementsToExecute;
+        return writes;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private BatchableStatement toStatement(StatementGenerator generator) {
+        return generator.toStatement().setConsistencyLevel(m_contextConfigurations.getWriteConsistency(generator.getContext()));
     }
 
     @Override
@@ -405,11 +625,13 @@ public class CassandraIndexer implements Indexer {
         private final Context m_context;
         private final String m_resourceId;
         private final String m_metric;
+        private final int m_hashCode;
 
         public MetricInsert(Context context, String resourceId, String metric) {
             m_context = Objects.requireNonNull(context);
             m_resourceId = Objects.requireNonNull(resourceId);
             m_metric = Objects.requireNonNull(metric);
+            m_hashCode = Objects.hash(m_context, m_resourceId, m_metric);
         }
 
         @Override
@@ -436,7 +658,7 @@ public class CassandraIndexer implements Indexer {
 
         @Override
         public int hashCode() {
-            return Objects.hash(m_context, m_resourceId, m_metric);
+            return m_hashCode;
         }
 
         @Override
@@ -448,7 +670,8 @@ public class CassandraIndexer implements Indexer {
             if (getClass() != obj.getClass())
                 return false;
             MetricInsert other = (MetricInsert) obj;
-            return Objects.equals(this.m_context, other.m_context)
+            return m_hashCode == other.m_hashCode
+                    && Objects.equals(this.m_context, other.m_context)
                     && Objects.equals(this.m_resourceId, other.m_resourceId)
                     && Objects.equals(this.m_metric, other.m_metric);
         }
@@ -459,12 +682,14 @@ public class CassandraIndexer implements Indexer {
         protected final String m_resourceId;
         protected final String m_field;
         protected final String m_value;
+        private final int m_hashCode;
 
         public KeyValuePairInsert(Context context, String resourceId, String field, String value) {
             m_context = Objects.requireNonNull(context);
             m_resourceId = Objects.requireNonNull(resourceId);
             m_field = Objects.requireNonNull(field);
             m_value = Objects.requireNonNull(value);
+            m_hashCode = Objects.hash(m_context, m_resourceId, m_field, m_value);
         }
 
         @Override
@@ -474,7 +699,7 @@ public class CassandraIndexer implements Indexer {
 
         @Override
         public int hashCode() {
-            return Objects.hash(m_context, m_resourceId, m_field, m_value);
+            return m_hashCode;
         }
 
         @Override
@@ -486,7 +711,8 @@ public class CassandraIndexer implements Indexer {
             if (getClass() != obj.getClass())
                 return false;
             KeyValuePairInsert other = (KeyValuePairInsert) obj;
-            return Objects.equals(this.m_context, other.m_context)
+            return m_hashCode == other.m_hashCode
+                    && Objects.equals(this.m_context, other.m_context)
                     && Objects.equals(this.m_resourceId, other.m_resourceId)
                     && Objects.equals(this.m_field, other.m_field)
                     && Objects.equals(this.m_value, other.m_value);
@@ -539,4 +765,24 @@ public class CassandraIndexer implements Indexer {
                 .build();
         }
     }
+
+    /** The statements (and cache entries) of a call to {@link #updateAsync(Collection)}. */
+    private static class Update {
+        private final Set<StatementGenerator> m_generators = Sets.newHashSet();
+        private final Map<Context, Map<Resource, ResourceMetadata>> m_cacheQueue = Maps.newHashMap();
+        private final List<CompletableFuture<Void>> m_written = Lists.newArrayList();
+        private final CompletableFuture<Void> m_indexed = new CompletableFuture<>();
+        private final long m_submitted = System.nanoTime();
+    }
+
+    /** A statement, and the generators it was made of. */
+    private static class Write {
+        private final Statement<?> m_statement;
+        private final List<StatementGenerator> m_generators;
+
+        private Write(Statement<?> statement, List<StatementGenerator> generators) {
+            m_statement = statement;
+            m_generators = generators;
+        }
+    }
 }
@@ -19,6 +19,7 @@ package org.opennms.newts.cassandra.search;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.util.Collection;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.inject.Inject;
 
@@ -42,7 +43,14 @@ public class CassandraIndexerSampleProcessor implements SampleProcessor {
 
     @Override
     public void submit(Collection<Sample> samples) {
-        try                          { m_indexer.update(samples);}
+        try {
+            m_indexer.updateAsync(samples).whenComplete((result, e) -> {
+                // Updates dropped (while the indexer is behind) are counted by the indexer
+                if (e != null && !(e instanceof RejectedExecutionException)) {
+                    LOG.error("failed to index samples", e);
+                }
+            });
+        }
         catch (CassandraException e) { LOG.error("failed to index samples", e); }
     }
 
@@ -15,9 +15,14 @@
  */
 package org.opennms.newts.cassandra.search;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
 import javax.inject.Inject;
 import javax.inject.Named;
 
+import org.opennms.newts.api.Duration;
+
 public class CassandraIndexingOptions {
 
     private final boolean m_enableHierarchicalIndexing;
@@ -25,9 +30,15 @@ public class CassandraIndexingOptions {
     private final boolean m_indexResourceTerms;
 
     private final int m_maxBatchSize;
+    private final Duration m_coalescingWindow;
+    private final int m_maxInFlightStatements;
+    private final int m_maxQueuedStatements;
 
     public static class Builder {
         private int maxBatchSize = 16;
+        private Duration coalescingWindow = Duration.millis(5);
+        private int maxInFlightStatements = 128;
+        private int maxQueuedStatements = 8192;
         private boolean enableHierarchicalIndexing = true;
         private boolean indexUsingDefaultTerm = true;
         private boolean indexResourceTerms = true;
@@ -52,6 +63,34 @@ public class CassandraIndexingOptions {
             return this;
         }
 
+        /**
+         * Time for which updates are held (and merged with those that follow) before their
+         * statements are executed; Zero executes them straight away.
+         */
+        public Builder withCoalescingWindow(Duration coalescingWindow) {
+            checkNotNull(coalescingWindow, "coalescingWindow argument");
+            checkArgument(coalescingWindow.asMillis() >= 0, "coalescingWindow must not be negative");
+            this.coalescingWindow = coalescingWindow;
+            return this;
+        }
+
+        /** Number of statements executed concurrently, beyond which they are queued. */
+        public Builder withMaxInFlightStatements(int maxInFlightStatements) {
+            checkArgument(maxInFlightStatements > 0, "maxInFlightStatements must be positive");
+            this.maxInFlightStatements = maxInFlightStatements;
+            return this;
+        }
+
+        /**
+         * Number of statements queued (awaiting execution), beyond which updates are dropped; They
+         * are indexed by the samples that follow.
+         */
+        public Builder withMaxQueuedStatements(int maxQueuedStatements) {
+            checkArgument(maxQueuedStatements > 0, "maxQueuedStatements must be positive");
+            this.maxQueuedStatements = maxQueuedStatements;
+            return this;
+        }
+
         public CassandraIndexingOptions build() {
             return new CassandraIndexingOptions(this);
         }
@@ -62,6 +101,9 @@ public class CassandraIndexingOptions {
         m_enableHierarchicalIndexing = builder.enableHierarchicalIndexing;
         m_indexUsingDefaultTerm = builder.indexUsingDefaultTerm;
         m_indexResourceTerms = builder.indexResourceTerms;
+        m_coalescingWindow = builder.coalescingWindow;
+        m_maxInFlightStatements = builder.maxInFlightStatements;
+        m_maxQueuedStatements = builder.maxQueuedStatements;
     }
 
     @Inject
@@ -84,4 +126,16 @@ public class CassandraIndexingOptions {
     public int getMaxBatchSize() {
         return m_maxBatchSize;
     }
+
+    public Duration getCoalescingWindow() {
+        return m_coalescingWindow;
+    }
+
+    public int getMaxInFlightStatements() {
+        return m_maxInFlightStatements;
+    }
+
+    public int getMaxQueuedStatements() {
+        return m_maxQueuedStatements;
+    }
 }
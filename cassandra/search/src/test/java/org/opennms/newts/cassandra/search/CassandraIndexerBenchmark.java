@@ -0,0 +1,166 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.cassandra.search;
+
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.newts.api.Context;
+import org.opennms.newts.api.Duration;
+import org.opennms.newts.api.Gauge;
+import org.opennms.newts.api.MetricType;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Sample;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.cassandra.CassandraSession;
+import org.opennms.newts.cassandra.ContextConfigurations;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.ResultSet;
+import com.datastax.oss.driver.api.core.cql.SimpleStatement;
+import com.datastax.oss.driver.api.core.cql.Statement;
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+
+
+/**
+ * Throughput of {@link CassandraIndexer} updates, with threads contending for the same statements
+ * (batches of the metrics of a shared pool of resources, none of them cached); Writes complete
+ * straight away, so that what's measured is the indexer itself. Run {@link #main(String...)} (from
+ * the test classpath), which runs it with 1, 2, 4, ... threads, up to twice the number of
+ * processors.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CassandraIndexerBenchmark {
+
+    private static final int RESOURCES = 256;
+    private static final int METRICS = 8;
+
+    private CassandraIndexer m_indexer;
+    private List<List<Sample>> m_batches;
+
+    @Setup
+    public void setUp() {
+        CassandraIndexingOptions options = new CassandraIndexingOptions.Builder()
+                .withHierarchicalIndexing(false)
+                .withIndexResourceTerms(false)
+                .withCoalescingWindow(Duration.millis(0))
+                .build();
+        m_indexer = new CassandraIndexer(new CompletingSession(), 86400, new EmptyCache(), new MetricRegistry(), options,
+                new SimpleResourceIdSplitter(), new ContextConfigurations());
+
+        m_batches = Lists.newArrayList();
+        for (int r = 0; r < RESOURCES; r++) {
+            List<Sample> batch = Lists.newArrayList();
+            for (int m = 0; m < METRICS; m++) {
+                batch.add(new Sample(Timestamp.now(), new Resource("node" + r + ":interface"), "metric" + m, MetricType.GAUGE, new Gauge(m)));
+            }
+            m_batches.add(batch);
+        }
+    }
+
+    @Benchmark
+    public CompletionStage<Void> update() {
+        return m_indexer.updateAsync(m_batches.get(ThreadLocalRandom.current().nextInt(RESOURCES)));
+    }
+
+    public static void main(String... args) throws RunnerException {
+        for (int threads = 1; threads <= Runtime.getRuntime().availableProcessors() * 2; threads *= 2) {
+            new Runner(new OptionsBuilder()
+                    .include(CassandraIndexerBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build()).run();
+        }
+    }
+
+    /** A session whose statements complete as soon as they are executed. */
+    private static class CompletingSession implements CassandraSession {
+
+        @Override
+        public PreparedStatement prepare(String statement) {
+            return null;
+        }
+
+        @Override
+        public PreparedStatement prepare(SimpleStatement statement) {
+            return null;
+        }
+
+        @Override
+        public CompletionStage<AsyncResultSet> executeAsync(Statement statement) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public ResultSet execute(Statement statement) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ResultSet execute(String statement) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletionStage<Void> shutdown() {
+            return CompletableFuture.completedFuture(null);
+        }
+
+    }
+
+    /** A cache that never has anything, so that every update is indexed. */
+    private static class EmptyCache implements ResourceMetadataCache {
+
+        @Override
+        public void merge(Context context, Resource resource, ResourceMetadata metadata) {
+        }
+
+        @Override
+        public Optional<ResourceMetadata> get(Context context, Resource resource) {
+            return Optional.absent();
+        }
+
+        @Override
+        public void delete(Context context, Resource resource) {
+        }
+
+    }
+
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.cassandra.search;
+
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.newts.api.Context;
+import org.opennms.newts.api.Duration;
+import org.opennms.newts.api.Gauge;
+import org.opennms.newts.api.MetricType;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Sample;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.cassandra.CassandraSession;
+import org.opennms.newts.cassandra.ContextConfigurations;
+
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.Statement;
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+
+
+public class CassandraIndexerTest {
+
+    private final CassandraSession m_session = mock(CassandraSession.class);
+    private final ResourceMetadataCache m_cache = mock(ResourceMetadataCache.class);
+    private final MetricRegistry m_registry = new MetricRegistry();
+    private final List<CompletableFuture<AsyncResultSet>> m_executed = Collections.synchronizedList(Lists.newArrayList());
+
+    @Before
+    public void setUp() {
+        when(m_cache.get(any(Context.class), any(Resource.class))).thenReturn(Optional.<ResourceMetadata>absent());
+        when(m_session.executeAsync(any(Statement.class))).thenAnswer(invocation -> {
+            CompletableFuture<AsyncResultSet> future = new CompletableFuture<>();
+            m_executed.add(future);
+            return future;
+        });
+    }
+
+    @Test
+    public void testUpdateAsync() {
+        CassandraIndexer indexer = newIndexer(Duration.millis(0), 128);
+
+        CompletableFuture<Void> indexed = indexer.updateAsync(samples("r1", "m1", "m2")).toCompletableFuture();
+
+        // Executed, but not waited on; Nor is the cache updated until the write completes
+        assertThat(m_executed.size(), equalTo(1));
+        assertFalse(indexed.isDone());
+        verify(m_cache, never()).merge(any(Context.class), any(Resource.class), any(ResourceMetadata.class));
+
+        m_executed.get(0).complete(null);
+
+        assertTrue(indexed.isDone());
+        verify(m_cache).merge(eq(Context.DEFAULT_CONTEXT), eq(new Resource("r1")), any(ResourceMetadata.class));
+        assertThat(m_registry.timer("search.lag").getCount(), equalTo(1L));
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        CassandraIndexer indexer = newIndexer(Duration.millis(200), 128);
+
+        // Updates within the window are merged; What they have in common is written once
+        CompletableFuture<Void> first = indexer.updateAsync(samples("r1", "m1")).toCompletableFuture();
+        CompletableFuture<Void> second = indexer.updateAsync(samples("r1", "m1", "m2")).toCompletableFuture();
+        assertThat(m_executed.size(), equalTo(0));
+
+        awaitExecuted(1);
+        assertThat(m_registry.meter("search.inserts").getCount(), equalTo(2L));
+
+        // An update needing statements still in flight waits on them, rather than writing them again
+        CompletableFuture<Void> third = indexer.updateAsync(samples("r1", "m2")).toCompletableFuture();
+        Thread.sleep(400);
+        assertThat(m_executed.size(), equalTo(1));
+        assertFalse(third.isDone());
+
+        m_executed.get(0).complete(null);
+
+        first.get(1, TimeUnit.SECONDS);
+        second.get(1, TimeUnit.SECONDS);
+        third.get(1, TimeUnit.SECONDS);
+        verify(m_cache, times(3)).merge(eq(Context.DEFAULT_CONTEXT), eq(new Resource("r1")), any(ResourceMetadata.class));
+    }
+
+    @Test
+    public void testMaxInFlight() {
+        CassandraIndexer indexer = newIndexer(Duration.millis(0), 2);
+
+        CompletableFuture<Void> indexed = indexer.updateAsync(samples("r1", "m1")).toCompletableFuture();
+        indexer.updateAsync(samples("r2", "m1"));
+        indexer.updateAsync(samples("r3", "m1"));
+
+        // Queued until one of those in flight completes
+        assertThat(m_executed.size(), equalTo(2));
+        assertThat(m_registry.getGauges().get("search.queued-statements").getValue(), equalTo((Object) 1));
+
+        m_executed.get(0).complete(null);
+        assertThat(m_executed.size(), equalTo(3));
+        assertTrue(indexed.isDone());
+    }
+
+    @Test
+    public void testMaxQueued() throws Exception {
+        CassandraIndexer indexer = newIndexer(Duration.millis(0), 1, 1);
+
+        indexer.updateAsync(samples("r1", "m1"));
+        indexer.updateAsync(samples("r2", "m1"));
+
+        // Dropped while the queue is full
+        CompletableFuture<Void> dropped = indexer.updateAsync(samples("r3", "m1")).toCompletableFuture();
+        try {
+            dropped.get(1, TimeUnit.SECONDS);
+            fail();
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        assertThat(m_executed.size(), equalTo(1));
+        assertThat(m_registry.meter("search.updates-dropped").getCount(), equalTo(1L));
+
+        // Nor cached, so the samples that follow index it
+        verify(m_cache, never()).merge(eq(Context.DEFAULT_CONTEXT), eq(new Resource("r3")), any(ResourceMetadata.class));
+
+        m_executed.get(0).complete(null);
+        assertThat(m_executed.size(), equalTo(2));
+
+        indexer.updateAsync(samples("r3", "m1"));
+        m_executed.get(1).complete(null);
+        assertThat(m_executed.size(), equalTo(3));
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        CassandraIndexer indexer = newIndexer(Duration.seconds(60), 128);
+
+        CompletableFuture<Void> indexed = indexer.updateAsync(samples("r1", "m1")).toCompletableFuture();
+        assertThat(m_executed.size(), equalTo(0));
+
+        // Updates held for the window are flushed, and waited on
+        CompletableFuture<Void> closed = CompletableFuture.runAsync(indexer::close);
+        awaitExecuted(1);
+        assertFalse(closed.isDone());
+
+        m_executed.get(0).complete(null);
+        closed.get(1, TimeUnit.SECONDS);
+        assertTrue(indexed.isDone());
+
+        // Those that follow are executed straight away
+        indexer.updateAsync(samples("r2", "m1"));
+        assertThat(m_executed.size(), equalTo(2));
+    }
+
+    @Test
+    public void testCloseWhileQueued() throws Exception {
+        CassandraIndexer indexer = newIndexer(Duration.millis(0), 1);
+
+        CompletableFuture<Void> first = indexer.updateAsync(samples("r1", "m1")).toCompletableFuture();
+        CompletableFuture<Void> second = indexer.updateAsync(samples("r2", "m1")).toCompletableFuture();
+        assertThat(m_executed.size(), equalTo(1));
+
+        // Updates already flushed, in flight or queued, are waited on
+        CompletableFuture<Void> closed = CompletableFuture.runAsync(indexer::close);
+        Thread.sleep(100);
+        assertFalse(closed.isDone());
+
+        m_executed.get(0).complete(null);
+        assertTrue(first.isDone());
+        awaitExecuted(2);
+        assertFalse(closed.isDone());
+
+        m_executed.get(1).complete(null);
+        closed.get(1, TimeUnit.SECONDS);
+        assertTrue(second.isDone());
+    }
+
+    @Test
+    public void testFailure() {
+        CassandraIndexer indexer = newIndexer(Duration.millis(0), 128);
+
+        CompletableFuture<Void> indexed = indexer.updateAsync(samples("r1", "m1")).toCompletableFuture();
+        m_executed.get(0).completeExceptionally(new IllegalStateException("failed"));
+
+        assertTrue(indexed.isCompletedExceptionally());
+        verify(m_cache, never()).merge(any(Context.class), any(Resource.class), any(ResourceMetadata.class));
+
+        // Failed statements are no longer in flight, and are written again
+        indexer.updateAsync(samples("r1", "m1"));
+        assertThat(m_executed.size(), equalTo(2));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUpdateFailure() {
+        CompletableFuture<AsyncResultSet> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException("failed"));
+        when(m_session.executeAsync(any(Statement.class))).thenReturn(failed);
+
+        // Synchronous updates throw the cause
+        newIndexer(Duration.millis(0), 128).update(samples("r1", "m1"));
+    }
+
+    private CassandraIndexer newIndexer(Duration coalescingWindow, int maxInFlightStatements) {
+        return newIndexer(coalescingWindow, maxInFlightStatements, 8192);
+    }
+
+    private CassandraIndexer newIndexer(Duration coalescingWindow, int maxInFlightStatements, int maxQueuedStatements) {
+        CassandraIndexingOptions options = new CassandraIndexingOptions.Builder()
+                .withHierarchicalIndexing(false)
+                .withIndexResourceTerms(false)
+                .withCoalescingWindow(coalescingWindow)
+                .withMaxInFlightStatements(maxInFlightStatements)
+                .withMaxQueuedStatements(maxQueuedStatements)
+                .build();
+        return new CassandraIndexer(m_session, 86400, m_cache, m_registry, options, new SimpleResourceIdSplitter(), new ContextConfigurations());
+    }
+
+    private void awaitExecuted(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (m_executed.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(m_executed.size(), equalTo(count));
+    }
+
+    private static List<Sample> samples(String resource, String... metrics) {
+        List<Sample> samples = Lists.newArrayList();
+        for (String metric : metrics) {
+            samples.add(new Sample(Timestamp.now(), new Resource(resource), metric, MetricType.GAUGE, new Gauge(1.0d)));
+        }
+        return samples;
+    }
+
+}
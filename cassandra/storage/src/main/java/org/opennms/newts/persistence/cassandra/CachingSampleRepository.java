@@ -0,0 +1,514 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.opennms.newts.aggregate.ResultProcessor;
+import org.opennms.newts.api.Context;
+import org.opennms.newts.api.Duration;
+import org.opennms.newts.api.Measurement;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Results;
+import org.opennms.newts.api.Results.Row;
+import org.opennms.newts.api.Sample;
+import org.opennms.newts.api.SampleBatch;
+import org.opennms.newts.api.SampleRepository;
+import org.opennms.newts.api.SampleSelectCallback;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.api.query.Datasource;
+import org.opennms.newts.api.query.ResultDescriptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+
+/**
+ * A {@link SampleRepository} decorator that caches measurement query results.
+ *
+ * <p>
+ * Results are cached by context, resource, datasources (the descriptor, less its calculations and
+ * exports, which are applied to the cached rows on every query), and resolution. Only the rows
+ * that have settled are cached; Those ending at least a heartbeat before the query was made, by
+ * when the samples they're calculated from should all have been written. A repeat query reuses
+ * the cached rows within its range, and fetches only the rows that follow them; So a dashboard
+ * that refreshes a sliding window of the last few hours fetches only the last few steps each time.
+ * </p>
+ *
+ * <p>
+ * Inserts (through this repository) of samples old enough to alter settled rows evict the
+ * resource's results, as do deletes. Results are evicted after {@code maxAge} regardless, which
+ * bounds how long results can miss samples written out of order elsewhere. The cache is bounded by
+ * the number of measurements it holds. Results that were truncated (by a query over budget) are
+ * not cached.
+ * </p>
+ *
+ * <p>
+ * Multi-resource and streaming queries are passed through uncached.
+ * </p>
+ */
+public class CachingSampleRepository implements SampleRepository, AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CachingSampleRepository.class);
+
+    private final SampleRepository m_delegate;
+    private final Cache<Key, Entry> m_cache;
+    private final ConcurrentMap<ResourceKey, Set<Key>> m_keysByResource = new ConcurrentHashMap<>();
+
+    private final Meter m_hits;
+    private final Meter m_misses;
+    private final Meter m_tailRefreshes;
+    private final Meter m_savedRows;
+
+    @Inject
+    public CachingSampleRepository(@Named("uncachedSampleRepository") SampleRepository delegate, CassandraStorageOptions options,
+            @Named("newtsMetricRegistry") MetricRegistry registry) {
+        this(delegate, options.getResultCacheMaxWeight(), options.getResultCacheMaxAge(), registry);
+    }
+
+    /**
+     * @param delegate
+     *            repository results are read from
+     * @param maxWeight
+     *            maximum number of measurements cached
+     * @param maxAge
+     *            age at which results are evicted
+     * @param registry
+     *            metric registry
+     */
+    public CachingSampleRepository(SampleRepository delegate, long maxWeight, Duration maxAge, MetricRegistry registry) {
+        m_delegate = checkNotNull(delegate, "delegate argument");
+        checkArgument(maxWeight > 0, "maxWeight must be positive");
+        checkNotNull(maxAge, "maxAge argument");
+
+        m_cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxWeight)
+                .<Key, Entry> weigher((key, entry) -> entry.getWeight())
+                .expireAfterWrite(maxAge.asMillis(), TimeUnit.MILLISECONDS)
+                .<Key, Entry> removalListener(notification -> unindex(notification.getKey()))
+                .build();
+
+        checkNotNull(registry, "metric registry argument");
+        m_hits = registry.meter(name("repository", "result-cache", "hits"));
+        m_misses = registry.meter(name("repository", "result-cache", "misses"));
+        m_tailRefreshes = registry.meter(name("repository", "result-cache", "tail-refreshes"));
+        m_savedRows = registry.meter(name("repository", "result-cache", "saved-rows"));
+        registry.gauge(name("repository", "result-cache", "entries"), () -> m_cache::size);
+    }
+
+    @Override
+    public Results<Measurement> select(Context context, Resource resource, Optional<Timestamp> start, Optional<Timestamp> end, ResultDescriptor descriptor, Optional<Duration> resolution) {
+        return select(context, resource, start, end, descriptor, resolution, null);
+    }
+
+    @Override
+    public Results<Measurement> select(Context context, Resource resource, Optional<Timestamp> start, Optional<Timestamp> end, ResultDescriptor descriptor, Optional<Duration> resolution, SampleSelectCallback callback) {
+        if (descriptor.getDatasources().isEmpty() || (start.isPresent() && end.isPresent() && end.get().lt(start.get()))) {
+            return callback != null ? m_delegate.select(context, resource, start, end, descriptor, resolution, callback)
+                    : m_delegate.select(context, resource, start, end, descriptor, resolution);
+        }
+
+        Timestamp now = Timestamp.now();
+        Timestamp upper = end.isPresent() ? end.get() : now;
+        Timestamp lower = start.isPresent() ? start.get() : upper.minus(Duration.seconds(86400));
+        Duration step = CassandraSampleRepository.resolveStep(lower, upper, descriptor, resolution);
+
+        Timestamp first = lower.stepFloor(step);
+        Timestamp last = upper.stepCeiling(step);
+
+        Key key = new Key(context, resource.getId(), descriptor, step);
+        ResultDescriptor datasources = datasourcesOf(descriptor);
+        Entry entry = m_cache.getIfPresent(key);
+
+        NavigableMap<Timestamp, Row<Measurement>> rows = Maps.newTreeMap();
+        boolean truncated;
+
+        if (entry != null && !first.lt(entry.m_first) && !first.gt(entry.m_settled)) {
+            NavigableMap<Timestamp, Row<Measurement>> cached = entry.m_rows.subMap(first, true, last, true);
+            rows.putAll(cached);
+            m_savedRows.mark(cached.size());
+
+            if (entry.m_settled.lt(last)) {
+                // Fetched from a step before, so that the rows that follow are calculated as they'd otherwise be
+                Results<Measurement> tail = fetch(context, resource, entry.m_settled, upper, datasources, step, callback);
+                truncated = tail.isTruncated();
+                for (Row<Measurement> row : tail) {
+                    if (row.getTimestamp().gt(entry.m_settled)) {
+                        rows.put(row.getTimestamp(), row);
+                    }
+                }
+                m_tailRefreshes.mark();
+            }
+            else {
+                truncated = false;
+                m_hits.mark();
+            }
+        }
+        else {
+            Results<Measurement> fetched = fetch(context, resource, lower, upper, datasources, step, callback);
+            truncated = fetched.isTruncated();
+            for (Row<Measurement> row : fetched) {
+                rows.put(row.getTimestamp(), row);
+            }
+            m_misses.mark();
+        }
+
+        // Results cut short (by a query over budget) are missing rows; They're not cached
+        if (!truncated) {
+            cache(key, context, resource, first, settled(now, step, descriptor, last), descriptor, rows);
+        }
+
+        Results<Measurement> results = export(resource, lower, upper, descriptor, step, rows.values().iterator());
+        results.setTruncated(truncated);
+
+        return results;
+    }
+
+    @Override
+    public Map<Resource, Results<Measurement>> select(Context context, Collection<Resource> resources, Optional<Timestamp> start, Optional<Timestamp> end, ResultDescriptor descriptor, Optional<Duration> resolution) {
+        return m_delegate.select(context, resources, start, end, descriptor, resolution);
+    }
+
+    @Override
+    public Results<Sample> select(Context context, Resource resource, Optional<Timestamp> start, Optional<Timestamp> end) {
+        return m_delegate.select(context, resource, start, end);
+    }
+
+    @Override
+    public Flow.Publisher<Row<Measurement>> selectStream(Context context, Resource resource, Optional<Timestamp> start, Optional<Timestamp> end, ResultDescriptor descriptor, Optional<Duration> resolution) {
+        return m_delegate.selectStream(context, resource, start, end, descriptor, resolution);
+    }
+
+    @Override
+    public Flow.Publisher<Row<Sample>> selectStream(Context context, Resource resource, Optional<Timestamp> start, Optional<Timestamp> end) {
+        return m_delegate.selectStream(context, resource, start, end);
+    }
+
+    @Override
+    public void insert(Collection<Sample> samples) {
+        insert(samples, false);
+    }
+
+    @Override
+    public void insert(Collection<Sample> samples, boolean calculateTimeToLive) {
+        m_delegate.insert(samples, calculateTimeToLive);
+        samplesInserted(samples);
+    }
+
+    @Override
+    public CompletionStage<Void> insertAsync(Collection<Sample> samples, boolean calculateTimeToLive) {
+        samplesInserted(samples);
+        return m_delegate.insertAsync(samples, calculateTimeToLive).whenComplete((r, e) -> samplesInserted(samples));
+    }
+
+    @Override
+    public void insert(SampleBatch batch, boolean calculateTimeToLive) {
+        m_delegate.insert(batch, calculateTimeToLive);
+        samplesInserted(batch);
+    }
+
+    @Override
+    public CompletionStage<Void> insertAsync(SampleBatch batch, boolean calculateTimeToLive) {
+        samplesInserted(batch);
+        return m_delegate.insertAsync(batch, calculateTimeToLive).whenComplete((r, e) -> samplesInserted(batch));
+    }
+
+    @Override
+    public void delete(Context context, Resource resource) {
+        m_delegate.delete(context, resource);
+        invalidate(new ResourceKey(context, resource.getId()), null);
+    }
+
+    @Override
+    public CompletionStage<Void> deleteAsync(Context context, Resource resource) {
+        return m_delegate.deleteAsync(context, resource)
+                .whenComplete((r, e) -> invalidate(new ResourceKey(context, resource.getId()), null));
+    }
+
+    @Override
+    public CompletionStage<Void> deleteAsync(Context context, Collection<Resource> resources) {
+        return m_delegate.deleteAsync(context, resources).whenComplete((r, e) -> {
+            for (Resource resource : resources) {
+                invalidate(new ResourceKey(context, resource.getId()), null);
+            }
+        });
+    }
+
+    /** Evicts all cached results. */
+    public void invalidateAll() {
+        m_cache.invalidateAll();
+    }
+
+    /** Closes the underlying repository (if closeable). */
+    @Override
+    public void close() throws Exception {
+        m_cache.invalidateAll();
+        if (m_delegate instanceof AutoCloseable) {
+            ((AutoCloseable) m_delegate).close();
+        }
+    }
+
+    /** @return the number of results cached */
+    public long size() {
+        return m_cache.size();
+    }
+
+    private Results<Measurement> fetch(Context context, Resource resource, Timestamp lower, Timestamp upper, ResultDescriptor datasources, Duration step, SampleSelectCallback callback) {
+        return callback != null
+                ? m_delegate.select(context, resource, Optional.of(lower), Optional.of(upper), datasources, Optional.of(step), callback)
+                : m_delegate.select(context, resource, Optional.of(lower), Optional.of(upper), datasources, Optional.of(step));
+    }
+
+    private void cache(Key key, Context context, Resource resource, Timestamp first, Timestamp settled, ResultDescriptor descriptor,
+            NavigableMap<Timestamp, Row<Measurement>> rows) {
+        if (settled.lt(first)) {
+            return;
+        }
+
+        NavigableMap<Timestamp, Row<Measurement>> settledRows = rows.subMap(first, true, settled, true);
+        if (settledRows.isEmpty()) {
+            return;
+        }
+
+        ResourceKey resourceKey = new ResourceKey(context, resource.getId());
+        m_keysByResource.computeIfAbsent(resourceKey, k -> ConcurrentHashMap.newKeySet()).add(key);
+        m_cache.put(key, new Entry(first, settled, maxHeartbeat(descriptor), descriptor.getDatasources().size(), settledRows));
+    }
+
+    private void unindex(Key key) {
+        m_keysByResource.computeIfPresent(new ResourceKey(key.m_context, key.m_resource), (k, keys) -> {
+            // A replacement may have been cached in the meantime
+            if (m_cache.getIfPresent(key) == null) {
+                keys.remove(key);
+            }
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    /** Evicts the results of a resource that a sample with this timestamp alters (all, if null). */
+    private void invalidate(ResourceKey resourceKey, Timestamp timestamp) {
+        Set<Key> keys = m_keysByResource.get(resourceKey);
+        if (keys == null) {
+            return;
+        }
+
+        for (Key key : keys) {
+            Entry entry = m_cache.getIfPresent(key);
+            // A sample alters rows from up to a heartbeat before it
+            if (entry != null && (timestamp == null || timestamp.lt(entry.m_settled.plus(entry.m_heartbeat)))) {
+                LOG.debug("Evicting cached results of resource {}", key.m_resource);
+                m_cache.invalidate(key);
+            }
+        }
+    }
+
+    private void samplesInserted(Collection<Sample> samples) {
+        if (m_keysByResource.isEmpty()) {
+            return;
+        }
+
+        Map<ResourceKey, Timestamp> earliest = Maps.newHashMap();
+        for (Sample sample : samples) {
+            earliest.merge(new ResourceKey(sample.getContext(), sample.getResource().getId()), sample.getTimestamp(),
+                    (a, b) -> a.lt(b) ? a : b);
+        }
+
+        for (Map.Entry<ResourceKey, Timestamp> entry : earliest.entrySet()) {
+            invalidate(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void samplesInserted(SampleBatch batch) {
+        if (m_keysByResource.isEmpty()) {
+            return;
+        }
+
+        long[] earliest = new long[batch.getResources().size()];
+        Arrays.fill(earliest, Long.MAX_VALUE);
+        for (int i = 0; i < batch.size(); i++) {
+            earliest[batch.getResourceId(i)] = Math.min(earliest[batch.getResourceId(i)], batch.getTimestamp(i));
+        }
+
+        for (int r = 0; r < earliest.length; r++) {
+            if (earliest[r] != Long.MAX_VALUE) {
+                invalidate(new ResourceKey(batch.getContext(), batch.getResources().get(r).getId()), Timestamp.fromEpochMillis(earliest[r]));
+            }
+        }
+    }
+
+    /** Rows ending at least a heartbeat before now have settled. */
+    private static Timestamp settled(Timestamp now, Duration step, ResultDescriptor descriptor, Timestamp last) {
+        Timestamp settled = now.minus(maxHeartbeat(descriptor)).stepFloor(step).minus(step);
+        return settled.lt(last) ? settled : last;
+    }
+
+    private static Duration maxHeartbeat(ResultDescriptor descriptor) {
+        Duration heartbeat = descriptor.getInterval();
+        for (Datasource ds : descriptor.getDatasources().values()) {
+            if (ds.getHeartbeat().gt(heartbeat)) {
+                heartbeat = ds.getHeartbeat();
+            }
+        }
+        return heartbeat;
+    }
+
+    /** The datasources of a descriptor, all exported. */
+    private static ResultDescriptor datasourcesOf(ResultDescriptor descriptor) {
+        ResultDescriptor datasources = new ResultDescriptor(descriptor.getInterval());
+        for (Datasource ds : descriptor.getDatasources().values()) {
+            datasources.datasource(ds.getLabel(), ds.getSource(), ds.getHeartbeat(), ds.getXff(), ds.getAggregationFuction());
+        }
+        return datasources.export(descriptor.getDatasources().keySet().toArray(new String[0]));
+    }
+
+    /** Applies the descriptor's calculations and exports to (copies of) the rows. */
+    private static Results<Measurement> export(Resource resource, Timestamp lower, Timestamp upper, ResultDescriptor descriptor, Duration step, Iterator<Row<Measurement>> rows) {
+        Iterator<Row<Measurement>> copies = new Iterator<Row<Measurement>>() {
+
+            @Override
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            @Override
+            public Row<Measurement> next() {
+                Row<Measurement> row = rows.next();
+                Row<Measurement> copy = new Row<>(row.getTimestamp(), row.getResource());
+                for (Measurement measurement : row.getElements()) {
+                    copy.addElement(measurement);
+                }
+                return copy;
+            }
+        };
+
+        Results<Measurement> results = new Results<>();
+        Iterator<Row<Measurement>> exported = new ResultProcessor(resource, lower, upper, descriptor, step).export(copies);
+        while (exported.hasNext()) {
+            results.addRow(exported.next());
+        }
+
+        return results;
+    }
+
+    /** A resource's cached results, for steps first through settled. */
+    private static class Entry {
+        private final Timestamp m_first;
+        private final Timestamp m_settled;
+        private final Duration m_heartbeat;
+        private final NavigableMap<Timestamp, Row<Measurement>> m_rows;
+        private final int m_weight;
+
+        private Entry(Timestamp first, Timestamp settled, Duration heartbeat, int width, NavigableMap<Timestamp, Row<Measurement>> rows) {
+            m_first = first;
+            m_settled = settled;
+            m_heartbeat = heartbeat;
+            m_rows = ImmutableSortedMap.copyOfSorted(rows);
+            m_weight = m_rows.size() * Math.max(width, 1);
+        }
+
+        private int getWeight() {
+            return m_weight;
+        }
+    }
+
+    private static class ResourceKey {
+        private final Context m_context;
+        private final String m_resource;
+
+        private ResourceKey(Context context, String resource) {
+            m_context = context;
+            m_resource = resource;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ResourceKey)) return false;
+            ResourceKey other = (ResourceKey) o;
+            return m_resource.equals(other.m_resource) && m_context.equals(other.m_context);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(m_context, m_resource);
+        }
+    }
+
+    /** Context, resource, datasources, and resolution of a query. */
+    private static class Key {
+        private final Context m_context;
+        private final String m_resource;
+        private final Duration m_interval;
+        private final List<List<Object>> m_datasources;
+        private final Duration m_step;
+        private final int m_hashCode;
+
+        private Key(Context context, String resource, ResultDescriptor descriptor, Duration step) {
+            m_context = context;
+            m_resource = resource;
+            m_interval = descriptor.getInterval();
+            m_datasources = Lists.newArrayList();
+            for (Datasource ds : descriptor.getDatasources().values()) {
+                m_datasources.add(Arrays.<Object> asList(ds.getLabel(), ds.getSource(), ds.getHeartbeat(), ds.getXff(), ds.getAggregationFuction()));
+            }
+            m_step = step;
+            m_hashCode = Objects.hash(context, resource, m_interval, m_datasources, step);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return m_resource.equals(other.m_resource) && m_step.equals(other.m_step) && m_interval.equals(other.m_interval)
+                    && m_context.equals(other.m_context) && m_datasources.equals(other.m_datasources);
+        }
+
+        @Override
+        public int hashCode() {
+            return m_hashCode;
+        }
+    }
+
+}
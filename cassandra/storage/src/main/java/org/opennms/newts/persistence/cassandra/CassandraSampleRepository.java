@@ -20,69 +20,95 @@ import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
 import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
-import com.datastax.oss.driver.api.core.cql.BatchStatement;
-import com.datastax.oss.driver.api.core.cql.BatchStatementBuilder;
 import com.datastax.oss.driver.api.core.cql.BoundStatement;
-import com.datastax.oss.driver.api.core.cql.DefaultBatchType;
 import com.datastax.oss.driver.api.core.cql.PreparedStatement;
-import com.datastax.oss.driver.api.querybuilder.delete.Delete;
-import com.datastax.oss.driver.api.querybuilder.insert.RegularInsert;
 import com.datastax.oss.driver.api.querybuilder.select.Select;
 import com.google.common.base.Optional;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import org.opennms.newts.aggregate.IntervalGenerator;
+import org.opennms.newts.aggregate.ColumnarResultProcessor;
 import org.opennms.newts.aggregate.ResultProcessor;
 import org.opennms.newts.api.Context;
 import org.opennms.newts.api.Duration;
+import org.opennms.newts.api.IteratorPublisher;
 import org.opennms.newts.api.Measurement;
+import org.opennms.newts.api.QueryBudgetExceededException;
 import org.opennms.newts.api.Resource;
 import org.opennms.newts.api.Results;
 import org.opennms.newts.api.Results.Row;
 import org.opennms.newts.api.Sample;
+import org.opennms.newts.api.SampleBatch;
 import org.opennms.newts.api.SampleProcessorService;
 import org.opennms.newts.api.SampleRepository;
 import org.opennms.newts.api.SampleSelectCallback;
 import org.opennms.newts.api.Timestamp;
-import org.opennms.newts.api.ValueType;
 import org.opennms.newts.api.query.ResultDescriptor;
 import org.opennms.newts.cassandra.CassandraSession;
 import org.opennms.newts.cassandra.ContextConfigurations;
+import org.opennms.newts.cassandra.SampleLayout;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.codahale.metrics.MetricRegistry.name;
 import static com.datastax.oss.driver.api.querybuilder.QueryBuilder.bindMarker;
-import static com.datastax.oss.driver.api.querybuilder.QueryBuilder.deleteFrom;
-import static com.datastax.oss.driver.api.querybuilder.QueryBuilder.insertInto;
-import static com.datastax.oss.driver.api.querybuilder.QueryBuilder.literal;
 import static com.datastax.oss.driver.api.querybuilder.QueryBuilder.selectFrom;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 
-public class CassandraSampleRepository implements SampleRepository {
+public class CassandraSampleRepository implements SampleRepository, AutoCloseable {
 
     private static final Logger LOG = LoggerFactory.getLogger(CassandraSampleRepository.class);
 
     // Used to calculate the duration when the duration is not specified
     private static final int TARGET_NUMBER_OF_STEPS = 10;
-    private static final int DELETION_INTERVAL = 360;
 
     private final CassandraSession m_session;
     private final int m_ttl;
     private final SampleProcessorService m_processorService;
     private final PreparedStatement m_selectStatement;
-    private final PreparedStatement m_deleteStatement;
+    private final PreparedStatement m_blockSelectStatement;
+    private final Supplier<PreparedStatement> m_metricSelectStatement;
+    private final Supplier<PreparedStatement> m_metricNamesStatement;
+    private final SampleBlockCompactor m_compactor;
+    private final SampleRollups m_rollups;
+    private final ShardIndex m_shardIndex;
+    private final SampleInserter m_inserter;
+    private final SampleDeleter m_deleter;
+    private final CassandraStorageOptions m_options;
+    private final RequestScheduler m_readScheduler;
+    private final ExecutorService m_selectExecutor;
+    private final QueryBudget m_queryBudget;
+    private final QueryCostEstimator m_queryCostEstimator;
 
     private final Timer m_sampleSelectTimer;
     private final Timer m_measurementSelectTimer;
@@ -92,9 +118,15 @@ public class CassandraSampleRepository implements SampleRepository {
 
     private final ContextConfigurations m_contextConfigurations;
 
+    public CassandraSampleRepository(CassandraSession session, int ttl, MetricRegistry registry,
+                                     SampleProcessorService processorService, ContextConfigurations contextConfigurations) {
+        this(session, ttl, registry, processorService, contextConfigurations, new CassandraStorageOptions());
+    }
+
     @Inject
     public CassandraSampleRepository(CassandraSession session, @Named("samples.cassandra.time-to-live") int ttl, @Named("newtsMetricRegistry") MetricRegistry registry,
-                                     SampleProcessorService processorService, ContextConfigurations contextConfigurations) {
+                                     SampleProcessorService processorService, ContextConfigurations contextConfigurations,
+                                     CassandraStorageOptions options) {
 
         m_session = checkNotNull(session, "session argument");
         checkArgument(ttl >= 0, "Negative Cassandra column TTL");
@@ -106,6 +138,16 @@ public class CassandraSampleRepository implements SampleRepository {
 
         m_contextConfigurations = checkNotNull(contextConfigurations, "contextConfigurations argument");
 
+        m_options = checkNotNull(options, "options argument");
+        m_inserter = new SampleInserter(m_session, m_contextConfigurations, m_options);
+        m_readScheduler = new RequestScheduler(m_options.getMaxConcurrentReads());
+
+        ThreadPoolExecutor selectExecutor = new ThreadPoolExecutor(m_options.getSelectThreads(), m_options.getSelectThreads(),
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("newts-select-%d").setDaemon(true).build());
+        selectExecutor.allowCoreThreadTimeOut(true);
+        m_selectExecutor = selectExecutor;
+
         Select select = selectFrom(SchemaConstants.T_SAMPLES).columns(SchemaConstants.F_VALUE, SchemaConstants.F_METRIC_NAME, SchemaConstants.F_COLLECTED, SchemaConstants.F_RESOURCE, SchemaConstants.F_ATTRIBUTES)
                 .whereColumn(SchemaConstants.F_CONTEXT).isEqualTo(bindMarker(SchemaConstants.F_CONTEXT))
                 .whereColumn(SchemaConstants.F_PARTITION).isEqualTo(bindMarker(SchemaConstants.F_PARTITION))
@@ -114,22 +156,70 @@ public class CassandraSampleRepository implements SampleRepository {
                 .whereColumn(SchemaConstants.F_COLLECTED).isLessThanOrEqualTo(bindMarker("end"));
         m_selectStatement = m_session.prepare(select.toString());
 
-        Delete delete = deleteFrom(SchemaConstants.T_SAMPLES)
+        // Prepared on first use; The table need not exist unless a context is laid out by metric
+        m_metricSelectStatement = Suppliers.memoize(() -> m_session.prepare(selectFrom(SchemaConstants.T_SAMPLES_BY_METRIC)
+                .columns(SchemaConstants.F_VALUE, SchemaConstants.F_METRIC_NAME, SchemaConstants.F_COLLECTED, SchemaConstants.F_RESOURCE, SchemaConstants.F_ATTRIBUTES)
+                .whereColumn(SchemaConstants.F_CONTEXT).isEqualTo(bindMarker(SchemaConstants.F_CONTEXT))
+                .whereColumn(SchemaConstants.F_PARTITION).isEqualTo(bindMarker(SchemaConstants.F_PARTITION))
+                .whereColumn(SchemaConstants.F_RESOURCE).isEqualTo(bindMarker(SchemaConstants.F_RESOURCE))
+                .whereColumn(SchemaConstants.F_METRIC_NAME).isEqualTo(bindMarker(SchemaConstants.F_METRIC_NAME))
+                .whereColumn(SchemaConstants.F_COLLECTED).isGreaterThanOrEqualTo(bindMarker("start"))
+                .whereColumn(SchemaConstants.F_COLLECTED).isLessThanOrEqualTo(bindMarker("end"))
+                .asCql()));
+        m_metricNamesStatement = Suppliers.memoize(() -> m_session.prepare(selectFrom(SchemaConstants.T_SAMPLES_BY_METRIC)
+                .column(SchemaConstants.F_METRIC_NAME)
                 .whereColumn(SchemaConstants.F_CONTEXT).isEqualTo(bindMarker(SchemaConstants.F_CONTEXT))
                 .whereColumn(SchemaConstants.F_PARTITION).isEqualTo(bindMarker(SchemaConstants.F_PARTITION))
-                .whereColumn(SchemaConstants.F_RESOURCE).isEqualTo(bindMarker(SchemaConstants.F_RESOURCE));
-        m_deleteStatement = m_session.prepare(delete.toString());
+                .whereColumn(SchemaConstants.F_RESOURCE).isEqualTo(bindMarker(SchemaConstants.F_RESOURCE))
+                .groupBy(SchemaConstants.F_METRIC_NAME)
+                .asCql()));
+
+        if (m_options.isBlockStorageEnabled()) {
+            m_blockSelectStatement = m_session.prepare(selectFrom(SchemaConstants.T_SAMPLE_BLOCKS)
+                    .columns(SchemaConstants.F_BLOCK_START, SchemaConstants.F_METRIC_NAME, SchemaConstants.F_RESOURCE, SchemaConstants.F_DATA, SchemaConstants.F_ATTRIBUTES)
+                    .whereColumn(SchemaConstants.F_CONTEXT).isEqualTo(bindMarker(SchemaConstants.F_CONTEXT))
+                    .whereColumn(SchemaConstants.F_PARTITION).isEqualTo(bindMarker(SchemaConstants.F_PARTITION))
+                    .whereColumn(SchemaConstants.F_RESOURCE).isEqualTo(bindMarker(SchemaConstants.F_RESOURCE))
+                    .whereColumn(SchemaConstants.F_BLOCK_START).isGreaterThanOrEqualTo(bindMarker("start"))
+                    .whereColumn(SchemaConstants.F_BLOCK_START).isLessThanOrEqualTo(bindMarker("end"))
+                    .asCql());
+            m_compactor = new SampleBlockCompactor(m_session, m_contextConfigurations, m_options.getBlockSize(), m_ttl, registry);
+        }
+        else {
+            m_blockSelectStatement = null;
+            m_compactor = null;
+        }
+
+        m_queryBudget = new QueryBudget(m_options.getQueryMaxSamples(), m_options.getQueryMaxBytes(), m_options.getQueryBudgetAction(), registry);
+        m_queryCostEstimator = new QueryCostEstimator(m_contextConfigurations, registry);
 
         m_sampleSelectTimer = registry.timer(metricName("sample-select-timer"));
         m_measurementSelectTimer = registry.timer(metricName("measurement-select-timer"));
         m_insertTimer = registry.timer(metricName("insert-timer"));
         m_samplesInserted = registry.meter(metricName("samples-inserted"));
         m_samplesSelected = registry.meter(metricName("samples-selected"));
+
+        m_shardIndex = m_options.isShardIndexEnabled()
+                ? new ShardIndex(m_session, m_contextConfigurations, m_ttl, m_options.getShardIndexSince(), registry)
+                : null;
+
+        if (!m_options.getRollupResolutions().isEmpty()) {
+            m_rollups = new SampleRollups(m_session, m_contextConfigurations, m_options, m_ttl, m_readScheduler,
+                    (c, r, s, e) -> driverAdapter(c, r, s, e, Collections.<String> emptySet()), registry);
+        }
+        else {
+            m_rollups = null;
+        }
+
+        m_deleter = new SampleDeleter(m_session, m_contextConfigurations, m_readScheduler,
+                new RequestScheduler(m_options.getMaxConcurrentDeletes()), m_ttl, m_options.getDeleteJobConcurrency(),
+                m_options.isBlockStorageEnabled(), m_rollups, m_shardIndex, registry);
+        registry.gauge(metricName("reads-in-flight"), () -> m_readScheduler::getInFlight);
+        registry.gauge(metricName("reads-queued"), () -> m_readScheduler::getQueued);
     }
 
     public Iterable<Results.Row<Sample>> select(Context context, Resource resource, Timestamp start, Timestamp end, ResultDescriptor descriptor, Duration step) {
-        return new DriverAdapter(cassandraSelect(context, resource, start.minus(step), end),
-                descriptor.getSourceNames());
+        return driverAdapter(context, resource, start.minus(step), end, descriptor.getSourceNames());
     }
 
     @Override
@@ -140,51 +230,98 @@ public class CassandraSampleRepository implements SampleRepository {
     @Override
     public Results<Measurement> select(Context context, Resource resource, Optional<Timestamp> start, Optional<Timestamp> end, ResultDescriptor descriptor, Optional<Duration> resolution, SampleSelectCallback callback) {
 
-        Timer.Context timer = m_measurementSelectTimer.time();
-
         validateSelect(start, end);
 
         Timestamp upper = end.isPresent() ? end.get() : Timestamp.now();
         Timestamp lower = start.isPresent() ? start.get() : upper.minus(Duration.seconds(86400));
-        Duration step;
-        if (resolution.isPresent()) {
-            step = resolution.get();
-        } else {
-            // Determine the ideal step size, splitting the interval evenly into N slices
-            long stepMillis = upper.minus(lower).asMillis() / TARGET_NUMBER_OF_STEPS;
+        Duration step = resolveStep(lower, upper, descriptor, resolution);
 
-            // But every step must be a multiple of the interval
-            long intervalMillis = descriptor.getInterval().asMillis();
+        return selectMeasurements(context, resource, lower, upper, descriptor, step, callback);
+    }
 
-            // If the interval is greater than the target step, use the 2 * interval as the step
-            if (intervalMillis >= stepMillis) {
-                step = descriptor.getInterval().times(2);
-            } else {
-                // Otherwise, round stepMillkeyis up to the closest multiple of intervalMillis
-                long remainderMillis = stepMillis % intervalMillis;
-                if (remainderMillis != 0) {
-                    stepMillis = stepMillis + intervalMillis - remainderMillis;
-                }
+    /**
+     * Query measurements for a number of resources at once. The resources are processed
+     * concurrently, with each resource's results computed as soon as its rows arrive, and all
+     * reads go through the repository-wide {@link RequestScheduler}, which bounds the load placed on
+     * the cluster regardless of how many resources are requested.
+     */
+    @Override
+    public Map<Resource, Results<Measurement>> select(Context context, Collection<Resource> resources, Optional<Timestamp> start, Optional<Timestamp> end, ResultDescriptor descriptor, Optional<Duration> resolution) {
 
-                step = Duration.millis(stepMillis);
+        validateSelect(start, end);
+
+        Timestamp upper = end.isPresent() ? end.get() : Timestamp.now();
+        Timestamp lower = start.isPresent() ? start.get() : upper.minus(Duration.seconds(86400));
+        Duration step = resolveStep(lower, upper, descriptor, resolution);
+
+        Map<Resource, Future<Results<Measurement>>> futures = Maps.newLinkedHashMap();
+        for (Resource resource : resources) {
+            if (!futures.containsKey(resource)) {
+                futures.put(resource, m_selectExecutor.submit(
+                        () -> selectMeasurements(context, resource, lower, upper, descriptor, step, noopSampleSelectCallback)));
+            }
+        }
+
+        Map<Resource, Results<Measurement>> results = Maps.newLinkedHashMap();
+        try {
+            for (Map.Entry<Resource, Future<Results<Measurement>>> entry : futures.entrySet()) {
+                results.put(entry.getKey(), entry.getValue().get());
+            }
+        }
+        catch (InterruptedException e) {
+            cancelAll(futures.values());
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e) {
+            cancelAll(futures.values());
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
+            throw new RuntimeException(e.getCause());
         }
 
+        return results;
+    }
+
+    private Results<Measurement> selectMeasurements(Context context, Resource resource, Timestamp lower, Timestamp upper, ResultDescriptor descriptor, Duration step, SampleSelectCallback callback) {
+
+        Timer.Context timer = m_measurementSelectTimer.time();
+
         LOG.debug("Querying database for resource {}, from {} to {}", resource, lower.minus(step), upper);
 
-        DriverAdapter driverAdapter = new DriverAdapter(cassandraSelect(context, resource, lower.minus(step), upper),
-                    descriptor.getSourceNames());
+        SampleRollups.Plan plan = plan(context, resource, lower, upper, descriptor, step);
+        List<DriverAdapter> driverAdapters = Lists.newArrayList();
+        QueryBudget.Allowance allowance = m_queryBudget.allowance(isColumnar(lower, upper, descriptor, step));
 
-        Results<Measurement> results;
+        Results<Measurement> results = new Results<>();
         callback.beforeProcess();
         try {
-            results = new ResultProcessor(resource, lower, upper, descriptor, step).process(driverAdapter);
+            Iterator<Row<Measurement>> rows = allowance.rows(measurements(context, resource, lower, upper, descriptor, step, plan, driverAdapters, allowance));
+            while (rows.hasNext()) {
+                results.addRow(rows.next());
+            }
         } finally {
             callback.afterProcess();
         }
 
-        LOG.debug("{} results returned from database", driverAdapter.getResultCount());
-        m_samplesSelected.mark(driverAdapter.getResultCount());
+        int resultCount = 0;
+        Set<String> metricsRead = Sets.newHashSet();
+        for (DriverAdapter driverAdapter : driverAdapters) {
+            resultCount += driverAdapter.getResultCount();
+            metricsRead.addAll(driverAdapter.getMetricsRead());
+        }
+
+        LOG.debug("{} results returned from database", resultCount);
+        m_samplesSelected.mark(resultCount);
+
+        if (allowance.isTruncated()) {
+            LOG.warn("Measurements of resource {}, from {} to {}, truncated; The query is over budget", resource, lower, upper);
+            results.setTruncated(true);
+        }
+        else if (m_rollups == null) {
+            m_queryCostEstimator.observe(context, resource, lower.minus(step), upper, resultCount, metricsRead.size());
+        }
 
         try {
             return results;
@@ -206,8 +343,11 @@ public class CassandraSampleRepository implements SampleRepository {
 
         LOG.debug("Querying database for resource {}, from {} to {}", resource, lower, upper);
 
+        m_queryBudget.check(m_queryCostEstimator.estimate(context, resource, lower, upper));
+        QueryBudget.Allowance allowance = m_queryBudget.allowance(true);
+
         Results<Sample> samples = new Results<>();
-        DriverAdapter driverAdapter = new DriverAdapter(cassandraSelect(context, resource, lower, upper));
+        DriverAdapter driverAdapter = driverAdapter(context, resource, lower, upper, Collections.<String> emptySet(), allowance);
 
         for (Row<Sample> row : driverAdapter) {
             samples.addRow(row);
@@ -216,6 +356,14 @@ public class CassandraSampleRepository implements SampleRepository {
         LOG.debug("{} results returned from database", driverAdapter.getResultCount());
         m_samplesSelected.mark(driverAdapter.getResultCount());
 
+        if (allowance.isTruncated()) {
+            LOG.warn("Samples of resource {}, from {} to {}, truncated; The query is over budget", resource, lower, upper);
+            samples.setTruncated(true);
+        }
+        else {
+            m_queryCostEstimator.observe(context, resource, lower, upper, driverAdapter.getResultCount(), driverAdapter.getMetricsRead().size());
+        }
+
         try {
             return samples;
         } finally {
@@ -223,6 +371,120 @@ public class CassandraSampleRepository implements SampleRepository {
         }
     }
 
+    @Override
+    public Flow.Publisher<Row<Measurement>> selectStream(Context context, Resource resource, Optional<Timestamp> start, Optional<Timestamp> end, ResultDescriptor descriptor, Optional<Duration> resolution) {
+
+        validateSelect(start, end);
+
+        Timestamp upper = end.isPresent() ? end.get() : Timestamp.now();
+        Timestamp lower = start.isPresent() ? start.get() : upper.minus(Duration.seconds(86400));
+        Duration step = resolveStep(lower, upper, descriptor, resolution);
+
+        // Rejected before the response is begun
+        SampleRollups.Plan plan = plan(context, resource, lower, upper, descriptor, step);
+
+        return new IteratorPublisher<>(() -> {
+            LOG.debug("Streaming query for resource {}, from {} to {}", resource, lower.minus(step), upper);
+
+            QueryBudget.Allowance allowance = m_queryBudget.allowance(isColumnar(lower, upper, descriptor, step));
+            return allowance.rows(measurements(context, resource, lower, upper, descriptor, step, plan, Lists.<DriverAdapter> newArrayList(), allowance));
+        });
+    }
+
+    /**
+     * The rollups that can answer a query of measurements (or null if none can), once its
+     * estimated cost is checked against the budget.
+     *
+     * @throws QueryBudgetExceededException
+     *             if queries over budget are rejected, and this one is estimated to be
+     */
+    private SampleRollups.Plan plan(Context context, Resource resource, Timestamp lower, Timestamp upper, ResultDescriptor descriptor, Duration step) {
+        SampleRollups.Plan plan = (m_rollups != null) ? m_rollups.plan(context, resource, lower, upper, descriptor, step) : null;
+
+        m_queryBudget.check(m_queryCostEstimator.estimate(context, resource, lower, upper, descriptor, step, plan, isColumnar(lower, upper, descriptor, step)));
+
+        return plan;
+    }
+
+    /**
+     * Measurements of a resource; From rollups where they can answer the query, and from samples
+     * before and after.
+     *
+     * @param plan
+     *            the rollups to answer the query from, see {@link #plan}
+     * @param driverAdapters
+     *            collects the adapters of the samples read
+     * @param allowance
+     *            the query's budget
+     */
+    private Iterator<Row<Measurement>> measurements(Context context, Resource resource, Timestamp lower, Timestamp upper,
+            ResultDescriptor descriptor, Duration step, SampleRollups.Plan plan, List<DriverAdapter> driverAdapters, QueryBudget.Allowance allowance) {
+
+        ResultProcessor processor = processor(resource, lower, upper, descriptor, step);
+
+        if (plan == null) {
+            DriverAdapter driverAdapter = driverAdapter(context, resource, lower.minus(step), upper, descriptor.getSourceNames(), allowance);
+            driverAdapters.add(driverAdapter);
+            return processor.stream(driverAdapter);
+        }
+
+        LOG.debug("Answering query for resource {} from {} rollups, from {} to {}", resource, plan.getResolution(), plan.getFirst(), plan.getLast());
+
+        List<Iterator<Row<Measurement>>> parts = Lists.newArrayList();
+
+        // Steps preceding the rollups...
+        if (plan.getFirst().gt(lower.stepFloor(step))) {
+            Timestamp end = plan.getFirst().minus(step);
+            // The final primary data point draws on samples that follow it
+            DriverAdapter driverAdapter = driverAdapter(context, resource, lower.minus(step), end.plus(m_rollups.getHeartbeat()), descriptor.getSourceNames(), allowance);
+            driverAdapters.add(driverAdapter);
+            parts.add(processor(resource, lower, end, descriptor, step).aggregate(driverAdapter));
+        }
+
+        parts.add(m_rollups.select(context, resource, plan, descriptor, step));
+
+        // ...and those following
+        if (plan.getLast().lt(upper.stepCeiling(step))) {
+            Timestamp start = plan.getLast().plus(step);
+            DriverAdapter driverAdapter = driverAdapter(context, resource, plan.getLast().minus(m_rollups.getHeartbeat()), upper, descriptor.getSourceNames(), allowance);
+            driverAdapters.add(driverAdapter);
+            parts.add(processor(resource, start, upper, descriptor, step).aggregate(driverAdapter));
+        }
+
+        return processor.export(Iterators.concat(parts.iterator()));
+    }
+
+    private ResultProcessor processor(Resource resource, Timestamp start, Timestamp end, ResultDescriptor descriptor, Duration step) {
+        return isColumnar(start, end, descriptor, step)
+                ? new ColumnarResultProcessor(resource, start, end, descriptor, step)
+                : new ResultProcessor(resource, start, end, descriptor, step);
+    }
+
+    /** Queries large enough to be computed in parallel are processed by columns, whether or not that is enabled. */
+    private boolean isColumnar(Timestamp start, Timestamp end, ResultDescriptor descriptor, Duration step) {
+        return m_options.isColumnarProcessingEnabled() || ColumnarResultProcessor.isParallel(start, end, descriptor, step);
+    }
+
+    @Override
+    public Flow.Publisher<Row<Sample>> selectStream(Context context, Resource resource, Optional<Timestamp> start, Optional<Timestamp> end) {
+
+        validateSelect(start, end);
+
+        Timestamp upper = end.isPresent() ? end.get() : Timestamp.now();
+        Timestamp lower = start.isPresent() ? start.get() : upper.minus(Duration.seconds(86400));
+
+        m_queryBudget.check(m_queryCostEstimator.estimate(context, resource, lower, upper));
+
+        return new IteratorPublisher<>(() -> {
+            LOG.debug("Streaming query for resource {}, from {} to {}", resource, lower, upper);
+
+            return Iterators.transform(driverAdapter(context, resource, lower, upper, Collections.<String> emptySet(), m_queryBudget.allowance(false)), row -> {
+                m_samplesSelected.mark(row.getElements().size());
+                return row;
+            });
+        });
+    }
+
     @Override
     public void insert(Collection<Sample> samples) {
         insert(samples, false);
@@ -230,151 +492,300 @@ public class CassandraSampleRepository implements SampleRepository {
 
     @Override
     public void insert(Collection<Sample> samples, boolean calculateTimeToLive) {
+        try {
+            insertAsync(samples, calculateTimeToLive).toCompletableFuture().join();
+        }
+        catch (CompletionException e) {
+            throw SampleInserter.asCassandraException(e);
+        }
+    }
+
+    @Override
+    public CompletionStage<Void> insertAsync(Collection<Sample> samples, boolean calculateTimeToLive) {
 
         Timer.Context timer = m_insertTimer.time();
-        Timestamp now = Timestamp.now();
 
-        BatchStatementBuilder batchBuilder = BatchStatement.builder(DefaultBatchType.UNLOGGED);
+        CompletableFuture<Void> written = m_inserter.insertAsync(samples, m_ttl, calculateTimeToLive);
 
-        for (Sample m : samples) {
-            int ttl = m_ttl;
-            if (calculateTimeToLive) {
-                ttl -= (int) (now.asSeconds() - m.getTimestamp().asSeconds());
-                if (ttl <= 0) {
-                    LOG.debug("Skipping expired sample: {}", m);
-                    continue;
-                }
-            }
+        return inserted(written, samples).whenComplete((result, error) -> timer.stop());
+    }
 
-            Duration resourceShard = m_contextConfigurations.getResourceShard(m.getContext());
+    @Override
+    public void insert(SampleBatch batch, boolean calculateTimeToLive) {
+        try {
+            insertAsync(batch, calculateTimeToLive).toCompletableFuture().join();
+        }
+        catch (CompletionException e) {
+            throw SampleInserter.asCassandraException(e);
+        }
+    }
 
-            RegularInsert insert = insertInto(SchemaConstants.T_SAMPLES)
-                    .value(SchemaConstants.F_CONTEXT, literal(m.getContext().getId()))
-                    .value(SchemaConstants.F_PARTITION, literal(m.getTimestamp().stepFloor(resourceShard).asSeconds()))
-                    .value(SchemaConstants.F_RESOURCE, literal(m.getResource().getId()))
-                    .value(SchemaConstants.F_COLLECTED, literal(m.getTimestamp().asMillis()))
-                    .value(SchemaConstants.F_METRIC_NAME, literal(m.getName()))
-                    .value(SchemaConstants.F_VALUE, literal(ValueType.decompose(m.getValue())));
+    /**
+     * Writes a batch of samples without materializing them. The samples are only materialized (as
+     * they are read) for the index, sample processors, compaction and rollups, when any of these
+     * are in use.
+     */
+    @Override
+    public CompletionStage<Void> insertAsync(SampleBatch batch, boolean calculateTimeToLive) {
 
-            // Inserting a column with a null value inserts a tombstone (a deletion marker); Skip the attributes
-            // for any sample that has not specified them.
-            if (m.getAttributes() != null) {
-                insert = insert.value(SchemaConstants.F_ATTRIBUTES, literal(m.getAttributes()));
-            }
+        Timer.Context timer = m_insertTimer.time();
 
-            // Use the context specific consistency level
-            batchBuilder.addStatement(insert.usingTtl(ttl).build()
-                    .setConsistencyLevel(m_contextConfigurations.getWriteConsistency(m.getContext())));
-        }
+        CompletableFuture<Void> written = m_inserter.insertAsync(batch, m_ttl, calculateTimeToLive);
 
-        try {
-            m_session.execute(batchBuilder.build());
+        return inserted(written, batch.toSamples()).whenComplete((result, error) -> timer.stop());
+    }
 
+    private CompletableFuture<Void> inserted(CompletableFuture<Void> written, Collection<Sample> samples) {
+
+        // Samples aren't written until their partitions are indexed (the index is what makes them visible)
+        if (m_shardIndex != null) {
+            written = CompletableFuture.allOf(written, m_shardIndex.index(samples));
+        }
+
+        // Sample processors (indexing, etc) are only handed the samples once they have been persisted
+        return written.thenRun(() -> {
             if (m_processorService != null) {
                 m_processorService.submit(samples);
             }
 
+            if (m_compactor != null) {
+                m_compactor.samplesInserted(samples);
+            }
+
+            if (m_rollups != null) {
+                m_rollups.samplesInserted(samples);
+            }
+
             m_samplesInserted.mark(samples.size());
-        } finally {
-            timer.stop();
-        }
+        });
     }
 
     @Override
     public void delete(Context context, Resource resource) {
-        /**
-         * Check for ttl value > 0
-         */
-        if (m_ttl > 0) {
-            /**
-             * Delete exactly from (now - ttl) till now
-             */
-            final Timestamp start = Timestamp.now().minus(m_ttl, TimeUnit.SECONDS);
-            final Timestamp end = Timestamp.now();
-
-            final Duration resourceShard = m_contextConfigurations.getResourceShard(context);
-
-            final List<CompletionStage<AsyncResultSet>> futures = Lists.newArrayList();
-            for (Timestamp partition : new IntervalGenerator(start.stepFloor(resourceShard),
-                    end.stepFloor(resourceShard),
-                    resourceShard)) {
-                BoundStatement bindStatement = m_deleteStatement.bind();
-                bindStatement.setString(SchemaConstants.F_CONTEXT, context.getId());
-                bindStatement.setInt(SchemaConstants.F_PARTITION, (int) partition.asSeconds());
-                bindStatement.setString(SchemaConstants.F_RESOURCE, resource.getId());
-
-                futures.add(m_session.executeAsync(bindStatement));
-            }
+        try {
+            m_deleter.delete(context, resource).join();
+        }
+        catch (CompletionException e) {
+            throw SampleInserter.asCassandraException(e);
+        }
+    }
 
-            for (final CompletionStage<AsyncResultSet> future : futures) {
-                try {
-                    future.toCompletableFuture().get();
-                } catch (final InterruptedException | ExecutionException e) {
-                    throw new RuntimeException(e);
-                }
-            }
-        } else {
-            // Choose (now - one year) till now...
-            Timestamp end = Timestamp.now();
-            Timestamp start = end.minus(DELETION_INTERVAL, TimeUnit.DAYS);
-
-            // ... and check whether samples exist for this period of time.
-            while (cassandraSelect(context, resource, start, end).hasNext()) {
-                // Now delete the samples...
-                final Duration resourceShard = m_contextConfigurations.getResourceShard(context);
-
-                final List<CompletionStage<AsyncResultSet>> futures = Lists.newArrayList();
-                for (Timestamp partition : new IntervalGenerator(start.stepFloor(resourceShard),
-                        end.stepFloor(resourceShard),
-                        resourceShard)) {
-                    BoundStatement bindStatement = m_deleteStatement.bind();
-                    bindStatement.setString(SchemaConstants.F_CONTEXT, context.getId());
-                    bindStatement.setInt(SchemaConstants.F_PARTITION, (int) partition.asSeconds());
-                    bindStatement.setString(SchemaConstants.F_RESOURCE, resource.getId());
-
-                    futures.add(m_session.executeAsync(bindStatement));
-                }
+    @Override
+    public CompletionStage<Void> deleteAsync(Context context, Resource resource) {
+        return m_deleter.delete(context, resource).thenApply(deleted -> null);
+    }
 
-                for (final CompletionStage<AsyncResultSet> future : futures) {
-                    try {
-                        future.toCompletableFuture().get();
-                    } catch (final InterruptedException | ExecutionException e) {
-                        throw new RuntimeException(e);
-                    }
-                }
+    @Override
+    public CompletionStage<Void> deleteAsync(Context context, Collection<Resource> resources) {
+        return delete(context, resources).getCompletion();
+    }
 
-                // ...set end to start and start to (end - one year)
-                end = start;
-                start = end.minus(DELETION_INTERVAL, TimeUnit.DAYS);
+    /**
+     * Deletes the samples of a number of resources, as a single (throttled) job.
+     *
+     * @param context
+     *            context to delete from
+     * @param resources
+     *            names of the resources to delete
+     * @return the job, for tracking progress
+     */
+    public DeletionJob delete(Context context, Collection<Resource> resources) {
+        return m_deleter.delete(context, resources);
+    }
 
-                // and start over again until no more samples are found
-            }
+    /**
+     * Compacts the closed time windows of a resource between start and end into blocks. Windows
+     * are otherwise compacted as they close, so this is only needed for samples that predate block
+     * storage being enabled.
+     *
+     * @return a future completed with the number of samples (rows) compacted
+     */
+    public CompletableFuture<Integer> compact(Context context, Resource resource, Timestamp start, Timestamp end) {
+        checkState(m_compactor != null, "block storage is not enabled");
+        return m_compactor.compact(context, resource, start, end);
+    }
+
+    /**
+     * Shuts down the threads of selects, compactions and rollups; Those already queued run all the
+     * same. The session is left open.
+     */
+    @Override
+    public void close() {
+        m_selectExecutor.shutdown();
+        if (m_compactor != null) {
+            m_compactor.close();
+        }
+        if (m_rollups != null) {
+            m_rollups.close();
+        }
+    }
+
+    private DriverAdapter driverAdapter(Context context, Resource resource, Timestamp start, Timestamp end, Set<String> metrics) {
+        return driverAdapter(context, resource, start, end, metrics, null);
+    }
+
+    /**
+     * @param allowance
+     *            the budget of the query the samples are read by, or null if there is none
+     */
+    private DriverAdapter driverAdapter(Context context, Resource resource, Timestamp start, Timestamp end, Set<String> metrics, QueryBudget.Allowance allowance) {
+        if (m_contextConfigurations.getSampleLayout(context) == SampleLayout.METRIC_FIRST) {
+            return new DriverAdapter(metricSelect(context, resource, start, end, metrics), Collections.emptyIterator(), null, null, metrics, decoding(), allowance);
+        }
+
+        if (m_blockSelectStatement == null) {
+            return new DriverAdapter(cassandraSelect(context, resource, start, end), Collections.emptyIterator(), null, null, metrics, decoding(), allowance);
         }
+
+        // Blocks that begin before start can hold samples that follow it
+        Timestamp blockStart = start.stepFloor(m_options.getBlockSize());
+
+        return new DriverAdapter(cassandraSelect(context, resource, start, end),
+                shardSelect(m_blockSelectStatement, context, resource, blockStart, end), start, end, metrics, decoding(), allowance);
+    }
+
+    private DriverAdapter.Decoding decoding() {
+        return m_options.isLeanDecodingEnabled() ? DriverAdapter.Decoding.LEAN : DriverAdapter.Decoding.STANDARD;
     }
 
     private Iterator<com.datastax.oss.driver.api.core.cql.Row> cassandraSelect(Context context, Resource resource,
                                                                                Timestamp start, Timestamp end) {
+        return shardSelect(m_selectStatement, context, resource, start, end);
+    }
 
-        List<CompletionStage<AsyncResultSet>> futures = Lists.newArrayList();
+    /**
+     * Rows of a context laid out by metric, ordered by timestamp. Each metric is read on its own,
+     * and the results merged; When no metrics are given, those of each partition are looked up
+     * first, and the partitions read one at a time.
+     */
+    private Iterator<com.datastax.oss.driver.api.core.cql.Row> metricSelect(Context context, Resource resource,
+                                                                            Timestamp start, Timestamp end, Set<String> metrics) {
+        List<Timestamp> partitions = Lists.newArrayList(partitions(context, resource, start, end));
+
+        if (!metrics.isEmpty()) {
+            return mergeByTimestamp(metrics, metric -> shardSelect(m_metricSelectStatement.get(), context, resource, partitions, start, end, metric));
+        }
 
-        Duration resourceShard = m_contextConfigurations.getResourceShard(context);
-        Timestamp lower = start.stepFloor(resourceShard);
-        Timestamp upper = end.stepFloor(resourceShard);
+        return Iterators.concat(Iterators.transform(partitions.iterator(), partition -> mergeByTimestamp(metricNames(context, resource, partition),
+                metric -> shardSelect(m_metricSelectStatement.get(), context, resource, Collections.singletonList(partition), start, end, metric))));
+    }
+
+    /** The metrics with samples in a partition of a context laid out by metric. */
+    private List<String> metricNames(Context context, Resource resource, Timestamp partition) {
+        BoundStatement bindStatement = m_metricNamesStatement.get().bind()
+                .setString(SchemaConstants.F_CONTEXT, context.getId())
+                .setInt(SchemaConstants.F_PARTITION, (int) partition.asSeconds())
+                .setString(SchemaConstants.F_RESOURCE, resource.getId())
+                .setConsistencyLevel(m_contextConfigurations.getReadConsistency(context));
+
+        List<String> metrics = Lists.newArrayList();
+        Iterator<com.datastax.oss.driver.api.core.cql.Row> rows = new ConcurrentResultWrapper(
+                Collections.singletonList(m_readScheduler.submit(() -> m_session.executeAsync(bindStatement))));
+        while (rows.hasNext()) {
+            metrics.add(rows.next().getString(SchemaConstants.F_METRIC_NAME));
+        }
+
+        return metrics;
+    }
+
+    private static Iterator<com.datastax.oss.driver.api.core.cql.Row> mergeByTimestamp(Collection<String> metrics,
+            Function<String, Iterator<com.datastax.oss.driver.api.core.cql.Row>> select) {
+        List<Iterator<com.datastax.oss.driver.api.core.cql.Row>> selects = Lists.newArrayList();
+        for (String metric : metrics) {
+            selects.add(select.apply(metric));
+        }
+
+        return Iterators.mergeSorted(selects, BY_TIMESTAMP);
+    }
 
-        for (Timestamp partition : new IntervalGenerator(lower, upper, resourceShard)) {
-            BoundStatement bindStatement = m_selectStatement.bind()
+    private Iterator<com.datastax.oss.driver.api.core.cql.Row> shardSelect(PreparedStatement statement, Context context,
+                                                                           Resource resource, Timestamp start, Timestamp end) {
+        return shardSelect(statement, context, resource, partitions(context, resource, start, end), start, end, null);
+    }
+
+    /**
+     * Rows of the given partitions, in order.
+     *
+     * @param metric
+     *            metric to bind, for statements of a single metric; Or null
+     */
+    private Iterator<com.datastax.oss.driver.api.core.cql.Row> shardSelect(PreparedStatement statement, Context context,
+                                                                           Resource resource, Iterable<Timestamp> partitions,
+                                                                           Timestamp start, Timestamp end, String metric) {
+
+        List<Supplier<CompletionStage<AsyncResultSet>>> queries = Lists.newArrayList();
+
+        for (Timestamp partition : partitions) {
+            BoundStatement boundStatement = statement.bind()
                     .setString(SchemaConstants.F_CONTEXT, context.getId())
                     .setInt(SchemaConstants.F_PARTITION, (int) partition.asSeconds())
                     .setString(SchemaConstants.F_RESOURCE, resource.getId())
                     .setInstant("start", start.asDate().toInstant())
                     .setInstant("end", end.asDate().toInstant())
                     .setConsistencyLevel(m_contextConfigurations.getReadConsistency(context));
-            futures.add(m_session.executeAsync(bindStatement));
+            BoundStatement bindStatement = (metric != null) ? boundStatement.setString(SchemaConstants.F_METRIC_NAME, metric) : boundStatement;
+            queries.add(() -> m_readScheduler.submit(() -> m_session.executeAsync(bindStatement)));
+        }
+
+        if (m_options.getReadAhead() > 0) {
+            return new ConcurrentResultWrapper(queries.iterator(), m_options.getReadAhead(), m_readScheduler);
+        }
+
+        List<CompletionStage<AsyncResultSet>> futures = Lists.newArrayList();
+        for (Supplier<CompletionStage<AsyncResultSet>> query : queries) {
+            futures.add(query.get());
         }
 
         return new ConcurrentResultWrapper(futures);
     }
 
+    /** The partitions between start and end to query; Those the resource has written to, if known. */
+    private Iterable<Timestamp> partitions(Context context, Resource resource, Timestamp start, Timestamp end) {
+        if (m_shardIndex != null) {
+            return m_shardIndex.partitions(context, resource, start, end);
+        }
+
+        Duration resourceShard = m_contextConfigurations.getResourceShard(context);
+        return new IntervalGenerator(start.stepFloor(resourceShard), end.stepFloor(resourceShard), resourceShard);
+    }
+
+    static Duration resolveStep(Timestamp lower, Timestamp upper, ResultDescriptor descriptor, Optional<Duration> resolution) {
+        Duration step;
+        if (resolution.isPresent()) {
+            step = resolution.get();
+        } else {
+            // Determine the ideal step size, splitting the interval evenly into N slices; As many
+            // as the points to be drawn, if the descriptor says
+            int maxDataPoints = descriptor.getMaxDataPoints();
+            long stepMillis = upper.minus(lower).asMillis() / (maxDataPoints > 0 ? maxDataPoints : TARGET_NUMBER_OF_STEPS);
+
+            // But every step must be a multiple of the interval
+            long intervalMillis = descriptor.getInterval().asMillis();
+
+            // If the interval is greater than the target step, use the 2 * interval as the step
+            // (or the interval, if there are points enough to draw every one)
+            if (intervalMillis >= stepMillis) {
+                step = (maxDataPoints > 0) ? descriptor.getInterval() : descriptor.getInterval().times(2);
+            } else {
+                // Otherwise, round stepMillkeyis up to the closest multiple of intervalMillis
+                long remainderMillis = stepMillis % intervalMillis;
+                if (remainderMillis != 0) {
+                    stepMillis = stepMillis + intervalMillis - remainderMillis;
+                }
+
+                step = Duration.millis(stepMillis);
+            }
+        }
+
+        return step;
+    }
+
+    private static void cancelAll(Collection<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
     private void validateSelect(Optional<Timestamp> start, Optional<Timestamp> end) {
         if ((start.isPresent() && end.isPresent()) && start.get().gt(end.get())) {
             throw new IllegalArgumentException("start time must be less than end time");
@@ -385,6 +796,9 @@ public class CassandraSampleRepository implements SampleRepository {
         return name("repository", suffix);
     }
 
+    private static final Comparator<com.datastax.oss.driver.api.core.cql.Row> BY_TIMESTAMP =
+            Comparator.comparing(row -> row.getInstant(SchemaConstants.F_COLLECTED));
+
     private static final SampleSelectCallback noopSampleSelectCallback = new SampleSelectCallback() {
 
         @Override
@@ -0,0 +1,459 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.opennms.newts.api.Duration;
+import org.opennms.newts.api.Timestamp;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Ordering;
+
+
+/**
+ * Tunables for {@link CassandraSampleRepository}.
+ */
+public class CassandraStorageOptions {
+
+    private final int m_maxBatchSize;
+    private final int m_maxInFlightWrites;
+    private final int m_readAhead;
+    private final int m_maxConcurrentReads;
+    private final int m_selectThreads;
+    private final int m_maxConcurrentDeletes;
+    private final int m_deleteJobConcurrency;
+    private final int m_writeBehindFlushSize;
+    private final Duration m_writeBehindMaxAge;
+    private final long m_writeBehindMaxBuffered;
+    private final boolean m_blockStorage;
+    private final Duration m_blockSize;
+    private final List<Duration> m_rollupResolutions;
+    private final Duration m_rollupInterval;
+    private final Duration m_rollupHeartbeat;
+    private final long m_resultCacheMaxWeight;
+    private final Duration m_resultCacheMaxAge;
+    private final boolean m_shardIndex;
+    private final Timestamp m_shardIndexSince;
+    private final boolean m_leanDecoding;
+    private final boolean m_columnarProcessing;
+    private final long m_queryMaxSamples;
+    private final long m_queryMaxBytes;
+    private final QueryBudget.Action m_queryBudgetAction;
+
+    public static class Builder {
+        private int maxBatchSize = 16;
+        private int maxInFlightWrites = 128;
+        private int readAhead = 2;
+        private int maxConcurrentReads = 128;
+        private int selectThreads = 16;
+        private int maxConcurrentDeletes = 32;
+        private int deleteJobConcurrency = 8;
+        private int writeBehindFlushSize = 64;
+        private Duration writeBehindMaxAge = Duration.millis(1000);
+        private long writeBehindMaxBuffered = 100000;
+        private boolean blockStorage = false;
+        private Duration blockSize = Duration.seconds(4 * 3600);
+        private List<Duration> rollupResolutions = ImmutableList.of();
+        private Duration rollupInterval = Duration.seconds(300);
+        private Duration rollupHeartbeat = Duration.seconds(600);
+        private long resultCacheMaxWeight = 1000000;
+        private Duration resultCacheMaxAge = Duration.seconds(300);
+        private boolean shardIndex = false;
+        private Timestamp shardIndexSince = null;
+        private boolean leanDecoding = true;
+        private boolean columnarProcessing = false;
+        private long queryMaxSamples = 0;
+        private long queryMaxBytes = 0;
+        private QueryBudget.Action queryBudgetAction = QueryBudget.Action.REJECT;
+
+        /**
+         * Maximum number of samples combined in a single (single-partition) batch.
+         */
+        public Builder withMaxBatchSize(int maxBatchSize) {
+            checkArgument(maxBatchSize > 0, "maxBatchSize must be positive");
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        /**
+         * Maximum number of write requests outstanding against the cluster at once.
+         */
+        public Builder withMaxInFlightWrites(int maxInFlightWrites) {
+            checkArgument(maxInFlightWrites > 0, "maxInFlightWrites must be positive");
+            this.maxInFlightWrites = maxInFlightWrites;
+            return this;
+        }
+
+        /**
+         * Number of shard queries kept in flight ahead of the one being read, with the next page of
+         * each requested as soon as the current one arrives. Zero disables read-ahead; All shards
+         * are then queried up front, and pages fetched only once the current page is exhausted.
+         */
+        public Builder withReadAhead(int readAhead) {
+            checkArgument(readAhead >= 0, "readAhead must be non-negative");
+            this.readAhead = readAhead;
+            return this;
+        }
+
+        /**
+         * Maximum number of read requests (shard queries and page fetches) outstanding against the
+         * cluster at once, across all selects. Requests beyond this are queued.
+         */
+        public Builder withMaxConcurrentReads(int maxConcurrentReads) {
+            checkArgument(maxConcurrentReads > 0, "maxConcurrentReads must be positive");
+            this.maxConcurrentReads = maxConcurrentReads;
+            return this;
+        }
+
+        /**
+         * Number of threads used to process the resources of a multi-resource select.
+         */
+        public Builder withSelectThreads(int selectThreads) {
+            checkArgument(selectThreads > 0, "selectThreads must be positive");
+            this.selectThreads = selectThreads;
+            return this;
+        }
+
+        /**
+         * Maximum number of partition deletes outstanding against the cluster at once, across all
+         * deletions. Further deletes are queued.
+         */
+        public Builder withMaxConcurrentDeletes(int maxConcurrentDeletes) {
+            checkArgument(maxConcurrentDeletes > 0, "maxConcurrentDeletes must be positive");
+            this.maxConcurrentDeletes = maxConcurrentDeletes;
+            return this;
+        }
+
+        /**
+         * Number of resources a bulk deletion job works on at once.
+         */
+        public Builder withDeleteJobConcurrency(int deleteJobConcurrency) {
+            checkArgument(deleteJobConcurrency > 0, "deleteJobConcurrency must be positive");
+            this.deleteJobConcurrency = deleteJobConcurrency;
+            return this;
+        }
+
+        /**
+         * Number of samples at which a partition's write-behind buffer is written out.
+         */
+        public Builder withWriteBehindFlushSize(int writeBehindFlushSize) {
+            checkArgument(writeBehindFlushSize > 0, "writeBehindFlushSize must be positive");
+            this.writeBehindFlushSize = writeBehindFlushSize;
+            return this;
+        }
+
+        /**
+         * Age at which a partition's write-behind buffer is written out, however few samples it holds.
+         */
+        public Builder withWriteBehindMaxAge(Duration writeBehindMaxAge) {
+            checkNotNull(writeBehindMaxAge, "writeBehindMaxAge argument");
+            checkArgument(writeBehindMaxAge.asMillis() > 0, "writeBehindMaxAge must be positive");
+            this.writeBehindMaxAge = writeBehindMaxAge;
+            return this;
+        }
+
+        /**
+         * Maximum number of samples pending in the write-behind buffers (buffered, or being
+         * written); Producers block beyond this.
+         */
+        public Builder withWriteBehindMaxBuffered(long writeBehindMaxBuffered) {
+            checkArgument(writeBehindMaxBuffered > 0, "writeBehindMaxBuffered must be positive");
+            this.writeBehindMaxBuffered = writeBehindMaxBuffered;
+            return this;
+        }
+
+        /**
+         * Whether closed time windows are compacted into (compressed) blocks, one for each metric.
+         * Requires the {@code sample_blocks} table.
+         */
+        public Builder withBlockStorage(boolean blockStorage) {
+            this.blockStorage = blockStorage;
+            return this;
+        }
+
+        /**
+         * Width of the time windows compacted into blocks. Windows are aligned to the epoch; The
+         * width should evenly divide the resource shard of every context, since only the part of a
+         * window in its first shard is compacted.
+         */
+        public Builder withBlockSize(Duration blockSize) {
+            checkNotNull(blockSize, "blockSize argument");
+            checkArgument(blockSize.asSeconds() > 0, "blockSize must be at least one second");
+            this.blockSize = blockSize;
+            return this;
+        }
+
+        /**
+         * Resolutions at which samples are rolled up (pre-aggregated) in the background, each a
+         * multiple of the rollup interval; Empty (the default) disables rollups. Measurement
+         * queries are answered from the coarsest rollup the requested resolution is a multiple
+         * of, provided the query's interval and heartbeats match those of the rollups.
+         */
+        public Builder withRollupResolutions(Collection<Duration> rollupResolutions) {
+            checkNotNull(rollupResolutions, "rollupResolutions argument");
+            this.rollupResolutions = Ordering.natural().immutableSortedCopy(rollupResolutions);
+            return this;
+        }
+
+        /**
+         * Interval (step) of the primary data points that rollups aggregate.
+         */
+        public Builder withRollupInterval(Duration rollupInterval) {
+            checkNotNull(rollupInterval, "rollupInterval argument");
+            checkArgument(rollupInterval.asSeconds() > 0, "rollupInterval must be at least one second");
+            this.rollupInterval = rollupInterval;
+            return this;
+        }
+
+        /**
+         * Heartbeat used to calculate the primary data points that rollups aggregate.
+         */
+        public Builder withRollupHeartbeat(Duration rollupHeartbeat) {
+            checkNotNull(rollupHeartbeat, "rollupHeartbeat argument");
+            this.rollupHeartbeat = rollupHeartbeat;
+            return this;
+        }
+
+        /**
+         * Maximum number of measurements held by the measurement result cache.
+         */
+        public Builder withResultCacheMaxWeight(long resultCacheMaxWeight) {
+            checkArgument(resultCacheMaxWeight > 0, "resultCacheMaxWeight must be positive");
+            this.resultCacheMaxWeight = resultCacheMaxWeight;
+            return this;
+        }
+
+        /**
+         * Age at which measurement results are evicted from the cache; Bounds how long results go
+         * without reflecting samples written elsewhere (by other instances) out of order.
+         */
+        public Builder withResultCacheMaxAge(Duration resultCacheMaxAge) {
+            checkNotNull(resultCacheMaxAge, "resultCacheMaxAge argument");
+            checkArgument(resultCacheMaxAge.asMillis() > 0, "resultCacheMaxAge must be positive");
+            this.resultCacheMaxAge = resultCacheMaxAge;
+            return this;
+        }
+
+        /**
+         * Whether the partitions (shards) each resource has written to are recorded, so that
+         * queries and deletes can skip those that it hasn't. Requires the {@code resource_shards}
+         * table.
+         */
+        public Builder withShardIndex(boolean shardIndex) {
+            this.shardIndex = shardIndex;
+            return this;
+        }
+
+        /**
+         * When the shard index was enabled, if after samples were first written; Partitions that
+         * begin earlier are always read, indexed or not. Null (the default) if the index is complete.
+         */
+        public Builder withShardIndexSince(Timestamp shardIndexSince) {
+            this.shardIndexSince = shardIndexSince;
+            return this;
+        }
+
+        /**
+         * Whether sample rows are decoded from the driver's buffers, sharing the resource, metric
+         * names, timestamps and attribute maps that repeat from row to row (the default); Otherwise,
+         * each row is decoded on its own through the driver's codecs.
+         */
+        public Builder withLeanDecoding(boolean leanDecoding) {
+            this.leanDecoding = leanDecoding;
+            return this;
+        }
+
+        /**
+         * Whether measurement queries are processed a column (of primitive values) per datasource,
+         * by {@link org.opennms.newts.aggregate.ColumnarResultProcessor}, rather than row by row.
+         * Queries large enough for their columns to be computed in parallel are processed this way
+         * regardless.
+         */
+        public Builder withColumnarProcessing(boolean columnarProcessing) {
+            this.columnarProcessing = columnarProcessing;
+            return this;
+        }
+
+        /**
+         * Maximum number of samples a query (of a resource) reads; Zero (the default) for no limit.
+         * See {@link QueryBudget}.
+         */
+        public Builder withQueryMaxSamples(long queryMaxSamples) {
+            checkArgument(queryMaxSamples >= 0, "queryMaxSamples must be non-negative");
+            this.queryMaxSamples = queryMaxSamples;
+            return this;
+        }
+
+        /**
+         * Maximum memory (in bytes, as estimated) the samples and results of a query (of a resource)
+         * take; Zero (the default) for no limit. See {@link QueryBudget}.
+         */
+        public Builder withQueryMaxBytes(long queryMaxBytes) {
+            checkArgument(queryMaxBytes >= 0, "queryMaxBytes must be non-negative");
+            this.queryMaxBytes = queryMaxBytes;
+            return this;
+        }
+
+        /**
+         * Whether queries over budget are rejected (the default), or their results truncated (see
+         * {@link org.opennms.newts.api.Results#isTruncated()}; Streams simply end early).
+         */
+        public Builder withQueryBudgetAction(QueryBudget.Action queryBudgetAction) {
+            this.queryBudgetAction = checkNotNull(queryBudgetAction, "queryBudgetAction argument");
+            return this;
+        }
+
+        public CassandraStorageOptions build() {
+            for (Duration resolution : rollupResolutions) {
+                checkArgument(resolution.isMultiple(rollupInterval), "rollup resolution %s is not a multiple of the rollup interval", resolution);
+            }
+            return new CassandraStorageOptions(this);
+        }
+    }
+
+    public CassandraStorageOptions(CassandraStorageOptions.Builder builder) {
+        m_maxBatchSize = builder.maxBatchSize;
+        m_maxInFlightWrites = builder.maxInFlightWrites;
+        m_readAhead = builder.readAhead;
+        m_maxConcurrentReads = builder.maxConcurrentReads;
+        m_selectThreads = builder.selectThreads;
+        m_maxConcurrentDeletes = builder.maxConcurrentDeletes;
+        m_deleteJobConcurrency = builder.deleteJobConcurrency;
+        m_writeBehindFlushSize = builder.writeBehindFlushSize;
+        m_writeBehindMaxAge = builder.writeBehindMaxAge;
+        m_writeBehindMaxBuffered = builder.writeBehindMaxBuffered;
+        m_blockStorage = builder.blockStorage;
+        m_blockSize = builder.blockSize;
+        m_rollupResolutions = builder.rollupResolutions;
+        m_rollupInterval = builder.rollupInterval;
+        m_rollupHeartbeat = builder.rollupHeartbeat;
+        m_resultCacheMaxWeight = builder.resultCacheMaxWeight;
+        m_resultCacheMaxAge = builder.resultCacheMaxAge;
+        m_shardIndex = builder.shardIndex;
+        m_shardIndexSince = builder.shardIndexSince;
+        m_leanDecoding = builder.leanDecoding;
+        m_columnarProcessing = builder.columnarProcessing;
+        m_queryMaxSamples = builder.queryMaxSamples;
+        m_queryMaxBytes = builder.queryMaxBytes;
+        m_queryBudgetAction = builder.queryBudgetAction;
+    }
+
+    public CassandraStorageOptions() {
+        this(new Builder());
+    }
+
+    public int getMaxBatchSize() {
+        return m_maxBatchSize;
+    }
+
+    public int getMaxInFlightWrites() {
+        return m_maxInFlightWrites;
+    }
+
+    public int getReadAhead() {
+        return m_readAhead;
+    }
+
+    public int getMaxConcurrentReads() {
+        return m_maxConcurrentReads;
+    }
+
+    public int getSelectThreads() {
+        return m_selectThreads;
+    }
+
+    public int getMaxConcurrentDeletes() {
+        return m_maxConcurrentDeletes;
+    }
+
+    public int getDeleteJobConcurrency() {
+        return m_deleteJobConcurrency;
+    }
+
+    public int getWriteBehindFlushSize() {
+        return m_writeBehindFlushSize;
+    }
+
+    public Duration getWriteBehindMaxAge() {
+        return m_writeBehindMaxAge;
+    }
+
+    public long getWriteBehindMaxBuffered() {
+        return m_writeBehindMaxBuffered;
+    }
+
+    public boolean isBlockStorageEnabled() {
+        return m_blockStorage;
+    }
+
+    public Duration getBlockSize() {
+        return m_blockSize;
+    }
+
+    public List<Duration> getRollupResolutions() {
+        return m_rollupResolutions;
+    }
+
+    public Duration getRollupInterval() {
+        return m_rollupInterval;
+    }
+
+    public Duration getRollupHeartbeat() {
+        return m_rollupHeartbeat;
+    }
+
+    public long getResultCacheMaxWeight() {
+        return m_resultCacheMaxWeight;
+    }
+
+    public Duration getResultCacheMaxAge() {
+        return m_resultCacheMaxAge;
+    }
+
+    public boolean isShardIndexEnabled() {
+        return m_shardIndex;
+    }
+
+    public Timestamp getShardIndexSince() {
+        return m_shardIndexSince;
+    }
+
+    public boolean isLeanDecodingEnabled() {
+        return m_leanDecoding;
+    }
+
+    public boolean isColumnarProcessingEnabled() {
+        return m_columnarProcessing;
+    }
+
+    public long getQueryMaxSamples() {
+        return m_queryMaxSamples;
+    }
+
+    public long getQueryMaxBytes() {
+        return m_queryMaxBytes;
+    }
+
+    public QueryBudget.Action getQueryBudgetAction() {
+        return m_queryBudgetAction;
+    }
+}
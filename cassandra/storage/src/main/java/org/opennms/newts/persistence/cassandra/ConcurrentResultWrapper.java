@@ -16,33 +16,83 @@
 package org.opennms.newts.persistence.cassandra;
 
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayDeque;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
 import com.datastax.oss.driver.api.core.cql.Row;
-import com.google.common.collect.Iterators;
 
 
+/**
+ * Iterates over the rows of a sequence of (per-shard) queries, in order.
+ *
+ * <p>
+ * Constructed with a collection of futures, the queries have all been issued up front, and pages
+ * are fetched only once the current page has been exhausted.
+ * </p>
+ *
+ * <p>
+ * Constructed with a sequence of (not yet issued) queries and a read-ahead depth, up to
+ * {@code readAhead} queries beyond the one being consumed are kept in flight, and the next page
+ * of each result set is requested as soon as the current page arrives. At most
+ * {@code readAhead + 1} result sets, each with no more than two pages, are held at any one time.
+ * </p>
+ */
 public class ConcurrentResultWrapper implements Iterator<Row> {
 
-    private Iterator<Row> m_rowIter;
+    private final Iterator<Supplier<CompletionStage<AsyncResultSet>>> m_queries;
+    private final Deque<CompletionStage<AsyncResultSet>> m_pending = new ArrayDeque<>();
+    private final int m_readAhead;
+    private final boolean m_prefetch;
+    private final RequestScheduler m_scheduler;
+
+    private Iterator<Row> m_currentPage = Collections.emptyIterator();
+    private AsyncResultSet m_current;
+    private CompletionStage<AsyncResultSet> m_nextPage;
 
     public ConcurrentResultWrapper(Collection<CompletionStage<AsyncResultSet>> futures) {
-        m_rowIter = Iterators.concat(getIterators(futures));
+        m_queries = Collections.emptyIterator();
+        m_pending.addAll(checkNotNull(futures, "futures argument"));
+        m_readAhead = 0;
+        m_prefetch = false;
+        m_scheduler = null;
     }
 
-    private Iterator<Iterator<Row>> getIterators(Collection<CompletionStage<AsyncResultSet>> futures) {
-        return Iterators.transform(futures.iterator(), input -> {
-            try {
-                return toBlockingIterator(input.toCompletableFuture().get());
-            } catch (ExecutionException|InterruptedException e) {
-                throw new RuntimeException(e);
-            }
-        });
+    /**
+     * @param queries
+     *            queries to issue, in the order their rows are to be returned
+     * @param readAhead
+     *            number of queries to keep in flight ahead of the one being consumed
+     */
+    public ConcurrentResultWrapper(Iterator<Supplier<CompletionStage<AsyncResultSet>>> queries, int readAhead) {
+        this(queries, readAhead, null);
+    }
+
+    /**
+     * @param queries
+     *            queries to issue, in the order their rows are to be returned
+     * @param readAhead
+     *            number of queries to keep in flight ahead of the one being consumed
+     * @param scheduler
+     *            scheduler to fetch subsequent pages through, or null to fetch them directly
+     */
+    public ConcurrentResultWrapper(Iterator<Supplier<CompletionStage<AsyncResultSet>>> queries, int readAhead, RequestScheduler scheduler) {
+        checkArgument(readAhead >= 0, "readAhead must be non-negative");
+        m_queries = checkNotNull(queries, "queries argument");
+        m_readAhead = readAhead;
+        m_prefetch = true;
+        m_scheduler = scheduler;
     }
 
     /**
@@ -50,36 +100,54 @@ public class ConcurrentResultWrapper implements Iterator<Row> {
      * This iterator blocks when the next page is loading - loading only one page at a time.
      */
     public Iterator<Row> toBlockingIterator(AsyncResultSet rs) {
-        AtomicReference<Iterator<Row>> currentPageRef = new AtomicReference<>(rs.currentPage().iterator());
+        AtomicReference<AsyncResultSet> currentPageRef = new AtomicReference<>(rs);
+        AtomicReference<Iterator<Row>> rowsRef = new AtomicReference<>(rs.currentPage().iterator());
         return new Iterator<Row>() {
             @Override
             public boolean hasNext() {
-                Iterator<Row> currentPage = currentPageRef.get();
-                if (!currentPage.hasNext() && rs.hasMorePages()) {
-                    try {
-                        currentPageRef.set(rs.fetchNextPage().toCompletableFuture().get().currentPage().iterator());
-                    } catch (Exception e) {
-                        throw new RuntimeException(e);
-                    }
+                while (!rowsRef.get().hasNext() && currentPageRef.get().hasMorePages()) {
+                    AsyncResultSet next = await(currentPageRef.get().fetchNextPage());
+                    currentPageRef.set(next);
+                    rowsRef.set(next.currentPage().iterator());
                 }
-                return currentPage.hasNext();
+                return rowsRef.get().hasNext();
             }
 
             @Override
             public Row next() {
-                return currentPageRef.get().next();
+                return rowsRef.get().next();
             }
         };
     }
 
     @Override
     public boolean hasNext() {
-        return m_rowIter.hasNext();
+        while (!m_currentPage.hasNext()) {
+            // Next page of the current result set
+            if (m_current != null && m_current.hasMorePages()) {
+                CompletionStage<AsyncResultSet> nextPage = (m_nextPage != null) ? m_nextPage : fetchNextPage(m_current);
+                m_nextPage = null;
+                setCurrent(await(nextPage));
+                continue;
+            }
+
+            // First page of the next result set
+            issue(1);
+            if (m_pending.isEmpty()) {
+                return false;
+            }
+            CompletionStage<AsyncResultSet> next = m_pending.removeFirst();
+            issue(m_readAhead);
+            setCurrent(await(next));
+        }
+
+        return true;
     }
 
     @Override
     public Row next() {
-        return m_rowIter.next();
+        if (!hasNext()) throw new NoSuchElementException();
+        return m_currentPage.next();
     }
 
     @Override
@@ -87,4 +155,33 @@ public class ConcurrentResultWrapper implements Iterator<Row> {
         throw new UnsupportedOperationException();
     }
 
+    private void setCurrent(AsyncResultSet rs) {
+        m_current = rs;
+        m_currentPage = rs.currentPage().iterator();
+
+        // Have the next page on its way while this one is consumed
+        if (m_prefetch && rs.hasMorePages()) {
+            m_nextPage = fetchNextPage(rs);
+        }
+    }
+
+    private CompletionStage<AsyncResultSet> fetchNextPage(AsyncResultSet rs) {
+        return (m_scheduler != null) ? m_scheduler.submit(rs::fetchNextPage) : rs.fetchNextPage();
+    }
+
+    private void issue(int depth) {
+        while (m_pending.size() < depth && m_queries.hasNext()) {
+            m_pending.addLast(m_queries.next().get());
+        }
+    }
+
+    private static AsyncResultSet await(CompletionStage<AsyncResultSet> future) {
+        try {
+            return future.toCompletableFuture().get();
+        }
+        catch (ExecutionException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Progress of a bulk deletion of resources' samples.
+ *
+ * @see CassandraSampleRepository#delete(org.opennms.newts.api.Context, java.util.Collection)
+ */
+public class DeletionJob {
+
+    private final int m_total;
+    private final AtomicInteger m_completed = new AtomicInteger(0);
+    private final AtomicInteger m_failed = new AtomicInteger(0);
+    private final AtomicLong m_partitionsDeleted = new AtomicLong(0);
+    private final AtomicReference<Throwable> m_failure = new AtomicReference<>();
+    private final CompletableFuture<Void> m_completion = new CompletableFuture<>();
+
+    DeletionJob(int total) {
+        m_total = total;
+        if (total == 0) {
+            m_completion.complete(null);
+        }
+    }
+
+    /** @return the number of resources in this job */
+    public int getTotal() {
+        return m_total;
+    }
+
+    /** @return the number of resources deleted so far */
+    public int getCompleted() {
+        return m_completed.get();
+    }
+
+    /** @return the number of resources that could not be deleted */
+    public int getFailed() {
+        return m_failed.get();
+    }
+
+    /** @return the number of (shard) partitions deleted so far */
+    public long getPartitionsDeleted() {
+        return m_partitionsDeleted.get();
+    }
+
+    public boolean isDone() {
+        return m_completion.isDone();
+    }
+
+    /**
+     * @return a stage that completes once every resource has been processed; Exceptionally (with
+     *         the first failure encountered) if any of them could not be deleted
+     */
+    public CompletionStage<Void> getCompletion() {
+        return m_completion;
+    }
+
+    void resourceDeleted(int partitions) {
+        m_partitionsDeleted.addAndGet(partitions);
+        m_completed.incrementAndGet();
+        maybeFinish();
+    }
+
+    void resourceFailed(Throwable failure) {
+        m_failure.compareAndSet(null, failure);
+        m_failed.incrementAndGet();
+        maybeFinish();
+    }
+
+    private void maybeFinish() {
+        if (m_completed.get() + m_failed.get() < m_total) {
+            return;
+        }
+
+        Throwable failure = m_failure.get();
+        if (failure != null) {
+            m_completion.completeExceptionally(failure);
+        }
+        else {
+            m_completion.complete(null);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[total=%d, completed=%d, failed=%d, partitions=%d]", getClass().getSimpleName(),
+                getTotal(), getCompleted(), getFailed(), getPartitionsDeleted());
+    }
+
+}
@@ -18,8 +18,11 @@ package org.opennms.newts.persistence.cassandra;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.time.Instant;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
@@ -31,17 +34,34 @@ import org.opennms.newts.api.Sample;
 import org.opennms.newts.api.Timestamp;
 import org.opennms.newts.api.ValueType;
 
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.collect.Sets;
+
 /**
- * Map database results to Newts {@link Sample}s.
+ * Map database results to Newts {@link Sample}s. Results from the {@code samples} table can be
+ * combined with those of {@code sample_blocks}, which are decoded on the fly; Where both hold a
+ * sample for the same metric and timestamp, the one from {@code samples} wins.
  *
  * @author eevans
  */
 class DriverAdapter implements Iterable<Results.Row<Sample>>, Iterator<Results.Row<Sample>> {
 
-    private final Iterator<com.datastax.oss.driver.api.core.cql.Row> m_results;
+    /** How rows of the {@code samples} tables are decoded. */
+    enum Decoding {
+        /** Each row on its own, through the driver's codecs. */
+        STANDARD,
+        /** From the driver's buffers, sharing what repeats from row to row (see {@link RowDecoder}). */
+        LEAN
+    }
+
+    private final Iterator<Sample> m_results;
     private final Set<String> m_metrics;
     private Results.Row<Sample> m_next = null;
     private int m_count = 0;
+    private final Set<String> m_read = Sets.newHashSet();
 
     DriverAdapter(Iterator<com.datastax.oss.driver.api.core.cql.Row> input) {
         this(input, Collections.<String> emptySet());
@@ -57,8 +77,75 @@ class DriverAdapter implements Iterable<Results.Row<Sample>>, Iterator<Results.R
      *            should be included
      */
     DriverAdapter(Iterator<com.datastax.oss.driver.api.core.cql.Row> input, Set<String> metrics) {
-        m_results = checkNotNull(input, "input argument");
+        this(input, metrics, Decoding.STANDARD);
+    }
+
+    /**
+     * Construct a new {@link DriverAdapter}.
+     *
+     * @param input
+     *            cassandra driver {@link ResultSet}
+     * @param metrics
+     *            the set of result metrics to include; an empty set indicates that all metrics
+     *            should be included
+     * @param decoding
+     *            how rows are decoded
+     */
+    DriverAdapter(Iterator<com.datastax.oss.driver.api.core.cql.Row> input, Set<String> metrics, Decoding decoding) {
+        this(input, Collections.emptyIterator(), null, null, metrics, decoding);
+    }
+
+    /**
+     * Construct a new {@link DriverAdapter} over both the {@code samples}, and {@code sample_blocks}
+     * tables.
+     *
+     * @param input
+     *            rows of the {@code samples} table, ordered by timestamp
+     * @param blocks
+     *            rows of the {@code sample_blocks} table, ordered by block start
+     * @param start
+     *            samples decoded from blocks that precede this are skipped
+     * @param end
+     *            samples decoded from blocks that follow this are skipped
+     * @param metrics
+     *            the set of result metrics to include; an empty set indicates that all metrics
+     *            should be included
+     */
+    DriverAdapter(Iterator<com.datastax.oss.driver.api.core.cql.Row> input, Iterator<com.datastax.oss.driver.api.core.cql.Row> blocks,
+            Timestamp start, Timestamp end, Set<String> metrics) {
+        this(input, blocks, start, end, metrics, Decoding.STANDARD);
+    }
+
+    /**
+     * Construct a new {@link DriverAdapter} over both the {@code samples}, and {@code sample_blocks}
+     * tables, decoding rows of the former as specified.
+     */
+    DriverAdapter(Iterator<com.datastax.oss.driver.api.core.cql.Row> input, Iterator<com.datastax.oss.driver.api.core.cql.Row> blocks,
+            Timestamp start, Timestamp end, Set<String> metrics, Decoding decoding) {
+        this(input, blocks, start, end, metrics, decoding, null);
+    }
+
+    /**
+     * Construct a new {@link DriverAdapter} over both the {@code samples}, and {@code sample_blocks}
+     * tables, reading samples within a query's budget.
+     *
+     * @param allowance
+     *            spent as samples are read, or null if the query has no budget
+     */
+    DriverAdapter(Iterator<com.datastax.oss.driver.api.core.cql.Row> input, Iterator<com.datastax.oss.driver.api.core.cql.Row> blocks,
+            Timestamp start, Timestamp end, Set<String> metrics, Decoding decoding, QueryBudget.Allowance allowance) {
+        checkNotNull(input, "input argument");
+        checkNotNull(blocks, "blocks argument");
         m_metrics = checkNotNull(metrics, "metrics argument");
+        checkNotNull(decoding, "decoding argument");
+
+        Iterator<Sample> samples = (decoding == Decoding.LEAN)
+                ? Iterators.transform(input, new RowDecoder(metrics)::decode)
+                : Iterators.transform(input, DriverAdapter::getSample);
+        if (blocks.hasNext()) {
+            samples = new Merged(new BlockSamples(blocks, start, end, metrics), samples);
+        }
+        m_results = (allowance != null) ? allowance.samples(samples) : samples;
 
         if (m_results.hasNext()) {
             Sample m = getNextSample();
@@ -114,6 +201,13 @@ class DriverAdapter implements Iterable<Results.Row<Sample>>, Iterator<Results.R
         return m_count;
     }
 
+    /**
+     * @return the names of the metrics samples were read of (including any not in the results)
+     */
+    public Set<String> getMetricsRead() {
+        return m_read;
+    }
+
     private void addSample(Results.Row<Sample> row, Sample sample) {
         if (m_metrics.isEmpty() || m_metrics.contains(sample.getName())) {
             row.addElement(sample);
@@ -122,7 +216,9 @@ class DriverAdapter implements Iterable<Results.Row<Sample>>, Iterator<Results.R
 
     private Sample getNextSample() {
         m_count += 1;
-        return getSample(m_results.next());
+        Sample sample = m_results.next();
+        m_read.add(sample.getName());
+        return sample;
     }
 
     private static Sample getSample(com.datastax.oss.driver.api.core.cql.Row row) {
@@ -150,4 +246,80 @@ class DriverAdapter implements Iterable<Results.Row<Sample>>, Iterator<Results.R
         return row.getMap(SchemaConstants.F_ATTRIBUTES, String.class, String.class);
     }
 
+    /** Samples decoded from blocks, one window (all metrics of a block start) at a time. */
+    private static class BlockSamples extends AbstractIterator<Sample> {
+
+        private static final Comparator<Sample> BY_TIMESTAMP = Comparator.comparing(Sample::getTimestamp);
+
+        private final PeekingIterator<com.datastax.oss.driver.api.core.cql.Row> m_blocks;
+        private final Timestamp m_start;
+        private final Timestamp m_end;
+        private final Set<String> m_metrics;
+        private Iterator<Sample> m_window = Collections.emptyIterator();
+
+        private BlockSamples(Iterator<com.datastax.oss.driver.api.core.cql.Row> blocks, Timestamp start, Timestamp end, Set<String> metrics) {
+            m_blocks = Iterators.peekingIterator(blocks);
+            m_start = start;
+            m_end = end;
+            m_metrics = metrics;
+        }
+
+        @Override
+        protected Sample computeNext() {
+            while (!m_window.hasNext()) {
+                if (!m_blocks.hasNext()) {
+                    return endOfData();
+                }
+                m_window = nextWindow();
+            }
+            return m_window.next();
+        }
+
+        private Iterator<Sample> nextWindow() {
+            Instant blockStart = m_blocks.peek().getInstant(SchemaConstants.F_BLOCK_START);
+            List<Sample> samples = Lists.newArrayList();
+
+            while (m_blocks.hasNext() && m_blocks.peek().getInstant(SchemaConstants.F_BLOCK_START).equals(blockStart)) {
+                com.datastax.oss.driver.api.core.cql.Row block = m_blocks.next();
+                String metric = getMetricName(block);
+                if (!m_metrics.isEmpty() && !m_metrics.contains(metric)) {
+                    continue;
+                }
+                for (Sample sample : SampleBlockCodec.decode(block.getByteBuffer(SchemaConstants.F_DATA), getResource(block), metric, getAttributes(block))) {
+                    if ((m_start == null || sample.getTimestamp().gte(m_start)) && (m_end == null || sample.getTimestamp().lte(m_end))) {
+                        samples.add(sample);
+                    }
+                }
+            }
+
+            // Interleave the window's metrics (the sort is stable)
+            samples.sort(BY_TIMESTAMP);
+
+            return samples.iterator();
+        }
+    }
+
+    /** Merges by timestamp; On ties, samples of the first iterator come first. */
+    private static class Merged extends AbstractIterator<Sample> {
+
+        private final PeekingIterator<Sample> m_first;
+        private final PeekingIterator<Sample> m_second;
+
+        private Merged(Iterator<Sample> first, Iterator<Sample> second) {
+            m_first = Iterators.peekingIterator(first);
+            m_second = Iterators.peekingIterator(second);
+        }
+
+        @Override
+        protected Sample computeNext() {
+            if (!m_first.hasNext()) {
+                return m_second.hasNext() ? m_second.next() : endOfData();
+            }
+            if (!m_second.hasNext()) {
+                return m_first.next();
+            }
+            return m_second.peek().getTimestamp().lt(m_first.peek().getTimestamp()) ? m_second.next() : m_first.next();
+        }
+    }
+
 }
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Iterator;
+
+import org.opennms.newts.api.Element;
+import org.opennms.newts.api.QueryBudgetExceededException;
+import org.opennms.newts.api.Results.Row;
+import org.opennms.newts.api.Sample;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.AbstractIterator;
+
+
+/**
+ * Limits on the samples a query (of a resource) reads, and on the memory its samples and results
+ * take; Checked against the {@link QueryCost estimated cost} before the query is executed, and
+ * enforced as samples are read, and results collected.
+ *
+ * <p>
+ * Memory is estimated at {@value #SAMPLE_BYTES} bytes a sample, and {@value #MEASUREMENT_BYTES} a
+ * measurement; Samples count only when they are all held at once (by selects of samples, and by
+ * columnar processing). A limit of 0 is no limit.
+ * </p>
+ */
+public class QueryBudget {
+
+    /** What becomes of queries over budget. */
+    public enum Action {
+        /** They fail, with a {@link QueryBudgetExceededException}; Before they run, if estimated to. */
+        REJECT,
+        /** Their results end where the budget was spent. */
+        TRUNCATE
+    }
+
+    static final long SAMPLE_BYTES = 200;
+    static final long MEASUREMENT_BYTES = 120;
+
+    private final long m_maxSamples;
+    private final long m_maxBytes;
+    private final Action m_action;
+
+    private final Meter m_rejected;
+    private final Meter m_truncated;
+
+    QueryBudget(long maxSamples, long maxBytes, Action action, MetricRegistry registry) {
+        checkArgument(maxSamples >= 0, "maxSamples must be non-negative");
+        checkArgument(maxBytes >= 0, "maxBytes must be non-negative");
+        m_maxSamples = maxSamples;
+        m_maxBytes = maxBytes;
+        m_action = checkNotNull(action, "action argument");
+
+        checkNotNull(registry, "metric registry argument");
+        m_rejected = registry.meter(name("repository", "query-budget", "rejected"));
+        m_truncated = registry.meter(name("repository", "query-budget", "truncated"));
+    }
+
+    long getMaxSamples() {
+        return m_maxSamples;
+    }
+
+    long getMaxBytes() {
+        return m_maxBytes;
+    }
+
+    Action getAction() {
+        return m_action;
+    }
+
+    /**
+     * Checks the estimated cost of a query, before it is executed.
+     *
+     * @throws QueryBudgetExceededException
+     *             if queries over budget are rejected, and this one is estimated to be
+     */
+    void check(QueryCost cost) {
+        if (m_action == Action.REJECT) {
+            spent(cost.getSamples(), cost.getBytes(), true);
+        }
+    }
+
+    /** @return the allowance of a query, about to be executed */
+    Allowance allowance(boolean samplesHeld) {
+        return new Allowance(samplesHeld);
+    }
+
+    /** @return true if the budget is spent; Throws if queries over budget are rejected */
+    private boolean spent(long samples, long bytes, boolean estimated) {
+        if (m_maxSamples > 0 && samples > m_maxSamples) {
+            return exceeded(String.format("Query %s more than %d samples (the most a query may read); Narrow its range, or select fewer metrics",
+                    estimated ? "would read" : "read", m_maxSamples));
+        }
+        if (m_maxBytes > 0 && bytes > m_maxBytes) {
+            return exceeded(String.format("Query %s more than %d bytes of memory (the most a query may take); Narrow its range, or coarsen its resolution",
+                    estimated ? "would take" : "took", m_maxBytes));
+        }
+        return false;
+    }
+
+    private boolean exceeded(String message) {
+        if (m_action == Action.REJECT) {
+            m_rejected.mark();
+            throw new QueryBudgetExceededException(message);
+        }
+        m_truncated.mark();
+        return true;
+    }
+
+    /**
+     * The budget of a single query, spent as it is executed; By the samples read (see
+     * {@link #samples(Iterator)}), and the rows of results held (see {@link #rows(Iterator)}).
+     */
+    class Allowance {
+
+        private final long m_sampleBytes;
+        private long m_samples = 0;
+        private long m_bytes = 0;
+        private boolean m_truncated = false;
+
+        private Allowance(boolean samplesHeld) {
+            m_sampleBytes = samplesHeld ? SAMPLE_BYTES : 0;
+        }
+
+        /** @return the samples, spending the allowance as each is read */
+        Iterator<Sample> samples(Iterator<Sample> samples) {
+            return new AbstractIterator<Sample>() {
+
+                @Override
+                protected Sample computeNext() {
+                    if (m_truncated || !samples.hasNext() || !spend(1, m_sampleBytes)) {
+                        return endOfData();
+                    }
+                    return samples.next();
+                }
+            };
+        }
+
+        /** @return the rows, spending the allowance by the measurements of each as it is read */
+        <T extends Element<?>> Iterator<Row<T>> rows(Iterator<Row<T>> rows) {
+            return new AbstractIterator<Row<T>>() {
+
+                @Override
+                protected Row<T> computeNext() {
+                    if (!m_truncated && rows.hasNext()) {
+                        Row<T> row = rows.next();
+                        if (spend(0, row.getElements().size() * MEASUREMENT_BYTES)) {
+                            return row;
+                        }
+                    }
+                    return endOfData();
+                }
+            };
+        }
+
+        /** @return true if (some of) the query's results were cut short */
+        boolean isTruncated() {
+            return m_truncated;
+        }
+
+        long getSamples() {
+            return m_samples;
+        }
+
+        private boolean spend(long samples, long bytes) {
+            m_samples += samples;
+            m_bytes += bytes;
+            if (spent(m_samples, m_bytes, false)) {
+                m_truncated = true;
+                return false;
+            }
+            return true;
+        }
+    }
+
+}
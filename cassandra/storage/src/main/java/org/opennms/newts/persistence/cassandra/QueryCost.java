@@ -0,0 +1,62 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+/**
+ * The estimated cost of a query (of a resource), made before it is executed; See
+ * {@link QueryBudget}.
+ */
+public class QueryCost {
+
+    private final long m_shards;
+    private final long m_samples;
+    private final long m_steps;
+    private final long m_bytes;
+
+    QueryCost(long shards, long samples, long steps, long bytes) {
+        m_shards = shards;
+        m_samples = samples;
+        m_steps = steps;
+        m_bytes = bytes;
+    }
+
+    /** @return the number of partitions (resource shards) read */
+    public long getShards() {
+        return m_shards;
+    }
+
+    /** @return the number of samples read; 0 if there is nothing to tell it by */
+    public long getSamples() {
+        return m_samples;
+    }
+
+    /** @return the number of rows (steps) of measurements, or 0 for a select of samples */
+    public long getSteps() {
+        return m_steps;
+    }
+
+    /** @return the memory (in bytes) taken by the samples and results held */
+    public long getBytes() {
+        return m_bytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[shards=%d, samples=%d, steps=%d, bytes=%d]", getClass().getSimpleName(), m_shards, m_samples, m_steps, m_bytes);
+    }
+
+}
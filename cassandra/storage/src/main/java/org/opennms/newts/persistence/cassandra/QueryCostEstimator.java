@@ -0,0 +1,172 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.newts.api.Context;
+import org.opennms.newts.api.Duration;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.api.query.ResultDescriptor;
+import org.opennms.newts.cassandra.ContextConfigurations;
+import org.opennms.newts.persistence.cassandra.ShardIndex.ResourceKey;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+
+/**
+ * Estimates the {@link QueryCost cost} of queries before they are executed, and records the
+ * estimates (as histograms); From the number of partitions in range, the rate each resource's
+ * metrics were read at by earlier queries, and the steps of the results.
+ *
+ * <p>
+ * Rates are kept per metric (the samples read, over the metrics they were of), so that a query of
+ * a few of a resource's sources is estimated for those alone, whatever earlier queries read. The
+ * rate of a resource not yet read is taken to be a sample of each source an interval, for
+ * measurement queries, and is unknown (no samples) for selects of samples.
+ * </p>
+ */
+class QueryCostEstimator {
+
+    private static final int MAX_RESOURCES = 100000;
+    // Shorter ranges tell too little of a resource's rate
+    private static final long MIN_OBSERVED_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    private final ContextConfigurations m_contextConfigurations;
+    private final Cache<ResourceKey, Rate> m_rates;
+
+    private final Histogram m_shards;
+    private final Histogram m_samples;
+    private final Histogram m_steps;
+    private final Histogram m_bytes;
+
+    QueryCostEstimator(ContextConfigurations contextConfigurations, MetricRegistry registry) {
+        m_contextConfigurations = checkNotNull(contextConfigurations, "contextConfigurations argument");
+        m_rates = CacheBuilder.newBuilder().maximumSize(MAX_RESOURCES).build();
+
+        checkNotNull(registry, "metric registry argument");
+        m_shards = registry.histogram(name("repository", "query-cost", "shards"));
+        m_samples = registry.histogram(name("repository", "query-cost", "samples"));
+        m_steps = registry.histogram(name("repository", "query-cost", "steps"));
+        m_bytes = registry.histogram(name("repository", "query-cost", "bytes"));
+    }
+
+    /**
+     * @return the cost of a select of the samples from start to end
+     */
+    QueryCost estimate(Context context, Resource resource, Timestamp start, Timestamp end) {
+        Rate rate = m_rates.getIfPresent(new ResourceKey(context, resource.getId()));
+        long samples = (rate != null) ? samples(start, end, rate.m_perMetric * rate.m_metrics) : 0;
+        return record(new QueryCost(shards(context, start, end), samples, 0, samples * QueryBudget.SAMPLE_BYTES));
+    }
+
+    /**
+     * @param plan
+     *            the use of rollups by the query, or null if there is none
+     * @param samplesHeld
+     *            true if the samples read are all held at once
+     * @return the cost of a query of measurements from lower to upper
+     */
+    QueryCost estimate(Context context, Resource resource, Timestamp lower, Timestamp upper, ResultDescriptor descriptor, Duration step,
+            SampleRollups.Plan plan, boolean samplesHeld) {
+        Timestamp start = lower.minus(step);
+        int sources = descriptor.getSourceNames().size();
+        Rate rate = m_rates.getIfPresent(new ResourceKey(context, resource.getId()));
+        double perMetric = (rate != null) ? rate.m_perMetric : 1.0d / descriptor.getInterval().asMillis();
+        long samples = samples(start, upper, perMetric * sources);
+
+        // Steps answered from rollups read a row of each source a rollup resolution, in place of samples
+        if (plan != null) {
+            long span = upper.asMillis() - start.asMillis();
+            long rolledUp = Math.min(upper.asMillis(), plan.getLast().asMillis()) - Math.max(start.asMillis(), plan.getFirst().minus(step).asMillis());
+            if (span > 0 && rolledUp > 0) {
+                samples = (long) (samples * (1.0d - (double) rolledUp / span)) + rolledUp / plan.getResolution().asMillis() * sources;
+            }
+        }
+
+        long first = lower.stepFloor(step).asMillis(), last = upper.stepCeiling(step).asMillis();
+        long steps = (last < first) ? 0 : (last - first) / step.asMillis() + 1;
+        if (descriptor.getMaxDataPoints() > 0) {
+            steps = Math.min(steps, descriptor.getMaxDataPoints());
+        }
+
+        long bytes = (samplesHeld ? samples * QueryBudget.SAMPLE_BYTES : 0) + steps * descriptor.getExports().size() * QueryBudget.MEASUREMENT_BYTES;
+
+        return record(new QueryCost(shards(context, start, upper), samples, steps, bytes));
+    }
+
+    /**
+     * Records the number of samples a query of a resource read (all of them, from start to end),
+     * and the number of metrics they were of.
+     */
+    void observe(Context context, Resource resource, Timestamp start, Timestamp end, long samples, int metrics) {
+        long span = end.asMillis() - start.asMillis();
+        if (span < MIN_OBSERVED_MILLIS || metrics <= 0) {
+            return;
+        }
+
+        ResourceKey key = new ResourceKey(context, resource.getId());
+        double perMetric = (double) samples / metrics / span;
+        Rate previous = m_rates.getIfPresent(key);
+        if (previous != null) {
+            m_rates.put(key, new Rate((previous.m_perMetric + perMetric) / 2, Math.max(previous.m_metrics, metrics)));
+        }
+        else {
+            m_rates.put(key, new Rate(perMetric, metrics));
+        }
+    }
+
+    private long samples(Timestamp start, Timestamp end, double rate) {
+        long span = end.asMillis() - start.asMillis();
+        return (span <= 0) ? 0 : (long) (rate * span);
+    }
+
+    private long shards(Context context, Timestamp start, Timestamp end) {
+        Duration resourceShard = m_contextConfigurations.getResourceShard(context);
+        long first = start.stepFloor(resourceShard).asMillis(), last = end.stepFloor(resourceShard).asMillis();
+        return (last < first) ? 0 : (last - first) / resourceShard.asMillis() + 1;
+    }
+
+    private QueryCost record(QueryCost cost) {
+        m_shards.update(cost.getShards());
+        m_samples.update(cost.getSamples());
+        m_steps.update(cost.getSteps());
+        m_bytes.update(cost.getBytes());
+        return cost;
+    }
+
+    /** The rate a resource's samples were read at. */
+    private static class Rate {
+        // Samples read a millisecond, of each metric
+        private final double m_perMetric;
+        // The most metrics read at once; A select of samples reads them all
+        private final int m_metrics;
+
+        private Rate(double perMetric, int metrics) {
+            m_perMetric = perMetric;
+            m_metrics = metrics;
+        }
+    }
+
+}
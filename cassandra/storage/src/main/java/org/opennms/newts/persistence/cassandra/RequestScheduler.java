@@ -0,0 +1,121 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+
+/**
+ * Limits the number of requests outstanding against the cluster, across everything that shares
+ * it. Requests beyond the limit are queued rather than blocking the caller, and are dispatched in
+ * submission order as earlier requests complete.
+ */
+public class RequestScheduler {
+
+    private final int m_limit;
+    private final AtomicInteger m_inFlight = new AtomicInteger(0);
+    private final Queue<Runnable> m_queue = new ConcurrentLinkedQueue<>();
+
+    public RequestScheduler(int limit) {
+        checkArgument(limit > 0, "limit must be positive");
+        m_limit = limit;
+    }
+
+    /**
+     * Schedules a request.
+     *
+     * @param request
+     *            issues the request (when a slot becomes available)
+     * @return a future completed with the outcome of the request
+     */
+    public <T> CompletableFuture<T> submit(Supplier<? extends CompletionStage<T>> request) {
+        checkNotNull(request, "request argument");
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+        m_queue.add(() -> dispatch(request, result));
+        drain();
+
+        return result;
+    }
+
+    /** @return the number of requests currently outstanding */
+    public int getInFlight() {
+        return m_inFlight.get();
+    }
+
+    /** @return the number of requests waiting to be dispatched */
+    public int getQueued() {
+        return m_queue.size();
+    }
+
+    private void drain() {
+        while (!m_queue.isEmpty()) {
+            int current = m_inFlight.get();
+            if (current >= m_limit) {
+                return;
+            }
+            if (!m_inFlight.compareAndSet(current, current + 1)) {
+                continue;
+            }
+
+            Runnable next = m_queue.poll();
+            if (next == null) {
+                // Another thread got there first
+                m_inFlight.decrementAndGet();
+                continue;
+            }
+
+            next.run();
+        }
+    }
+
+    private <T> void dispatch(Supplier<? extends CompletionStage<T>> request, CompletableFuture<T> result) {
+        CompletionStage<T> stage;
+        try {
+            stage = request.get();
+        }
+        catch (RuntimeException e) {
+            release();
+            result.completeExceptionally(e);
+            return;
+        }
+
+        stage.whenComplete((value, error) -> {
+            release();
+            if (error != null) {
+                result.completeExceptionally(error);
+            }
+            else {
+                result.complete(value);
+            }
+        });
+    }
+
+    private void release() {
+        m_inFlight.decrementAndGet();
+        drain();
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import org.opennms.newts.api.MetricType;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Sample;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.api.ValueType;
+
+import com.datastax.oss.driver.api.core.cql.Row;
+import com.datastax.oss.driver.api.core.type.codec.TypeCodec;
+import com.datastax.oss.driver.api.core.type.codec.TypeCodecs;
+import com.google.common.collect.Maps;
+
+
+/**
+ * Decodes rows of the samples tables straight from the driver's buffers, reusing what repeats from
+ * one row to the next. One decoder is used per query (it is not thread-safe).
+ *
+ * <ul>
+ * <li>The resource is decoded once, and shared for as long as it doesn't change (a query is of a
+ * single resource).</li>
+ * <li>Metric names are interned; Each distinct name is decoded once per query.</li>
+ * <li>Timestamps are shared by consecutive rows of the same time (the metrics of a sample time).</li>
+ * <li>Values are read in place, without duplicating the buffer.</li>
+ * <li>Attribute maps are shared by rows with no attributes, and by consecutive rows with the same
+ * attributes; Shared maps are unmodifiable.</li>
+ * <li>The values (and attributes) of metrics that are not selected aren't decoded at all; Their
+ * samples only carry what is needed to place them in a row.</li>
+ * </ul>
+ */
+class RowDecoder {
+
+    private static final TypeCodec<Map<String, String>> ATTRIBUTES = TypeCodecs.mapOf(TypeCodecs.TEXT, TypeCodecs.TEXT);
+
+    private final Set<String> m_metrics;
+    private final Map<ByteBuffer, String> m_names = Maps.newHashMap();
+
+    private ByteBuffer m_resourceBytes;
+    private Resource m_resource;
+    private long m_millis;
+    private Timestamp m_timestamp;
+    private ByteBuffer m_attributeBytes;
+    private Map<String, String> m_attributes;
+
+    /**
+     * @param metrics
+     *            the metrics selected; An empty set selects all of them
+     */
+    RowDecoder(Set<String> metrics) {
+        m_metrics = checkNotNull(metrics, "metrics argument");
+    }
+
+    Sample decode(Row row) {
+        Timestamp timestamp = timestamp(row.getBytesUnsafe(SchemaConstants.F_COLLECTED));
+        Resource resource = resource(row.getBytesUnsafe(SchemaConstants.F_RESOURCE));
+        String metric = name(row.getBytesUnsafe(SchemaConstants.F_METRIC_NAME));
+        ByteBuffer value = row.getBytesUnsafe(SchemaConstants.F_VALUE);
+
+        if (!m_metrics.isEmpty() && !m_metrics.contains(metric)) {
+            return new Sample(timestamp, resource, metric, MetricType.fromCode(value.get(value.position())), null);
+        }
+
+        ValueType<?> composed = ValueType.compose(value);
+        return new Sample(timestamp, resource, metric, composed.getType(), composed, attributes(row));
+    }
+
+    private Timestamp timestamp(ByteBuffer bytes) {
+        long millis = bytes.getLong(bytes.position());
+        if (m_timestamp == null || millis != m_millis) {
+            m_timestamp = Timestamp.fromEpochMillis(millis);
+            m_millis = millis;
+        }
+        return m_timestamp;
+    }
+
+    private Resource resource(ByteBuffer bytes) {
+        if (m_resource == null || !bytes.equals(m_resourceBytes)) {
+            m_resourceBytes = copy(bytes);
+            m_resource = new Resource(utf8(bytes));
+        }
+        return m_resource;
+    }
+
+    private String name(ByteBuffer bytes) {
+        String name = m_names.get(bytes);
+        if (name == null) {
+            name = utf8(bytes);
+            m_names.put(copy(bytes), name);
+        }
+        return name;
+    }
+
+    private Map<String, String> attributes(Row row) {
+        ByteBuffer bytes = row.getBytesUnsafe(SchemaConstants.F_ATTRIBUTES);
+
+        // A null (or empty) value, or a map of no entries (the count, zero, alone)
+        if (bytes == null || !bytes.hasRemaining() || (bytes.remaining() == 4 && bytes.getInt(bytes.position()) == 0)) {
+            return Collections.emptyMap();
+        }
+
+        if (m_attributes == null || !bytes.equals(m_attributeBytes)) {
+            m_attributeBytes = copy(bytes);
+            m_attributes = Collections.unmodifiableMap(ATTRIBUTES.decode(bytes, row.protocolVersion()));
+        }
+        return m_attributes;
+    }
+
+    private static String utf8(ByteBuffer bytes) {
+        return StandardCharsets.UTF_8.decode(bytes.duplicate()).toString();
+    }
+
+    private static ByteBuffer copy(ByteBuffer bytes) {
+        ByteBuffer copy = ByteBuffer.allocate(bytes.remaining());
+        copy.put(bytes.duplicate()).flip();
+        return copy;
+    }
+
+}
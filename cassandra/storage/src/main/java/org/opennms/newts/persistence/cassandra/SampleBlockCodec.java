@@ -0,0 +1,266 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.opennms.newts.api.MetricType;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Sample;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.api.ValueType;
+
+import com.google.common.collect.Lists;
+
+
+/**
+ * Encodes the samples of a single metric into a compact block, in the style of Facebook's Gorilla.
+ * Timestamps are stored as delta-of-deltas, gauge values as the XOR of consecutive values, and
+ * counter values (counters, derives, and absolutes) as delta-of-deltas; Each in a variable number
+ * of bits. Regularly collected samples typically cost 2 bits for the timestamp and a handful for
+ * the value, against the 20+ bytes of a row in the samples table.
+ *
+ * <p>
+ * Layout: version (1 byte), metric type code (1 byte), sample count (4 bytes), followed by the
+ * bit-packed (timestamp, value) pairs.
+ * </p>
+ */
+final class SampleBlockCodec {
+
+    private static final byte VERSION = 1;
+
+    private SampleBlockCodec() {}
+
+    /**
+     * Encodes the given samples, which must be of the same metric and type, and sorted by
+     * timestamp.
+     */
+    static ByteBuffer encode(List<Sample> samples) {
+        checkArgument(!samples.isEmpty(), "no samples to encode");
+
+        MetricType type = samples.get(0).getType();
+        BitOutput out = new BitOutput(samples.size() * 4 + 16);
+
+        long prevTime = 0, prevTimeDelta = 0;
+        long prevBits = 0, prevValueDelta = 0;
+        int prevLeading = Integer.MAX_VALUE, prevTrailing = 0;
+
+        for (int i = 0; i < samples.size(); i++) {
+            Sample sample = samples.get(i);
+            checkArgument(sample.getType() == type, "mixed metric types");
+
+            long time = sample.getTimestamp().asMillis();
+            long bits = (type == MetricType.GAUGE) ? Double.doubleToRawLongBits(sample.getValue().doubleValue()) : sample.getValue().longValue();
+
+            if (i == 0) {
+                out.write(time, 64);
+                out.write(bits, 64);
+            }
+            else {
+                long timeDelta = time - prevTime;
+                checkArgument(timeDelta >= 0, "samples not sorted by timestamp");
+                writeVariable(out, zigZag(timeDelta - prevTimeDelta));
+                prevTimeDelta = timeDelta;
+
+                if (type == MetricType.GAUGE) {
+                    long xor = bits ^ prevBits;
+                    if (xor == 0) {
+                        out.write(0, 1);
+                    }
+                    else {
+                        int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+                        int trailing = Long.numberOfTrailingZeros(xor);
+
+                        // Reuse the previous window when the meaningful bits fit within it
+                        if (leading >= prevLeading && trailing >= prevTrailing) {
+                            out.write(0b10, 2);
+                            out.write(xor >>> prevTrailing, 64 - prevLeading - prevTrailing);
+                        }
+                        else {
+                            int length = 64 - leading - trailing;
+                            out.write(0b11, 2);
+                            out.write(leading, 5);
+                            out.write(length - 1, 6);
+                            out.write(xor >>> trailing, length);
+                            prevLeading = leading;
+                            prevTrailing = trailing;
+                        }
+                    }
+                }
+                else {
+                    long valueDelta = bits - prevBits;
+                    writeVariable(out, zigZag(valueDelta - prevValueDelta));
+                    prevValueDelta = valueDelta;
+                }
+            }
+
+            prevTime = time;
+            prevBits = bits;
+        }
+
+        byte[] packed = out.toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(6 + packed.length);
+        buffer.put(VERSION).put(type.getCode()).putInt(samples.size()).put(packed);
+        buffer.flip();
+
+        return buffer;
+    }
+
+    /**
+     * Decodes a block encoded by {@link #encode(List)}.
+     */
+    static List<Sample> decode(ByteBuffer block, Resource resource, String metric, Map<String, String> attributes) {
+        ByteBuffer buffer = block.duplicate();
+
+        byte version = buffer.get();
+        checkArgument(version == VERSION, "unsupported block version: %s", version);
+
+        MetricType type = MetricType.fromCode(buffer.get());
+        int count = buffer.getInt();
+        BitInput in = new BitInput(buffer);
+
+        List<Sample> samples = Lists.newArrayListWithCapacity(count);
+
+        long time = 0, timeDelta = 0;
+        long bits = 0, valueDelta = 0;
+        int leading = 0, trailing = 0;
+
+        for (int i = 0; i < count; i++) {
+            if (i == 0) {
+                time = in.read(64);
+                bits = in.read(64);
+            }
+            else {
+                timeDelta += unZigZag(readVariable(in));
+                time += timeDelta;
+
+                if (type == MetricType.GAUGE) {
+                    if (in.read(1) != 0) {
+                        if (in.read(1) != 0) {
+                            leading = (int) in.read(5);
+                            trailing = 64 - leading - ((int) in.read(6) + 1);
+                        }
+                        bits ^= in.read(64 - leading - trailing) << trailing;
+                    }
+                }
+                else {
+                    valueDelta += unZigZag(readVariable(in));
+                    bits += valueDelta;
+                }
+            }
+
+            ValueType<?> value = (type == MetricType.GAUGE) ? ValueType.compose(Double.longBitsToDouble(bits), type) : ValueType.compose(bits, type);
+            samples.add(new Sample(Timestamp.fromEpochMillis(time), resource, metric, type, value, attributes));
+        }
+
+        return samples;
+    }
+
+    // Prefix code: 0 | 10 + 14 bits | 110 + 20 bits | 1110 + 32 bits | 1111 + 64 bits
+    private static void writeVariable(BitOutput out, long value) {
+        if (value == 0) {
+            out.write(0, 1);
+        }
+        else if ((value >>> 14) == 0) {
+            out.write(0b10, 2);
+            out.write(value, 14);
+        }
+        else if ((value >>> 20) == 0) {
+            out.write(0b110, 3);
+            out.write(value, 20);
+        }
+        else if ((value >>> 32) == 0) {
+            out.write(0b1110, 4);
+            out.write(value, 32);
+        }
+        else {
+            out.write(0b1111, 4);
+            out.write(value, 64);
+        }
+    }
+
+    private static long readVariable(BitInput in) {
+        if (in.read(1) == 0) return 0;
+        if (in.read(1) == 0) return in.read(14);
+        if (in.read(1) == 0) return in.read(20);
+        if (in.read(1) == 0) return in.read(32);
+        return in.read(64);
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /** Big-endian bit writer. */
+    private static class BitOutput {
+        private byte[] m_bytes;
+        private long m_position = 0;
+
+        private BitOutput(int capacity) {
+            m_bytes = new byte[Math.max(capacity, 16)];
+        }
+
+        private void write(long value, int bits) {
+            for (int i = bits - 1; i >= 0; i--) {
+                int index = (int) (m_position >>> 3);
+                if (index == m_bytes.length) {
+                    m_bytes = Arrays.copyOf(m_bytes, m_bytes.length * 2);
+                }
+                if (((value >>> i) & 1) != 0) {
+                    m_bytes[index] |= (byte) (0x80 >>> (m_position & 7));
+                }
+                m_position++;
+            }
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(m_bytes, (int) ((m_position + 7) >>> 3));
+        }
+    }
+
+    /** Big-endian bit reader. */
+    private static class BitInput {
+        private final ByteBuffer m_buffer;
+        private final int m_offset;
+        private long m_position = 0;
+
+        private BitInput(ByteBuffer buffer) {
+            m_buffer = buffer;
+            m_offset = buffer.position();
+        }
+
+        private long read(int bits) {
+            long value = 0;
+            for (int i = 0; i < bits; i++) {
+                int b = m_buffer.get(m_offset + (int) (m_position >>> 3));
+                value = (value << 1) | ((b >>> (7 - (m_position & 7))) & 1);
+                m_position++;
+            }
+            return value;
+        }
+    }
+
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.datastax.oss.driver.api.querybuilder.QueryBuilder.bindMarker;
+import static com.datastax.oss.driver.api.querybuilder.QueryBuilder.deleteFrom;
+import static com.datastax.oss.driver.api.querybuilder.QueryBuilder.insertInto;
+import static com.datastax.oss.driver.api.querybuilder.QueryBuilder.selectFrom;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.newts.aggregate.IntervalGenerator;
+import org.opennms.newts.api.Context;
+import org.opennms.newts.api.Duration;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Sample;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.api.ValueType;
+import org.opennms.newts.cassandra.CassandraSession;
+import org.opennms.newts.cassandra.ContextConfigurations;
+import org.opennms.newts.cassandra.SampleLayout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.oss.driver.api.core.cql.BatchStatement;
+import com.datastax.oss.driver.api.core.cql.BatchStatementBuilder;
+import com.datastax.oss.driver.api.core.cql.DefaultBatchType;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.Row;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+
+/**
+ * Compacts closed time windows of the {@code samples} table into {@code sample_blocks}, one block
+ * for each metric (see {@link SampleBlockCodec}).
+ *
+ * <p>
+ * Windows are {@code blockSize} wide, and aligned to the epoch. A window is considered closed once
+ * samples arrive for the window after next, leaving a full window's grace for late samples;
+ * Inserts schedule the compaction of the windows they close, which then runs in the background.
+ * </p>
+ *
+ * <p>
+ * A window's rows are removed with a range tombstone timestamped from <em>before</em> they were
+ * read, so samples written to the window while it is being compacted are left in place (and are
+ * merged with the blocks at read time, and into them by any later compaction). A window is left as
+ * it is if the attributes or the type of a metric vary within it, since a block records these once.
+ * </p>
+ *
+ * <p>
+ * Contexts with the {@link SampleLayout#METRIC_FIRST} layout are not compacted; Their samples are
+ * already stored a metric at a time.
+ * </p>
+ */
+class SampleBlockCompactor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SampleBlockCompactor.class);
+
+    private static final int MAX_TRACKED_WINDOWS = 100000;
+    private static final int MAX_QUEUED_WINDOWS = 10000;
+
+    private final CassandraSession m_session;
+    private final ContextConfigurations m_contextConfigurations;
+    private final Duration m_blockSize;
+    private final int m_ttl;
+    private final ThreadPoolExecutor m_executor;
+    private final ConcurrentMap<Window, Boolean> m_scheduled;
+
+    private final PreparedStatement m_selectRows;
+    private final PreparedStatement m_selectBlocks;
+    private final PreparedStatement m_insertBlock;
+    private final PreparedStatement m_deleteRows;
+
+    private final Meter m_windowsCompacted;
+    private final Meter m_windowsSkipped;
+    private final Meter m_windowsFailed;
+    private final Meter m_windowsDropped;
+    private final Meter m_samplesCompacted;
+
+    SampleBlockCompactor(CassandraSession session, ContextConfigurations contextConfigurations, Duration blockSize, int ttl, MetricRegistry registry) {
+        this(session, contextConfigurations, blockSize, ttl, MAX_QUEUED_WINDOWS, registry);
+    }
+
+    SampleBlockCompactor(CassandraSession session, ContextConfigurations contextConfigurations, Duration blockSize, int ttl, int maxQueued, MetricRegistry registry) {
+        m_session = checkNotNull(session, "session argument");
+        m_contextConfigurations = checkNotNull(contextConfigurations, "contextConfigurations argument");
+        m_blockSize = checkNotNull(blockSize, "blockSize argument");
+        checkArgument(ttl >= 0, "Negative Cassandra column TTL");
+        m_ttl = ttl;
+
+        // Windows beyond the queue's capacity are rejected (and dropped, or failed), never silently discarded
+        m_executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(maxQueued),
+                new ThreadFactoryBuilder().setNameFormat("newts-compactor-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.AbortPolicy());
+        m_executor.allowCoreThreadTimeOut(true);
+        m_scheduled = CacheBuilder.newBuilder().maximumSize(MAX_TRACKED_WINDOWS).<Window, Boolean>build().asMap();
+
+        m_selectRows = m_session.prepare(selectFrom(SchemaConstants.T_SAMPLES)
+                .columns(SchemaConstants.F_VALUE, SchemaConstants.F_METRIC_NAME, SchemaConstants.F_COLLECTED, SchemaConstants.F_RESOURCE, SchemaConstants.F_ATTRIBUTES)
+                .whereColumn(SchemaConstants.F_CONTEXT).isEqualTo(bindMarker(SchemaConstants.F_CONTEXT))
+                .whereColumn(SchemaConstants.F_PARTITION).isEqualTo(bindMarker(SchemaConstants.F_PARTITION))
+                .whereColumn(SchemaConstants.F_RESOURCE).isEqualTo(bindMarker(SchemaConstants.F_RESOURCE))
+                .whereColumn(SchemaConstants.F_COLLECTED).isGreaterThanOrEqualTo(bindMarker("start"))
+                .whereColumn(SchemaConstants.F_COLLECTED).isLessThan(bindMarker("end"))
+                .asCql());
+
+        m_selectBlocks = m_session.prepare(selectFrom(SchemaConstants.T_SAMPLE_BLOCKS)
+                .columns(SchemaConstants.F_BLOCK_START, SchemaConstants.F_METRIC_NAME, SchemaConstants.F_RESOURCE, SchemaConstants.F_DATA, SchemaConstants.F_ATTRIBUTES)
+                .whereColumn(SchemaConstants.F_CONTEXT).isEqualTo(bindMarker(SchemaConstants.F_CONTEXT))
+                .whereColumn(SchemaConstants.F_PARTITION).isEqualTo(bindMarker(SchemaConstants.F_PARTITION))
+                .whereColumn(SchemaConstants.F_RESOURCE).isEqualTo(bindMarker(SchemaConstants.F_RESOURCE))
+                .whereColumn(SchemaConstants.F_BLOCK_START).isEqualTo(bindMarker(SchemaConstants.F_BLOCK_START))
+                .asCql());
+
+        m_insertBlock = m_session.prepare(insertInto(SchemaConstants.T_SAMPLE_BLOCKS)
+                .value(SchemaConstants.F_CONTEXT, bindMarker(SchemaConstants.F_CONTEXT))
+                .value(SchemaConstants.F_PARTITION, bindMarker(SchemaConstants.F_PARTITION))
+                .value(SchemaConstants.F_RESOURCE, bindMarker(SchemaConstants.F_RESOURCE))
+                .value(SchemaConstants.F_BLOCK_START, bindMarker(SchemaConstants.F_BLOCK_START))
+                .value(SchemaConstants.F_METRIC_NAME, bindMarker(SchemaConstants.F_METRIC_NAME))
+                .value(SchemaConstants.F_SAMPLE_COUNT, bindMarker(SchemaConstants.F_SAMPLE_COUNT))
+                .value(SchemaConstants.F_DATA, bindMarker(SchemaConstants.F_DATA))
+                .value(SchemaConstants.F_ATTRIBUTES, bindMarker(SchemaConstants.F_ATTRIBUTES))
+                .usingTtl(bindMarker(SampleInserter.TTL_MARKER))
+                .asCql());
+
+        m_deleteRows = m_session.prepare(deleteFrom(SchemaConstants.T_SAMPLES)
+                .usingTimestamp(bindMarker("timestamp"))
+                .whereColumn(SchemaConstants.F_CONTEXT).isEqualTo(bindMarker(SchemaConstants.F_CONTEXT))
+                .whereColumn(SchemaConstants.F_PARTITION).isEqualTo(bindMarker(SchemaConstants.F_PARTITION))
+                .whereColumn(SchemaConstants.F_RESOURCE).isEqualTo(bindMarker(SchemaConstants.F_RESOURCE))
+                .whereColumn(SchemaConstants.F_COLLECTED).isGreaterThanOrEqualTo(bindMarker("start"))
+                .whereColumn(SchemaConstants.F_COLLECTED).isLessThan(bindMarker("end"))
+                .asCql());
+
+        checkNotNull(registry, "metric registry argument");
+        m_windowsCompacted = registry.meter(name("repository", "compactor", "windows-compacted"));
+        m_windowsSkipped = registry.meter(name("repository", "compactor", "windows-skipped"));
+        m_windowsFailed = registry.meter(name("repository", "compactor", "windows-failed"));
+        m_windowsDropped = registry.meter(name("repository", "compactor", "windows-dropped"));
+        m_samplesCompacted = registry.meter(name("repository", "compactor", "samples-compacted"));
+        registry.gauge(name("repository", "compactor", "windows-queued"), () -> () -> m_executor.getQueue().size());
+    }
+
+    /**
+     * Schedules the compaction of any windows closed by the arrival of these samples.
+     */
+    void samplesInserted(Collection<Sample> samples) {
+        long width = m_blockSize.asMillis();
+
+        for (Sample sample : samples) {
+            if (!isCompacted(sample.getContext())) {
+                continue;
+            }
+
+            Timestamp closed = sample.getTimestamp().stepFloor(m_blockSize).minus(width * 2, TimeUnit.MILLISECONDS);
+            Window window = new Window(sample.getContext(), sample.getResource(), closed);
+
+            if (m_scheduled.putIfAbsent(window, Boolean.TRUE) == null) {
+                try {
+                    m_executor.execute(() -> {
+                        try {
+                            compact(window);
+                        }
+                        catch (RuntimeException e) {
+                            LOG.warn("Unable to compact {} of resource {}", window.m_start, window.m_resource, e);
+                            m_windowsFailed.mark();
+                            m_scheduled.remove(window);
+                        }
+                    });
+                }
+                catch (RejectedExecutionException e) {
+                    // Too many queued; Forgotten, so that a later sample can schedule it again
+                    LOG.debug("Compaction queue full; Dropped {} of resource {}", window.m_start, window.m_resource);
+                    m_windowsDropped.mark();
+                    m_scheduled.remove(window);
+                }
+            }
+        }
+    }
+
+    /** Stops compacting; Windows already queued are compacted all the same. */
+    void close() {
+        m_executor.shutdown();
+    }
+
+    /**
+     * Compacts the closed windows between start and end.
+     *
+     * @return a future completed with the number of samples compacted
+     */
+    CompletableFuture<Integer> compact(Context context, Resource resource, Timestamp start, Timestamp end) {
+        Timestamp closedBefore = Timestamp.now().stepFloor(m_blockSize).minus(m_blockSize);
+
+        if (!isCompacted(context)) {
+            return CompletableFuture.completedFuture(0);
+        }
+
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                int compacted = 0;
+                for (Timestamp window : new IntervalGenerator(start.stepFloor(m_blockSize), end.stepFloor(m_blockSize), m_blockSize)) {
+                    if (window.lt(closedBefore)) {
+                        compacted += compact(new Window(context, resource, window));
+                    }
+                }
+                return compacted;
+            }, m_executor);
+        }
+        catch (RejectedExecutionException e) {
+            CompletableFuture<Integer> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(e);
+            return rejected;
+        }
+    }
+
+    /** Whether the samples of the context are compacted into blocks. */
+    boolean isCompacted(Context context) {
+        return m_contextConfigurations.getSampleLayout(context) == SampleLayout.TIME_FIRST;
+    }
+
+    private int compact(Window window) {
+        // Tombstone timestamp (micros); Taken before reading, so that concurrent writes survive the delete
+        long timestamp = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+
+        Timestamp end = window.m_start.plus(m_blockSize);
+        int partition = (int) window.m_start.stepFloor(m_contextConfigurations.getResourceShard(window.m_context)).asSeconds();
+
+        int ttl = 0;
+        if (m_ttl > 0) {
+            // Expire along with the newest sample the block could hold
+            ttl = m_ttl - (int) Timestamp.now().minus(end).asSeconds();
+            if (ttl <= 0) {
+                return 0;
+            }
+        }
+
+        Map<String, Map<Timestamp, Sample>> metrics = Maps.newTreeMap();
+
+        // Existing blocks (compacted earlier, with samples that arrived late since)
+        for (Row row : m_session.execute(m_selectBlocks.bind()
+                .setString(SchemaConstants.F_CONTEXT, window.m_context.getId())
+                .setInt(SchemaConstants.F_PARTITION, partition)
+                .setString(SchemaConstants.F_RESOURCE, window.m_resource.getId())
+                .setInstant(SchemaConstants.F_BLOCK_START, window.m_start.asDate().toInstant())
+                .setConsistencyLevel(m_contextConfigurations.getReadConsistency(window.m_context)))) {
+            String metric = row.getString(SchemaConstants.F_METRIC_NAME);
+            for (Sample sample : SampleBlockCodec.decode(row.getByteBuffer(SchemaConstants.F_DATA), window.m_resource, metric,
+                    row.getMap(SchemaConstants.F_ATTRIBUTES, String.class, String.class))) {
+                metrics.computeIfAbsent(metric, k -> Maps.newTreeMap()).put(sample.getTimestamp(), sample);
+            }
+        }
+
+        int rows = 0;
+        for (Row row : m_session.execute(m_selectRows.bind()
+                .setString(SchemaConstants.F_CONTEXT, window.m_context.getId())
+                .setInt(SchemaConstants.F_PARTITION, partition)
+                .setString(SchemaConstants.F_RESOURCE, window.m_resource.getId())
+                .setInstant("start", window.m_start.asDate().toInstant())
+                .setInstant("end", end.asDate().toInstant())
+                .setConsistencyLevel(m_contextConfigurations.getReadConsistency(window.m_context)))) {
+            String metric = row.getString(SchemaConstants.F_METRIC_NAME);
+            ValueType<?> value = ValueType.compose(row.getByteBuffer(SchemaConstants.F_VALUE));
+            Timestamp collected = Timestamp.fromEpochMillis(row.getInstant(SchemaConstants.F_COLLECTED).toEpochMilli());
+            Sample sample = new Sample(collected, window.m_resource, metric, value.getType(), value,
+                    row.getMap(SchemaConstants.F_ATTRIBUTES, String.class, String.class));
+            metrics.computeIfAbsent(metric, k -> Maps.newTreeMap()).put(collected, sample);
+            rows++;
+        }
+
+        if (rows == 0) {
+            return 0;
+        }
+
+        BatchStatementBuilder batch = BatchStatement.builder(DefaultBatchType.UNLOGGED);
+        int samples = 0;
+
+        for (Map.Entry<String, Map<Timestamp, Sample>> entry : metrics.entrySet()) {
+            List<Sample> series = Lists.newArrayList(entry.getValue().values());
+
+            if (!isUniform(series)) {
+                LOG.debug("Not compacting {} of resource {}; Type or attributes of {} vary", window.m_start, window.m_resource, entry.getKey());
+                m_windowsSkipped.mark();
+                return 0;
+            }
+
+            batch.addStatement(m_insertBlock.bind()
+                    .setString(SchemaConstants.F_CONTEXT, window.m_context.getId())
+                    .setInt(SchemaConstants.F_PARTITION, partition)
+                    .setString(SchemaConstants.F_RESOURCE, window.m_resource.getId())
+                    .setInstant(SchemaConstants.F_BLOCK_START, window.m_start.asDate().toInstant())
+                    .setString(SchemaConstants.F_METRIC_NAME, entry.getKey())
+                    .setInt(SchemaConstants.F_SAMPLE_COUNT, series.size())
+                    .setByteBuffer(SchemaConstants.F_DATA, SampleBlockCodec.encode(series))
+                    .setMap(SchemaConstants.F_ATTRIBUTES, attributes(series.get(0)), String.class, String.class)
+                    .setInt(SampleInserter.TTL_MARKER, ttl));
+            samples += series.size();
+        }
+
+        m_session.execute(batch.setConsistencyLevel(m_contextConfigurations.getWriteConsistency(window.m_context)).build());
+
+        m_session.execute(m_deleteRows.bind()
+                .setLong("timestamp", timestamp)
+                .setString(SchemaConstants.F_CONTEXT, window.m_context.getId())
+                .setInt(SchemaConstants.F_PARTITION, partition)
+                .setString(SchemaConstants.F_RESOURCE, window.m_resource.getId())
+                .setInstant("start", window.m_start.asDate().toInstant())
+                .setInstant("end", end.asDate().toInstant())
+                .setConsistencyLevel(m_contextConfigurations.getWriteConsistency(window.m_context)));
+
+        LOG.debug("Compacted {} sample(s) ({} row(s)) of resource {} at {}", samples, rows, window.m_resource, window.m_start);
+        m_windowsCompacted.mark();
+        m_samplesCompacted.mark(rows);
+
+        return rows;
+    }
+
+    private static boolean isUniform(List<Sample> series) {
+        Sample first = series.get(0);
+        for (Sample sample : series) {
+            if (sample.getType() != first.getType() || !attributes(sample).equals(attributes(first))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Map<String, String> attributes(Sample sample) {
+        return sample.getAttributes() != null ? sample.getAttributes() : Collections.<String, String> emptyMap();
+    }
+
+    /** A resource's block window. */
+    private static class Window {
+        private final Context m_context;
+        private final Resource m_resource;
+        private final Timestamp m_start;
+
+        private Window(Context context, Resource resource, Timestamp start) {
+            m_context = context;
+            m_resource = resource;
+            m_start = start;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Window)) return false;
+            Window other = (Window) o;
+            return m_start.equals(other.m_start) && m_resource.getId().equals(other.m_resource.getId()) && m_context.equals(other.m_context);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(m_context, m_resource.getId(), m_start);
+        }
+    }
+
+}
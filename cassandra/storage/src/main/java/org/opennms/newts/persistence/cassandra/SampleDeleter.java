@@ -0,0 +1,346 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.datastax.oss.driver.api.querybuilder.QueryBuilder.bindMarker;
+import static com.datastax.oss.driver.api.querybuilder.QueryBuilder.deleteFrom;
+import static com.datastax.oss.driver.api.querybuilder.QueryBuilder.selectFrom;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opennms.newts.aggregate.IntervalGenerator;
+import org.opennms.newts.api.Context;
+import org.opennms.newts.api.Duration;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.cassandra.CassandraSession;
+import org.opennms.newts.cassandra.ContextConfigurations;
+import org.opennms.newts.cassandra.SampleLayout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+
+/**
+ * Deletes the samples of resources, a (shard) partition at a time.
+ *
+ * <p>
+ * Rather than reading samples to discover where a resource has data, each candidate partition is
+ * probed with a single-row point read, and only those that turn out to hold data are deleted (which
+ * also avoids writing partition tombstones where there is nothing to delete). Probes go through the
+ * shared read {@link RequestScheduler}, and deletes through a scheduler of their own, so a deletion
+ * never places more than a bounded load on the cluster.
+ * </p>
+ *
+ * <p>
+ * With a TTL, the candidate partitions are those within the TTL of the present. Without one,
+ * partitions are probed a window ({@value #DELETION_INTERVAL} days) at a time, working backwards
+ * from the present, until a window without any data is found.
+ * </p>
+ *
+ * <p>
+ * With block storage, a partition of {@code sample_blocks} is probed, and deleted, along with
+ * each partition of {@code samples}.
+ * </p>
+ *
+ * <p>
+ * Contexts with the {@link SampleLayout#METRIC_FIRST} layout are probed (and deleted) in
+ * {@code samples_by_metric}, rather than {@code samples}.
+ * </p>
+ *
+ * <p>
+ * With rollups, a resource's rollups are deleted once its samples are.
+ * </p>
+ *
+ * <p>
+ * With the shard index, only the partitions the resource is indexed as having written to are
+ * probed; The index entries are deleted last. Without a TTL, every indexed partition is deleted,
+ * however far apart they are, rather than searching backwards for them; Only partitions that began
+ * before the index was enabled are searched for (by window, as above).
+ * </p>
+ */
+class SampleDeleter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SampleDeleter.class);
+
+    static final int DELETION_INTERVAL = 360;
+
+    private final CassandraSession m_session;
+    private final ContextConfigurations m_contextConfigurations;
+    private final RequestScheduler m_reads;
+    private final RequestScheduler m_deletes;
+    private final int m_ttl;
+    private final int m_jobConcurrency;
+    private final SampleRollups m_rollups;
+    private final ShardIndex m_shardIndex;
+    private final boolean m_blocks;
+    private final Map<String, Supplier<PreparedStatement>> m_probeStatements = Maps.newHashMap();
+    private final Map<String, Supplier<PreparedStatement>> m_deleteStatements = Maps.newHashMap();
+
+    private final Meter m_partitionsProbed;
+    private final Meter m_partitionsDeleted;
+    private final Meter m_resourcesDeleted;
+    private final AtomicInteger m_resourcesPending = new AtomicInteger(0);
+
+    SampleDeleter(CassandraSession session, ContextConfigurations contextConfigurations, RequestScheduler reads,
+            RequestScheduler deletes, int ttl, int jobConcurrency, MetricRegistry registry) {
+        this(session, contextConfigurations, reads, deletes, ttl, jobConcurrency, false, null, null, registry);
+    }
+
+    SampleDeleter(CassandraSession session, ContextConfigurations contextConfigurations, RequestScheduler reads,
+            RequestScheduler deletes, int ttl, int jobConcurrency, boolean blocks, SampleRollups rollups, ShardIndex shardIndex,
+            MetricRegistry registry) {
+        m_session = checkNotNull(session, "session argument");
+        m_contextConfigurations = checkNotNull(contextConfigurations, "contextConfigurations argument");
+        m_reads = checkNotNull(reads, "reads argument");
+        m_deletes = checkNotNull(deletes, "deletes argument");
+        checkArgument(ttl >= 0, "Negative Cassandra column TTL");
+        m_ttl = ttl;
+        checkArgument(jobConcurrency > 0, "jobConcurrency must be positive");
+        m_jobConcurrency = jobConcurrency;
+        m_rollups = rollups;
+        m_shardIndex = shardIndex;
+        m_blocks = blocks;
+
+        // Statements are prepared on first use; Tables of layouts not in use need not exist
+        for (String table : ImmutableList.of(SchemaConstants.T_SAMPLES, SchemaConstants.T_SAMPLES_BY_METRIC, SchemaConstants.T_SAMPLE_BLOCKS)) {
+            m_probeStatements.put(table, Suppliers.memoize(() -> m_session.prepare(selectFrom(table).column(SchemaConstants.F_RESOURCE)
+                    .whereColumn(SchemaConstants.F_CONTEXT).isEqualTo(bindMarker(SchemaConstants.F_CONTEXT))
+                    .whereColumn(SchemaConstants.F_PARTITION).isEqualTo(bindMarker(SchemaConstants.F_PARTITION))
+                    .whereColumn(SchemaConstants.F_RESOURCE).isEqualTo(bindMarker(SchemaConstants.F_RESOURCE))
+                    .limit(1)
+                    .asCql())));
+
+            m_deleteStatements.put(table, Suppliers.memoize(() -> m_session.prepare(deleteFrom(table)
+                    .whereColumn(SchemaConstants.F_CONTEXT).isEqualTo(bindMarker(SchemaConstants.F_CONTEXT))
+                    .whereColumn(SchemaConstants.F_PARTITION).isEqualTo(bindMarker(SchemaConstants.F_PARTITION))
+                    .whereColumn(SchemaConstants.F_RESOURCE).isEqualTo(bindMarker(SchemaConstants.F_RESOURCE))
+                    .asCql())));
+        }
+
+        checkNotNull(registry, "metric registry argument");
+        m_partitionsProbed = registry.meter(name("repository", "deleter", "partitions-probed"));
+        m_partitionsDeleted = registry.meter(name("repository", "deleter", "partitions-deleted"));
+        m_resourcesDeleted = registry.meter(name("repository", "deleter", "resources-deleted"));
+        registry.gauge(name("repository", "deleter", "resources-pending"), () -> m_resourcesPending::get);
+    }
+
+    /**
+     * Deletes all samples of a resource.
+     *
+     * @return a future completed with the number of partitions deleted
+     */
+    CompletableFuture<Integer> delete(Context context, Resource resource) {
+        Timestamp now = Timestamp.now();
+
+        // Indexed partitions are read up front (from the index, not the cache)
+        CompletableFuture<Void> indexed = (m_shardIndex != null) ? m_shardIndex.refresh(context, resource) : CompletableFuture.completedFuture(null);
+
+        CompletableFuture<Integer> result;
+        if (m_ttl > 0) {
+            // Delete exactly from (now - ttl) till now
+            result = indexed.thenCompose(v -> deleteWindow(context, resource, now.minus(m_ttl, TimeUnit.SECONDS), now));
+        }
+        else if (m_shardIndex != null) {
+            result = indexed.thenCompose(v -> deleteIndexed(context, resource, now));
+        }
+        else {
+            result = indexed.thenCompose(v -> deleteBackwards(context, resource, now.minus(DELETION_INTERVAL, TimeUnit.DAYS), now, 0));
+        }
+
+        if (m_shardIndex != null) {
+            result = result.thenCompose(deleted -> m_shardIndex.delete(context, resource).thenApply(v -> deleted));
+        }
+
+        if (m_rollups != null) {
+            result = result.thenCompose(deleted -> m_rollups.delete(context, resource).thenApply(v -> deleted));
+        }
+
+        return result.whenComplete((deleted, e) -> {
+            if (e == null) {
+                LOG.debug("Deleted {} partition(s) of resource {}", deleted, resource);
+                m_resourcesDeleted.mark();
+            }
+        });
+    }
+
+    /**
+     * Deletes all samples of a number of resources, no more than {@code jobConcurrency} resources
+     * at a time.
+     */
+    DeletionJob delete(Context context, Collection<Resource> resources) {
+        List<Resource> queue = ImmutableList.copyOf(resources);
+        DeletionJob job = new DeletionJob(queue.size());
+        Iterator<Resource> remaining = queue.iterator();
+
+        m_resourcesPending.addAndGet(queue.size());
+
+        for (int i = 0; i < Math.min(m_jobConcurrency, queue.size()); i++) {
+            deleteNext(context, remaining, job);
+        }
+
+        return job;
+    }
+
+    private void deleteNext(Context context, Iterator<Resource> remaining, DeletionJob job) {
+        Resource resource;
+        synchronized (remaining) {
+            if (!remaining.hasNext()) {
+                return;
+            }
+            resource = remaining.next();
+        }
+
+        delete(context, resource).whenComplete((deleted, e) -> {
+            m_resourcesPending.decrementAndGet();
+
+            if (e != null) {
+                LOG.warn("Unable to delete samples of resource {}", resource, e);
+                job.resourceFailed(e);
+            }
+            else {
+                job.resourceDeleted(deleted);
+            }
+
+            deleteNext(context, remaining, job);
+        });
+    }
+
+    /**
+     * Deletes every partition indexed for the resource (and the current one), then searches for
+     * those that began before the index was enabled.
+     */
+    private CompletableFuture<Integer> deleteIndexed(Context context, Resource resource, Timestamp now) {
+        // A window ending before a gap would leave the partitions beyond it (and, once the index
+        // entries are deleted, orphan them); So the range is that of the index
+        Timestamp first = m_shardIndex.first(context, resource);
+        CompletableFuture<Integer> result = deleteWindow(context, resource, (first != null && first.lt(now)) ? first : now, now);
+
+        Timestamp since = m_shardIndex.getSince();
+        if (since == null) {
+            return result;
+        }
+
+        // The partition that since falls in, and those before it, are not indexed
+        Timestamp end = since.minus(1, TimeUnit.MILLISECONDS);
+        return result.thenCompose(deleted -> deleteBackwards(context, resource, end.minus(DELETION_INTERVAL, TimeUnit.DAYS), end, deleted));
+    }
+
+    private CompletableFuture<Integer> deleteBackwards(Context context, Resource resource, Timestamp start, Timestamp end, int deletedSoFar) {
+        return deleteWindow(context, resource, start, end).thenCompose(deleted -> {
+            if (deleted == 0) {
+                return CompletableFuture.completedFuture(deletedSoFar);
+            }
+            return deleteBackwards(context, resource, start.minus(DELETION_INTERVAL, TimeUnit.DAYS), start, deletedSoFar + deleted);
+        });
+    }
+
+    /** Deletes the partitions between start and end that hold data. */
+    private CompletableFuture<Integer> deleteWindow(Context context, Resource resource, Timestamp start, Timestamp end) {
+        List<CompletableFuture<Integer>> futures = Lists.newArrayList();
+        for (Timestamp partition : partitions(context, resource, start, end)) {
+            futures.add(probe(context, resource, partition).thenCompose(exists -> {
+                if (!exists) {
+                    return CompletableFuture.completedFuture(0);
+                }
+                return deletePartition(context, resource, partition).thenApply(v -> 1);
+            }));
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            int deleted = 0;
+            for (CompletableFuture<Integer> future : futures) {
+                deleted += future.join();
+            }
+            return deleted;
+        });
+    }
+
+    private Iterable<Timestamp> partitions(Context context, Resource resource, Timestamp start, Timestamp end) {
+        if (m_shardIndex != null) {
+            return m_shardIndex.partitions(context, resource, start, end);
+        }
+
+        Duration resourceShard = m_contextConfigurations.getResourceShard(context);
+        return new IntervalGenerator(start.stepFloor(resourceShard), end.stepFloor(resourceShard), resourceShard);
+    }
+
+    /** The tables holding samples of the context. */
+    private List<String> tables(Context context) {
+        String samples = SchemaConstants.samplesTable(m_contextConfigurations.getSampleLayout(context));
+        return m_blocks ? ImmutableList.of(samples, SchemaConstants.T_SAMPLE_BLOCKS) : ImmutableList.of(samples);
+    }
+
+    private CompletableFuture<Boolean> probe(Context context, Resource resource, Timestamp partition) {
+        CompletableFuture<Boolean> exists = CompletableFuture.completedFuture(false);
+
+        // Tables are probed in turn; Those after the first only when the first is empty
+        for (String table : tables(context)) {
+            PreparedStatement probeStatement = m_probeStatements.get(table).get();
+            exists = exists.thenCompose(found -> {
+                if (found) {
+                    return CompletableFuture.completedFuture(true);
+                }
+                return m_reads.submit(() -> m_session.executeAsync(probeStatement.bind()
+                        .setString(SchemaConstants.F_CONTEXT, context.getId())
+                        .setInt(SchemaConstants.F_PARTITION, (int) partition.asSeconds())
+                        .setString(SchemaConstants.F_RESOURCE, resource.getId())
+                        .setConsistencyLevel(m_contextConfigurations.getReadConsistency(context))))
+                        .thenApply(rs -> {
+                            m_partitionsProbed.mark();
+                            return rs.currentPage().iterator().hasNext();
+                        });
+            });
+        }
+
+        return exists;
+    }
+
+    private CompletableFuture<Void> deletePartition(Context context, Resource resource, Timestamp partition) {
+        List<CompletableFuture<?>> futures = Lists.newArrayList();
+        for (String table : tables(context)) {
+            PreparedStatement deleteStatement = m_deleteStatements.get(table).get();
+            futures.add(m_deletes.submit(() -> m_session.executeAsync(deleteStatement.bind()
+                    .setString(SchemaConstants.F_CONTEXT, context.getId())
+                    .setInt(SchemaConstants.F_PARTITION, (int) partition.asSeconds())
+                    .setString(SchemaConstants.F_RESOURCE, resource.getId()))));
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            m_partitionsDeleted.mark();
+            return null;
+        });
+    }
+
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import static com.datastax.oss.driver.api.querybuilder.QueryBuilder.bindMarker;
+import static com.datastax.oss.driver.api.querybuilder.QueryBuilder.insertInto;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.opennms.newts.api.Context;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Sample;
+import org.opennms.newts.api.SampleBatch;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.api.ValueType;
+import org.opennms.newts.cassandra.CassandraException;
+import org.opennms.newts.cassandra.CassandraSession;
+import org.opennms.newts.cassandra.ContextConfigurations;
+import org.opennms.newts.cassandra.SampleLayout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.datastax.oss.driver.api.core.cql.BatchStatement;
+import com.datastax.oss.driver.api.core.cql.BatchStatementBuilder;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.DefaultBatchType;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.Statement;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+
+
+/**
+ * Writes samples using a single prepared statement. Samples are grouped by partition key
+ * (context, partition, resource) into single-partition batches of at most
+ * {@link CassandraStorageOptions#getMaxBatchSize()} statements, and the groups are sent
+ * concurrently, with no more than {@link CassandraStorageOptions#getMaxInFlightWrites()}
+ * requests outstanding at any one time (across all callers). Once that limit is reached, further
+ * requests are queued (see {@link RequestScheduler}) and sent as earlier ones complete; Callers
+ * never block, and producers that outpace the cluster are pushed back on through the returned
+ * futures.
+ *
+ * <p>
+ * Samples of contexts with the {@link SampleLayout#METRIC_FIRST} layout are written to
+ * {@code samples_by_metric} instead (its statement is only prepared once needed, so the table need
+ * not exist unless such a context is configured).
+ * </p>
+ */
+class SampleInserter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SampleInserter.class);
+
+    static final String TTL_MARKER = "ttl";
+
+    private final CassandraSession m_session;
+    private final ContextConfigurations m_contextConfigurations;
+    private final CassandraStorageOptions m_options;
+    private final PreparedStatement m_insertStatement;
+    private final Supplier<PreparedStatement> m_metricInsertStatement;
+    private final RequestScheduler m_scheduler;
+
+    SampleInserter(CassandraSession session, ContextConfigurations contextConfigurations, CassandraStorageOptions options) {
+        m_session = checkNotNull(session, "session argument");
+        m_contextConfigurations = checkNotNull(contextConfigurations, "contextConfigurations argument");
+        m_options = checkNotNull(options, "options argument");
+        m_scheduler = new RequestScheduler(m_options.getMaxInFlightWrites());
+
+        m_insertStatement = prepareInsert(SchemaConstants.T_SAMPLES);
+        m_metricInsertStatement = Suppliers.memoize(() -> prepareInsert(SchemaConstants.T_SAMPLES_BY_METRIC));
+    }
+
+    private PreparedStatement prepareInsert(String table) {
+        return m_session.prepare(insertInto(table)
+                .value(SchemaConstants.F_CONTEXT, bindMarker(SchemaConstants.F_CONTEXT))
+                .value(SchemaConstants.F_PARTITION, bindMarker(SchemaConstants.F_PARTITION))
+                .value(SchemaConstants.F_RESOURCE, bindMarker(SchemaConstants.F_RESOURCE))
+                .value(SchemaConstants.F_COLLECTED, bindMarker(SchemaConstants.F_COLLECTED))
+                .value(SchemaConstants.F_METRIC_NAME, bindMarker(SchemaConstants.F_METRIC_NAME))
+                .value(SchemaConstants.F_VALUE, bindMarker(SchemaConstants.F_VALUE))
+                .value(SchemaConstants.F_ATTRIBUTES, bindMarker(SchemaConstants.F_ATTRIBUTES))
+                .usingTtl(bindMarker(TTL_MARKER))
+                .asCql());
+    }
+
+    /**
+     * Writes the samples, blocking until every request has completed.
+     *
+     * @see #insertAsync(Collection, int, boolean)
+     * @throws CassandraException
+     *             if any of the writes fail
+     */
+    void insert(Collection<Sample> samples, int ttl, boolean calculateTimeToLive) {
+        try {
+            insertAsync(samples, ttl, calculateTimeToLive).join();
+        }
+        catch (CompletionException e) {
+            throw asCassandraException(e);
+        }
+    }
+
+    /**
+     * Writes the samples, without blocking; Requests beyond the in-flight limit are queued until
+     * earlier ones complete.
+     *
+     * @param samples
+     *            samples to write
+     * @param ttl
+     *            time-to-live (in seconds) to apply
+     * @param calculateTimeToLive
+     *            if true, the time-to-live is reduced by the age of each sample, and samples that
+     *            would already have expired are skipped
+     * @return a future that completes when all writes have succeeded, or exceptionally (with a
+     *         {@link CassandraException}) as soon as any of them fails
+     */
+    CompletableFuture<Void> insertAsync(Collection<Sample> samples, int ttl, boolean calculateTimeToLive) {
+
+        Timestamp now = Timestamp.now();
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        Map<PartitionKey, List<BoundStatement>> groups = new LinkedHashMap<>();
+
+        try {
+            for (Sample sample : samples) {
+                int sampleTtl = ttl;
+                if (calculateTimeToLive) {
+                    sampleTtl -= (int) (now.asSeconds() - sample.getTimestamp().asSeconds());
+                    if (sampleTtl <= 0) {
+                        LOG.debug("Skipping expired sample: {}", sample);
+                        continue;
+                    }
+                }
+
+                int partition = (int) sample.getTimestamp().stepFloor(m_contextConfigurations.getResourceShard(sample.getContext())).asSeconds();
+                PartitionKey key = new PartitionKey(sample.getContext(), partition, sample.getResource().getId());
+
+                List<BoundStatement> group = groups.computeIfAbsent(key, k -> new ArrayList<>());
+                group.add(bind(sample, partition, sampleTtl));
+
+                // Send full batches right away, rather than holding them until every sample is bound
+                if (group.size() >= m_options.getMaxBatchSize()) {
+                    groups.remove(key);
+                    futures.add(send(key.getContext(), group));
+                }
+            }
+
+            for (Map.Entry<PartitionKey, List<BoundStatement>> entry : groups.entrySet()) {
+                futures.add(send(entry.getKey().getContext(), entry.getValue()));
+            }
+        }
+        catch (RuntimeException e) {
+            futures.add(failed(e));
+        }
+
+        return allOf(futures);
+    }
+
+    /**
+     * Writes a batch of samples, as {@link #insertAsync(Collection, int, boolean)} does, without
+     * materializing them. Values are bound already encoded: The batch's context, resources and
+     * metric names are encoded once each, and its timestamps and values into one buffer apiece, so
+     * that little beyond the statement itself is allocated for each sample.
+     */
+    CompletableFuture<Void> insertAsync(SampleBatch batch, int ttl, boolean calculateTimeToLive) {
+
+        long now = Timestamp.now().asSeconds();
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        Map<Long, List<BoundStatement>> groups = new LinkedHashMap<>();
+
+        try {
+            Context context = batch.getContext();
+            long shard = m_contextConfigurations.getResourceShard(context).asMillis();
+            PreparedStatement statement = statement(context);
+
+            ByteBuffer contextId = encode(context.getId());
+            List<ByteBuffer> resources = new ArrayList<>();
+            for (Resource resource : batch.getResources()) {
+                resources.add(encode(resource.getId()));
+            }
+            List<ByteBuffer> metrics = new ArrayList<>();
+            for (String metric : batch.getMetrics()) {
+                metrics.add(encode(metric));
+            }
+
+            ByteBuffer timestamps = ByteBuffer.allocate(batch.size() * 8);
+            ByteBuffer values = ByteBuffer.allocate(batch.size() * 9);
+            ByteBuffer batchTtl = encode(ttl);
+
+            // Samples tend to arrive a resource (and partition) at a time
+            long lastKey = -1;
+            List<BoundStatement> group = null;
+            int lastPartition = -1;
+            ByteBuffer partitionId = null;
+
+            for (int i = 0; i < batch.size(); i++) {
+                long timestamp = batch.getTimestamp(i);
+
+                ByteBuffer sampleTtl = batchTtl;
+                if (calculateTimeToLive) {
+                    int remaining = ttl - (int) (now - (timestamp / 1000));
+                    if (remaining <= 0) {
+                        LOG.debug("Skipping expired sample: {}", batch.getSample(i));
+                        continue;
+                    }
+                    sampleTtl = encode(remaining);
+                }
+
+                int partition = (int) ((timestamp / shard) * shard / 1000);
+                if (partitionId == null || partition != lastPartition) {
+                    partitionId = encode(partition);
+                    lastPartition = partition;
+                }
+
+                int resource = batch.getResourceId(i);
+                long key = ((long) resource << 32) | (partition & 0xFFFFFFFFL);
+                if (group == null || key != lastKey) {
+                    group = groups.computeIfAbsent(key, k -> new ArrayList<>());
+                    lastKey = key;
+                }
+
+                timestamps.putLong(i * 8, timestamp);
+                values.position(i * 9);
+                batch.encodeValue(i, values);
+
+                group.add(statement.bind()
+                        .setBytesUnsafe(SchemaConstants.F_CONTEXT, contextId)
+                        .setBytesUnsafe(SchemaConstants.F_PARTITION, partitionId)
+                        .setBytesUnsafe(SchemaConstants.F_RESOURCE, resources.get(resource))
+                        .setBytesUnsafe(SchemaConstants.F_COLLECTED, slice(timestamps, i * 8, 8))
+                        .setBytesUnsafe(SchemaConstants.F_METRIC_NAME, metrics.get(batch.getMetricId(i)))
+                        .setBytesUnsafe(SchemaConstants.F_VALUE, slice(values, i * 9, 9))
+                        .setBytesUnsafe(TTL_MARKER, sampleTtl));
+
+                if (group.size() >= m_options.getMaxBatchSize()) {
+                    groups.remove(key);
+                    futures.add(send(context, group));
+                    group = null;
+                }
+            }
+
+            for (List<BoundStatement> remaining : groups.values()) {
+                futures.add(send(context, remaining));
+            }
+        }
+        catch (RuntimeException e) {
+            futures.add(failed(e));
+        }
+
+        return allOf(futures);
+    }
+
+    /**
+     * @return a future that completes when all of these have succeeded, or exceptionally (with a
+     *         {@link CassandraException}) as soon as any of them fails
+     */
+    private static CompletableFuture<Void> allOf(List<CompletableFuture<?>> futures) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).whenComplete((r, e) -> {
+            if (e == null) {
+                result.complete(null);
+            }
+            else {
+                result.completeExceptionally(asCassandraException(e));
+            }
+        });
+
+        // Fail fast; There is no point in waiting for the remaining requests once one has failed
+        for (CompletableFuture<?> future : futures) {
+            future.whenComplete((r, e) -> {
+                if (e != null) {
+                    result.completeExceptionally(asCassandraException(e));
+                }
+            });
+        }
+
+        return result;
+    }
+
+    private PreparedStatement statement(Context context) {
+        return (m_contextConfigurations.getSampleLayout(context) == SampleLayout.METRIC_FIRST)
+                ? m_metricInsertStatement.get()
+                : m_insertStatement;
+    }
+
+    private BoundStatement bind(Sample sample, int partition, int ttl) {
+        BoundStatement bound = statement(sample.getContext()).bind()
+                .setString(SchemaConstants.F_CONTEXT, sample.getContext().getId())
+                .setInt(SchemaConstants.F_PARTITION, partition)
+                .setString(SchemaConstants.F_RESOURCE, sample.getResource().getId())
+                .setInstant(SchemaConstants.F_COLLECTED, Instant.ofEpochMilli(sample.getTimestamp().asMillis()))
+                .setString(SchemaConstants.F_METRIC_NAME, sample.getName())
+                .setByteBuffer(SchemaConstants.F_VALUE, ValueType.decompose(sample.getValue()))
+                .setInt(TTL_MARKER, ttl);
+
+        // Binding a null value would write a tombstone (a deletion marker); Leave the attributes
+        // unset for any sample that has not specified them.
+        if (sample.getAttributes() != null) {
+            bound = bound.setMap(SchemaConstants.F_ATTRIBUTES, sample.getAttributes(), String.class, String.class);
+        }
+
+        return bound;
+    }
+
+    private CompletableFuture<?> send(Context context, List<BoundStatement> group) {
+        Statement<?> statement;
+
+        // A batch of one is just overhead
+        if (group.size() == 1) {
+            statement = group.get(0);
+        }
+        else {
+            BatchStatementBuilder builder = BatchStatement.builder(DefaultBatchType.UNLOGGED);
+            for (BoundStatement bound : group) {
+                builder.addStatement(bound);
+            }
+            statement = builder.build();
+        }
+
+        // Use the context specific consistency level
+        Statement<?> consistent = statement.setConsistencyLevel(m_contextConfigurations.getWriteConsistency(context));
+
+        return m_scheduler.submit(() -> m_session.executeAsync(consistent));
+    }
+
+    private static ByteBuffer encode(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer encode(int value) {
+        return ByteBuffer.allocate(4).putInt(0, value);
+    }
+
+    /** A view of part of a buffer (shares its content). */
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(offset + length).position(offset);
+        return slice;
+    }
+
+    private static CompletableFuture<?> failed(Throwable t) {
+        CompletableFuture<?> future = new CompletableFuture<>();
+        future.completeExceptionally(t);
+        return future;
+    }
+
+    static CassandraException asCassandraException(Throwable t) {
+        Throwable cause = t;
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return (cause instanceof CassandraException) ? (CassandraException) cause : new CassandraException(cause);
+    }
+
+    /** Cassandra partition key of the samples table. */
+    private static class PartitionKey {
+        private final Context m_context;
+        private final int m_partition;
+        private final String m_resource;
+
+        private PartitionKey(Context context, int partition, String resource) {
+            m_context = context;
+            m_partition = partition;
+            m_resource = resource;
+        }
+
+        private Context getContext() {
+            return m_context;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof PartitionKey)) return false;
+            PartitionKey other = (PartitionKey) o;
+            return m_partition == other.m_partition && m_context.equals(other.m_context) && m_resource.equals(other.m_resource);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(m_context, m_partition, m_resource);
+        }
+    }
+
+}
@@ -0,0 +1,722 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.datastax.oss.driver.api.querybuilder.QueryBuilder.bindMarker;
+import static com.datastax.oss.driver.api.querybuilder.QueryBuilder.deleteFrom;
+import static com.datastax.oss.driver.api.querybuilder.QueryBuilder.insertInto;
+import static com.datastax.oss.driver.api.querybuilder.QueryBuilder.selectFrom;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.opennms.newts.aggregate.IntervalGenerator;
+import org.opennms.newts.aggregate.MillisIntervalGenerator;
+import org.opennms.newts.aggregate.ResultProcessor;
+import org.opennms.newts.api.Context;
+import org.opennms.newts.api.Duration;
+import org.opennms.newts.api.Measurement;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Results.Row;
+import org.opennms.newts.api.Sample;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.api.query.Datasource;
+import org.opennms.newts.api.query.ResultDescriptor;
+import org.opennms.newts.api.query.StandardAggregationFunctions;
+import org.opennms.newts.cassandra.CassandraSession;
+import org.opennms.newts.cassandra.ContextConfigurations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.BatchStatement;
+import com.datastax.oss.driver.api.core.cql.BatchStatementBuilder;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.DefaultBatchType;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+
+/**
+ * Pre-aggregated (rolled up) samples, at one or more resolutions.
+ *
+ * <p>
+ * A rollup holds, for each metric and resolution step, the sum, count, minimum and maximum of the
+ * (non-NaN) primary data points within the step, calculated exactly as a query would; With a
+ * fixed interval and heartbeat, and from samples beginning a heartbeat before the step. Queries
+ * with a matching interval and heartbeats, and standard aggregation functions, can therefore
+ * aggregate rollups in place of primary data, with the same result.
+ * </p>
+ *
+ * <p>
+ * A resolution step is rolled up once samples arrive for the step after next (leaving a full
+ * step's grace for late samples); Samples that arrive later still are not reflected in the
+ * rollup. The range of steps rolled up for each resource is tracked in {@code rollup_marks}, so
+ * that queries can fall back to samples outside of it.
+ * </p>
+ */
+class SampleRollups {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SampleRollups.class);
+
+    private static final int MAX_TRACKED_STEPS = 100000;
+    private static final int MAX_QUEUED_STEPS = 10000;
+
+    /** Maximum number of steps rolled up from a single read of samples. */
+    private static final int MAX_STEPS_PER_READ = 48;
+
+    /** The functions that rollups (sum, count, min and max of primary data points) can answer. */
+    private static final Set<StandardAggregationFunctions> ROLLUP_FUNCTIONS = EnumSet.of(
+            StandardAggregationFunctions.AVERAGE, StandardAggregationFunctions.MIN, StandardAggregationFunctions.MAX);
+
+    /** Source of the samples rolled up. */
+    interface SampleReader {
+        /** @return samples between start and end (inclusive), ordered by timestamp */
+        Iterator<Row<Sample>> read(Context context, Resource resource, Timestamp start, Timestamp end);
+    }
+
+    private final CassandraSession m_session;
+    private final ContextConfigurations m_contextConfigurations;
+    private final List<Duration> m_resolutions;
+    private final Duration m_interval;
+    private final Duration m_heartbeat;
+    private final int m_ttl;
+    private final int m_readAhead;
+    private final RequestScheduler m_reads;
+    private final SampleReader m_reader;
+    private final ThreadPoolExecutor m_executor;
+    private final ConcurrentMap<Step, Boolean> m_scheduled;
+
+    private final PreparedStatement m_insertStatement;
+    private final PreparedStatement m_selectStatement;
+    private final PreparedStatement m_deleteStatement;
+    private final PreparedStatement m_selectMarks;
+    private final PreparedStatement m_insertMark;
+    private final PreparedStatement m_deleteMarks;
+
+    private final Meter m_stepsRolledUp;
+    private final Meter m_rollupFailures;
+    private final Meter m_stepsDropped;
+
+    SampleRollups(CassandraSession session, ContextConfigurations contextConfigurations, CassandraStorageOptions options, int ttl,
+            RequestScheduler reads, SampleReader reader, MetricRegistry registry) {
+        this(session, contextConfigurations, options, ttl, reads, reader, MAX_QUEUED_STEPS, registry);
+    }
+
+    SampleRollups(CassandraSession session, ContextConfigurations contextConfigurations, CassandraStorageOptions options, int ttl,
+            RequestScheduler reads, SampleReader reader, int maxQueued, MetricRegistry registry) {
+        m_session = checkNotNull(session, "session argument");
+        m_contextConfigurations = checkNotNull(contextConfigurations, "contextConfigurations argument");
+        checkNotNull(options, "options argument");
+        m_resolutions = options.getRollupResolutions();
+        checkArgument(!m_resolutions.isEmpty(), "no rollup resolutions");
+        m_interval = options.getRollupInterval();
+        m_heartbeat = options.getRollupHeartbeat();
+        m_readAhead = Math.max(options.getReadAhead(), 1);
+        checkArgument(ttl >= 0, "Negative Cassandra column TTL");
+        m_ttl = ttl;
+        m_reads = checkNotNull(reads, "reads argument");
+        m_reader = checkNotNull(reader, "reader argument");
+
+        // Steps beyond the queue's capacity are rejected (and dropped), never silently discarded
+        m_executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(maxQueued),
+                new ThreadFactoryBuilder().setNameFormat("newts-rollup-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.AbortPolicy());
+        m_executor.allowCoreThreadTimeOut(true);
+        m_scheduled = CacheBuilder.newBuilder().maximumSize(MAX_TRACKED_STEPS).<Step, Boolean>build().asMap();
+
+        m_insertStatement = m_session.prepare(insertInto(SchemaConstants.T_SAMPLE_ROLLUPS)
+                .value(SchemaConstants.F_CONTEXT, bindMarker(SchemaConstants.F_CONTEXT))
+                .value(SchemaConstants.F_RESOLUTION, bindMarker(SchemaConstants.F_RESOLUTION))
+                .value(SchemaConstants.F_PARTITION, bindMarker(SchemaConstants.F_PARTITION))
+                .value(SchemaConstants.F_RESOURCE, bindMarker(SchemaConstants.F_RESOURCE))
+                .value(SchemaConstants.F_COLLECTED, bindMarker(SchemaConstants.F_COLLECTED))
+                .value(SchemaConstants.F_METRIC_NAME, bindMarker(SchemaConstants.F_METRIC_NAME))
+                .value(SchemaConstants.F_SAMPLE_COUNT, bindMarker(SchemaConstants.F_SAMPLE_COUNT))
+                .value(SchemaConstants.F_SUM, bindMarker(SchemaConstants.F_SUM))
+                .value(SchemaConstants.F_MIN, bindMarker(SchemaConstants.F_MIN))
+                .value(SchemaConstants.F_MAX, bindMarker(SchemaConstants.F_MAX))
+                .value(SchemaConstants.F_ATTRIBUTES, bindMarker(SchemaConstants.F_ATTRIBUTES))
+                .usingTtl(bindMarker(SampleInserter.TTL_MARKER))
+                .asCql());
+
+        m_selectStatement = m_session.prepare(selectFrom(SchemaConstants.T_SAMPLE_ROLLUPS)
+                .columns(SchemaConstants.F_COLLECTED, SchemaConstants.F_METRIC_NAME, SchemaConstants.F_SAMPLE_COUNT,
+                        SchemaConstants.F_SUM, SchemaConstants.F_MIN, SchemaConstants.F_MAX, SchemaConstants.F_ATTRIBUTES)
+                .whereColumn(SchemaConstants.F_CONTEXT).isEqualTo(bindMarker(SchemaConstants.F_CONTEXT))
+                .whereColumn(SchemaConstants.F_RESOLUTION).isEqualTo(bindMarker(SchemaConstants.F_RESOLUTION))
+                .whereColumn(SchemaConstants.F_PARTITION).isEqualTo(bindMarker(SchemaConstants.F_PARTITION))
+                .whereColumn(SchemaConstants.F_RESOURCE).isEqualTo(bindMarker(SchemaConstants.F_RESOURCE))
+                .whereColumn(SchemaConstants.F_COLLECTED).isGreaterThan(bindMarker("start"))
+                .whereColumn(SchemaConstants.F_COLLECTED).isLessThanOrEqualTo(bindMarker("end"))
+                .asCql());
+
+        m_deleteStatement = m_session.prepare(deleteFrom(SchemaConstants.T_SAMPLE_ROLLUPS)
+                .whereColumn(SchemaConstants.F_CONTEXT).isEqualTo(bindMarker(SchemaConstants.F_CONTEXT))
+                .whereColumn(SchemaConstants.F_RESOLUTION).isEqualTo(bindMarker(SchemaConstants.F_RESOLUTION))
+                .whereColumn(SchemaConstants.F_PARTITION).isEqualTo(bindMarker(SchemaConstants.F_PARTITION))
+                .whereColumn(SchemaConstants.F_RESOURCE).isEqualTo(bindMarker(SchemaConstants.F_RESOURCE))
+                .asCql());
+
+        m_selectMarks = m_session.prepare(selectFrom(SchemaConstants.T_ROLLUP_MARKS)
+                .columns(SchemaConstants.F_RESOLUTION, SchemaConstants.F_ROLLED_FROM, SchemaConstants.F_ROLLED_TO)
+                .whereColumn(SchemaConstants.F_CONTEXT).isEqualTo(bindMarker(SchemaConstants.F_CONTEXT))
+                .whereColumn(SchemaConstants.F_RESOURCE).isEqualTo(bindMarker(SchemaConstants.F_RESOURCE))
+                .asCql());
+
+        m_insertMark = m_session.prepare(insertInto(SchemaConstants.T_ROLLUP_MARKS)
+                .value(SchemaConstants.F_CONTEXT, bindMarker(SchemaConstants.F_CONTEXT))
+                .value(SchemaConstants.F_RESOURCE, bindMarker(SchemaConstants.F_RESOURCE))
+                .value(SchemaConstants.F_RESOLUTION, bindMarker(SchemaConstants.F_RESOLUTION))
+                .value(SchemaConstants.F_ROLLED_FROM, bindMarker(SchemaConstants.F_ROLLED_FROM))
+                .value(SchemaConstants.F_ROLLED_TO, bindMarker(SchemaConstants.F_ROLLED_TO))
+                .asCql());
+
+        m_deleteMarks = m_session.prepare(deleteFrom(SchemaConstants.T_ROLLUP_MARKS)
+                .whereColumn(SchemaConstants.F_CONTEXT).isEqualTo(bindMarker(SchemaConstants.F_CONTEXT))
+                .whereColumn(SchemaConstants.F_RESOURCE).isEqualTo(bindMarker(SchemaConstants.F_RESOURCE))
+                .asCql());
+
+        checkNotNull(registry, "metric registry argument");
+        m_stepsRolledUp = registry.meter(name("repository", "rollups", "steps-rolled-up"));
+        m_rollupFailures = registry.meter(name("repository", "rollups", "failures"));
+        m_stepsDropped = registry.meter(name("repository", "rollups", "steps-dropped"));
+        registry.gauge(name("repository", "rollups", "queued"), () -> () -> m_executor.getQueue().size());
+    }
+
+    Duration getHeartbeat() {
+        return m_heartbeat;
+    }
+
+    /**
+     * Schedules the rollup of any steps closed by the arrival of these samples.
+     */
+    void samplesInserted(Collection<Sample> samples) {
+        for (Sample sample : samples) {
+            for (Duration resolution : m_resolutions) {
+                Timestamp closed = sample.getTimestamp().stepFloor(resolution).minus(resolution);
+                Step step = new Step(sample.getContext(), sample.getResource(), resolution, closed);
+
+                if (m_scheduled.putIfAbsent(step, Boolean.TRUE) == null) {
+                    try {
+                        m_executor.execute(() -> {
+                            try {
+                                rollUp(step);
+                            }
+                            catch (RuntimeException e) {
+                                LOG.warn("Unable to roll up {} of resource {}", step.m_end, step.m_resource, e);
+                                m_rollupFailures.mark();
+                                m_scheduled.remove(step);
+                            }
+                        });
+                    }
+                    catch (RejectedExecutionException e) {
+                        // Too many queued; Forgotten, so that a later sample can schedule it again
+                        LOG.debug("Rollup queue full; Dropped {} of resource {}", step.m_end, step.m_resource);
+                        m_stepsDropped.mark();
+                        m_scheduled.remove(step);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Stops rolling up; Steps already queued are rolled up all the same. */
+    void close() {
+        m_executor.shutdown();
+    }
+
+    /**
+     * Plans the use of rollups for a measurement query.
+     *
+     * @return the plan, or null if the query can't be answered (even partly) from rollups
+     */
+    Plan plan(Context context, Resource resource, Timestamp lower, Timestamp upper, ResultDescriptor descriptor, Duration step) {
+        if (!descriptor.getInterval().equals(m_interval)) {
+            return null;
+        }
+
+        for (Datasource ds : descriptor.getDatasources().values()) {
+            if (!ds.getHeartbeat().equals(m_heartbeat) || !ROLLUP_FUNCTIONS.contains(ds.getAggregationFuction())) {
+                return null;
+            }
+        }
+
+        // The coarsest resolution the step is a multiple of
+        Duration resolution = null;
+        for (Duration candidate : m_resolutions) {
+            if (step.isMultiple(candidate)) {
+                resolution = candidate;
+            }
+        }
+
+        if (resolution == null) {
+            return null;
+        }
+
+        Mark mark = readMarks(context, resource).get(resolution);
+        if (mark == null) {
+            return null;
+        }
+
+        Timestamp from = mark.m_from;
+        if (m_ttl > 0) {
+            from = max(from, Timestamp.now().minus(m_ttl, TimeUnit.SECONDS).stepCeiling(resolution));
+        }
+
+        // Output steps are answered from rollups when every rollup step within them is rolled up, and
+        // they are complete (the final step of a query can be cut short by the end of the range).
+        Timestamp first = max(lower.stepFloor(step), from.plus(step).stepCeiling(step));
+        Timestamp last = min(min(upper.stepCeiling(step), mark.m_to.stepFloor(step)), upper.stepCeiling(m_interval).stepFloor(step));
+
+        return first.lte(last) ? new Plan(resolution, first, last) : null;
+    }
+
+    /**
+     * Aggregates rollups into output rows, as {@code Aggregation} would primary data points.
+     */
+    Iterator<Row<Measurement>> select(Context context, Resource resource, Plan plan, ResultDescriptor descriptor, Duration step) {
+        List<Supplier<CompletionStage<AsyncResultSet>>> queries = Lists.newArrayList();
+
+        Timestamp start = plan.m_first.minus(step);
+        Duration width = partitionWidth(context, plan.m_resolution);
+
+        for (Timestamp partition : new IntervalGenerator(start.stepFloor(width), plan.m_last.stepFloor(width), width)) {
+            queries.add(() -> m_reads.submit(() -> m_session.executeAsync(m_selectStatement.bind()
+                    .setString(SchemaConstants.F_CONTEXT, context.getId())
+                    .setInt(SchemaConstants.F_RESOLUTION, (int) plan.m_resolution.asSeconds())
+                    .setInt(SchemaConstants.F_PARTITION, (int) partition.asSeconds())
+                    .setString(SchemaConstants.F_RESOURCE, resource.getId())
+                    .setInstant("start", start.asDate().toInstant())
+                    .setInstant("end", plan.m_last.asDate().toInstant())
+                    .setConsistencyLevel(m_contextConfigurations.getReadConsistency(context)))));
+        }
+
+        Iterator<Rollup> rollups = Iterators.transform(new ConcurrentResultWrapper(queries.iterator(), m_readAhead, m_reads), row -> new Rollup(
+                Timestamp.fromEpochMillis(row.getInstant(SchemaConstants.F_COLLECTED).toEpochMilli()),
+                row.getString(SchemaConstants.F_METRIC_NAME),
+                row.getInt(SchemaConstants.F_SAMPLE_COUNT),
+                row.getDouble(SchemaConstants.F_SUM),
+                row.getDouble(SchemaConstants.F_MIN),
+                row.getDouble(SchemaConstants.F_MAX),
+                row.getMap(SchemaConstants.F_ATTRIBUTES, String.class, String.class)));
+
+        return aggregate(resource, plan.m_first, plan.m_last, step, descriptor, rollups);
+    }
+
+    /**
+     * Deletes all rollups (and marks) of a resource.
+     */
+    CompletableFuture<Void> delete(Context context, Resource resource) {
+        return m_session.executeAsync(selectMarks(context, resource)).thenCompose(rs -> {
+            List<CompletableFuture<?>> futures = Lists.newArrayList();
+
+            for (Map.Entry<Duration, Mark> entry : toMarks(rs.currentPage()).entrySet()) {
+                Duration width = partitionWidth(context, entry.getKey());
+                Mark mark = entry.getValue();
+
+                for (Timestamp partition : new IntervalGenerator(mark.m_from.stepFloor(width), mark.m_to.stepFloor(width), width)) {
+                    futures.add(m_session.executeAsync(m_deleteStatement.bind()
+                            .setString(SchemaConstants.F_CONTEXT, context.getId())
+                            .setInt(SchemaConstants.F_RESOLUTION, (int) entry.getKey().asSeconds())
+                            .setInt(SchemaConstants.F_PARTITION, (int) partition.asSeconds())
+                            .setString(SchemaConstants.F_RESOURCE, resource.getId())).toCompletableFuture());
+                }
+            }
+
+            return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+        }).thenCompose(v -> m_session.executeAsync(m_deleteMarks.bind()
+                .setString(SchemaConstants.F_CONTEXT, context.getId())
+                .setString(SchemaConstants.F_RESOURCE, resource.getId())))
+                .<Void> thenApply(rs -> null)
+                .toCompletableFuture();
+    }
+
+    private void rollUp(Step step) {
+        Mark mark = readMarks(step.m_context, step.m_resource).get(step.m_resolution);
+
+        if (mark != null && !step.m_end.gt(mark.m_to)) {
+            return;
+        }
+
+        // Pick up where the last rollup left off...
+        Timestamp from = (mark != null) ? mark.m_to : step.m_end.minus(step.m_resolution);
+
+        // ...though not from beyond the TTL
+        if (m_ttl > 0) {
+            from = max(from, Timestamp.now().minus(m_ttl, TimeUnit.SECONDS).stepCeiling(step.m_resolution));
+        }
+
+        // Extend the range rolled up if contiguous, or start over
+        Timestamp rolledFrom = (mark != null && from.equals(mark.m_to)) ? mark.m_from : from;
+
+        Duration chunk = step.m_resolution.times(MAX_STEPS_PER_READ);
+        for (Timestamp start = from; start.lt(step.m_end); start = start.plus(chunk)) {
+            Timestamp end = min(start.plus(chunk), step.m_end);
+            rollUp(step.m_context, step.m_resource, step.m_resolution, start, end);
+
+            m_session.execute(m_insertMark.bind()
+                    .setString(SchemaConstants.F_CONTEXT, step.m_context.getId())
+                    .setString(SchemaConstants.F_RESOURCE, step.m_resource.getId())
+                    .setInt(SchemaConstants.F_RESOLUTION, (int) step.m_resolution.asSeconds())
+                    .setInstant(SchemaConstants.F_ROLLED_FROM, rolledFrom.asDate().toInstant())
+                    .setInstant(SchemaConstants.F_ROLLED_TO, end.asDate().toInstant())
+                    .setConsistencyLevel(m_contextConfigurations.getWriteConsistency(step.m_context)));
+        }
+    }
+
+    /** Rolls up the steps of (start, end]. */
+    private void rollUp(Context context, Resource resource, Duration resolution, Timestamp start, Timestamp end) {
+        List<Row<Sample>> samples = Lists.newArrayList(m_reader.read(context, resource, start.minus(m_heartbeat), end));
+
+        List<Rollup> rollups = rollUp(resource, start, end, resolution, m_interval, m_heartbeat, samples);
+        if (rollups.isEmpty()) {
+            return;
+        }
+
+        Duration width = partitionWidth(context, resolution);
+        Map<Timestamp, BatchStatementBuilder> batches = Maps.newTreeMap();
+
+        for (Rollup rollup : rollups) {
+            int ttl = 0;
+            if (m_ttl > 0) {
+                ttl = m_ttl - (int) Timestamp.now().minus(rollup.m_timestamp).asSeconds();
+                if (ttl <= 0) {
+                    continue;
+                }
+            }
+
+            Timestamp partition = rollup.m_timestamp.stepFloor(width);
+            batches.computeIfAbsent(partition, k -> BatchStatement.builder(DefaultBatchType.UNLOGGED)).addStatement(m_insertStatement.bind()
+                    .setString(SchemaConstants.F_CONTEXT, context.getId())
+                    .setInt(SchemaConstants.F_RESOLUTION, (int) resolution.asSeconds())
+                    .setInt(SchemaConstants.F_PARTITION, (int) partition.asSeconds())
+                    .setString(SchemaConstants.F_RESOURCE, resource.getId())
+                    .setInstant(SchemaConstants.F_COLLECTED, rollup.m_timestamp.asDate().toInstant())
+                    .setString(SchemaConstants.F_METRIC_NAME, rollup.m_metric)
+                    .setInt(SchemaConstants.F_SAMPLE_COUNT, rollup.m_count)
+                    .setDouble(SchemaConstants.F_SUM, rollup.m_sum)
+                    .setDouble(SchemaConstants.F_MIN, rollup.m_min)
+                    .setDouble(SchemaConstants.F_MAX, rollup.m_max)
+                    .setMap(SchemaConstants.F_ATTRIBUTES, rollup.m_attributes, String.class, String.class)
+                    .setInt(SampleInserter.TTL_MARKER, ttl));
+        }
+
+        for (BatchStatementBuilder batch : batches.values()) {
+            m_session.execute(batch.setConsistencyLevel(m_contextConfigurations.getWriteConsistency(context)).build());
+        }
+
+        m_stepsRolledUp.mark(end.minus(start).divideBy(resolution));
+    }
+
+    /**
+     * Rolls up the steps of (start, end]. Samples should begin a heartbeat before start.
+     */
+    static List<Rollup> rollUp(Resource resource, Timestamp start, Timestamp end, Duration resolution, Duration interval, Duration heartbeat, List<Row<Sample>> samples) {
+        Set<String> metrics = Sets.newTreeSet();
+        for (Row<Sample> row : samples) {
+            for (Sample sample : row.getElements()) {
+                metrics.add(sample.getName());
+            }
+        }
+
+        ResultDescriptor descriptor = new ResultDescriptor(interval);
+        for (String metric : metrics) {
+            descriptor.datasource(metric, metric, heartbeat, StandardAggregationFunctions.AVERAGE);
+        }
+
+        Map<Timestamp, Map<String, Rollup>> steps = Maps.newTreeMap();
+        Iterator<Row<Measurement>> primaryData = ResultProcessor.processPrimaryData(resource, start, end, descriptor, samples.iterator());
+
+        while (primaryData.hasNext()) {
+            Row<Measurement> row = primaryData.next();
+
+            // The first primary data point ends the step before
+            if (!row.getTimestamp().gt(start)) {
+                continue;
+            }
+
+            Timestamp timestamp = row.getTimestamp().stepCeiling(resolution);
+            Map<String, Rollup> step = steps.computeIfAbsent(timestamp, k -> Maps.newTreeMap());
+
+            for (Measurement measurement : row.getElements()) {
+                step.computeIfAbsent(measurement.getName(), k -> new Rollup(timestamp, k)).add(measurement);
+            }
+        }
+
+        List<Rollup> rollups = Lists.newArrayList();
+        for (Map<String, Rollup> step : steps.values()) {
+            for (Rollup rollup : step.values()) {
+                // Steps without any data are implied
+                if (rollup.m_count > 0 || !rollup.m_attributes.isEmpty()) {
+                    rollups.add(rollup);
+                }
+            }
+        }
+
+        return rollups;
+    }
+
+    /**
+     * Aggregates rollups (ordered by timestamp) into the rows of output steps first through last.
+     */
+    static Iterator<Row<Measurement>> aggregate(Resource resource, Timestamp first, Timestamp last, Duration step, ResultDescriptor descriptor, Iterator<Rollup> input) {
+        PeekingIterator<Rollup> rollups = Iterators.peekingIterator(input);
+        MillisIntervalGenerator timestamps = new MillisIntervalGenerator(first, last, step);
+        long width = step.asMillis();
+
+        return new Iterator<Row<Measurement>>() {
+
+            @Override
+            public boolean hasNext() {
+                return timestamps.hasNext();
+            }
+
+            @Override
+            public Row<Measurement> next() {
+                long upper = timestamps.nextLong(), lower = upper - width;
+                Timestamp timestamp = Timestamp.fromEpochMillis(upper);
+
+                Map<String, Rollup> totals = Maps.newHashMap();
+                Map<String, List<Double>> minimums = Maps.newHashMap();
+                Map<String, List<Double>> maximums = Maps.newHashMap();
+
+                while (rollups.hasNext() && rollups.peek().m_timestamp.asMillis() <= upper) {
+                    Rollup rollup = rollups.next();
+                    if (rollup.m_timestamp.asMillis() <= lower) {
+                        continue;
+                    }
+                    totals.computeIfAbsent(rollup.m_metric, k -> new Rollup(timestamp, k)).add(rollup);
+                    minimums.computeIfAbsent(rollup.m_metric, k -> Lists.newArrayList()).add(rollup.m_min);
+                    maximums.computeIfAbsent(rollup.m_metric, k -> Lists.newArrayList()).add(rollup.m_max);
+                }
+
+                Row<Measurement> row = new Row<>(timestamp, resource);
+
+                for (Datasource ds : descriptor.getDatasources().values()) {
+                    Rollup total = totals.getOrDefault(ds.getSource(), new Rollup(timestamp, ds.getSource()));
+                    double value;
+
+                    // Each output step aggregates a full complement of primary data points
+                    if (!(1.0d > ds.getXff())) {
+                        value = Double.NaN;
+                    }
+                    else if (ds.getAggregationFuction() == StandardAggregationFunctions.AVERAGE) {
+                        value = total.m_sum / total.m_count;
+                    }
+                    else {
+                        // A NaN stands in for the steps without data, so that the functions see the same
+                        // (non-empty) input they would otherwise
+                        List<Double> values = ds.getAggregationFuction() == StandardAggregationFunctions.MIN
+                                ? minimums.getOrDefault(ds.getSource(), Lists.newArrayList())
+                                : maximums.getOrDefault(ds.getSource(), Lists.newArrayList());
+                        values.add(Double.NaN);
+                        value = ds.getAggregationFuction().apply(values);
+                    }
+
+                    row.addElement(new Measurement(timestamp, resource, ds.getLabel(), value, Maps.newHashMap(total.m_attributes)));
+                }
+
+                return row;
+            }
+        };
+    }
+
+    /** Rollup partitions hold as many steps as sample partitions hold primary data points. */
+    private Duration partitionWidth(Context context, Duration resolution) {
+        return m_contextConfigurations.getResourceShard(context).times(resolution.divideBy(m_interval));
+    }
+
+    private Map<Duration, Mark> readMarks(Context context, Resource resource) {
+        return toMarks(m_session.execute(selectMarks(context, resource)));
+    }
+
+    private BoundStatement selectMarks(Context context, Resource resource) {
+        return m_selectMarks.bind()
+                .setString(SchemaConstants.F_CONTEXT, context.getId())
+                .setString(SchemaConstants.F_RESOURCE, resource.getId())
+                .setConsistencyLevel(m_contextConfigurations.getReadConsistency(context));
+    }
+
+    private static Map<Duration, Mark> toMarks(Iterable<com.datastax.oss.driver.api.core.cql.Row> rows) {
+        Map<Duration, Mark> marks = Maps.newHashMap();
+        for (com.datastax.oss.driver.api.core.cql.Row row : rows) {
+            marks.put(Duration.seconds(row.getInt(SchemaConstants.F_RESOLUTION)), new Mark(
+                    Timestamp.fromEpochMillis(row.getInstant(SchemaConstants.F_ROLLED_FROM).toEpochMilli()),
+                    Timestamp.fromEpochMillis(row.getInstant(SchemaConstants.F_ROLLED_TO).toEpochMilli())));
+        }
+        return marks;
+    }
+
+    private static Timestamp max(Timestamp a, Timestamp b) {
+        return a.gt(b) ? a : b;
+    }
+
+    private static Timestamp min(Timestamp a, Timestamp b) {
+        return a.lt(b) ? a : b;
+    }
+
+    /** Use of rollups by a query; Output steps first through last are answered from them. */
+    static class Plan {
+        private final Duration m_resolution;
+        private final Timestamp m_first;
+        private final Timestamp m_last;
+
+        Plan(Duration resolution, Timestamp first, Timestamp last) {
+            m_resolution = resolution;
+            m_first = first;
+            m_last = last;
+        }
+
+        Duration getResolution() {
+            return m_resolution;
+        }
+
+        Timestamp getFirst() {
+            return m_first;
+        }
+
+        Timestamp getLast() {
+            return m_last;
+        }
+    }
+
+    /** One metric's rollup of a step. */
+    static class Rollup {
+        private final Timestamp m_timestamp;
+        private final String m_metric;
+        private int m_count = 0;
+        private double m_sum = 0;
+        private double m_min = Double.NaN;
+        private double m_max = Double.NaN;
+        private final Map<String, String> m_attributes;
+
+        Rollup(Timestamp timestamp, String metric) {
+            m_timestamp = timestamp;
+            m_metric = metric;
+            m_attributes = Maps.newHashMap();
+        }
+
+        Rollup(Timestamp timestamp, String metric, int count, double sum, double min, double max, Map<String, String> attributes) {
+            m_timestamp = timestamp;
+            m_metric = metric;
+            m_count = count;
+            m_sum = sum;
+            m_min = min;
+            m_max = max;
+            m_attributes = attributes;
+        }
+
+        private void add(Measurement measurement) {
+            double value = measurement.getValue();
+            if (!Double.isNaN(value)) {
+                m_min = (m_count == 0) ? value : Math.min(m_min, value);
+                m_max = (m_count == 0) ? value : Math.max(m_max, value);
+                m_sum += value;
+                m_count++;
+            }
+            if (measurement.getAttributes() != null) {
+                m_attributes.putAll(measurement.getAttributes());
+            }
+        }
+
+        private void add(Rollup other) {
+            m_sum += other.m_sum;
+            m_count += other.m_count;
+            if (other.m_attributes != null) {
+                m_attributes.putAll(other.m_attributes);
+            }
+        }
+
+        Timestamp getTimestamp() {
+            return m_timestamp;
+        }
+
+        String getMetric() {
+            return m_metric;
+        }
+
+        int getCount() {
+            return m_count;
+        }
+    }
+
+    /** The range of steps rolled up, (from, to]. */
+    private static class Mark {
+        private final Timestamp m_from;
+        private final Timestamp m_to;
+
+        private Mark(Timestamp from, Timestamp to) {
+            m_from = from;
+            m_to = to;
+        }
+    }
+
+    /** A resource's rollup step, (end - resolution, end]. */
+    private static class Step {
+        private final Context m_context;
+        private final Resource m_resource;
+        private final Duration m_resolution;
+        private final Timestamp m_end;
+
+        private Step(Context context, Resource resource, Duration resolution, Timestamp end) {
+            m_context = context;
+            m_resource = resource;
+            m_resolution = resolution;
+            m_end = end;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Step)) return false;
+            Step other = (Step) o;
+            return m_end.equals(other.m_end) && m_resolution.equals(other.m_resolution)
+                    && m_resource.getId().equals(other.m_resource.getId()) && m_context.equals(other.m_context);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(m_context, m_resource.getId(), m_resolution, m_end);
+        }
+    }
+
+}
@@ -15,12 +15,18 @@
  */
 package org.opennms.newts.persistence.cassandra;
 
+import org.opennms.newts.cassandra.SampleLayout;
 
 public class SchemaConstants {
     
     private SchemaConstants() {}
     
     public static final String T_SAMPLES = "samples";
+    public static final String T_SAMPLES_BY_METRIC = "samples_by_metric";
+    public static final String T_SAMPLE_BLOCKS = "sample_blocks";
+    public static final String T_SAMPLE_ROLLUPS = "sample_rollups";
+    public static final String T_ROLLUP_MARKS = "rollup_marks";
+    public static final String T_RESOURCE_SHARDS = "resource_shards";
 
     public static final String F_CONTEXT = "context";
     public static final String F_PARTITION = "partition";
@@ -29,4 +35,18 @@ public class SchemaConstants {
     public static final String F_METRIC_NAME = "metric_name";
     public static final String F_VALUE = "value";
     public static final String F_ATTRIBUTES = "attributes";
+    public static final String F_BLOCK_START = "block_start";
+    public static final String F_SAMPLE_COUNT = "sample_count";
+    public static final String F_DATA = "data";
+    public static final String F_RESOLUTION = "resolution";
+    public static final String F_SUM = "value_sum";
+    public static final String F_MIN = "value_min";
+    public static final String F_MAX = "value_max";
+    public static final String F_ROLLED_FROM = "rolled_from";
+    public static final String F_ROLLED_TO = "rolled_to";
+
+    /** The table holding samples of the given layout. */
+    public static String samplesTable(SampleLayout layout) {
+        return (layout == SampleLayout.METRIC_FIRST) ? T_SAMPLES_BY_METRIC : T_SAMPLES;
+    }
 }
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.datastax.oss.driver.api.querybuilder.QueryBuilder.bindMarker;
+import static com.datastax.oss.driver.api.querybuilder.QueryBuilder.deleteFrom;
+import static com.datastax.oss.driver.api.querybuilder.QueryBuilder.insertInto;
+import static com.datastax.oss.driver.api.querybuilder.QueryBuilder.selectFrom;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.newts.aggregate.IntervalGenerator;
+import org.opennms.newts.api.Context;
+import org.opennms.newts.api.Duration;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Sample;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.cassandra.CassandraSession;
+import org.opennms.newts.cassandra.ContextConfigurations;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.Row;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+
+/**
+ * Index of the partitions (resource shards) each resource has written samples to, in
+ * {@code resource_shards}; So that queries and deletes can pass over those that it hasn't.
+ *
+ * <p>
+ * A partition is indexed when the first sample is written to it (by this instance; Partitions
+ * already known to have been indexed are not indexed again). A resource's partitions are read once,
+ * then refreshed every {@value #REFRESH_MINUTES} minutes to pick up those indexed elsewhere. The
+ * current partition (and any that follow it) is always read, as are partitions that began before
+ * the index was enabled ({@code since}).
+ * </p>
+ */
+class ShardIndex {
+
+    private static final int MAX_RESOURCES = 100000;
+    private static final int REFRESH_MINUTES = 5;
+
+    private final CassandraSession m_session;
+    private final ContextConfigurations m_contextConfigurations;
+    private final int m_ttl;
+    private final Timestamp m_since;
+    private final Cache<ResourceKey, Shards> m_shards;
+
+    private final PreparedStatement m_insertStatement;
+    private final PreparedStatement m_selectStatement;
+    private final PreparedStatement m_deleteStatement;
+
+    private final Meter m_partitionsIndexed;
+    private final Meter m_partitionsPruned;
+
+    ShardIndex(CassandraSession session, ContextConfigurations contextConfigurations, int ttl, Timestamp since, MetricRegistry registry) {
+        m_session = checkNotNull(session, "session argument");
+        m_contextConfigurations = checkNotNull(contextConfigurations, "contextConfigurations argument");
+        checkArgument(ttl >= 0, "Negative Cassandra column TTL");
+        m_ttl = ttl;
+        m_since = since;
+        m_shards = CacheBuilder.newBuilder().maximumSize(MAX_RESOURCES).build();
+
+        m_insertStatement = m_session.prepare(insertInto(SchemaConstants.T_RESOURCE_SHARDS)
+                .value(SchemaConstants.F_CONTEXT, bindMarker(SchemaConstants.F_CONTEXT))
+                .value(SchemaConstants.F_RESOURCE, bindMarker(SchemaConstants.F_RESOURCE))
+                .value(SchemaConstants.F_PARTITION, bindMarker(SchemaConstants.F_PARTITION))
+                .usingTtl(bindMarker(SampleInserter.TTL_MARKER))
+                .asCql());
+
+        m_selectStatement = m_session.prepare(selectFrom(SchemaConstants.T_RESOURCE_SHARDS)
+                .column(SchemaConstants.F_PARTITION)
+                .whereColumn(SchemaConstants.F_CONTEXT).isEqualTo(bindMarker(SchemaConstants.F_CONTEXT))
+                .whereColumn(SchemaConstants.F_RESOURCE).isEqualTo(bindMarker(SchemaConstants.F_RESOURCE))
+                .asCql());
+
+        m_deleteStatement = m_session.prepare(deleteFrom(SchemaConstants.T_RESOURCE_SHARDS)
+                .whereColumn(SchemaConstants.F_CONTEXT).isEqualTo(bindMarker(SchemaConstants.F_CONTEXT))
+                .whereColumn(SchemaConstants.F_RESOURCE).isEqualTo(bindMarker(SchemaConstants.F_RESOURCE))
+                .asCql());
+
+        checkNotNull(registry, "metric registry argument");
+        m_partitionsIndexed = registry.meter(name("repository", "shard-index", "partitions-indexed"));
+        m_partitionsPruned = registry.meter(name("repository", "shard-index", "partitions-pruned"));
+    }
+
+    /**
+     * Indexes the partitions of these samples not already known to have been.
+     *
+     * @return a future completed once the partitions have been indexed
+     */
+    CompletableFuture<Void> index(Collection<Sample> samples) {
+        Map<ResourceKey, Set<Integer>> partitions = Maps.newHashMap();
+
+        for (Sample sample : samples) {
+            ResourceKey key = new ResourceKey(sample.getContext(), sample.getResource().getId());
+            int partition = (int) sample.getTimestamp().stepFloor(m_contextConfigurations.getResourceShard(sample.getContext())).asSeconds();
+
+            if (!shards(key).m_partitions.contains(partition)) {
+                partitions.computeIfAbsent(key, k -> Sets.newHashSet()).add(partition);
+            }
+        }
+
+        if (partitions.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        List<CompletableFuture<?>> futures = Lists.newArrayList();
+        for (Map.Entry<ResourceKey, Set<Integer>> entry : partitions.entrySet()) {
+            ResourceKey key = entry.getKey();
+
+            // Entries outlive the last sample that could be written to their partition
+            int ttl = (m_ttl > 0) ? m_ttl + (int) m_contextConfigurations.getResourceShard(key.m_context).asSeconds() : 0;
+
+            for (int partition : entry.getValue()) {
+                futures.add(m_session.executeAsync(m_insertStatement.bind()
+                        .setString(SchemaConstants.F_CONTEXT, key.m_context.getId())
+                        .setString(SchemaConstants.F_RESOURCE, key.m_resource)
+                        .setInt(SchemaConstants.F_PARTITION, partition)
+                        .setInt(SampleInserter.TTL_MARKER, ttl)
+                        .setConsistencyLevel(m_contextConfigurations.getWriteConsistency(key.m_context)))
+                        .thenRun(() -> {
+                            shards(key).m_partitions.add(partition);
+                            m_partitionsIndexed.mark();
+                        })
+                        .toCompletableFuture());
+            }
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * @return the partitions between start and end (inclusive) that can hold samples of the resource
+     */
+    List<Timestamp> partitions(Context context, Resource resource, Timestamp start, Timestamp end) {
+        Shards shards = shards(new ResourceKey(context, resource.getId()));
+
+        if (shards.m_refreshed == 0 || System.nanoTime() - shards.m_refreshed > TimeUnit.MINUTES.toNanos(REFRESH_MINUTES)) {
+            join(refresh(context, resource));
+        }
+
+        Duration resourceShard = m_contextConfigurations.getResourceShard(context);
+        Timestamp current = Timestamp.now().stepFloor(resourceShard);
+
+        List<Timestamp> partitions = Lists.newArrayList();
+        for (Timestamp partition : new IntervalGenerator(start.stepFloor(resourceShard), end.stepFloor(resourceShard), resourceShard)) {
+            if (!isIndexed(partition, current) || shards.m_partitions.contains((int) partition.asSeconds())) {
+                partitions.add(partition);
+            }
+            else {
+                m_partitionsPruned.mark();
+            }
+        }
+
+        return partitions;
+    }
+
+    /**
+     * @return the earliest partition indexed for the resource, or null if none is (as of the last
+     *         {@link #refresh})
+     */
+    Timestamp first(Context context, Resource resource) {
+        Shards shards = shards(new ResourceKey(context, resource.getId()));
+
+        Integer first = null;
+        for (Integer partition : shards.m_partitions) {
+            if (first == null || partition < first) {
+                first = partition;
+            }
+        }
+
+        return (first != null) ? Timestamp.fromEpochSeconds(first) : null;
+    }
+
+    /** @return when the index was enabled; Partitions that began before then are not indexed (null if all are) */
+    Timestamp getSince() {
+        return m_since;
+    }
+
+    /**
+     * Reads the partitions indexed for a resource.
+     */
+    CompletableFuture<Void> refresh(Context context, Resource resource) {
+        ResourceKey key = new ResourceKey(context, resource.getId());
+        long refreshed = System.nanoTime();
+
+        return m_session.executeAsync(m_selectStatement.bind()
+                .setString(SchemaConstants.F_CONTEXT, context.getId())
+                .setString(SchemaConstants.F_RESOURCE, resource.getId())
+                .setConsistencyLevel(m_contextConfigurations.getReadConsistency(context)))
+                .thenCompose(rs -> read(rs, shards(key)))
+                .thenRun(() -> shards(key).m_refreshed = refreshed)
+                .toCompletableFuture();
+    }
+
+    /**
+     * Deletes the index entries of a resource.
+     */
+    CompletableFuture<Void> delete(Context context, Resource resource) {
+        ResourceKey key = new ResourceKey(context, resource.getId());
+
+        return m_session.executeAsync(m_deleteStatement.bind()
+                .setString(SchemaConstants.F_CONTEXT, context.getId())
+                .setString(SchemaConstants.F_RESOURCE, resource.getId())
+                .setConsistencyLevel(m_contextConfigurations.getWriteConsistency(context)))
+                .thenRun(() -> m_shards.invalidate(key))
+                .toCompletableFuture();
+    }
+
+    /** Partitions from the current one on, and those that began before the index did, may not be indexed. */
+    private boolean isIndexed(Timestamp partition, Timestamp current) {
+        return partition.lt(current) && (m_since == null || !partition.lt(m_since));
+    }
+
+    private Shards shards(ResourceKey key) {
+        try {
+            return m_shards.get(key, Shards::new);
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static CompletableFuture<Void> read(AsyncResultSet rs, Shards shards) {
+        for (Row row : rs.currentPage()) {
+            shards.m_partitions.add(row.getInt(SchemaConstants.F_PARTITION));
+        }
+
+        if (rs.hasMorePages()) {
+            return rs.fetchNextPage().thenCompose(next -> read(next, shards)).toCompletableFuture();
+        }
+
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private static void join(CompletableFuture<Void> future) {
+        try {
+            future.join();
+        }
+        catch (CompletionException e) {
+            throw SampleInserter.asCassandraException(e);
+        }
+    }
+
+    /** The partitions of a resource known to be indexed. */
+    private static class Shards {
+        private final Set<Integer> m_partitions = ConcurrentHashMap.newKeySet();
+        private volatile long m_refreshed = 0;
+    }
+
+    /** A resource, of a context. */
+    static class ResourceKey {
+        private final Context m_context;
+        private final String m_resource;
+
+        ResourceKey(Context context, String resource) {
+            m_context = context;
+            m_resource = resource;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ResourceKey)) return false;
+            ResourceKey other = (ResourceKey) o;
+            return m_resource.equals(other.m_resource) && m_context.equals(other.m_context);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(m_context, m_resource);
+        }
+    }
+
+}
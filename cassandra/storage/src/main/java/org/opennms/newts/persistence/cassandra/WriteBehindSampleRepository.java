@@ -0,0 +1,536 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.opennms.newts.api.Context;
+import org.opennms.newts.api.Duration;
+import org.opennms.newts.api.Measurement;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Results;
+import org.opennms.newts.api.Results.Row;
+import org.opennms.newts.api.Sample;
+import org.opennms.newts.api.SampleBatch;
+import org.opennms.newts.api.SampleRepository;
+import org.opennms.newts.api.SampleSelectCallback;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.api.query.ResultDescriptor;
+import org.opennms.newts.cassandra.ContextConfigurations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+
+/**
+ * A {@link SampleRepository} decorator that coalesces small inserts. Samples are accumulated in
+ * per-partition buffers (one for each context, shard partition, and resource), and handed to the
+ * underlying repository once a buffer reaches {@code flushSize} samples, or is
+ * {@code maxAge} old, whichever comes first.
+ *
+ * <p>
+ * Samples from different callers are written together, but no write is acknowledged until it has
+ * happened: {@link #insert(Collection)} returns once the buffers holding its samples have been
+ * written (throwing, if any of those writes failed), and {@link #insertAsync(Collection)} completes
+ * then. When more than {@code maxBuffered} samples are pending, producers block until some have
+ * been written. Buffered samples are not visible to queries until they have been written.
+ * {@link #close()} writes out everything still buffered.
+ * </p>
+ *
+ * <p>
+ * {@link SampleBatch}es are not buffered; They are already batched, and are handed straight to the
+ * underlying repository, so that they are written without becoming {@link Sample}s.
+ * </p>
+ *
+ * <p>
+ * Appending to a buffer is lock-free. Each buffer tracks the producers in the middle of an append;
+ * Flushing first seals the buffer (after which appends fail, and producers move on to a new
+ * buffer), then waits out any appends still in progress before draining it, so that no sample is
+ * ever lost between generations of a partition's buffer.
+ * </p>
+ */
+public class WriteBehindSampleRepository implements SampleRepository, AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WriteBehindSampleRepository.class);
+
+    private final SampleRepository m_delegate;
+    private final ContextConfigurations m_contextConfigurations;
+    private final int m_flushSize;
+    private final long m_maxAgeNanos;
+    private final long m_maxBuffered;
+
+    private final Map<Key, Buffer> m_buffers = new ConcurrentHashMap<>();
+    private final AtomicLong m_buffered = new AtomicLong(0);
+    private final AtomicInteger m_waiters = new AtomicInteger(0);
+    private final Object m_budgetLock = new Object();
+    private final ScheduledExecutorService m_scheduler;
+    private volatile boolean m_closed = false;
+
+    private final Timer m_flushTimer;
+    private final Meter m_flushFailures;
+
+    @Inject
+    public WriteBehindSampleRepository(CassandraSampleRepository delegate, ContextConfigurations contextConfigurations,
+            CassandraStorageOptions options, @Named("newtsMetricRegistry") MetricRegistry registry) {
+        this((SampleRepository) delegate, contextConfigurations, options.getWriteBehindFlushSize(),
+                options.getWriteBehindMaxAge(), options.getWriteBehindMaxBuffered(), registry);
+    }
+
+    /**
+     * @param delegate
+     *            repository samples are written to
+     * @param contextConfigurations
+     *            context configurations (for resource shards)
+     * @param flushSize
+     *            number of samples at which a partition's buffer is written
+     * @param maxAge
+     *            age at which a partition's buffer is written, regardless of size
+     * @param maxBuffered
+     *            number of samples pending (buffered, or being written), beyond which producers block
+     * @param registry
+     *            metric registry
+     */
+    public WriteBehindSampleRepository(SampleRepository delegate, ContextConfigurations contextConfigurations,
+            int flushSize, Duration maxAge, long maxBuffered, MetricRegistry registry) {
+        m_delegate = checkNotNull(delegate, "delegate argument");
+        m_contextConfigurations = checkNotNull(contextConfigurations, "contextConfigurations argument");
+        checkArgument(flushSize > 0, "flushSize must be positive");
+        m_flushSize = flushSize;
+        checkNotNull(maxAge, "maxAge argument");
+        checkArgument(maxAge.asMillis() > 0, "maxAge must be positive");
+        m_maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAge.asMillis());
+        checkArgument(maxBuffered >= flushSize, "maxBuffered must be at least flushSize");
+        m_maxBuffered = maxBuffered;
+
+        checkNotNull(registry, "metric registry argument");
+        m_flushTimer = registry.timer(name("repository", "write-behind", "flush-timer"));
+        m_flushFailures = registry.meter(name("repository", "write-behind", "flush-failures"));
+        registry.gauge(name("repository", "write-behind", "buffered"), () -> m_buffered::get);
+        registry.gauge(name("repository", "write-behind", "partitions"), () -> m_buffers::size);
+
+        m_scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder().setNameFormat("newts-write-behind-%d").setDaemon(true).build());
+        long period = Math.max(m_maxAgeNanos / 2, TimeUnit.MILLISECONDS.toNanos(10));
+        m_scheduler.scheduleWithFixedDelay(this::flushExpired, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void insert(Collection<Sample> samples) {
+        insert(samples, false);
+    }
+
+    @Override
+    public void insert(Collection<Sample> samples, boolean calculateTimeToLive) {
+        join(allOf(buffer(samples, calculateTimeToLive)));
+    }
+
+    @Override
+    public CompletionStage<Void> insertAsync(Collection<Sample> samples, boolean calculateTimeToLive) {
+        return allOf(buffer(samples, calculateTimeToLive));
+    }
+
+    @Override
+    public void insert(SampleBatch batch, boolean calculateTimeToLive) {
+        checkState(!m_closed, "repository closed");
+        m_delegate.insert(batch, calculateTimeToLive);
+    }
+
+    @Override
+    public CompletionStage<Void> insertAsync(SampleBatch batch, boolean calculateTimeToLive) {
+        checkState(!m_closed, "repository closed");
+        return m_delegate.insertAsync(batch, calculateTimeToLive);
+    }
+
+    @Override
+    public Results<Measurement> select(Context context, Resource resource, Optional<Timestamp> start, Optional<Timestamp> end, ResultDescriptor descriptor, Optional<Duration> resolution) {
+        return m_delegate.select(context, resource, start, end, descriptor, resolution);
+    }
+
+    @Override
+    public Results<Measurement> select(Context context, Resource resource, Optional<Timestamp> start, Optional<Timestamp> end, ResultDescriptor descriptor, Optional<Duration> resolution, SampleSelectCallback callback) {
+        return m_delegate.select(context, resource, start, end, descriptor, resolution, callback);
+    }
+
+    @Override
+    public Map<Resource, Results<Measurement>> select(Context context, Collection<Resource> resources, Optional<Timestamp> start, Optional<Timestamp> end, ResultDescriptor descriptor, Optional<Duration> resolution) {
+        return m_delegate.select(context, resources, start, end, descriptor, resolution);
+    }
+
+    @Override
+    public Results<Sample> select(Context context, Resource resource, Optional<Timestamp> start, Optional<Timestamp> end) {
+        return m_delegate.select(context, resource, start, end);
+    }
+
+    @Override
+    public Flow.Publisher<Row<Measurement>> selectStream(Context context, Resource resource, Optional<Timestamp> start, Optional<Timestamp> end, ResultDescriptor descriptor, Optional<Duration> resolution) {
+        return m_delegate.selectStream(context, resource, start, end, descriptor, resolution);
+    }
+
+    @Override
+    public Flow.Publisher<Row<Sample>> selectStream(Context context, Resource resource, Optional<Timestamp> start, Optional<Timestamp> end) {
+        return m_delegate.selectStream(context, resource, start, end);
+    }
+
+    @Override
+    public void delete(Context context, Resource resource) {
+        join(deleteAsync(context, resource).toCompletableFuture());
+    }
+
+    @Override
+    public CompletionStage<Void> deleteAsync(Context context, Resource resource) {
+        // Write out anything still buffered first, lest it outlive the delete
+        return flushResource(context, resource).handle((r, e) -> null)
+                .thenCompose(v -> m_delegate.deleteAsync(context, resource));
+    }
+
+    @Override
+    public CompletionStage<Void> deleteAsync(Context context, Collection<Resource> resources) {
+        List<CompletableFuture<Void>> flushes = Lists.newArrayList();
+        for (Resource resource : resources) {
+            flushes.add(flushResource(context, resource));
+        }
+        return allOf(flushes).handle((r, e) -> null).thenCompose(v -> m_delegate.deleteAsync(context, resources));
+    }
+
+    /** Writes out all buffered samples, without waiting for the writes to complete. */
+    public void flush() {
+        for (Buffer buffer : m_buffers.values()) {
+            flush(buffer);
+        }
+    }
+
+    /** Stops accepting samples, writes out everything still buffered, and closes the underlying repository (if closeable). */
+    @Override
+    public void close() {
+        m_closed = true;
+        m_scheduler.shutdown();
+
+        flush();
+
+        // Wait for every outstanding write to complete
+        m_waiters.incrementAndGet();
+        try {
+            synchronized (m_budgetLock) {
+                while (m_buffered.get() > 0) {
+                    m_budgetLock.wait(100);
+                    flush();
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            LOG.warn("Interrupted with {} sample(s) still pending", m_buffered.get());
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            m_waiters.decrementAndGet();
+        }
+
+        if (m_delegate instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) m_delegate).close();
+            }
+            catch (Exception e) {
+                LOG.warn("Unable to close the underlying repository", e);
+            }
+        }
+    }
+
+    /** @return the number of samples buffered, or being written */
+    public long getBuffered() {
+        return m_buffered.get();
+    }
+
+    private Collection<Buffer> buffer(Collection<Sample> samples, boolean calculateTimeToLive) {
+        checkState(!m_closed, "repository closed");
+
+        awaitBudget(samples.size());
+
+        Set<Buffer> touched = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        for (Sample sample : samples) {
+            Duration resourceShard = m_contextConfigurations.getResourceShard(sample.getContext());
+            Key key = new Key(sample.getContext(), (int) sample.getTimestamp().stepFloor(resourceShard).asSeconds(),
+                    sample.getResource().getId(), calculateTimeToLive);
+
+            while (true) {
+                Buffer buffer = m_buffers.get(key);
+                if (buffer == null) {
+                    Buffer created = new Buffer(key);
+                    buffer = m_buffers.putIfAbsent(key, created);
+                    if (buffer == null) {
+                        buffer = created;
+                    }
+                }
+
+                int size = buffer.tryAppend(sample);
+
+                // Sealed; Retire it (if the flusher hasn't already) and start a new generation
+                if (size < 0) {
+                    m_buffers.remove(key, buffer);
+                    continue;
+                }
+
+                m_buffered.incrementAndGet();
+                touched.add(buffer);
+
+                if (size >= m_flushSize) {
+                    flush(buffer);
+                }
+
+                break;
+            }
+        }
+
+        return touched;
+    }
+
+    private void flush(Buffer buffer) {
+        if (!buffer.seal()) {
+            return;
+        }
+
+        m_buffers.remove(buffer.m_key, buffer);
+
+        List<Sample> samples = Lists.newArrayList(buffer.m_samples);
+        if (samples.isEmpty()) {
+            buffer.m_flushed.complete(null);
+            return;
+        }
+
+        Timer.Context timer = m_flushTimer.time();
+        CompletionStage<Void> write;
+        try {
+            write = m_delegate.insertAsync(samples, buffer.m_key.m_calculateTimeToLive);
+        }
+        catch (RuntimeException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            write = failed;
+        }
+
+        write.whenComplete((result, e) -> {
+            timer.stop();
+            m_buffered.addAndGet(-samples.size());
+
+            if (e != null) {
+                LOG.warn("Unable to write {} buffered sample(s) of resource {}", samples.size(), buffer.m_key.m_resource, e);
+                m_flushFailures.mark();
+                buffer.m_flushed.completeExceptionally(e);
+            }
+            else {
+                buffer.m_flushed.complete(null);
+            }
+
+            if (m_waiters.get() > 0) {
+                synchronized (m_budgetLock) {
+                    m_budgetLock.notifyAll();
+                }
+            }
+        });
+    }
+
+    private void flushExpired() {
+        long now = System.nanoTime();
+        try {
+            for (Buffer buffer : m_buffers.values()) {
+                if (now - buffer.m_created >= m_maxAgeNanos) {
+                    flush(buffer);
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            LOG.error("Unable to flush expired buffers", e);
+        }
+    }
+
+    private CompletableFuture<Void> flushResource(Context context, Resource resource) {
+        List<Buffer> flushed = Lists.newArrayList();
+        for (Buffer buffer : m_buffers.values()) {
+            if (buffer.m_key.m_context.equals(context) && buffer.m_key.m_resource.equals(resource.getId())) {
+                flush(buffer);
+                flushed.add(buffer);
+            }
+        }
+        return allOf(flushed);
+    }
+
+    /** Blocks while admitting {@code count} more samples would exceed the budget. */
+    private void awaitBudget(int count) {
+        if (m_buffered.get() + count <= m_maxBuffered) {
+            return;
+        }
+
+        // Don't sit on partially filled buffers while waiting for room
+        flush();
+
+        m_waiters.incrementAndGet();
+        try {
+            synchronized (m_budgetLock) {
+                // Always admit something once nothing is pending, however large
+                while (m_buffered.get() > 0 && m_buffered.get() + count > m_maxBuffered) {
+                    m_budgetLock.wait(100);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        finally {
+            m_waiters.decrementAndGet();
+        }
+    }
+
+    private static void join(CompletableFuture<Void> future) {
+        try {
+            future.join();
+        }
+        catch (CompletionException e) {
+            throw (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    private static CompletableFuture<Void> allOf(Collection<Buffer> buffers) {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[buffers.size()];
+        int i = 0;
+        for (Buffer buffer : buffers) {
+            futures[i++] = buffer.m_flushed;
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    private static CompletableFuture<Void> allOf(List<CompletableFuture<Void>> futures) {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /** Partition key of the samples table, and how the time-to-live is to be calculated. */
+    private static class Key {
+        private final Context m_context;
+        private final int m_partition;
+        private final String m_resource;
+        private final boolean m_calculateTimeToLive;
+        private final int m_hashCode;
+
+        private Key(Context context, int partition, String resource, boolean calculateTimeToLive) {
+            m_context = context;
+            m_partition = partition;
+            m_resource = resource;
+            m_calculateTimeToLive = calculateTimeToLive;
+            m_hashCode = Objects.hash(context, partition, resource, calculateTimeToLive);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return m_partition == other.m_partition && m_calculateTimeToLive == other.m_calculateTimeToLive
+                    && m_context.equals(other.m_context) && m_resource.equals(other.m_resource);
+        }
+
+        @Override
+        public int hashCode() {
+            return m_hashCode;
+        }
+    }
+
+    /** One generation of a partition's buffered samples. */
+    private static class Buffer {
+
+        // The sign bit marks the buffer sealed; The remaining bits count appends in progress.
+        private static final int SEALED = Integer.MIN_VALUE;
+
+        private final Key m_key;
+        private final long m_created = System.nanoTime();
+        private final ConcurrentLinkedQueue<Sample> m_samples = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger m_size = new AtomicInteger(0);
+        private final AtomicInteger m_state = new AtomicInteger(0);
+        private final CompletableFuture<Void> m_flushed = new CompletableFuture<>();
+
+        private Buffer(Key key) {
+            m_key = key;
+        }
+
+        /** @return the number of samples buffered, including this one, or -1 if sealed */
+        private int tryAppend(Sample sample) {
+            int state;
+            do {
+                state = m_state.get();
+                if (state < 0) {
+                    return -1;
+                }
+            } while (!m_state.compareAndSet(state, state + 1));
+
+            try {
+                m_samples.add(sample);
+                return m_size.incrementAndGet();
+            }
+            finally {
+                m_state.decrementAndGet();
+            }
+        }
+
+        /** @return true if this call sealed the buffer (and is responsible for flushing it) */
+        private boolean seal() {
+            int state;
+            do {
+                state = m_state.get();
+                if (state < 0) {
+                    return false;
+                }
+            } while (!m_state.compareAndSet(state, state | SEALED));
+
+            // Wait out any appends still in progress
+            while (m_state.get() != SEALED) {
+                Thread.onSpinWait();
+            }
+
+            return true;
+        }
+    }
+
+}
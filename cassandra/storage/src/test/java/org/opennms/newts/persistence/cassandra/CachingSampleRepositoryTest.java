@@ -0,0 +1,230 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.opennms.newts.api.Context;
+import org.opennms.newts.api.Duration;
+import org.opennms.newts.api.Gauge;
+import org.opennms.newts.api.Measurement;
+import org.opennms.newts.api.MetricType;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Results;
+import org.opennms.newts.api.Results.Row;
+import org.opennms.newts.api.Sample;
+import org.opennms.newts.api.SampleRepository;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.api.query.ResultDescriptor;
+import org.opennms.newts.api.query.StandardAggregationFunctions;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+
+
+public class CachingSampleRepositoryTest {
+
+    private static final Resource RESOURCE = new Resource("r0");
+    private static final Duration STEP = Duration.seconds(3600);
+
+    private SampleRepository m_delegate;
+    private MetricRegistry m_registry;
+    private CachingSampleRepository m_repository;
+    private Timestamp m_end;
+
+    @Before
+    public void setUp() {
+        m_delegate = mock(SampleRepository.class);
+        m_registry = new MetricRegistry();
+        m_repository = new CachingSampleRepository(m_delegate, 100000, Duration.seconds(300), m_registry);
+        m_end = Timestamp.now();
+
+        // Each measurement is the timestamp (in hours) of its row, plus a value per label
+        when(m_delegate.select(any(Context.class), any(Resource.class), any(), any(), any(ResultDescriptor.class), any())).then(invocation -> {
+            Optional<Timestamp> start = invocation.getArgument(2);
+            Optional<Timestamp> end = invocation.getArgument(3);
+            ResultDescriptor descriptor = invocation.getArgument(4);
+            Optional<Duration> step = invocation.getArgument(5);
+
+            Results<Measurement> results = new Results<>();
+            for (Timestamp t = start.get().stepFloor(step.get()); !t.gt(end.get().stepCeiling(step.get())); t = t.plus(step.get())) {
+                Row<Measurement> row = new Row<>(t, RESOURCE);
+                for (String label : descriptor.getExports()) {
+                    row.addElement(new Measurement(t, RESOURCE, label, value(t, label)));
+                }
+                results.addRow(row);
+            }
+            return results;
+        });
+    }
+
+    @Test
+    public void testRepeatQuery() {
+        ResultDescriptor descriptor = descriptor();
+
+        Results<Measurement> first = select(m_end.minus(Duration.days(1)), m_end, descriptor);
+        Results<Measurement> second = select(m_end.minus(Duration.days(1)), m_end, descriptor);
+        assertResults(first, m_end.minus(Duration.days(1)), m_end);
+        assertResults(second, m_end.minus(Duration.days(1)), m_end);
+
+        // The second query fetches only the trailing (unsettled) steps
+        List<Optional<Timestamp>> starts = fetchStarts(2);
+        assertThat(starts.get(0).get(), equalTo(m_end.minus(Duration.days(1))));
+        assertTrue(starts.get(1).get().gt(m_end.minus(Duration.hours(3))));
+
+        assertThat(m_registry.meter("repository.result-cache.misses").getCount(), equalTo(1L));
+        assertThat(m_registry.meter("repository.result-cache.tail-refreshes").getCount(), equalTo(1L));
+        assertTrue(m_registry.meter("repository.result-cache.saved-rows").getCount() >= 20);
+    }
+
+    @Test
+    public void testSlidingWindow() {
+        ResultDescriptor descriptor = descriptor();
+
+        select(m_end.minus(Duration.days(1)), m_end.minus(Duration.hours(6)), descriptor);
+
+        // Settled in full; Served from the cache alone
+        Timestamp start = m_end.minus(Duration.days(1)).plus(Duration.hours(2));
+        Results<Measurement> results = select(start, m_end.minus(Duration.hours(6)).plus(Duration.seconds(1)), descriptor);
+        assertResults(results, start, m_end.minus(Duration.hours(6)).plus(Duration.seconds(1)));
+
+        // Slid forward; Fetched from the last step cached
+        results = select(start.plus(Duration.hours(2)), m_end, descriptor);
+        assertResults(results, start.plus(Duration.hours(2)), m_end);
+
+        List<Optional<Timestamp>> starts = fetchStarts(2);
+        assertThat(starts.get(1).get(), equalTo(m_end.minus(Duration.hours(6)).stepCeiling(STEP)));
+        assertThat(m_registry.meter("repository.result-cache.hits").getCount(), equalTo(1L));
+    }
+
+    @Test
+    public void testDifferentDescriptors() {
+        select(m_end.minus(Duration.days(1)), m_end, descriptor());
+        select(m_end.minus(Duration.days(1)), m_end, new ResultDescriptor(Duration.seconds(300))
+                .datasource("in", "ifInOctets", Duration.seconds(600), StandardAggregationFunctions.MAX).export("in"));
+
+        assertThat(m_registry.meter("repository.result-cache.misses").getCount(), equalTo(2L));
+    }
+
+    @Test
+    public void testCalculationsAndExports() {
+        ResultDescriptor descriptor = descriptor().calculate("total", (a, b) -> a + b, "in", "out").export("total");
+
+        select(m_end.minus(Duration.days(1)), m_end, descriptor);
+        Results<Measurement> results = select(m_end.minus(Duration.days(1)), m_end, descriptor);
+
+        for (Row<Measurement> row : results) {
+            assertThat(row.getElements().size(), equalTo(3));
+            assertEquals(value(row.getTimestamp(), "in") + value(row.getTimestamp(), "out"), row.getElement("total").getValue(), 0.0d);
+        }
+
+        // Calculations and exports aren't part of the query
+        ArgumentCaptor<ResultDescriptor> captor = ArgumentCaptor.forClass(ResultDescriptor.class);
+        verify(m_delegate, times(2)).select(any(Context.class), any(Resource.class), any(), any(), captor.capture(), any());
+        assertTrue(captor.getValue().getCalculations().isEmpty());
+    }
+
+    @Test
+    public void testLateSamplesInvalidate() {
+        ResultDescriptor descriptor = descriptor();
+        select(m_end.minus(Duration.days(1)), m_end, descriptor);
+
+        // A sample in the present leaves settled results be...
+        m_repository.insert(Collections.singletonList(sample(m_end)));
+        assertThat(m_repository.size(), equalTo(1L));
+
+        // ...one from the past does not
+        m_repository.insert(Collections.singletonList(sample(m_end.minus(Duration.hours(12)))));
+        assertThat(m_repository.size(), equalTo(0L));
+
+        select(m_end.minus(Duration.days(1)), m_end, descriptor);
+        assertThat(m_registry.meter("repository.result-cache.misses").getCount(), equalTo(2L));
+    }
+
+    @Test
+    public void testDeleteInvalidates() {
+        select(m_end.minus(Duration.days(1)), m_end, descriptor());
+        m_repository.delete(Context.DEFAULT_CONTEXT, RESOURCE);
+        assertThat(m_repository.size(), equalTo(0L));
+    }
+
+    @Test
+    public void testTruncatedNotCached() {
+        Results<Measurement> truncated = new Results<>();
+        truncated.setTruncated(true);
+        when(m_delegate.select(any(Context.class), any(Resource.class), any(), any(), any(ResultDescriptor.class), any())).thenReturn(truncated);
+
+        assertTrue(select(m_end.minus(Duration.days(1)), m_end, descriptor()).isTruncated());
+        assertThat(m_repository.size(), equalTo(0L));
+    }
+
+    private Results<Measurement> select(Timestamp start, Timestamp end, ResultDescriptor descriptor) {
+        return m_repository.select(Context.DEFAULT_CONTEXT, RESOURCE, Optional.of(start), Optional.of(end), descriptor, Optional.of(STEP));
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Optional<Timestamp>> fetchStarts(int count) {
+        ArgumentCaptor<Optional<Timestamp>> captor = ArgumentCaptor.forClass(Optional.class);
+        verify(m_delegate, times(count)).select(any(Context.class), eq(RESOURCE), captor.capture(), any(), any(ResultDescriptor.class), any());
+        return captor.getAllValues();
+    }
+
+    private static void assertResults(Results<Measurement> results, Timestamp start, Timestamp end) {
+        List<Row<Measurement>> rows = Lists.newArrayList(results);
+        assertThat(rows.size(), equalTo((int) (end.stepCeiling(STEP).minus(start.stepFloor(STEP)).divideBy(STEP) + 1)));
+
+        Timestamp t = start.stepFloor(STEP);
+        for (Row<Measurement> row : rows) {
+            assertThat(row.getTimestamp(), equalTo(t));
+            assertEquals(value(t, "in"), row.getElement("in").getValue(), 0.0d);
+            assertEquals(value(t, "out"), row.getElement("out").getValue(), 0.0d);
+            t = t.plus(STEP);
+        }
+    }
+
+    private static ResultDescriptor descriptor() {
+        return new ResultDescriptor(Duration.seconds(300))
+                .datasource("in", "ifInOctets", Duration.seconds(600), StandardAggregationFunctions.AVERAGE)
+                .datasource("out", "ifOutOctets", Duration.seconds(600), StandardAggregationFunctions.AVERAGE)
+                .export("in", "out");
+    }
+
+    private static double value(Timestamp t, String label) {
+        return t.asSeconds() / 3600 + label.length() / 10.0d;
+    }
+
+    private static Sample sample(Timestamp t) {
+        return new Sample(t, RESOURCE, "ifInOctets", MetricType.GAUGE, new Gauge(1));
+    }
+
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.opennms.newts.api.query.StandardAggregationFunctions.AVERAGE;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.newts.api.Context;
+import org.opennms.newts.api.Duration;
+import org.opennms.newts.api.Gauge;
+import org.opennms.newts.api.Measurement;
+import org.opennms.newts.api.QueryBudgetExceededException;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Results;
+import org.opennms.newts.api.Sample;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.api.ValueType;
+import org.opennms.newts.api.query.ResultDescriptor;
+import org.opennms.newts.cassandra.CassandraSession;
+import org.opennms.newts.cassandra.ContextConfigurations;
+import org.opennms.newts.cassandra.SampleLayout;
+
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.oss.driver.api.core.ConsistencyLevel;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.Row;
+import com.datastax.oss.driver.api.core.cql.Statement;
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+
+public class CassandraSampleRepositoryTest {
+
+    private static final Resource RESOURCE = new Resource("r");
+    private static final Timestamp START = Timestamp.fromEpochSeconds(900000000).stepFloor(Duration.days(7));
+    private static final int METRICS = 10;
+    private static final int SAMPLES = 10;
+
+    private final CassandraSession m_session = mock(CassandraSession.class);
+
+    // CQL of each prepared statement, and the statement (and bound values) of each bound one
+    private final Map<PreparedStatement, String> m_prepared = Maps.newConcurrentMap();
+    private final Map<Statement<?>, String> m_cql = Maps.newConcurrentMap();
+    private final Map<Statement<?>, Map<String, Object>> m_values = Maps.newConcurrentMap();
+
+    // statements executed, and the metrics read from samples_by_metric
+    private final List<String> m_executed = Collections.synchronizedList(Lists.newArrayList());
+    private final Set<String> m_metricsRead = Sets.newConcurrentHashSet();
+
+    @Before
+    public void setUp() {
+        when(m_session.prepare(anyString())).thenAnswer(invocation -> {
+            PreparedStatement prepared = mock(PreparedStatement.class);
+            m_prepared.put(prepared, invocation.getArgument(0));
+            when(prepared.bind()).thenAnswer(i -> bound(prepared));
+            return prepared;
+        });
+        when(m_session.executeAsync(any())).thenAnswer(invocation -> {
+            Statement<?> statement = invocation.getArgument(0);
+            String cql = m_cql.get(statement);
+            m_executed.add(cql);
+
+            List<Row> rows = Lists.newArrayList();
+            if (cql.contains("GROUP BY")) {
+                for (int m = 0; m < METRICS; m++) {
+                    rows.add(nameRow("m" + m));
+                }
+            }
+            else if (cql.contains(SchemaConstants.T_SAMPLES_BY_METRIC)) {
+                Map<String, Object> values = m_values.get(statement);
+                String metric = (String) values.get(SchemaConstants.F_METRIC_NAME);
+                m_metricsRead.add(metric);
+                for (int i = 0; i < SAMPLES; i++) {
+                    Instant collected = START.plus(Duration.seconds(i * 300)).asDate().toInstant();
+                    if (!collected.isBefore((Instant) values.get("start")) && !collected.isAfter((Instant) values.get("end"))) {
+                        rows.add(sampleRow(metric, collected, i));
+                    }
+                }
+            }
+
+            AsyncResultSet rs = mock(AsyncResultSet.class);
+            when(rs.currentPage()).thenReturn(rows);
+            return CompletableFuture.completedFuture(rs);
+        });
+    }
+
+    @Test
+    public void testMetricFirstSelectReadsSelectedMetrics() {
+
+        ResultDescriptor descriptor = new ResultDescriptor(Duration.seconds(300))
+                .datasource("m1", null)
+                .datasource("m3", null);
+
+        List<Results.Row<Sample>> rows = Lists.newArrayList(newRepository().select(Context.DEFAULT_CONTEXT, RESOURCE,
+                START.plus(Duration.seconds(300)), START.plus(Duration.seconds(300 * (SAMPLES - 1))), descriptor, Duration.seconds(300)));
+
+        assertThat(m_metricsRead, equalTo(Sets.newHashSet("m1", "m3")));
+        for (String cql : m_executed) {
+            assertTrue(cql.contains(SchemaConstants.T_SAMPLES_BY_METRIC));
+        }
+
+        // Merged back into timestamp order
+        assertThat(rows.size(), equalTo(SAMPLES));
+        for (int i = 0; i < rows.size(); i++) {
+            assertThat(rows.get(i).getTimestamp(), equalTo(START.plus(Duration.seconds(i * 300))));
+            assertThat(rows.get(i).getElements().size(), equalTo(2));
+            assertThat(rows.get(i).getElement("m3").getValue().doubleValue(), equalTo((double) i));
+        }
+
+    }
+
+    @Test
+    public void testMetricFirstSelectAll() {
+
+        Results<Sample> results = newRepository().select(Context.DEFAULT_CONTEXT, RESOURCE,
+                Optional.of(START), Optional.of(START.plus(Duration.seconds(300 * (SAMPLES - 1)))));
+
+        // The metrics are looked up first, then read
+        assertTrue(m_executed.get(0).contains("GROUP BY"));
+        assertThat(m_metricsRead.size(), equalTo(METRICS));
+
+        List<Results.Row<Sample>> rows = Lists.newArrayList(results.getRows());
+        assertThat(rows.size(), equalTo(SAMPLES));
+        for (int i = 0; i < rows.size(); i++) {
+            assertThat(rows.get(i).getTimestamp(), equalTo(START.plus(Duration.seconds(i * 300))));
+            assertThat(rows.get(i).getElements().size(), equalTo(METRICS));
+        }
+
+    }
+
+    @Test
+    public void testTimeFirstSelectReadsSamples() {
+
+        ContextConfigurations contexts = new ContextConfigurations();
+        CassandraSampleRepository repository = new CassandraSampleRepository(m_session, 0, new MetricRegistry(), null, contexts);
+
+        repository.select(Context.DEFAULT_CONTEXT, RESOURCE, Optional.of(START), Optional.of(START.plus(Duration.seconds(300))));
+
+        assertThat(m_executed.size(), equalTo(1));
+        assertTrue(m_executed.get(0).contains("FROM " + SchemaConstants.T_SAMPLES + " "));
+
+        // The metric-first table is left alone (it need not exist)
+        for (String cql : m_prepared.values()) {
+            assertTrue(!cql.contains(SchemaConstants.T_SAMPLES_BY_METRIC));
+        }
+
+    }
+
+    @Test
+    public void testResolveStep() {
+        ResultDescriptor descriptor = new ResultDescriptor(Duration.seconds(300));
+        Timestamp end = START.plus(Duration.days(1));
+
+        // A tenth of the range, by default...
+        assertThat(CassandraSampleRepository.resolveStep(START, end, descriptor, Optional.absent()), equalTo(Duration.seconds(8700)));
+        assertThat(CassandraSampleRepository.resolveStep(START, end, descriptor, Optional.of(Duration.seconds(600))), equalTo(Duration.seconds(600)));
+
+        // ...or of as many steps as the points to draw (but no fewer than the intervals)
+        assertThat(CassandraSampleRepository.resolveStep(START, end, new ResultDescriptor(descriptor).maxDataPoints(100), Optional.absent()), equalTo(Duration.seconds(900)));
+        assertThat(CassandraSampleRepository.resolveStep(START, end, new ResultDescriptor(descriptor).maxDataPoints(1000), Optional.absent()), equalTo(Duration.seconds(300)));
+    }
+
+    @Test
+    public void testSelectTruncatedOverBudget() {
+
+        CassandraSampleRepository repository = newRepository(new CassandraStorageOptions.Builder()
+                .withQueryMaxSamples(SAMPLES * METRICS / 2)
+                .withQueryBudgetAction(QueryBudget.Action.TRUNCATE)
+                .build());
+
+        Results<Sample> results = repository.select(Context.DEFAULT_CONTEXT, RESOURCE,
+                Optional.of(START), Optional.of(START.plus(Duration.seconds(300 * (SAMPLES - 1)))));
+
+        int samples = 0;
+        for (Results.Row<Sample> row : results) {
+            samples += row.getElements().size();
+        }
+        assertThat(samples, equalTo(SAMPLES * METRICS / 2));
+        assertTrue(results.isTruncated());
+
+    }
+
+    @Test(expected = QueryBudgetExceededException.class)
+    public void testSelectRejectedOverBudget() {
+
+        CassandraSampleRepository repository = newRepository(new CassandraStorageOptions.Builder()
+                .withQueryMaxSamples(SAMPLES * METRICS / 2)
+                .build());
+
+        // Nothing is known of the resource's samples, until they're read
+        repository.select(Context.DEFAULT_CONTEXT, RESOURCE, Optional.of(START), Optional.of(START.plus(Duration.seconds(300 * (SAMPLES - 1)))));
+
+    }
+
+    @Test
+    public void testMeasurementsRejectedBeforeRead() {
+
+        CassandraSampleRepository repository = newRepository(new CassandraStorageOptions.Builder()
+                .withQueryMaxSamples(100000)
+                .build());
+
+        ResultDescriptor descriptor = new ResultDescriptor(Duration.seconds(300))
+                .datasource("m1", AVERAGE)
+                .datasource("m3", AVERAGE)
+                .export("m1");
+
+        // A sample of each source every 5 minutes, for a year
+        try {
+            repository.select(Context.DEFAULT_CONTEXT, RESOURCE, Optional.of(START), Optional.of(START.plus(Duration.days(365))), descriptor,
+                    Optional.of(Duration.seconds(300)));
+            fail();
+        }
+        catch (QueryBudgetExceededException e) {
+            assertTrue(e.getMessage().contains("100000 samples"));
+        }
+
+        assertTrue(m_executed.isEmpty());
+
+        // A month is within budget
+        repository.select(Context.DEFAULT_CONTEXT, RESOURCE, Optional.of(START), Optional.of(START.plus(Duration.days(30))), descriptor,
+                Optional.of(Duration.seconds(300)));
+
+    }
+
+    @Test
+    public void testMeasurementsAfterSelectOfSamples() {
+
+        CassandraSampleRepository repository = newRepository(new CassandraStorageOptions.Builder()
+                .withQueryMaxSamples(20000)
+                .build());
+
+        // All of the resource's metrics are read...
+        repository.select(Context.DEFAULT_CONTEXT, RESOURCE, Optional.of(START), Optional.of(START.plus(Duration.seconds(300 * SAMPLES - 1))));
+
+        ResultDescriptor descriptor = new ResultDescriptor(Duration.seconds(300))
+                .datasource("m1", AVERAGE)
+                .export("m1");
+
+        // ...but a month of one of them is within budget (a month of all of them is not)
+        repository.select(Context.DEFAULT_CONTEXT, RESOURCE, Optional.of(START), Optional.of(START.plus(Duration.days(30))), descriptor,
+                Optional.of(Duration.seconds(300)));
+
+    }
+
+    @Test
+    public void testStreamRejectedBeforeSubscribe() {
+
+        CassandraSampleRepository repository = newRepository(new CassandraStorageOptions.Builder()
+                .withQueryMaxSamples(100000)
+                .build());
+
+        ResultDescriptor descriptor = new ResultDescriptor(Duration.seconds(300))
+                .datasource("m1", AVERAGE)
+                .export("m1");
+
+        // Rejected when the stream is asked for, before the response to it is begun
+        try {
+            repository.selectStream(Context.DEFAULT_CONTEXT, RESOURCE, Optional.of(START), Optional.of(START.plus(Duration.days(3 * 365))), descriptor,
+                    Optional.of(Duration.seconds(300)));
+            fail();
+        }
+        catch (QueryBudgetExceededException e) {
+            assertTrue(e.getMessage().contains("100000 samples"));
+        }
+
+        assertTrue(m_executed.isEmpty());
+
+    }
+
+    @Test
+    public void testStreamTruncatedOverBudget() {
+
+        CassandraSampleRepository repository = newRepository(new CassandraStorageOptions.Builder()
+                .withQueryMaxBytes(3 * QueryBudget.MEASUREMENT_BYTES)
+                .withQueryBudgetAction(QueryBudget.Action.TRUNCATE)
+                .build());
+
+        ResultDescriptor descriptor = new ResultDescriptor(Duration.seconds(300))
+                .datasource("m1", AVERAGE)
+                .export("m1");
+
+        List<Results.Row<Measurement>> rows = Lists.newArrayList();
+        repository.selectStream(Context.DEFAULT_CONTEXT, RESOURCE, Optional.of(START), Optional.of(START.plus(Duration.seconds(300 * (SAMPLES - 1)))),
+                descriptor, Optional.of(Duration.seconds(300))).subscribe(new Flow.Subscriber<Results.Row<Measurement>>() {
+
+                    @Override
+                    public void onSubscribe(Flow.Subscription subscription) {
+                        subscription.request(Long.MAX_VALUE);
+                    }
+
+                    @Override
+                    public void onNext(Results.Row<Measurement> row) {
+                        rows.add(row);
+                    }
+
+                    @Override
+                    public void onError(Throwable throwable) {
+                        fail(throwable.toString());
+                    }
+
+                    @Override
+                    public void onComplete() {
+                    }
+                });
+
+        assertThat(rows.size(), equalTo(3));
+
+    }
+
+    private CassandraSampleRepository newRepository() {
+        return newRepository(new CassandraStorageOptions());
+    }
+
+    private CassandraSampleRepository newRepository(CassandraStorageOptions options) {
+        ContextConfigurations contexts = new ContextConfigurations().addContextConfig(Context.DEFAULT_CONTEXT, Duration.days(7),
+                ConsistencyLevel.ONE, ConsistencyLevel.ANY, SampleLayout.METRIC_FIRST);
+        return new CassandraSampleRepository(m_session, 0, new MetricRegistry(), null, contexts, options);
+    }
+
+    private BoundStatement bound(PreparedStatement prepared) {
+        BoundStatement bound = mock(BoundStatement.class, RETURNS_SELF);
+        Map<String, Object> values = Maps.newConcurrentMap();
+        m_cql.put(bound, m_prepared.get(prepared));
+        m_values.put(bound, values);
+        when(bound.setString(anyString(), anyString())).thenAnswer(invocation -> {
+            values.put(invocation.getArgument(0), invocation.getArgument(1));
+            return bound;
+        });
+        when(bound.setInstant(anyString(), any())).thenAnswer(invocation -> {
+            values.put(invocation.getArgument(0), invocation.getArgument(1));
+            return bound;
+        });
+        when(bound.setInt(eq(SchemaConstants.F_PARTITION), anyInt())).thenReturn(bound);
+        return bound;
+    }
+
+    private static Row nameRow(String metric) {
+        Row row = mock(Row.class);
+        when(row.getString(SchemaConstants.F_METRIC_NAME)).thenReturn(metric);
+        return row;
+    }
+
+    private static Row sampleRow(String metric, Instant collected, double value) {
+        Row row = mock(Row.class);
+        when(row.getString(SchemaConstants.F_METRIC_NAME)).thenReturn(metric);
+        when(row.getString(SchemaConstants.F_RESOURCE)).thenReturn(RESOURCE.getId());
+        when(row.getInstant(SchemaConstants.F_COLLECTED)).thenReturn(collected);
+        when(row.getByteBuffer(SchemaConstants.F_VALUE)).thenReturn(ValueType.decompose(new Gauge(value)));
+
+        // As read by lean decoding
+        when(row.getBytesUnsafe(SchemaConstants.F_METRIC_NAME)).thenReturn(ByteBuffer.wrap(metric.getBytes(StandardCharsets.UTF_8)));
+        when(row.getBytesUnsafe(SchemaConstants.F_RESOURCE)).thenReturn(ByteBuffer.wrap(RESOURCE.getId().getBytes(StandardCharsets.UTF_8)));
+        when(row.getBytesUnsafe(SchemaConstants.F_COLLECTED)).thenReturn(ByteBuffer.allocate(8).putLong(0, collected.toEpochMilli()));
+        when(row.getBytesUnsafe(SchemaConstants.F_VALUE)).thenReturn(ValueType.decompose(new Gauge(value)));
+        return row;
+    }
+
+}
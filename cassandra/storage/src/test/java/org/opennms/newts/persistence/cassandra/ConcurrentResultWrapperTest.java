@@ -0,0 +1,145 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.Row;
+import com.google.common.collect.Lists;
+
+
+public class ConcurrentResultWrapperTest {
+
+    @Test
+    public void testAllPagesReturned() {
+
+        List<Row> rows = Lists.newArrayList();
+        List<CompletionStage<AsyncResultSet>> futures = Lists.newArrayList();
+
+        // Three shards, of three pages each
+        for (int i = 0; i < 3; i++) {
+            futures.add(CompletableFuture.completedFuture(pages(rows, 3, 2)));
+        }
+
+        assertThat(Lists.newArrayList(new ConcurrentResultWrapper(futures)), equalTo(rows));
+
+    }
+
+    @Test
+    public void testReadAhead() {
+
+        List<Row> rows = Lists.newArrayList();
+        List<Supplier<CompletionStage<AsyncResultSet>>> queries = Lists.newArrayList();
+        AtomicInteger issued = new AtomicInteger();
+
+        for (int i = 0; i < 5; i++) {
+            AsyncResultSet rs = pages(rows, 3, 2);
+            queries.add(() -> {
+                issued.incrementAndGet();
+                return CompletableFuture.completedFuture(rs);
+            });
+        }
+
+        ConcurrentResultWrapper wrapper = new ConcurrentResultWrapper(queries.iterator(), 2);
+
+        // Nothing is queried before the first read
+        assertThat(issued.get(), equalTo(0));
+
+        wrapper.next();
+
+        // The shard being read, and two more
+        assertThat(issued.get(), equalTo(3));
+
+        List<Row> results = Lists.newArrayList(rows.get(0));
+        wrapper.forEachRemaining(results::add);
+
+        assertThat(results, equalTo(rows));
+        assertThat(issued.get(), equalTo(5));
+
+    }
+
+    @Test
+    public void testPagePrefetch() {
+
+        AsyncResultSet second = page(Lists.newArrayList(mock(Row.class)), null);
+        AsyncResultSet first = page(Lists.newArrayList(mock(Row.class), mock(Row.class)), second);
+
+        List<Supplier<CompletionStage<AsyncResultSet>>> queries = Lists.newArrayList();
+        queries.add(() -> CompletableFuture.completedFuture(first));
+
+        ConcurrentResultWrapper wrapper = new ConcurrentResultWrapper(queries.iterator(), 1);
+        wrapper.next();
+
+        // The next page has been requested while the first is still being read
+        verify(first).fetchNextPage();
+
+        // ...but not with read-ahead disabled
+        AsyncResultSet other = page(Lists.newArrayList(mock(Row.class), mock(Row.class)), second);
+        List<CompletionStage<AsyncResultSet>> futures = Lists.newArrayList();
+        futures.add(CompletableFuture.completedFuture(other));
+        new ConcurrentResultWrapper(futures).next();
+
+        verify(other, never()).fetchNextPage();
+
+    }
+
+    /** Creates a result set of {@code count} pages, each of {@code size} rows. */
+    private static AsyncResultSet pages(List<Row> rows, int count, int size) {
+        AsyncResultSet next = null;
+        List<List<Row>> pages = Lists.newArrayList();
+
+        for (int i = 0; i < count; i++) {
+            List<Row> page = Lists.newArrayList();
+            for (int j = 0; j < size; j++) {
+                page.add(mock(Row.class));
+            }
+            pages.add(page);
+            rows.addAll(page);
+        }
+
+        for (List<Row> page : Lists.reverse(pages)) {
+            next = page(page, next);
+        }
+
+        return next;
+    }
+
+    private static AsyncResultSet page(List<Row> rows, AsyncResultSet next) {
+        AsyncResultSet rs = mock(AsyncResultSet.class);
+        when(rs.currentPage()).thenReturn(rows);
+        when(rs.hasMorePages()).thenReturn(next != null);
+        if (next != null) {
+            when(rs.fetchNextPage()).thenReturn(CompletableFuture.completedFuture(next));
+        }
+        return rs;
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.newts.api.Gauge;
+import org.opennms.newts.api.Results;
+import org.opennms.newts.api.Sample;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.datastax.oss.driver.api.core.cql.Row;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+
+/**
+ * Time and allocation per row decoded by {@link DriverAdapter}, for each way of decoding; Run
+ * {@link #main(String...)} (from the test classpath) for bytes per row ({@code gc.alloc.rate.norm}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DriverAdapterBenchmark {
+
+    private static final int TIMESTAMPS = 1000;
+    private static final int METRICS = 10;
+    private static final int ROWS = TIMESTAMPS * METRICS;
+
+    @Param({ "STANDARD", "LEAN" })
+    public String decoding;
+
+    private DriverAdapter.Decoding m_decoding;
+    private List<Row> m_rows;
+
+    @Setup
+    public void setUp() {
+        m_decoding = DriverAdapter.Decoding.valueOf(decoding);
+
+        Map<String, String> attributes = ImmutableMap.of("units", "bytes", "source", "snmp");
+        m_rows = Lists.newArrayListWithCapacity(ROWS);
+
+        // Half the metrics have attributes (the same ones), half don't
+        for (int t = 0; t < TIMESTAMPS; t++) {
+            for (int m = 0; m < METRICS; m++) {
+                m_rows.add(RowDecoderTest.row(t * 300L, "localhost:snmp:ifIndex=1", "metric" + m, new Gauge(t * m), (m % 2 == 0) ? attributes : null));
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void decode(Blackhole blackhole) {
+        for (Results.Row<Sample> row : new DriverAdapter(m_rows.iterator(), Collections.emptySet(), m_decoding)) {
+            blackhole.consume(row);
+        }
+    }
+
+    public static void main(String... args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(DriverAdapterBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+import org.opennms.newts.api.Gauge;
+import org.opennms.newts.api.MetricType;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Results;
+import org.opennms.newts.api.Sample;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.api.ValueType;
+
+import com.datastax.oss.driver.api.core.cql.Row;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+
+public class DriverAdapterTest {
+
+    private static final Resource RESOURCE = new Resource("r0");
+
+    @Test
+    public void testMergesBlocksAndRows() {
+
+        // Blocks hold 1000..1900 (m0 and m1); Rows hold 1800..2100 (m0), overlapping at 1800 and 1900
+        List<Row> blocks = Lists.newArrayList(
+                block(1000, "m0", 1000, 1100, 1200, 1300, 1400, 1500, 1600, 1700, 1800, 1900),
+                block(1000, "m1", 1000, 1500));
+        List<Row> rows = Lists.newArrayList(row(1800, "m0", -1), row(1900, "m0", -1), row(2000, "m0", 2000), row(2100, "m0", 2100));
+
+        List<Results.Row<Sample>> results = Lists.newArrayList((Iterator<Results.Row<Sample>>) new DriverAdapter(rows.iterator(), blocks.iterator(),
+                Timestamp.fromEpochSeconds(1200), Timestamp.fromEpochSeconds(2000), Collections.<String> emptySet()));
+
+        // Blocks trimmed to the range; The rows are not (the query does that)
+        assertThat(results.size(), equalTo(10));
+        assertThat(results.get(0).getTimestamp(), equalTo(Timestamp.fromEpochSeconds(1200)));
+        assertThat(results.get(9).getTimestamp(), equalTo(Timestamp.fromEpochSeconds(2100)));
+
+        assertThat(results.get(3).getElements().size(), equalTo(2));
+        assertThat(results.get(3).getElement("m1").getValue().doubleValue(), equalTo(1500.0d));
+
+        // Rows take precedence
+        assertThat(results.get(6).getElement("m0").getValue().doubleValue(), equalTo(-1.0d));
+        assertThat(results.get(7).getElement("m0").getValue().doubleValue(), equalTo(-1.0d));
+
+    }
+
+    @Test
+    public void testBlocksOfOtherMetricsSkipped() {
+
+        List<Row> blocks = Lists.newArrayList(block(1000, "m0", 1000, 1100), block(1000, "m1", 1000, 1100), block(2000, "m1", 2000));
+
+        DriverAdapter adapter = new DriverAdapter(Collections.<Row> emptyIterator(), blocks.iterator(),
+                Timestamp.fromEpochSeconds(0), Timestamp.fromEpochSeconds(3000), ImmutableSet.of("m1"));
+
+        int rows = 0;
+        for (Results.Row<Sample> row : adapter) {
+            assertThat(row.getElements().size(), equalTo(1));
+            assertThat(row.getElement("m1") != null, equalTo(true));
+            rows++;
+        }
+
+        assertThat(rows, equalTo(3));
+
+    }
+
+    private static Row block(int start, String metric, int... seconds) {
+        List<Sample> samples = Lists.newArrayList();
+        for (int s : seconds) {
+            samples.add(new Sample(Timestamp.fromEpochSeconds(s), RESOURCE, metric, MetricType.GAUGE, new Gauge(s)));
+        }
+
+        Row row = mock(Row.class);
+        when(row.getInstant(SchemaConstants.F_BLOCK_START)).thenReturn(Instant.ofEpochSecond(start));
+        when(row.getString(SchemaConstants.F_METRIC_NAME)).thenReturn(metric);
+        when(row.getString(SchemaConstants.F_RESOURCE)).thenReturn(RESOURCE.getId());
+        when(row.getByteBuffer(SchemaConstants.F_DATA)).thenReturn(SampleBlockCodec.encode(samples));
+        when(row.getMap(eq(SchemaConstants.F_ATTRIBUTES), eq(String.class), eq(String.class))).thenReturn(Collections.emptyMap());
+        return row;
+    }
+
+    private static Row row(int seconds, String metric, double value) {
+        Row row = mock(Row.class);
+        when(row.getInstant(SchemaConstants.F_COLLECTED)).thenReturn(Instant.ofEpochSecond(seconds));
+        when(row.getString(SchemaConstants.F_METRIC_NAME)).thenReturn(metric);
+        when(row.getString(SchemaConstants.F_RESOURCE)).thenReturn(RESOURCE.getId());
+        when(row.getByteBuffer(SchemaConstants.F_VALUE)).thenReturn(ValueType.decompose(new Gauge(value)));
+        when(row.getMap(eq(SchemaConstants.F_ATTRIBUTES), eq(String.class), eq(String.class))).thenReturn(Collections.emptyMap());
+        return row;
+    }
+
+}
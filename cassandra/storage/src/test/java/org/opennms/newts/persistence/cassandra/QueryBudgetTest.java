@@ -0,0 +1,118 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+import org.opennms.newts.api.Gauge;
+import org.opennms.newts.api.MetricType;
+import org.opennms.newts.api.QueryBudgetExceededException;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Results.Row;
+import org.opennms.newts.api.Sample;
+import org.opennms.newts.api.Timestamp;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Lists;
+
+
+public class QueryBudgetTest {
+
+    private static final Resource RESOURCE = new Resource("r");
+
+    private final MetricRegistry m_registry = new MetricRegistry();
+
+    @Test
+    public void testCheck() {
+        QueryBudget budget = new QueryBudget(1000, 100000, QueryBudget.Action.REJECT, m_registry);
+
+        budget.check(new QueryCost(1, 1000, 10, 100000));
+        assertRejected(budget, new QueryCost(1, 1001, 10, 1000));
+        assertRejected(budget, new QueryCost(1, 10, 10, 100001));
+        assertThat(m_registry.meter("repository.query-budget.rejected").getCount(), equalTo(2L));
+
+        // Queries to be truncated are run all the same, as are those of no budget
+        new QueryBudget(1000, 100000, QueryBudget.Action.TRUNCATE, m_registry).check(new QueryCost(1, 1001, 10, 100001));
+        new QueryBudget(0, 0, QueryBudget.Action.REJECT, m_registry).check(new QueryCost(1, Long.MAX_VALUE, 10, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testTruncatedSamples() {
+        QueryBudget.Allowance allowance = new QueryBudget(10, 0, QueryBudget.Action.TRUNCATE, m_registry).allowance(true);
+
+        assertThat(Lists.newArrayList(allowance.samples(samples(20))).size(), equalTo(10));
+        assertTrue(allowance.isTruncated());
+        assertThat(m_registry.meter("repository.query-budget.truncated").getCount(), equalTo(1L));
+
+        allowance = new QueryBudget(10, 0, QueryBudget.Action.TRUNCATE, m_registry).allowance(true);
+        assertThat(Lists.newArrayList(allowance.samples(samples(10))).size(), equalTo(10));
+        assertFalse(allowance.isTruncated());
+    }
+
+    @Test(expected = QueryBudgetExceededException.class)
+    public void testRejectedSamples() {
+        QueryBudget.Allowance allowance = new QueryBudget(0, 10 * QueryBudget.SAMPLE_BYTES, QueryBudget.Action.REJECT, m_registry).allowance(true);
+        Lists.newArrayList(allowance.samples(samples(20)));
+    }
+
+    @Test
+    public void testTruncatedRows() {
+        // Samples streamed through (not held) take no memory; The rows of results held do
+        QueryBudget.Allowance allowance = new QueryBudget(0, 5 * QueryBudget.MEASUREMENT_BYTES, QueryBudget.Action.TRUNCATE, m_registry).allowance(false);
+        assertThat(Lists.newArrayList(allowance.samples(samples(20))).size(), equalTo(20));
+
+        List<Row<Sample>> rows = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            Row<Sample> row = new Row<>(Timestamp.fromEpochSeconds(i), RESOURCE);
+            row.addElement(sample(i));
+            rows.add(row);
+        }
+
+        assertThat(Lists.newArrayList(allowance.rows(rows.iterator())).size(), equalTo(5));
+        assertTrue(allowance.isTruncated());
+    }
+
+    private static void assertRejected(QueryBudget budget, QueryCost cost) {
+        try {
+            budget.check(cost);
+        }
+        catch (QueryBudgetExceededException e) {
+            return;
+        }
+        throw new AssertionError("not rejected: " + cost);
+    }
+
+    private static Iterator<Sample> samples(int count) {
+        List<Sample> samples = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            samples.add(sample(i));
+        }
+        return samples.iterator();
+    }
+
+    private static Sample sample(int i) {
+        return new Sample(Timestamp.fromEpochSeconds(i), RESOURCE, "m", MetricType.GAUGE, new Gauge(i));
+    }
+
+}
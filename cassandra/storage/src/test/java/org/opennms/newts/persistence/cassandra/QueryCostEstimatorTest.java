@@ -0,0 +1,124 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.opennms.newts.api.query.StandardAggregationFunctions.AVERAGE;
+
+import org.junit.Test;
+import org.opennms.newts.api.Context;
+import org.opennms.newts.api.Duration;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.api.query.ResultDescriptor;
+import org.opennms.newts.cassandra.ContextConfigurations;
+
+import com.codahale.metrics.MetricRegistry;
+
+
+public class QueryCostEstimatorTest {
+
+    private static final Resource RESOURCE = new Resource("r");
+    private static final Timestamp START = Timestamp.fromEpochSeconds(900000000).stepFloor(Duration.days(7));
+    private static final Timestamp END = START.plus(Duration.days(14));
+
+    private final MetricRegistry m_registry = new MetricRegistry();
+    private final QueryCostEstimator m_estimator = new QueryCostEstimator(new ContextConfigurations(), m_registry);
+
+    private final ResultDescriptor m_descriptor = new ResultDescriptor(Duration.seconds(300))
+            .datasource("in", "ifInOctets", AVERAGE)
+            .datasource("out", "ifOutOctets", AVERAGE)
+            .export("in", "out");
+
+    @Test
+    public void testSamples() {
+        // The rate of samples is unknown...
+        QueryCost cost = m_estimator.estimate(Context.DEFAULT_CONTEXT, RESOURCE, START, END);
+        assertThat(cost.getShards(), equalTo(3L));
+        assertThat(cost.getSamples(), equalTo(0L));
+        assertThat(cost.getSteps(), equalTo(0L));
+
+        // ...until samples are read
+        m_estimator.observe(Context.DEFAULT_CONTEXT, RESOURCE, START, END, 14 * 288 * 10, 10);
+        cost = m_estimator.estimate(Context.DEFAULT_CONTEXT, RESOURCE, START, END);
+        assertThat(cost.getSamples(), equalTo(14L * 288 * 10));
+        assertThat(cost.getBytes(), equalTo(14L * 288 * 10 * QueryBudget.SAMPLE_BYTES));
+
+        // Of the same resource only
+        assertThat(m_estimator.estimate(Context.DEFAULT_CONTEXT, new Resource("other"), START, END).getSamples(), equalTo(0L));
+
+        // (Short ranges tell too little)
+        m_estimator.observe(Context.DEFAULT_CONTEXT, new Resource("other"), START, START.plus(Duration.seconds(60)), 1000, 10);
+        assertThat(m_estimator.estimate(Context.DEFAULT_CONTEXT, new Resource("other"), START, END).getSamples(), equalTo(0L));
+
+        assertThat(m_registry.histogram("repository.query-cost.samples").getCount(), equalTo(4L));
+    }
+
+    @Test
+    public void testMeasurements() {
+        // A sample of each source an interval, until samples are read
+        QueryCost cost = m_estimator.estimate(Context.DEFAULT_CONTEXT, RESOURCE, START.plus(Duration.seconds(3600)), END, m_descriptor,
+                Duration.seconds(3600), null, false);
+        assertThat(cost.getSamples(), equalTo(14L * 288 * 2));
+        assertThat(cost.getSteps(), equalTo(14L * 24));
+        assertThat(cost.getBytes(), equalTo(14L * 24 * 2 * QueryBudget.MEASUREMENT_BYTES));
+
+        // Held samples take memory too
+        cost = m_estimator.estimate(Context.DEFAULT_CONTEXT, RESOURCE, START.plus(Duration.seconds(3600)), END, m_descriptor,
+                Duration.seconds(3600), null, true);
+        assertThat(cost.getBytes(), equalTo(14L * 24 * 2 * QueryBudget.MEASUREMENT_BYTES + 14L * 288 * 2 * QueryBudget.SAMPLE_BYTES));
+
+        // No more steps than points to draw
+        cost = m_estimator.estimate(Context.DEFAULT_CONTEXT, RESOURCE, START.plus(Duration.seconds(3600)), END,
+                new ResultDescriptor(m_descriptor).maxDataPoints(100), Duration.seconds(3600), null, false);
+        assertThat(cost.getSteps(), equalTo(100L));
+    }
+
+    @Test
+    public void testMeasurementsAfterSamples() {
+        // A select of samples reads all 400 of the resource's metrics...
+        m_estimator.observe(Context.DEFAULT_CONTEXT, RESOURCE, START, END, 14L * 288 * 400, 400);
+        assertThat(m_estimator.estimate(Context.DEFAULT_CONTEXT, RESOURCE, START, END).getSamples(), equalTo(14L * 288 * 400));
+
+        // ...a query of 2 of them is estimated for those alone
+        QueryCost cost = m_estimator.estimate(Context.DEFAULT_CONTEXT, RESOURCE, START.plus(Duration.seconds(3600)), END, m_descriptor,
+                Duration.seconds(3600), null, false);
+        assertThat(cost.getSamples(), equalTo(14L * 288 * 2));
+
+        QueryBudget budget = new QueryBudget(14L * 288 * 10, 0, QueryBudget.Action.REJECT, m_registry);
+        budget.check(cost);
+
+        // Nor does it shrink the estimate of a select of samples
+        m_estimator.observe(Context.DEFAULT_CONTEXT, RESOURCE, START, END, 14L * 288 * 2, 2);
+        assertThat(m_estimator.estimate(Context.DEFAULT_CONTEXT, RESOURCE, START, END).getSamples(), equalTo(14L * 288 * 400));
+    }
+
+    @Test
+    public void testRollups() {
+        // The second week answered from hourly rollups
+        SampleRollups.Plan plan = new SampleRollups.Plan(Duration.seconds(3600), START.plus(Duration.days(7)).plus(Duration.seconds(3600)), END);
+        QueryCost cost = m_estimator.estimate(Context.DEFAULT_CONTEXT, RESOURCE, START.plus(Duration.seconds(3600)), END, m_descriptor,
+                Duration.seconds(3600), plan, false);
+
+        assertThat(cost.getSamples(), equalTo(7L * 288 * 2 + 7L * 24 * 2));
+        assertTrue(cost.getSamples() < m_estimator.estimate(Context.DEFAULT_CONTEXT, RESOURCE, START.plus(Duration.seconds(3600)), END,
+                m_descriptor, Duration.seconds(3600), null, false).getSamples());
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+
+public class RequestSchedulerTest {
+
+    @Test
+    public void testLimit() {
+
+        RequestScheduler scheduler = new RequestScheduler(2);
+        List<CompletableFuture<Integer>> requests = Lists.newArrayList();
+        List<CompletableFuture<Integer>> results = Lists.newArrayList();
+
+        for (int i = 0; i < 5; i++) {
+            CompletableFuture<Integer> request = new CompletableFuture<>();
+            requests.add(request);
+            results.add(scheduler.submit(() -> request));
+        }
+
+        assertThat(scheduler.getInFlight(), equalTo(2));
+        assertThat(scheduler.getQueued(), equalTo(3));
+
+        // Completing a request dispatches the next one in line
+        requests.get(0).complete(0);
+
+        assertThat(results.get(0).join(), equalTo(0));
+        assertThat(scheduler.getInFlight(), equalTo(2));
+        assertThat(scheduler.getQueued(), equalTo(2));
+
+        for (int i = 1; i < 5; i++) {
+            requests.get(i).complete(i);
+        }
+
+        for (int i = 0; i < 5; i++) {
+            assertThat(results.get(i).join(), equalTo(i));
+        }
+
+        assertThat(scheduler.getInFlight(), equalTo(0));
+        assertThat(scheduler.getQueued(), equalTo(0));
+
+    }
+
+    @Test
+    public void testFailuresRelease() {
+
+        RequestScheduler scheduler = new RequestScheduler(1);
+
+        CompletableFuture<Integer> failed = scheduler.submit(() -> {
+            throw new IllegalStateException("failed to issue");
+        });
+
+        assertThat(failed.isCompletedExceptionally(), equalTo(true));
+
+        CompletableFuture<Integer> request = new CompletableFuture<>();
+        CompletableFuture<Integer> result = scheduler.submit(() -> request);
+        request.completeExceptionally(new IllegalStateException("request failed"));
+
+        assertThat(result.isCompletedExceptionally(), equalTo(true));
+        assertThat(scheduler.getInFlight(), equalTo(0));
+
+    }
+
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+import org.opennms.newts.api.Counter;
+import org.opennms.newts.api.Gauge;
+import org.opennms.newts.api.MetricType;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Results;
+import org.opennms.newts.api.Sample;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.api.ValueType;
+
+import com.datastax.oss.driver.api.core.ProtocolVersion;
+import com.datastax.oss.driver.api.core.cql.ColumnDefinition;
+import com.datastax.oss.driver.api.core.cql.ColumnDefinitions;
+import com.datastax.oss.driver.api.core.cql.Row;
+import com.datastax.oss.driver.api.core.detach.AttachmentPoint;
+import com.datastax.oss.driver.api.core.type.codec.TypeCodec;
+import com.datastax.oss.driver.api.core.type.codec.TypeCodecs;
+import com.datastax.oss.driver.internal.core.cql.DefaultColumnDefinition;
+import com.datastax.oss.driver.internal.core.cql.DefaultColumnDefinitions;
+import com.datastax.oss.driver.internal.core.cql.DefaultRow;
+import com.datastax.oss.protocol.internal.ProtocolConstants;
+import com.datastax.oss.protocol.internal.response.result.ColumnSpec;
+import com.datastax.oss.protocol.internal.response.result.RawType;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+
+public class RowDecoderTest {
+
+    private static final Resource RESOURCE = new Resource("r0");
+
+    private static final TypeCodec<Map<String, String>> ATTRIBUTES = TypeCodecs.mapOf(TypeCodecs.TEXT, TypeCodecs.TEXT);
+    private static final ColumnDefinitions COLUMNS = columns();
+
+    @Test
+    public void testDecodesAsDriverCodecs() {
+        List<Row> rows = Lists.newArrayList(
+                row(1000, RESOURCE.getId(), "m0", new Gauge(1.5d), null),
+                row(1000, RESOURCE.getId(), "m1", new Counter(2), ImmutableMap.of("a", "1")),
+                row(2000, RESOURCE.getId(), "m0", new Gauge(3.5d), Collections.emptyMap()),
+                row(2000, RESOURCE.getId(), "m1", new Counter(4), ImmutableMap.of("a", "1", "b", "2")));
+
+        Iterator<Results.Row<Sample>> standard = new DriverAdapter(rows.iterator(), Collections.emptySet(), DriverAdapter.Decoding.STANDARD);
+        Iterator<Results.Row<Sample>> lean = new DriverAdapter(rows.iterator(), Collections.emptySet(), DriverAdapter.Decoding.LEAN);
+
+        int count = 0;
+        while (standard.hasNext()) {
+            Results.Row<Sample> expected = standard.next();
+            Results.Row<Sample> actual = lean.next();
+
+            assertThat(actual.getTimestamp(), equalTo(expected.getTimestamp()));
+            assertThat(actual.getResource(), equalTo(expected.getResource()));
+            assertThat(actual.getElements().size(), equalTo(expected.getElements().size()));
+
+            for (Sample sample : expected.getElements()) {
+                Sample other = actual.getElement(sample.getName());
+                assertThat(other.getTimestamp(), equalTo(sample.getTimestamp()));
+                assertThat(other.getType(), equalTo(sample.getType()));
+                assertThat(other.getValue(), equalTo(sample.getValue()));
+                assertThat(other.getAttributes(), equalTo(sample.getAttributes()));
+                count++;
+            }
+        }
+
+        assertThat(lean.hasNext(), equalTo(false));
+        assertThat(count, equalTo(4));
+    }
+
+    @Test
+    public void testSharesWhatRepeats() {
+        Map<String, String> attributes = ImmutableMap.of("a", "1");
+        RowDecoder decoder = new RowDecoder(Collections.emptySet());
+
+        Sample s0 = decoder.decode(row(1000, RESOURCE.getId(), "m0", new Gauge(1.0d), attributes));
+        Sample s1 = decoder.decode(row(1000, RESOURCE.getId(), "m1", new Gauge(2.0d), attributes));
+        Sample s2 = decoder.decode(row(2000, RESOURCE.getId(), "m0", new Gauge(3.0d), null));
+        Sample s3 = decoder.decode(row(2000, RESOURCE.getId(), "m1", new Gauge(4.0d), Collections.emptyMap()));
+
+        assertThat(s1.getResource(), sameInstance(s0.getResource()));
+        assertThat(s3.getResource(), sameInstance(s0.getResource()));
+        assertThat(s1.getTimestamp(), sameInstance(s0.getTimestamp()));
+        assertThat(s3.getTimestamp(), sameInstance(s2.getTimestamp()));
+        assertThat(s2.getName(), sameInstance(s0.getName()));
+        assertThat(s3.getName(), sameInstance(s1.getName()));
+
+        assertThat(s0.getAttributes(), equalTo(attributes));
+        assertThat(s1.getAttributes(), sameInstance(s0.getAttributes()));
+        assertThat(s3.getAttributes(), sameInstance(s2.getAttributes()));
+        assertThat(s2.getAttributes().isEmpty(), equalTo(true));
+    }
+
+    @Test
+    public void testNewResourceDecoded() {
+        RowDecoder decoder = new RowDecoder(Collections.emptySet());
+
+        Sample s0 = decoder.decode(row(1000, "r0", "m0", new Gauge(1.0d), null));
+        Sample s1 = decoder.decode(row(1000, "r1", "m0", new Gauge(1.0d), null));
+
+        assertThat(s0.getResource(), equalTo(new Resource("r0")));
+        assertThat(s1.getResource(), equalTo(new Resource("r1")));
+    }
+
+    @Test
+    public void testValuesOfOtherMetricsNotDecoded() {
+        Set<String> metrics = ImmutableSet.of("m0");
+        RowDecoder decoder = new RowDecoder(metrics);
+
+        Sample s0 = decoder.decode(row(1000, RESOURCE.getId(), "m1", new Counter(1), ImmutableMap.of("a", "1")));
+
+        assertThat(s0.getName(), equalTo("m1"));
+        assertThat(s0.getType(), equalTo(MetricType.COUNTER));
+        assertThat(s0.getValue(), nullValue());
+        assertThat(s0.getAttributes(), nullValue());
+    }
+
+    /** A row of the {@code samples} table, as the driver would read it. */
+    static Row row(long epochSeconds, String resource, String metric, ValueType<?> value, Map<String, String> attributes) {
+        ProtocolVersion version = ProtocolVersion.DEFAULT;
+        List<ByteBuffer> values = Lists.newArrayList(
+                TypeCodecs.TEXT.encode(resource, version),
+                TypeCodecs.TIMESTAMP.encode(Instant.ofEpochSecond(epochSeconds), version),
+                TypeCodecs.TEXT.encode(metric, version),
+                ValueType.decompose(value),
+                ATTRIBUTES.encode(attributes, version));
+        return new DefaultRow(COLUMNS, values, AttachmentPoint.NONE);
+    }
+
+    private static ColumnDefinitions columns() {
+        RawType text = RawType.PRIMITIVES.get(ProtocolConstants.DataType.VARCHAR);
+        RawType[] types = {
+                text,
+                RawType.PRIMITIVES.get(ProtocolConstants.DataType.TIMESTAMP),
+                text,
+                RawType.PRIMITIVES.get(ProtocolConstants.DataType.BLOB),
+                new RawType.RawMap(text, text) };
+        String[] names = {
+                SchemaConstants.F_RESOURCE,
+                SchemaConstants.F_COLLECTED,
+                SchemaConstants.F_METRIC_NAME,
+                SchemaConstants.F_VALUE,
+                SchemaConstants.F_ATTRIBUTES };
+
+        List<ColumnDefinition> definitions = Lists.newArrayList();
+        for (int i = 0; i < names.length; i++) {
+            definitions.add(new DefaultColumnDefinition(new ColumnSpec("newts", SchemaConstants.T_SAMPLES, names[i], i, types[i]), AttachmentPoint.NONE));
+        }
+        return DefaultColumnDefinitions.valueOf(definitions);
+    }
+
+}
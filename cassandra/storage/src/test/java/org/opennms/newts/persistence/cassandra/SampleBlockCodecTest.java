@@ -0,0 +1,153 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.opennms.newts.api.Counter;
+import org.opennms.newts.api.Derive;
+import org.opennms.newts.api.Gauge;
+import org.opennms.newts.api.MetricType;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Sample;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.api.ValueType;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.UnsignedLong;
+
+
+public class SampleBlockCodecTest {
+
+    private static final Resource RESOURCE = new Resource("r0");
+
+    @Test
+    public void testRegularGauges() {
+
+        List<Sample> samples = Lists.newArrayList();
+        for (int i = 0; i < 48; i++) {
+            samples.add(sample(900000000000L + (i * 300000L), MetricType.GAUGE, new Gauge(42.5 + (i % 3))));
+        }
+
+        ByteBuffer block = assertRoundTrip(samples);
+
+        // Against the 9 byte value alone of a row, per sample
+        assertTrue(block.remaining() < samples.size() * 2);
+
+    }
+
+    @Test
+    public void testIrregularGauges() {
+
+        Random random = new Random(1);
+        List<Sample> samples = Lists.newArrayList();
+        long time = 900000000000L;
+        for (int i = 0; i < 500; i++) {
+            time += 1 + random.nextInt(600000);
+            double value = (i % 50 == 0) ? Double.NaN : random.nextGaussian() * 1e6;
+            samples.add(sample(time, MetricType.GAUGE, new Gauge(value)));
+        }
+
+        assertRoundTrip(samples);
+
+    }
+
+    @Test
+    public void testCounters() {
+
+        List<Sample> samples = Lists.newArrayList();
+        long value = Long.MAX_VALUE - 10000;
+        for (int i = 0; i < 48; i++) {
+            // Steady rate, crossing the signed boundary
+            value += 1000;
+            samples.add(sample(900000000000L + (i * 300000L), MetricType.COUNTER, new Counter(UnsignedLong.fromLongBits(value))));
+        }
+
+        ByteBuffer block = assertRoundTrip(samples);
+
+        assertTrue(block.remaining() < 40);
+
+    }
+
+    @Test
+    public void testDerivesWithJitter() {
+
+        Random random = new Random(2);
+        List<Sample> samples = Lists.newArrayList();
+        long time = 900000000000L, value = 0;
+        for (int i = 0; i < 200; i++) {
+            time += 300000 + random.nextInt(2000) - 1000;
+            value += random.nextInt(1 << 20) - (1 << 19);
+            samples.add(sample(time, MetricType.DERIVE, new Derive(UnsignedLong.fromLongBits(value))));
+        }
+
+        assertRoundTrip(samples);
+
+    }
+
+    @Test
+    public void testSingleSample() {
+        assertRoundTrip(Collections.singletonList(sample(900000000000L, MetricType.GAUGE, new Gauge(1.0))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMixedTypes() {
+        SampleBlockCodec.encode(Lists.newArrayList(
+                sample(900000000000L, MetricType.GAUGE, new Gauge(1.0)),
+                sample(900000300000L, MetricType.COUNTER, new Counter(1))));
+    }
+
+    private static ByteBuffer assertRoundTrip(List<Sample> samples) {
+        Map<String, String> attributes = ImmutableMap.of("a", "b");
+        ByteBuffer block = SampleBlockCodec.encode(samples);
+
+        List<Sample> decoded = SampleBlockCodec.decode(block, RESOURCE, "m0", attributes);
+
+        assertThat(decoded.size(), equalTo(samples.size()));
+        for (int i = 0; i < samples.size(); i++) {
+            Sample expected = samples.get(i), actual = decoded.get(i);
+            assertThat(actual.getTimestamp(), equalTo(expected.getTimestamp()));
+            assertThat(actual.getType(), equalTo(expected.getType()));
+            assertThat(actual.getName(), equalTo("m0"));
+            assertThat(actual.getResource(), equalTo(RESOURCE));
+            assertThat(actual.getAttributes(), equalTo(attributes));
+            if (expected.getType() == MetricType.GAUGE) {
+                assertThat(Double.doubleToRawLongBits(actual.getValue().doubleValue()), equalTo(Double.doubleToRawLongBits(expected.getValue().doubleValue())));
+            }
+            else {
+                assertThat(actual.getValue().longValue(), equalTo(expected.getValue().longValue()));
+            }
+        }
+
+        return block;
+    }
+
+    private static Sample sample(long millis, MetricType type, ValueType<?> value) {
+        return new Sample(Timestamp.fromEpochMillis(millis), RESOURCE, "m0", type, value);
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.newts.api.Context;
+import org.opennms.newts.api.Duration;
+import org.opennms.newts.api.Gauge;
+import org.opennms.newts.api.MetricType;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Sample;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.cassandra.CassandraSession;
+import org.opennms.newts.cassandra.ContextConfigurations;
+
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.ResultSet;
+import com.datastax.oss.driver.api.core.cql.Row;
+import com.datastax.oss.driver.api.core.cql.Statement;
+
+
+public class SampleBlockCompactorTest {
+
+    private static final Duration BLOCK_SIZE = Duration.seconds(3600);
+
+    private final CassandraSession m_session = mock(CassandraSession.class);
+    private final MetricRegistry m_registry = new MetricRegistry();
+    private final CountDownLatch m_release = new CountDownLatch(1);
+    private final CountDownLatch m_started = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        PreparedStatement prepared = mock(PreparedStatement.class);
+        when(prepared.bind()).thenAnswer(invocation -> mock(BoundStatement.class, RETURNS_SELF));
+        when(m_session.prepare(anyString())).thenReturn(prepared);
+
+        // Compactions (reads) wait to be released
+        when(m_session.execute(any(Statement.class))).thenAnswer(invocation -> {
+            m_started.countDown();
+            m_release.await();
+            ResultSet rs = mock(ResultSet.class);
+            when(rs.iterator()).thenReturn(Collections.<Row>emptyIterator());
+            return rs;
+        });
+    }
+
+    @After
+    public void tearDown() {
+        m_release.countDown();
+    }
+
+    @Test
+    public void testQueueFull() throws Exception {
+        // One window running, and one queued; Those after are dropped
+        SampleBlockCompactor compactor = new SampleBlockCompactor(m_session, new ContextConfigurations(), BLOCK_SIZE, 0, 1, m_registry);
+
+        compactor.samplesInserted(Collections.singletonList(sample("r1")));
+        assertTrue(m_started.await(5, TimeUnit.SECONDS));
+        compactor.samplesInserted(Collections.singletonList(sample("r2")));
+        compactor.samplesInserted(Collections.singletonList(sample("r3")));
+        assertThat(m_registry.meter("repository.compactor.windows-dropped").getCount(), equalTo(1L));
+
+        // Those dropped can be scheduled again
+        compactor.samplesInserted(Collections.singletonList(sample("r3")));
+        assertThat(m_registry.meter("repository.compactor.windows-dropped").getCount(), equalTo(2L));
+
+        // Compactions asked for when the queue is full fail, rather than never completing
+        Timestamp start = Timestamp.now().minus(Duration.days(1));
+        CompletableFuture<Integer> compacted = compactor.compact(Context.DEFAULT_CONTEXT, new Resource("r4"), start, start.plus(BLOCK_SIZE));
+        try {
+            compacted.get(5, TimeUnit.SECONDS);
+            throw new AssertionError("compaction not rejected");
+        }
+        catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(RejectedExecutionException.class));
+        }
+    }
+
+    private static Sample sample(String resource) {
+        return new Sample(Timestamp.now(), new Resource(resource), "m", MetricType.GAUGE, new Gauge(1.0d));
+    }
+
+}
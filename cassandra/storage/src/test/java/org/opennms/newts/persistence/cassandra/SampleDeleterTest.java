@@ -0,0 +1,220 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.newts.api.Context;
+import org.opennms.newts.api.Duration;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.cassandra.CassandraSession;
+import org.opennms.newts.cassandra.ContextConfigurations;
+
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.Row;
+import com.datastax.oss.driver.api.core.cql.Statement;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+
+public class SampleDeleterTest {
+
+    private static final Duration SHARD = Duration.seconds(604800);
+
+    private final CassandraSession m_session = mock(CassandraSession.class);
+    private final PreparedStatement m_probe = mock(PreparedStatement.class);
+    private final PreparedStatement m_delete = mock(PreparedStatement.class);
+
+    // partitions (by bound statement), and whether the statement is a probe
+    private final Map<Statement<?>, Integer> m_partitions = Maps.newConcurrentMap();
+    private final Set<Statement<?>> m_probes = Sets.newConcurrentHashSet();
+
+    // partitions holding data, and those probed and deleted
+    private final Set<Integer> m_existing = Sets.newConcurrentHashSet();
+    private final List<Integer> m_probed = Collections.synchronizedList(Lists.newArrayList());
+    private final List<Integer> m_deleted = Collections.synchronizedList(Lists.newArrayList());
+
+    @Before
+    public void setUp() {
+        when(m_session.prepare(anyString())).thenAnswer(invocation -> {
+            String cql = invocation.getArgument(0);
+            return cql.startsWith("DELETE") ? m_delete : m_probe;
+        });
+        when(m_probe.bind()).thenAnswer(invocation -> bound(true));
+        when(m_delete.bind()).thenAnswer(invocation -> bound(false));
+        when(m_session.executeAsync(any())).thenAnswer(invocation -> {
+            Statement<?> statement = invocation.getArgument(0);
+            int partition = m_partitions.get(statement);
+            AsyncResultSet rs = mock(AsyncResultSet.class);
+            if (m_probes.contains(statement)) {
+                m_probed.add(partition);
+                List<Row> rows = m_existing.contains(partition) ? Lists.newArrayList(mock(Row.class)) : Lists.<Row>newArrayList();
+                when(rs.currentPage()).thenReturn(rows);
+            }
+            else {
+                m_deleted.add(partition);
+                m_existing.remove(partition);
+            }
+            return CompletableFuture.completedFuture(rs);
+        });
+    }
+
+    @Test
+    public void testDeleteWithTtl() {
+
+        int current = partition(Timestamp.now());
+        int previous = partition(Timestamp.now().minus(SHARD));
+        m_existing.add(current);
+        m_existing.add(previous);
+
+        // 30 day TTL; Spans 5 or 6 (7 day) shards
+        int deleted = newDeleter(30 * 86400).delete(Context.DEFAULT_CONTEXT, new Resource("r")).join();
+
+        assertThat(deleted, equalTo(2));
+        assertThat(Sets.newHashSet(m_deleted), equalTo(Sets.newHashSet(current, previous)));
+        assertThat(m_probed.size() >= 5, equalTo(true));
+
+    }
+
+    @Test
+    public void testDeleteWithoutTtl() {
+
+        Timestamp now = Timestamp.now();
+        int current = partition(now);
+        int older = partition(now.minus(400, TimeUnit.DAYS));
+        m_existing.add(current);
+        m_existing.add(older);
+
+        int deleted = newDeleter(0).delete(Context.DEFAULT_CONTEXT, new Resource("r")).join();
+
+        assertThat(deleted, equalTo(2));
+        assertThat(Sets.newHashSet(m_deleted), equalTo(Sets.newHashSet(current, older)));
+
+        // Three windows probed: two with data, and the empty one that ends the search
+        int earliest = partition(now.minus(3 * SampleDeleter.DELETION_INTERVAL, TimeUnit.DAYS));
+        for (int partition : m_probed) {
+            assertThat(partition >= earliest, equalTo(true));
+        }
+
+    }
+
+    @Test
+    public void testDeleteIndexedAcrossGap() {
+
+        Timestamp now = Timestamp.now();
+        int current = partition(now);
+        int older = partition(now.minus(400, TimeUnit.DAYS));
+        int oldest = partition(now.minus(1200, TimeUnit.DAYS));
+        m_existing.add(current);
+        m_existing.add(older);
+        m_existing.add(oldest);
+
+        // Indexed, with more than a window (360 days) between them
+        Set<Integer> indexed = Sets.newHashSet(older, oldest);
+        ShardIndex shardIndex = mock(ShardIndex.class);
+        when(shardIndex.refresh(any(Context.class), any(Resource.class))).thenReturn(CompletableFuture.completedFuture(null));
+        when(shardIndex.delete(any(Context.class), any(Resource.class))).thenReturn(CompletableFuture.completedFuture(null));
+        when(shardIndex.first(any(Context.class), any(Resource.class))).thenReturn(Timestamp.fromEpochSeconds(oldest));
+        when(shardIndex.partitions(any(Context.class), any(Resource.class), any(Timestamp.class), any(Timestamp.class))).thenAnswer(invocation -> {
+            Timestamp start = invocation.getArgument(2);
+            Timestamp end = invocation.getArgument(3);
+            List<Timestamp> partitions = Lists.newArrayList();
+            for (Timestamp t = start.stepFloor(SHARD); !t.gt(end.stepFloor(SHARD)); t = t.plus(SHARD)) {
+                if (indexed.contains((int) t.asSeconds()) || t.equals(now.stepFloor(SHARD))) {
+                    partitions.add(t);
+                }
+            }
+            return partitions;
+        });
+
+        SampleDeleter deleter = new SampleDeleter(m_session, new ContextConfigurations(), new RequestScheduler(4), new RequestScheduler(2),
+                0, 4, false, null, shardIndex, new MetricRegistry());
+        int deleted = deleter.delete(Context.DEFAULT_CONTEXT, new Resource("r")).join();
+
+        // Every indexed partition is deleted, however far apart, before the index entries are
+        assertThat(deleted, equalTo(3));
+        assertThat(Sets.newHashSet(m_deleted), equalTo(Sets.newHashSet(current, older, oldest)));
+        assertThat(m_probed.size(), equalTo(3));
+
+    }
+
+    @Test
+    public void testBulkDelete() {
+
+        m_existing.add(partition(Timestamp.now()));
+
+        List<Resource> resources = Lists.newArrayList();
+        for (int i = 0; i < 20; i++) {
+            resources.add(new Resource("r" + i));
+        }
+
+        // Every resource shares the same (mocked) partition, so only the first finds data
+        DeletionJob job = newDeleter(30 * 86400).delete(Context.DEFAULT_CONTEXT, resources);
+        job.getCompletion().toCompletableFuture().join();
+
+        assertThat(job.isDone(), equalTo(true));
+        assertThat(job.getTotal(), equalTo(20));
+        assertThat(job.getCompleted(), equalTo(20));
+        assertThat(job.getFailed(), equalTo(0));
+        assertThat(job.getPartitionsDeleted(), equalTo(1L));
+
+    }
+
+    private SampleDeleter newDeleter(int ttl) {
+        return new SampleDeleter(m_session, new ContextConfigurations(), new RequestScheduler(4), new RequestScheduler(2),
+                ttl, 4, new MetricRegistry());
+    }
+
+    private BoundStatement bound(boolean probe) {
+        BoundStatement bound = mock(BoundStatement.class, RETURNS_SELF);
+        when(bound.setInt(eq(SchemaConstants.F_PARTITION), anyInt())).thenAnswer(invocation -> {
+            m_partitions.put(bound, invocation.getArgument(1));
+            return bound;
+        });
+        if (probe) {
+            m_probes.add(bound);
+        }
+        return bound;
+    }
+
+    private static int partition(Timestamp timestamp) {
+        return (int) timestamp.stepFloor(SHARD).asSeconds();
+    }
+
+}
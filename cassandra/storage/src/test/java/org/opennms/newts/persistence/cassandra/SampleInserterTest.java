@@ -0,0 +1,314 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.opennms.newts.api.Context;
+import org.opennms.newts.api.Counter;
+import org.opennms.newts.api.Duration;
+import org.opennms.newts.api.Gauge;
+import org.opennms.newts.api.MetricType;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Sample;
+import org.opennms.newts.api.SampleBatch;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.api.ValueType;
+import org.opennms.newts.cassandra.CassandraException;
+import org.opennms.newts.cassandra.CassandraSession;
+import org.opennms.newts.cassandra.ContextConfigurations;
+import org.opennms.newts.cassandra.SampleLayout;
+
+import com.datastax.oss.driver.api.core.ConsistencyLevel;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.BatchStatement;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.Statement;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+
+public class SampleInserterTest {
+
+    private final CassandraSession m_session = mock(CassandraSession.class);
+    private final PreparedStatement m_insert = mock(PreparedStatement.class);
+
+    @Before
+    public void setUp() {
+        when(m_session.prepare(anyString())).thenReturn(m_insert);
+        when(m_insert.bind()).thenAnswer(invocation -> mock(BoundStatement.class, RETURNS_SELF));
+        when(m_session.executeAsync(any())).thenReturn(CompletableFuture.completedFuture(mock(AsyncResultSet.class)));
+    }
+
+    @Test
+    public void testGroupsByPartition() {
+
+        List<Sample> samples = Lists.newArrayList();
+
+        // Two resources, 40 samples each; All within the same (7 day) shard
+        for (int i = 0; i < 40; i++) {
+            samples.add(sample(new Resource("r0"), 900000000 + (i * 300)));
+            samples.add(sample(new Resource("r1"), 900000000 + (i * 300)));
+        }
+
+        newInserter(16).insert(samples, 0, false);
+
+        List<Statement<?>> sent = sent(6);
+
+        // 16 + 16 + 8 per resource
+        int total = 0;
+        for (Statement<?> statement : sent) {
+            assertThat(statement, instanceOf(BatchStatement.class));
+            total += ((BatchStatement) statement).size();
+        }
+
+        assertThat(total, equalTo(80));
+
+    }
+
+    @Test
+    public void testSingleStatementNotBatched() {
+
+        newInserter(16).insert(Lists.newArrayList(sample(new Resource("r0"), 900000000)), 0, false);
+
+        assertThat(sent(1).get(0), instanceOf(BoundStatement.class));
+
+    }
+
+    @Test
+    public void testSeparateContextsAndShards() {
+
+        Context other = new Context("other");
+        Timestamp ts = Timestamp.fromEpochSeconds(900000000);
+        Resource resource = new Resource("r0");
+
+        newInserter(16).insert(Lists.newArrayList(
+                new Sample(ts, resource, "m0", MetricType.GAUGE, new Gauge(1)),
+                new Sample(ts, other, resource, "m0", MetricType.GAUGE, new Gauge(1)),
+                new Sample(ts.plus(8, TimeUnit.DAYS), resource, "m0", MetricType.GAUGE, new Gauge(1))), 0, false);
+
+        sent(3);
+
+    }
+
+    @Test
+    public void testExpiredSamplesSkipped() {
+
+        newInserter(16).insert(Lists.newArrayList(sample(new Resource("r0"), 900000000)), 86400, true);
+
+        verify(m_session, never()).executeAsync(any());
+
+    }
+
+    @Test
+    public void testAsyncCompletesAfterWrite() {
+
+        CompletableFuture<AsyncResultSet> write = new CompletableFuture<>();
+        when(m_session.executeAsync(any())).thenReturn(write);
+
+        CompletableFuture<Void> result = newInserter(16).insertAsync(Lists.newArrayList(sample(new Resource("r0"), 900000000)), 0, false);
+
+        assertThat(result.isDone(), equalTo(false));
+
+        write.complete(mock(AsyncResultSet.class));
+
+        assertThat(result.isDone(), equalTo(true));
+        assertThat(result.isCompletedExceptionally(), equalTo(false));
+
+    }
+
+    @Test(expected = CassandraException.class)
+    public void testFailurePropagates() {
+
+        CompletableFuture<AsyncResultSet> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException("write failed"));
+        when(m_session.executeAsync(any())).thenReturn(failed);
+
+        newInserter(16).insert(Lists.newArrayList(sample(new Resource("r0"), 900000000)), 0, false);
+
+    }
+
+    @Test
+    public void testMetricFirstLayout() {
+
+        PreparedStatement byMetric = mock(PreparedStatement.class);
+        when(m_session.prepare(contains(SchemaConstants.T_SAMPLES_BY_METRIC))).thenReturn(byMetric);
+        when(byMetric.bind()).thenAnswer(invocation -> mock(BoundStatement.class, RETURNS_SELF));
+
+        Context other = new Context("other");
+        ContextConfigurations contexts = new ContextConfigurations()
+                .addContextConfig(other, Duration.days(7), ConsistencyLevel.ONE, ConsistencyLevel.ANY, SampleLayout.METRIC_FIRST);
+        SampleInserter inserter = new SampleInserter(m_session, contexts, new CassandraStorageOptions());
+
+        // Not prepared until a sample of such a context is written
+        verify(m_session, never()).prepare(contains(SchemaConstants.T_SAMPLES_BY_METRIC));
+
+        Timestamp ts = Timestamp.fromEpochSeconds(900000000);
+        inserter.insert(Lists.newArrayList(
+                new Sample(ts, new Resource("r0"), "m0", MetricType.GAUGE, new Gauge(1)),
+                new Sample(ts, other, new Resource("r0"), "m0", MetricType.GAUGE, new Gauge(1)),
+                new Sample(ts, other, new Resource("r0"), "m1", MetricType.GAUGE, new Gauge(1))), 0, false);
+
+        sent(2);
+        verify(m_insert, times(1)).bind();
+        verify(byMetric, times(2)).bind();
+
+    }
+
+    @Test
+    public void testBatchGroupsByPartition() {
+
+        SampleBatch.Builder builder = SampleBatch.builder(Context.DEFAULT_CONTEXT);
+
+        // Two resources, 40 samples each, interleaved; All within the same (7 day) shard
+        for (int i = 0; i < 40; i++) {
+            builder.addCounter((900000000L + (i * 300)) * 1000, new Resource("r0"), "m0", i);
+            builder.addCounter((900000000L + (i * 300)) * 1000, new Resource("r1"), "m0", i);
+        }
+
+        newInserter(16).insertAsync(builder.build(), 0, false).join();
+
+        // 16 + 16 + 8 per resource
+        int total = 0;
+        for (Statement<?> statement : sent(6)) {
+            assertThat(statement, instanceOf(BatchStatement.class));
+            total += ((BatchStatement) statement).size();
+        }
+
+        assertThat(total, equalTo(80));
+
+    }
+
+    @Test
+    public void testBatchEncoding() {
+
+        Map<String, ByteBuffer> bound = Maps.newHashMap();
+        BoundStatement statement = mock(BoundStatement.class, RETURNS_SELF);
+        when(statement.setBytesUnsafe(anyString(), any())).thenAnswer(invocation -> {
+            bound.put(invocation.getArgument(0), invocation.getArgument(1));
+            return statement;
+        });
+        when(m_insert.bind()).thenReturn(statement);
+
+        SampleBatch batch = SampleBatch.builder(Context.DEFAULT_CONTEXT)
+                .addGauge(900000000123L, new Resource("r0"), "m0", 2.5)
+                .build();
+
+        newInserter(16).insertAsync(batch, 86400, false).join();
+
+        // Bound as they would have been encoded by the driver's codecs
+        assertThat(bound.get(SchemaConstants.F_CONTEXT), equalTo(utf8(Context.DEFAULT_CONTEXT.getId())));
+        assertThat(bound.get(SchemaConstants.F_RESOURCE), equalTo(utf8("r0")));
+        assertThat(bound.get(SchemaConstants.F_METRIC_NAME), equalTo(utf8("m0")));
+        assertThat(bound.get(SchemaConstants.F_PARTITION).getInt(), equalTo((int) Timestamp.fromEpochMillis(900000000123L).stepFloor(Duration.days(7)).asSeconds()));
+        assertThat(bound.get(SchemaConstants.F_COLLECTED).getLong(), equalTo(900000000123L));
+        assertThat(bound.get(SchemaConstants.F_VALUE), equalTo(ValueType.decompose(new Gauge(2.5))));
+        assertThat(bound.get(SampleInserter.TTL_MARKER).getInt(), equalTo(86400));
+
+    }
+
+    @Test
+    public void testBatchExpiredSamplesSkipped() {
+
+        SampleBatch batch = SampleBatch.builder(Context.DEFAULT_CONTEXT)
+                .addGauge(900000000000L, new Resource("r0"), "m0", 1)
+                .build();
+
+        newInserter(16).insertAsync(batch, 86400, true).join();
+
+        verify(m_session, never()).executeAsync(any());
+
+    }
+
+    @Test
+    public void testInFlightLimitDoesNotBlock() {
+
+        List<CompletableFuture<AsyncResultSet>> executed = Lists.newArrayList();
+        when(m_session.executeAsync(any())).thenAnswer(invocation -> {
+            CompletableFuture<AsyncResultSet> future = new CompletableFuture<>();
+            executed.add(future);
+            return future;
+        });
+
+        List<Sample> samples = Lists.newArrayList();
+        for (int i = 0; i < 4; i++) {
+            samples.add(sample(new Resource("r" + i), 900000000));
+        }
+
+        // Returns straight away, with the writes beyond the limit queued
+        CompletableFuture<Void> inserted = newInserter(16).insertAsync(samples, 0, false);
+        assertThat(executed.size(), equalTo(2));
+
+        executed.get(0).complete(mock(AsyncResultSet.class));
+        executed.get(1).complete(mock(AsyncResultSet.class));
+        assertThat(executed.size(), equalTo(4));
+        assertFalse(inserted.isDone());
+
+        executed.get(2).complete(mock(AsyncResultSet.class));
+        executed.get(3).complete(mock(AsyncResultSet.class));
+        assertTrue(inserted.isDone());
+        assertFalse(inserted.isCompletedExceptionally());
+
+    }
+
+    private SampleInserter newInserter(int maxBatchSize) {
+        return new SampleInserter(m_session, new ContextConfigurations(), new CassandraStorageOptions.Builder()
+                .withMaxBatchSize(maxBatchSize)
+                .withMaxInFlightWrites(2)
+                .build());
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Statement<?>> sent(int expected) {
+        ArgumentCaptor<Statement<?>> captor = ArgumentCaptor.forClass(Statement.class);
+        verify(m_session, times(expected)).executeAsync(captor.capture());
+        return captor.getAllValues();
+    }
+
+    private static ByteBuffer utf8(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Sample sample(Resource resource, int epochSeconds) {
+        return new Sample(Timestamp.fromEpochSeconds(epochSeconds), resource, "m0", MetricType.COUNTER, new Counter(epochSeconds));
+    }
+
+}
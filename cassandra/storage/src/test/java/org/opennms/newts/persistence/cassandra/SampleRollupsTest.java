@@ -0,0 +1,222 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.opennms.newts.aggregate.ResultProcessor;
+import org.opennms.newts.api.Context;
+import org.opennms.newts.api.Counter;
+import org.opennms.newts.api.Duration;
+import org.opennms.newts.api.Gauge;
+import org.opennms.newts.api.Measurement;
+import org.opennms.newts.api.MetricType;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Results.Row;
+import org.opennms.newts.api.Sample;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.api.query.ResultDescriptor;
+import org.opennms.newts.api.query.StandardAggregationFunctions;
+import org.opennms.newts.cassandra.CassandraSession;
+import org.opennms.newts.cassandra.ContextConfigurations;
+
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.ResultSet;
+import com.datastax.oss.driver.api.core.cql.Statement;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+
+public class SampleRollupsTest {
+
+    private static final Resource RESOURCE = new Resource("r0");
+    private static final Duration INTERVAL = Duration.seconds(300);
+    private static final Duration HEARTBEAT = Duration.seconds(600);
+    private static final Duration RESOLUTION = Duration.seconds(3600);
+
+    /** Rolled up from here... */
+    private static final Timestamp START = Timestamp.fromEpochSeconds(1700000000).stepFloor(Duration.days(1));
+    /** ...until here. */
+    private static final Timestamp END = START.plus(Duration.days(1));
+
+    @Test
+    public void testMatchesPrimaryData() {
+        List<Row<Sample>> samples = samples(false);
+        assertRollupsMatch(samples, RESOLUTION);
+        assertRollupsMatch(samples, RESOLUTION.times(2));
+        assertRollupsMatch(samples, RESOLUTION.times(6));
+    }
+
+    @Test
+    public void testMatchesPrimaryDataWithGaps() {
+        // Steps with no data have no rollups, and are NaN (or the aggregation function's quirk) either way
+        List<Row<Sample>> samples = samples(true);
+        List<SampleRollups.Rollup> rollups = SampleRollups.rollUp(RESOURCE, START, END, RESOLUTION, INTERVAL, HEARTBEAT, samples);
+
+        for (SampleRollups.Rollup rollup : rollups) {
+            assertTrue(rollup.getCount() > 0);
+        }
+        assertTrue(rollups.size() < 2 * 24);
+
+        assertRollupsMatch(samples, RESOLUTION);
+        assertRollupsMatch(samples, RESOLUTION.times(3));
+    }
+
+    @Test
+    public void testRollupTimestamps() {
+        List<SampleRollups.Rollup> rollups = SampleRollups.rollUp(RESOURCE, START, END, RESOLUTION, INTERVAL, HEARTBEAT, samples(false));
+
+        // One rollup per metric and step, each at the end of its step
+        assertThat(rollups.size(), equalTo(2 * 24));
+        for (SampleRollups.Rollup rollup : rollups) {
+            assertTrue(rollup.getTimestamp().gt(START));
+            assertFalse(rollup.getTimestamp().gt(END));
+            assertThat(rollup.getTimestamp(), equalTo(rollup.getTimestamp().stepFloor(RESOLUTION)));
+            assertThat(rollup.getCount(), equalTo(12));
+        }
+    }
+
+    @Test
+    public void testQueueFull() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CassandraSession session = mock(CassandraSession.class);
+        PreparedStatement prepared = mock(PreparedStatement.class);
+        when(prepared.bind()).thenAnswer(invocation -> mock(BoundStatement.class, RETURNS_SELF));
+        when(session.prepare(anyString())).thenReturn(prepared);
+
+        // Rollups (their reads of marks) wait to be released
+        when(session.execute(any(Statement.class))).thenAnswer(invocation -> {
+            started.countDown();
+            release.await();
+            ResultSet rs = mock(ResultSet.class);
+            when(rs.iterator()).thenReturn(Collections.<com.datastax.oss.driver.api.core.cql.Row> emptyIterator());
+            return rs;
+        });
+
+        MetricRegistry registry = new MetricRegistry();
+        CassandraStorageOptions options = new CassandraStorageOptions.Builder().withRollupResolutions(Collections.singletonList(RESOLUTION)).build();
+
+        // One step running, and one queued; Those after are dropped
+        SampleRollups rollups = new SampleRollups(session, new ContextConfigurations(), options, 0, new RequestScheduler(1),
+                (c, r, s, e) -> Collections.<Row<Sample>> emptyIterator(), 1, registry);
+
+        try {
+            rollups.samplesInserted(Collections.singletonList(sample("r1")));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            rollups.samplesInserted(Collections.singletonList(sample("r2")));
+            rollups.samplesInserted(Collections.singletonList(sample("r3")));
+            assertThat(registry.meter("repository.rollups.steps-dropped").getCount(), equalTo(1L));
+
+            // Those dropped can be scheduled again
+            rollups.samplesInserted(Collections.singletonList(sample("r3")));
+            assertThat(registry.meter("repository.rollups.steps-dropped").getCount(), equalTo(2L));
+        }
+        finally {
+            release.countDown();
+        }
+    }
+
+    private static Sample sample(String resource) {
+        return new Sample(Timestamp.now(), new Resource(resource), "m", MetricType.GAUGE, new Gauge(1.0d));
+    }
+
+    private static void assertRollupsMatch(List<Row<Sample>> samples, Duration step) {
+        ResultDescriptor descriptor = new ResultDescriptor(INTERVAL)
+                .datasource("g-avg", "g", HEARTBEAT, StandardAggregationFunctions.AVERAGE)
+                .datasource("g-min", "g", HEARTBEAT, StandardAggregationFunctions.MIN)
+                .datasource("g-max", "g", HEARTBEAT, StandardAggregationFunctions.MAX)
+                .datasource("c-avg", "c", HEARTBEAT, StandardAggregationFunctions.AVERAGE)
+                .datasource("c-max", "c", HEARTBEAT, StandardAggregationFunctions.MAX);
+
+        Timestamp first = START.plus(step);
+
+        List<Row<Measurement>> expected = Lists.newArrayList(
+                new ResultProcessor(RESOURCE, first, END, descriptor, step).aggregate(samples.iterator()));
+
+        List<SampleRollups.Rollup> rollups = SampleRollups.rollUp(RESOURCE, START, END, RESOLUTION, INTERVAL, HEARTBEAT, samples);
+        Iterator<Row<Measurement>> actual = SampleRollups.aggregate(RESOURCE, first, END, step, descriptor, rollups.iterator());
+
+        int rows = 0;
+        for (Row<Measurement> row : expected) {
+            assertTrue(actual.hasNext());
+            Row<Measurement> other = actual.next();
+            assertThat(other.getTimestamp(), equalTo(row.getTimestamp()));
+            rows++;
+
+            for (Measurement measurement : row.getElements()) {
+                Measurement rolledUp = other.getElement(measurement.getName());
+                String message = String.format("%s at %s (step %s)", measurement.getName(), row.getTimestamp(), step);
+                assertEquals(message, measurement.getValue(), rolledUp.getValue(), Math.abs(measurement.getValue()) * 1e-12);
+                assertThat(message, rolledUp.getAttributes(), equalTo(measurement.getAttributes()));
+            }
+        }
+
+        assertFalse(actual.hasNext());
+        assertThat(rows, equalTo((int) (END.minus(first).divideBy(step) + 1)));
+    }
+
+    /** A gauge and a counter, sampled a little off of every interval, from before START until after END. */
+    private static List<Row<Sample>> samples(boolean gaps) {
+        List<Row<Sample>> rows = Lists.newArrayList();
+        long counter = 1000;
+        int i = 0;
+
+        for (Timestamp t = START.minus(Duration.hours(2)).plus(Duration.seconds(17)); t.lt(END.plus(Duration.hours(2))); t = t.plus(INTERVAL), i++) {
+            counter += 300 + (i * 7919) % 600;
+
+            // Nothing between 03:00 and 07:00, nor for the odd half hour
+            if (gaps) {
+                Timestamp since = START.plus(Duration.hours(3));
+                if ((t.gte(since) && t.lt(since.plus(Duration.hours(4)))) || (i % 37 < 6)) {
+                    continue;
+                }
+            }
+
+            Map<String, String> attributes = (i % 50 == 0) ? ImmutableMap.of("note", "n" + i) : null;
+
+            Row<Sample> row = new Row<>(t, RESOURCE);
+            row.addElement(new Sample(t, Context.DEFAULT_CONTEXT, RESOURCE, "g", MetricType.GAUGE, new Gauge(Math.sin(i / 10.0d) * 100 + (i % 13)), attributes));
+            row.addElement(new Sample(t, Context.DEFAULT_CONTEXT, RESOURCE, "c", MetricType.COUNTER, new Counter(counter)));
+            rows.add(row);
+        }
+
+        return rows;
+    }
+
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.newts.api.Context;
+import org.opennms.newts.api.Duration;
+import org.opennms.newts.api.Gauge;
+import org.opennms.newts.api.MetricType;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Sample;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.cassandra.CassandraSession;
+import org.opennms.newts.cassandra.ContextConfigurations;
+
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.Row;
+import com.datastax.oss.driver.api.core.cql.Statement;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+
+public class ShardIndexTest {
+
+    private static final Duration SHARD = Duration.seconds(604800);
+    private static final Resource RESOURCE = new Resource("r");
+
+    private final CassandraSession m_session = mock(CassandraSession.class);
+    private final PreparedStatement m_insert = mock(PreparedStatement.class);
+    private final PreparedStatement m_select = mock(PreparedStatement.class);
+    private final PreparedStatement m_delete = mock(PreparedStatement.class);
+
+    // partitions (by bound statement) of the inserts
+    private final Map<Statement<?>, Integer> m_partitions = Maps.newConcurrentMap();
+    private final Set<Statement<?>> m_selects = Sets.newConcurrentHashSet();
+
+    // partitions in the index table, and those written to it
+    private final Set<Integer> m_indexed = Sets.newConcurrentHashSet();
+    private final List<Integer> m_inserted = Collections.synchronizedList(Lists.newArrayList());
+
+    @Before
+    public void setUp() {
+        when(m_session.prepare(anyString())).thenAnswer(invocation -> {
+            String cql = invocation.getArgument(0);
+            return cql.startsWith("INSERT") ? m_insert : cql.startsWith("SELECT") ? m_select : m_delete;
+        });
+        when(m_insert.bind()).thenAnswer(invocation -> bound(false));
+        when(m_select.bind()).thenAnswer(invocation -> bound(true));
+        when(m_delete.bind()).thenAnswer(invocation -> bound(false));
+        when(m_session.executeAsync(any())).thenAnswer(invocation -> {
+            Statement<?> statement = invocation.getArgument(0);
+            AsyncResultSet rs = mock(AsyncResultSet.class);
+            if (m_selects.contains(statement)) {
+                List<Row> rows = Lists.newArrayList();
+                for (int partition : m_indexed) {
+                    Row row = mock(Row.class);
+                    when(row.getInt(SchemaConstants.F_PARTITION)).thenReturn(partition);
+                    rows.add(row);
+                }
+                when(rs.currentPage()).thenReturn(rows);
+            }
+            else if (m_partitions.containsKey(statement)) {
+                m_inserted.add(m_partitions.get(statement));
+                m_indexed.add(m_partitions.get(statement));
+            }
+            else {
+                m_indexed.clear();
+            }
+            return CompletableFuture.completedFuture(rs);
+        });
+    }
+
+    @Test
+    public void testIndex() {
+
+        Timestamp now = Timestamp.now();
+        ShardIndex index = newIndex(null);
+
+        index.index(Lists.newArrayList(sample(now), sample(now.minus(1, TimeUnit.SECONDS)), sample(now.minus(SHARD)))).join();
+
+        assertThat(Sets.newHashSet(m_inserted), equalTo(Sets.newHashSet(partition(now), partition(now.minus(SHARD)))));
+        assertThat(m_inserted.size(), equalTo(2));
+
+        // Partitions already indexed are not indexed again
+        index.index(Lists.newArrayList(sample(now), sample(now.minus(SHARD)))).join();
+
+        assertThat(m_inserted.size(), equalTo(2));
+
+    }
+
+    @Test
+    public void testPartitions() {
+
+        Timestamp now = Timestamp.now();
+        m_indexed.add(partition(now.minus(SHARD.times(2))));
+
+        List<Timestamp> partitions = newIndex(null).partitions(Context.DEFAULT_CONTEXT, RESOURCE, now.minus(SHARD.times(5)), now);
+
+        // The indexed partition, and the current one (which is always read)
+        assertThat(partitions, equalTo(Lists.newArrayList(now.minus(SHARD.times(2)).stepFloor(SHARD), now.stepFloor(SHARD))));
+
+    }
+
+    @Test
+    public void testPartitionsSince() {
+
+        Timestamp now = Timestamp.now();
+        m_indexed.add(partition(now.minus(SHARD.times(2))));
+
+        // Partitions that began before the index did (including the one it began in) are always read
+        List<Timestamp> partitions = newIndex(now.minus(SHARD.times(3))).partitions(Context.DEFAULT_CONTEXT, RESOURCE, now.minus(SHARD.times(5)), now);
+
+        assertThat(partitions, equalTo(Lists.newArrayList(
+                now.minus(SHARD.times(5)).stepFloor(SHARD),
+                now.minus(SHARD.times(4)).stepFloor(SHARD),
+                now.minus(SHARD.times(3)).stepFloor(SHARD),
+                now.minus(SHARD.times(2)).stepFloor(SHARD),
+                now.stepFloor(SHARD))));
+
+    }
+
+    @Test
+    public void testFirst() {
+
+        Timestamp now = Timestamp.now();
+        m_indexed.add(partition(now.minus(SHARD.times(2))));
+        m_indexed.add(partition(now.minus(SHARD.times(200))));
+
+        ShardIndex index = newIndex(null);
+        assertThat(index.first(Context.DEFAULT_CONTEXT, RESOURCE), equalTo(null));
+
+        index.refresh(Context.DEFAULT_CONTEXT, RESOURCE).join();
+        assertThat(index.first(Context.DEFAULT_CONTEXT, RESOURCE), equalTo(now.minus(SHARD.times(200)).stepFloor(SHARD)));
+
+    }
+
+    @Test
+    public void testDelete() {
+
+        Timestamp now = Timestamp.now();
+        ShardIndex index = newIndex(null);
+
+        index.index(Lists.newArrayList(sample(now.minus(SHARD)))).join();
+        index.delete(Context.DEFAULT_CONTEXT, RESOURCE).join();
+
+        // Once deleted, a partition is indexed again when next written to
+        index.index(Lists.newArrayList(sample(now.minus(SHARD)))).join();
+
+        assertThat(m_inserted.size(), equalTo(2));
+        assertThat(index.partitions(Context.DEFAULT_CONTEXT, RESOURCE, now.minus(SHARD), now).size(), equalTo(2));
+
+    }
+
+    private ShardIndex newIndex(Timestamp since) {
+        return new ShardIndex(m_session, new ContextConfigurations(), 0, since, new MetricRegistry());
+    }
+
+    private BoundStatement bound(boolean select) {
+        BoundStatement bound = mock(BoundStatement.class, RETURNS_SELF);
+        when(bound.setInt(eq(SchemaConstants.F_PARTITION), anyInt())).thenAnswer(invocation -> {
+            m_partitions.put(bound, invocation.getArgument(1));
+            return bound;
+        });
+        if (select) {
+            m_selects.add(bound);
+        }
+        return bound;
+    }
+
+    private static Sample sample(Timestamp timestamp) {
+        return new Sample(timestamp, RESOURCE, "m", MetricType.GAUGE, new Gauge(1));
+    }
+
+    private static int partition(Timestamp timestamp) {
+        return (int) timestamp.stepFloor(SHARD).asSeconds();
+    }
+
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.persistence.cassandra;
+
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.newts.api.Context;
+import org.opennms.newts.api.Counter;
+import org.opennms.newts.api.Duration;
+import org.opennms.newts.api.MetricType;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Sample;
+import org.opennms.newts.api.SampleBatch;
+import org.opennms.newts.api.SampleRepository;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.cassandra.ContextConfigurations;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Lists;
+
+
+public class WriteBehindSampleRepositoryTest {
+
+    private final SampleRepository m_delegate = mock(SampleRepository.class);
+    private final ConcurrentLinkedQueue<List<Sample>> m_writes = new ConcurrentLinkedQueue<>();
+
+    @Before
+    public void setUp() {
+        when(m_delegate.insertAsync(anyCollection(), anyBoolean())).thenAnswer(invocation -> {
+            m_writes.add(Lists.newArrayList(invocation.<Collection<Sample>>getArgument(0)));
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    @Test
+    public void testFlushesOnSize() {
+
+        try (WriteBehindSampleRepository repository = newRepository(10, Duration.seconds(60), 1000)) {
+            for (int i = 0; i < 25; i++) {
+                repository.insertAsync(Lists.newArrayList(sample(new Resource("r0"), 900000000 + (i * 300))));
+            }
+
+            // Two full buffers written, five samples still buffered
+            assertThat(m_writes.size(), equalTo(2));
+            for (List<Sample> write : m_writes) {
+                assertThat(write.size(), equalTo(10));
+            }
+            assertThat(repository.getBuffered(), equalTo(5L));
+        }
+
+        // ...and the remainder written on close
+        assertThat(m_writes.size(), equalTo(3));
+        assertThat(total(), equalTo(25));
+
+    }
+
+    @Test
+    public void testGroupsByPartition() {
+
+        try (WriteBehindSampleRepository repository = newRepository(100, Duration.seconds(60), 1000)) {
+            Context other = new Context("other");
+            Timestamp ts = Timestamp.fromEpochSeconds(900000000);
+            Resource resource = new Resource("r0");
+
+            repository.insertAsync(Lists.newArrayList(
+                    sample(resource, 900000000),
+                    sample(new Resource("r1"), 900000000),
+                    new Sample(ts, other, resource, "m0", MetricType.COUNTER, new Counter(1)),
+                    sample(resource, 900000000 + (8 * 86400))));
+
+            verify(m_delegate, never()).insertAsync(anyCollection(), anyBoolean());
+        }
+
+        // One write per resource, context, and shard
+        assertThat(m_writes.size(), equalTo(4));
+
+    }
+
+    @Test
+    public void testFlushesOnAge() throws InterruptedException {
+
+        try (WriteBehindSampleRepository repository = newRepository(100, Duration.millis(50), 1000)) {
+            repository.insert(Lists.newArrayList(sample(new Resource("r0"), 900000000)));
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (m_writes.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            assertThat(m_writes.size(), equalTo(1));
+            assertThat(repository.getBuffered(), equalTo(0L));
+        }
+
+    }
+
+    @Test
+    public void testInsertWaitsForWrite() throws Exception {
+
+        CompletableFuture<Void> write = new CompletableFuture<>();
+        when(m_delegate.insertAsync(anyCollection(), anyBoolean())).thenReturn(write);
+
+        try (WriteBehindSampleRepository repository = newRepository(2, Duration.seconds(60), 1000)) {
+            // Buffered along with another caller's sample; Not acknowledged until they're written together
+            repository.insertAsync(Lists.newArrayList(sample(new Resource("r0"), 900000000)));
+
+            CountDownLatch inserted = new CountDownLatch(1);
+            Thread producer = new Thread(() -> {
+                repository.insert(Lists.newArrayList(sample(new Resource("r0"), 900000300)));
+                inserted.countDown();
+            });
+            producer.start();
+
+            assertThat(inserted.await(200, TimeUnit.MILLISECONDS), equalTo(false));
+
+            write.complete(null);
+
+            assertThat(inserted.await(5, TimeUnit.SECONDS), equalTo(true));
+        }
+
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInsertThrowsWriteFailure() {
+
+        CompletableFuture<Void> write = new CompletableFuture<>();
+        write.completeExceptionally(new IllegalStateException("failed"));
+        when(m_delegate.insertAsync(anyCollection(), anyBoolean())).thenReturn(write);
+
+        try (WriteBehindSampleRepository repository = newRepository(1, Duration.seconds(60), 1000)) {
+            repository.insert(Lists.newArrayList(sample(new Resource("r0"), 900000000)));
+        }
+
+    }
+
+    @Test
+    public void testAsyncCompletesAfterWrite() {
+
+        CompletableFuture<Void> write = new CompletableFuture<>();
+        when(m_delegate.insertAsync(anyCollection(), anyBoolean())).thenReturn(write);
+
+        try (WriteBehindSampleRepository repository = newRepository(2, Duration.seconds(60), 1000)) {
+            CompletionStage<Void> result = repository.insertAsync(Lists.newArrayList(
+                    sample(new Resource("r0"), 900000000),
+                    sample(new Resource("r0"), 900000300)));
+
+            assertThat(result.toCompletableFuture().isDone(), equalTo(false));
+
+            write.complete(null);
+
+            assertThat(result.toCompletableFuture().isDone(), equalTo(true));
+            assertThat(repository.getBuffered(), equalTo(0L));
+        }
+
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+
+        CompletableFuture<Void> write = new CompletableFuture<>();
+        when(m_delegate.insertAsync(anyCollection(), anyBoolean())).thenReturn(write);
+
+        try (WriteBehindSampleRepository repository = newRepository(5, Duration.seconds(60), 10)) {
+            for (int i = 0; i < 10; i++) {
+                repository.insertAsync(Lists.newArrayList(sample(new Resource("r" + i), 900000000)));
+            }
+
+            CountDownLatch inserted = new CountDownLatch(1);
+            Thread producer = new Thread(() -> {
+                repository.insertAsync(Lists.newArrayList(sample(new Resource("r0"), 900000300)));
+                inserted.countDown();
+            });
+            producer.start();
+
+            // Over budget; Blocked until the pending writes complete
+            assertThat(inserted.await(200, TimeUnit.MILLISECONDS), equalTo(false));
+
+            write.complete(null);
+
+            assertThat(inserted.await(5, TimeUnit.SECONDS), equalTo(true));
+        }
+
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+
+        final int threads = 8, perThread = 2500;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        AtomicInteger counter = new AtomicInteger();
+
+        try (WriteBehindSampleRepository repository = newRepository(7, Duration.millis(20), 1000)) {
+            CountDownLatch done = new CountDownLatch(threads);
+            for (int t = 0; t < threads; t++) {
+                executor.execute(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        int n = counter.incrementAndGet();
+                        repository.insertAsync(Lists.newArrayList(sample(new Resource("r" + (n % 3)), 900000000 + n)));
+                    }
+                    done.countDown();
+                });
+            }
+            assertThat(done.await(30, TimeUnit.SECONDS), equalTo(true));
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        // Nothing lost, nothing written twice
+        assertThat(total(), equalTo(threads * perThread));
+        assertThat((int) m_writes.stream().flatMap(List::stream).map(s -> s.getValue().longValue()).distinct().count(), equalTo(threads * perThread));
+
+    }
+
+    @Test
+    public void testBatchesWrittenDirectly() {
+
+        SampleBatch batch = SampleBatch.builder(Context.DEFAULT_CONTEXT)
+                .addCounter(900000000000L, new Resource("r0"), "m0", 1)
+                .addCounter(900000300000L, new Resource("r0"), "m0", 2)
+                .build();
+        when(m_delegate.insertAsync(any(SampleBatch.class), anyBoolean())).thenReturn(CompletableFuture.completedFuture(null));
+
+        try (WriteBehindSampleRepository repository = newRepository(100, Duration.seconds(60), 1000)) {
+            assertThat(repository.insertAsync(batch, false).toCompletableFuture().isDone(), equalTo(true));
+
+            // Not unpacked into samples, nor buffered
+            verify(m_delegate).insertAsync(batch, false);
+            verify(m_delegate, never()).insertAsync(anyCollection(), anyBoolean());
+            assertThat(repository.getBuffered(), equalTo(0L));
+        }
+
+    }
+
+    @Test
+    public void testDeleteFlushesFirst() {
+
+        when(m_delegate.deleteAsync(any(Context.class), any(Resource.class))).thenReturn(CompletableFuture.completedFuture(null));
+
+        try (WriteBehindSampleRepository repository = newRepository(100, Duration.seconds(60), 1000)) {
+            repository.insertAsync(Lists.newArrayList(sample(new Resource("r0"), 900000000), sample(new Resource("r1"), 900000000)));
+
+            repository.delete(Context.DEFAULT_CONTEXT, new Resource("r0"));
+
+            assertThat(m_writes.size(), equalTo(1));
+            assertThat(m_writes.peek().get(0).getResource().getId(), equalTo("r0"));
+            verify(m_delegate).deleteAsync(Context.DEFAULT_CONTEXT, new Resource("r0"));
+        }
+
+    }
+
+    @Test
+    public void testCloseClosesDelegate() {
+
+        CassandraSampleRepository delegate = mock(CassandraSampleRepository.class);
+        new WriteBehindSampleRepository(delegate, new ContextConfigurations(), 100, Duration.seconds(60), 1000, new MetricRegistry()).close();
+
+        // Its threads are shut down along with ours
+        verify(delegate).close();
+
+    }
+
+    private WriteBehindSampleRepository newRepository(int flushSize, Duration maxAge, long maxBuffered) {
+        return new WriteBehindSampleRepository(m_delegate, new ContextConfigurations(), flushSize, maxAge, maxBuffered, new MetricRegistry());
+    }
+
+    private int total() {
+        return m_writes.stream().mapToInt(List::size).sum();
+    }
+
+    private static Sample sample(Resource resource, int epochSeconds) {
+        return new Sample(Timestamp.fromEpochSeconds(epochSeconds), resource, "m0", MetricType.COUNTER, new Counter(epochSeconds));
+    }
+
+}
@@ -59,6 +59,7 @@ class InsertDispatcher extends Dispatcher {
 
     private final InsertConfig m_config;
     private final SampleRepository m_repository;
+    private CassandraIndexer m_indexer;
     private final BlockingQueue<Collection<Sample>> m_samplesQueue;
 
     InsertDispatcher(InsertConfig config) {
@@ -85,9 +86,9 @@ class InsertDispatcher extends Dispatcher {
             CassandraIndexingOptions indexingOptions = new CassandraIndexingOptions.Builder()
                     .withHierarchicalIndexing(m_config.isHierarchicalIndexingEnabled())
                     .withMaxBatchSize(m_config.getBatchSize()).build();
-            CassandraIndexer cassandraIndexer = new CassandraIndexer(session, Config.CASSANDRA_TTL,
+            m_indexer = new CassandraIndexer(session, Config.CASSANDRA_TTL,
                     cache, m_metricRegistry, indexingOptions, resourceIdSplitter, contexts);
-            CassandraIndexerSampleProcessor indexerSampleProcessor = new CassandraIndexerSampleProcessor(cassandraIndexer);
+            CassandraIndexerSampleProcessor indexerSampleProcessor = new CassandraIndexerSampleProcessor(m_indexer);
             processors.add(indexerSampleProcessor);
         }
 
@@ -169,6 +170,11 @@ class InsertDispatcher extends Dispatcher {
 
         shutdown();
 
+        // Index anything still held for coalescing
+        if (m_indexer != null) {
+            m_indexer.close();
+        }
+
         LOG.debug("Done.");
     }
 
@@ -19,13 +19,17 @@ package org.opennms.newts.stress;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 
 import org.opennms.newts.api.Sample;
 import org.opennms.newts.api.SampleRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.Lists;
+
 
 /**
  * A Stress worker for inserting {@link Sample samples} with the Java native API.
@@ -52,6 +56,7 @@ public class Inserter extends Worker {
     @Override
     public void run() {
         Collection<Sample> samples;
+        List<CompletableFuture<Void>> pending = Lists.newLinkedList();
 
         try {
             while (true) {
@@ -66,9 +71,13 @@ public class Inserter extends Worker {
                 }
 
                 LOG.debug("Inserting {} samples", samples.size());
-                m_repository.insert(samples);
+                pending.add(m_repository.insertAsync(samples).toCompletableFuture());
+                pending.removeIf(CompletableFuture::isDone);
 
             }
+
+            // Wait for any writes still outstanding
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
         }
         catch (InterruptedException e) {
             LOG.warn("Interrupted!");
@@ -84,13 +84,14 @@ public class GraphiteHandler extends SimpleChannelInboundHandler<String> {
                             m_parent.protocolErrorsInc();
                         }
                     }
-                    try {
-                        m_repository.insert(samples);
-                    }
-                    catch (Exception e) {
-                        LOG.warn("Unable to commit batch of {} samples ({})", samples.size(), e.getMessage());
-                        m_parent.storageErrorsInc();
-                    }
+                    // Don't tie up the pool for the round-trip; The repository pushes back (blocks)
+                    // here if too many writes are already outstanding.
+                    m_repository.insertAsync(samples).whenComplete((result, e) -> {
+                        if (e != null) {
+                            LOG.warn("Unable to commit batch of {} samples ({})", samples.size(), e.getMessage());
+                            m_parent.storageErrorsInc();
+                        }
+                    });
                 }
             });
         }
@@ -28,15 +28,20 @@ import org.opennms.newts.cassandra.CassandraSessionImpl;
 import org.opennms.newts.cassandra.ContextConfigurations;
 import org.opennms.newts.cassandra.search.CassandraIndexer;
 import org.opennms.newts.cassandra.search.CassandraIndexerSampleProcessor;
+import org.opennms.newts.cassandra.search.CassandraIndexingOptions;
 import org.opennms.newts.cassandra.search.CassandraSearcher;
 import org.opennms.newts.cassandra.search.EscapableResourceIdSplitter;
 import org.opennms.newts.cassandra.search.GuavaResourceMetadataCache;
 import org.opennms.newts.cassandra.search.ResourceIdSplitter;
 import org.opennms.newts.cassandra.search.ResourceMetadataCache;
 import org.opennms.newts.cassandra.search.SimpleResourceIdSplitter;
+import org.opennms.newts.persistence.cassandra.CachingSampleRepository;
 import org.opennms.newts.persistence.cassandra.CassandraSampleRepository;
+import org.opennms.newts.persistence.cassandra.CassandraStorageOptions;
+import org.opennms.newts.persistence.cassandra.WriteBehindSampleRepository;
 
 import com.google.inject.AbstractModule;
+import com.google.inject.Singleton;
 import com.google.inject.multibindings.Multibinder;
 
 
@@ -77,8 +82,17 @@ public class CassandraGuiceModule extends AbstractModule {
         bind(CassandraSession.class).to(CassandraSessionImpl.class);
         bind(ResourceMetadataCache.class).to(GuavaResourceMetadataCache.class);
         bind(Searcher.class).to(CassandraSearcher.class);
-        bind(SampleRepository.class).to(CassandraSampleRepository.class);
         bind(Indexer.class).to(CassandraIndexer.class);
+        // Shared by the resources and the sample processor (and closed on shutdown)
+        bind(CassandraIndexer.class).in(Singleton.class);
+
+        SearchConfig searchConfig = m_newtsConf.getSearchConfig();
+        bind(CassandraIndexingOptions.class).toInstance(new CassandraIndexingOptions.Builder()
+                .withHierarchicalIndexing(searchConfig.isHierarchicalIndexingEnabled())
+                .withCoalescingWindow(searchConfig.getCoalescingWindow())
+                .withMaxInFlightStatements(searchConfig.getMaxInFlightStatements())
+                .withMaxQueuedStatements(searchConfig.getMaxQueuedStatements())
+                .build());
 
         Multibinder<SampleProcessor> processors = Multibinder.newSetBinder(binder(), SampleProcessor.class);
 
@@ -97,9 +111,49 @@ public class CassandraGuiceModule extends AbstractModule {
         ContextConfigurations contextConfigurations = new ContextConfigurations();
         for (ContextConfig contextConfig : m_newtsConf.getContextConfigs().values()) {
             contextConfigurations.addContextConfig(contextConfig.getContext(), contextConfig.getResourceShard(),
-                    contextConfig.getReadConsistency(), contextConfig.getWriteConsistency());
+                    contextConfig.getReadConsistency(), contextConfig.getWriteConsistency(), contextConfig.getSampleLayout());
         }
         bind(ContextConfigurations.class).toInstance(contextConfigurations);
+
+        StorageConfig storageConfig = m_newtsConf.getStorageConfig();
+        bind(CassandraStorageOptions.class).toInstance(new CassandraStorageOptions.Builder()
+                .withMaxBatchSize(storageConfig.getMaxBatchSize())
+                .withMaxInFlightWrites(storageConfig.getMaxInFlightWrites())
+                .withReadAhead(storageConfig.getReadAhead())
+                .withMaxConcurrentReads(storageConfig.getMaxConcurrentReads())
+                .withSelectThreads(storageConfig.getSelectThreads())
+                .withMaxConcurrentDeletes(storageConfig.getMaxConcurrentDeletes())
+                .withDeleteJobConcurrency(storageConfig.getDeleteJobConcurrency())
+                .withWriteBehindFlushSize(storageConfig.getWriteBehindFlushSize())
+                .withWriteBehindMaxAge(storageConfig.getWriteBehindMaxAge())
+                .withWriteBehindMaxBuffered(storageConfig.getWriteBehindMaxBuffered())
+                .withBlockStorage(storageConfig.isBlockStorageEnabled())
+                .withBlockSize(storageConfig.getBlockSize())
+                .withRollupResolutions(storageConfig.getRollupResolutions())
+                .withRollupInterval(storageConfig.getRollupInterval())
+                .withRollupHeartbeat(storageConfig.getRollupHeartbeat())
+                .withResultCacheMaxWeight(storageConfig.getResultCacheMaxWeight())
+                .withResultCacheMaxAge(storageConfig.getResultCacheMaxAge())
+                .withShardIndex(storageConfig.isShardIndexEnabled())
+                .withShardIndexSince(storageConfig.getShardIndexSince())
+                .withLeanDecoding(storageConfig.isLeanDecodingEnabled())
+                .withColumnarProcessing(storageConfig.isColumnarProcessingEnabled())
+                .withQueryMaxSamples(storageConfig.getQueryMaxSamples())
+                .withQueryMaxBytes(storageConfig.getQueryMaxBytes())
+                .withQueryBudgetAction(storageConfig.getQueryBudgetAction())
+                .build());
+
+        // Buffered writes must share a single buffer (and be flushed on shutdown), and reads, writes
+        // and deletes the repository's limits (and threads, shut down on shutdown)
+        bind(CassandraSampleRepository.class).in(Singleton.class);
+        Class<? extends SampleRepository> repository = storageConfig.isWriteBehindEnabled() ? WriteBehindSampleRepository.class : CassandraSampleRepository.class;
+
+        if (storageConfig.isResultCacheEnabled()) {
+            bind(SampleRepository.class).annotatedWith(named("uncachedSampleRepository")).to(repository).in(Singleton.class);
+            bind(SampleRepository.class).to(CachingSampleRepository.class).in(Singleton.class);
+        } else {
+            bind(SampleRepository.class).to(repository).in(Singleton.class);
+        }
     }
 
 }
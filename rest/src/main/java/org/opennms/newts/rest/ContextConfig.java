@@ -2,6 +2,7 @@ package org.opennms.newts.rest;
 
 import org.opennms.newts.api.Context;
 import org.opennms.newts.api.Duration;
+import org.opennms.newts.cassandra.SampleLayout;
 
 import com.datastax.oss.driver.api.core.ConsistencyLevel;
 import com.datastax.oss.driver.api.core.DefaultConsistencyLevel;
@@ -21,6 +22,9 @@ public class ContextConfig {
     @JsonProperty("write-consistency")
     private String m_writeConsistency;
 
+    @JsonProperty("sample-layout")
+    private String m_sampleLayout = SampleLayout.TIME_FIRST.name();
+
     public Context getContext() {
         return new Context(m_id);
     }
@@ -36,4 +40,8 @@ public class ContextConfig {
     public ConsistencyLevel getWriteConsistency() {
         return DefaultConsistencyLevel.valueOf(m_writeConsistency);
     }
+
+    public SampleLayout getSampleLayout() {
+        return SampleLayout.valueOf(m_sampleLayout);
+    }
 }
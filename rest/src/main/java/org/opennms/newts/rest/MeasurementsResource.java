@@ -18,8 +18,8 @@ package org.opennms.newts.rest;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
-import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
@@ -28,10 +28,15 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.opennms.newts.api.Context;
 import org.opennms.newts.api.Duration;
+import org.opennms.newts.api.Measurement;
 import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Results;
+import org.opennms.newts.api.Results.Row;
 import org.opennms.newts.api.SampleRepository;
 import org.opennms.newts.api.Timestamp;
 import org.opennms.newts.api.query.ResultDescriptor;
@@ -50,51 +55,117 @@ public class MeasurementsResource {
 
     private final SampleRepository m_repository;
     private final Map<String, ResultDescriptorDTO> m_reports;
+    // Descriptors of the named reports, transformed once (and their calculations compiled once)
+    private final Map<String, ResultDescriptor> m_reportDescriptors = new ConcurrentHashMap<>();
 
     public MeasurementsResource(SampleRepository repository, Map<String, ResultDescriptorDTO> reports) {
         m_repository = checkNotNull(repository, "repository argument");
         m_reports = checkNotNull(reports, "reports argument");
     }
 
+    /**
+     * Measurements, as a JSON array of rows; Results cut short (by a query over budget) are
+     * flagged with an {@code X-Newts-Truncated: true} header.
+     */
     @POST
     @Path("/{resource}")
     @Timed
-    public Collection<Collection<MeasurementDTO>> getMeasurements(
+    public Response getMeasurements(
             ResultDescriptorDTO descriptorDTO,
             @PathParam("resource") Resource resource,
             @QueryParam("start") Optional<TimestampParam> start,
             @QueryParam("end") Optional<TimestampParam> end,
             @QueryParam("resolution") Optional<DurationParam> resolution,
-            @QueryParam("context") Optional<String> contextId) {
+            @QueryParam("context") Optional<String> contextId,
+            @QueryParam("maxDataPoints") Optional<Integer> maxDataPoints) {
+
+        return getMeasurements(Transform.resultDescriptor(descriptorDTO), descriptorDTO, resource, start, end, resolution, contextId, maxDataPoints);
+    }
+
+    @GET
+    @Path("/{report}/{resource}")
+    @Timed
+    public Response getMeasurements(
+            @PathParam("report") String report,
+            @PathParam("resource") Resource resource,
+            @QueryParam("start") Optional<TimestampParam> start,
+            @QueryParam("end") Optional<TimestampParam> end,
+            @QueryParam("resolution") Optional<DurationParam> resolution,
+            @QueryParam("context") Optional<String> contextId,
+            @QueryParam("maxDataPoints") Optional<Integer> maxDataPoints) {
+
+        ResultDescriptorDTO descriptorDTO = m_reports.get(report);
+
+        // Report not found; 404
+        if (descriptorDTO == null) {
+            return null;
+        }
+
+        return getMeasurements(reportDescriptor(report, descriptorDTO), descriptorDTO, resource, start, end, resolution, contextId, maxDataPoints);
+    }
+
+    private Response getMeasurements(
+            ResultDescriptor rDescriptor,
+            ResultDescriptorDTO descriptorDTO,
+            Resource resource,
+            Optional<TimestampParam> start,
+            Optional<TimestampParam> end,
+            Optional<DurationParam> resolution,
+            Optional<String> contextId,
+            Optional<Integer> maxDataPoints) {
 
         Optional<Timestamp> lower = Transform.toTimestamp(start);
         Optional<Timestamp> upper = Transform.toTimestamp(end);
         Optional<Duration> step = Transform.toDuration(resolution);
         Context context = contextId.isPresent() ? new Context(contextId.get()) : Context.DEFAULT_CONTEXT;
+        ResultDescriptor descriptor = maxDataPoints.isPresent() ? new ResultDescriptor(rDescriptor).maxDataPoints(maxDataPoints.get()) : rDescriptor;
 
         LOG.debug(
-                "Retrieving measurements for resource {}, from {} to {} w/ resolution {} and w/ report {}",
+                "Retrieving measurements for resource {}, from {} to {} w/ resolution {}, w/ max data points {} and w/ report {}",
                 resource,
                 lower,
                 upper,
                 step,
+                maxDataPoints,
                 descriptorDTO);
 
-        ResultDescriptor rDescriptor = Transform.resultDescriptor(descriptorDTO);
+        Results<Measurement> results = m_repository.select(context, resource, lower, upper, descriptor, step);
 
-        return Transform.measurementDTOs(m_repository.select(context, resource, lower, upper, rDescriptor, step));
+        return ResultsResponses.ok(results, Transform.measurementDTOs(results));
+    }
+
+    /**
+     * Streams measurements as newline delimited JSON, one row per line, as they are computed (for
+     * clients that {@code Accept: application/x-ndjson}).
+     */
+    @POST
+    @Path("/{resource}")
+    @Produces(RowStreamingOutput.NDJSON_QS)
+    @Timed
+    public StreamingOutput streamMeasurements(
+            ResultDescriptorDTO descriptorDTO,
+            @PathParam("resource") Resource resource,
+            @QueryParam("start") Optional<TimestampParam> start,
+            @QueryParam("end") Optional<TimestampParam> end,
+            @QueryParam("resolution") Optional<DurationParam> resolution,
+            @QueryParam("context") Optional<String> contextId,
+            @QueryParam("maxDataPoints") Optional<Integer> maxDataPoints) {
+
+        return streamMeasurements(Transform.resultDescriptor(descriptorDTO), descriptorDTO, resource, start, end, resolution, contextId, maxDataPoints);
     }
 
     @GET
     @Path("/{report}/{resource}")
+    @Produces(RowStreamingOutput.NDJSON_QS)
     @Timed
-    public Collection<Collection<MeasurementDTO>> getMeasurements(
+    public StreamingOutput streamMeasurements(
             @PathParam("report") String report,
             @PathParam("resource") Resource resource,
             @QueryParam("start") Optional<TimestampParam> start,
             @QueryParam("end") Optional<TimestampParam> end,
             @QueryParam("resolution") Optional<DurationParam> resolution,
-            @QueryParam("context") Optional<String> contextId) {
+            @QueryParam("context") Optional<String> contextId,
+            @QueryParam("maxDataPoints") Optional<Integer> maxDataPoints) {
 
         ResultDescriptorDTO descriptorDTO = m_reports.get(report);
 
@@ -103,7 +174,46 @@ public class MeasurementsResource {
             return null;
         }
 
-        return getMeasurements(descriptorDTO, resource, start, end, resolution, contextId);
+        return streamMeasurements(reportDescriptor(report, descriptorDTO), descriptorDTO, resource, start, end, resolution, contextId, maxDataPoints);
+    }
+
+    private StreamingOutput streamMeasurements(
+            ResultDescriptor rDescriptor,
+            ResultDescriptorDTO descriptorDTO,
+            Resource resource,
+            Optional<TimestampParam> start,
+            Optional<TimestampParam> end,
+            Optional<DurationParam> resolution,
+            Optional<String> contextId,
+            Optional<Integer> maxDataPoints) {
+
+        Optional<Timestamp> lower = Transform.toTimestamp(start);
+        Optional<Timestamp> upper = Transform.toTimestamp(end);
+        Optional<Duration> step = Transform.toDuration(resolution);
+        Context context = contextId.isPresent() ? new Context(contextId.get()) : Context.DEFAULT_CONTEXT;
+        ResultDescriptor descriptor = maxDataPoints.isPresent() ? new ResultDescriptor(rDescriptor).maxDataPoints(maxDataPoints.get()) : rDescriptor;
+
+        LOG.debug(
+                "Streaming measurements for resource {}, from {} to {} w/ resolution {}, w/ max data points {} and w/ report {}",
+                resource,
+                lower,
+                upper,
+                step,
+                maxDataPoints,
+                descriptorDTO);
+
+        return new RowStreamingOutput<>(
+                m_repository.selectStream(context, resource, lower, upper, descriptor, step),
+                (Row<Measurement> row) -> Transform.measurementDTOs(row));
+    }
+
+    /** The descriptor of a named report; Transformed, and its calculations compiled, once. */
+    private ResultDescriptor reportDescriptor(String report, ResultDescriptorDTO descriptorDTO) {
+        return m_reportDescriptors.computeIfAbsent(report, k -> {
+            ResultDescriptor rDescriptor = Transform.resultDescriptor(descriptorDTO);
+            rDescriptor.getCalculationPlan();
+            return rDescriptor;
+        });
     }
 
 }
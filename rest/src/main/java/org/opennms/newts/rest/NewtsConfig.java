@@ -40,6 +40,10 @@ public class NewtsConfig extends Configuration {
     @JsonProperty("cassandra")
     private CassandraConfig m_cassandraConfig = new CassandraConfig();
 
+    @Valid
+    @JsonProperty("storage")
+    private StorageConfig m_storageConfig = new StorageConfig();
+
     @Valid
     @JsonProperty("contexts")
     private Map<String, ContextConfig> m_contextConfigs = Collections.emptyMap();
@@ -64,6 +68,10 @@ public class NewtsConfig extends Configuration {
         return m_searchConfig;
     }
 
+    public StorageConfig getStorageConfig() {
+        return m_storageConfig;
+    }
+
     public String getCassandraDatacenter() {
         return m_cassandraConfig.getDatacenter();
     }
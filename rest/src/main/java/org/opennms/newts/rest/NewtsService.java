@@ -89,9 +89,20 @@ public class NewtsService extends Application<NewtsConfig> {
         // Create (and start if so configured), a Graphite line-protocol listener
         final GraphiteListenerThread listener = new GraphiteListenerThread(injector.getInstance(GraphiteListener.class));
 
+        final SampleRepository repository = injector.getInstance(SampleRepository.class);
+        final Indexer indexer = injector.getInstance(Indexer.class);
+
         environment.lifecycle().manage(new Managed() {
             @Override
             public void stop() throws Exception {
+                // Write out anything still buffered (when write-behind is enabled), and stop the repository's threads
+                if (repository instanceof AutoCloseable) {
+                    ((AutoCloseable) repository).close();
+                }
+                // Then index anything still held for coalescing
+                if (indexer instanceof AutoCloseable) {
+                    ((AutoCloseable) indexer).close();
+                }
                 reporter.stop();
             }
 
@@ -104,9 +115,6 @@ public class NewtsService extends Application<NewtsConfig> {
             }
         });
 
-        SampleRepository repository = injector.getInstance(SampleRepository.class);
-        Indexer indexer = injector.getInstance(Indexer.class);
-
         // Rest resources
         environment.jersey().register(new MeasurementsResource(repository, config.getReports()));
         environment.jersey().register(new SamplesResource(repository, indexer));
@@ -121,6 +129,7 @@ public class NewtsService extends Application<NewtsConfig> {
 
         // Mapped exceptions
         environment.jersey().register(IllegalArgumentExceptionMapper.class);
+        environment.jersey().register(QueryBudgetExceededExceptionMapper.class);
 
     }
 
@@ -169,6 +178,7 @@ public class NewtsService extends Application<NewtsConfig> {
         filter.setInitParameter(CrossOriginFilter.ALLOWED_ORIGINS_PARAM, "*");
         filter.setInitParameter(CrossOriginFilter.ACCESS_CONTROL_ALLOW_ORIGIN_HEADER, "*");
         filter.setInitParameter("allowedHeaders", "Content-Type,Authorization,X-Requested-With,Content-Length,Accept,Origin");
+        filter.setInitParameter(CrossOriginFilter.EXPOSED_HEADERS_PARAM, ResultsResponses.TRUNCATED_HEADER);
         filter.setInitParameter("allowCredentials", "true");
     }
 
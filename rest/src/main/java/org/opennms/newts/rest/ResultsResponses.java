@@ -0,0 +1,44 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.rest;
+
+
+import javax.ws.rs.core.Response;
+
+import org.opennms.newts.api.Results;
+
+
+/**
+ * Responses carrying query results; Those of results that were cut short (by a query over
+ * budget) are flagged with an {@value #TRUNCATED_HEADER}{@code : true} header.
+ */
+class ResultsResponses {
+
+    static final String TRUNCATED_HEADER = "X-Newts-Truncated";
+
+    private ResultsResponses() {
+    }
+
+    /** @return a response of the entity (transformed from the results) */
+    static Response ok(Results<?> results, Object entity) {
+        Response.ResponseBuilder response = Response.ok(entity);
+        if (results.isTruncated()) {
+            response.header(TRUNCATED_HEADER, Boolean.TRUE.toString());
+        }
+        return response.build();
+    }
+
+}
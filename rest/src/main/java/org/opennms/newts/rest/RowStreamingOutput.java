@@ -0,0 +1,142 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.rest;
+
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+
+import javax.ws.rs.core.StreamingOutput;
+
+import org.opennms.newts.api.Element;
+import org.opennms.newts.api.Results.Row;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Function;
+
+
+/**
+ * Writes published result rows as newline delimited JSON (one array of elements per line), as
+ * they are produced. Rows are requested a few at a time, so at most a handful are ever held in
+ * memory, regardless of the size of the result.
+ *
+ * @param <T>
+ *            the row element type
+ */
+class RowStreamingOutput<T extends Element<?>> implements StreamingOutput {
+
+    static final String NDJSON = "application/x-ndjson";
+
+    // Ranked below application/json so that clients must ask for a stream explicitly
+    static final String NDJSON_QS = NDJSON + ";qs=0.5";
+
+    private static final int BATCH_SIZE = 64;
+    private static final ObjectMapper s_mapper = new ObjectMapper();
+
+    private final Flow.Publisher<Row<T>> m_publisher;
+    private final Function<Row<T>, ?> m_transform;
+
+    RowStreamingOutput(Flow.Publisher<Row<T>> publisher, Function<Row<T>, ?> transform) {
+        m_publisher = checkNotNull(publisher, "publisher argument");
+        m_transform = checkNotNull(transform, "transform argument");
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        RowWriter writer = new RowWriter(output);
+        m_publisher.subscribe(writer);
+        writer.await();
+    }
+
+    private class RowWriter implements Flow.Subscriber<Row<T>> {
+
+        private final OutputStream m_output;
+        private final CountDownLatch m_done = new CountDownLatch(1);
+
+        private Flow.Subscription m_subscription;
+        private Throwable m_error;
+        private int m_received = 0;
+
+        private RowWriter(OutputStream output) {
+            m_output = output;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            m_subscription = subscription;
+            m_subscription.request(BATCH_SIZE);
+        }
+
+        @Override
+        public void onNext(Row<T> row) {
+            try {
+                m_output.write(s_mapper.writeValueAsBytes(m_transform.apply(row)));
+                m_output.write('\n');
+
+                if (++m_received == BATCH_SIZE) {
+                    m_received = 0;
+                    m_output.flush();
+                    m_subscription.request(BATCH_SIZE);
+                }
+            }
+            catch (IOException e) {
+                // Most likely the client went away; Stop producing
+                m_subscription.cancel();
+                onError(e);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            m_error = throwable;
+            m_done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            m_done.countDown();
+        }
+
+        private void await() throws IOException {
+            try {
+                m_done.await();
+            }
+            catch (InterruptedException e) {
+                m_subscription.cancel();
+                throw new InterruptedIOException("interrupted while streaming results");
+            }
+
+            if (m_error != null) {
+                if (m_error instanceof IOException) {
+                    throw (IOException) m_error;
+                }
+                if (m_error instanceof RuntimeException) {
+                    throw (RuntimeException) m_error;
+                }
+                throw new IOException(m_error);
+            }
+
+            m_output.flush();
+        }
+
+    }
+
+}
@@ -19,6 +19,8 @@ package org.opennms.newts.rest;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
@@ -30,9 +32,13 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.opennms.newts.api.Context;
 import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Results;
+import org.opennms.newts.api.Results.Row;
+import org.opennms.newts.api.Sample;
 import org.opennms.newts.api.SampleRepository;
 import org.opennms.newts.api.Timestamp;
 
@@ -62,10 +68,14 @@ public class SamplesResource {
         return Response.status(Response.Status.CREATED).build();
     }
 
+    /**
+     * Samples, as a JSON array of rows; Results cut short (by a query over budget) are flagged
+     * with an {@code X-Newts-Truncated: true} header.
+     */
     @GET
     @Timed
     @Path("/{resource}")
-    public Collection<Collection<SampleDTO>> getSamples(@PathParam("resource") Resource resource,
+    public Response getSamples(@PathParam("resource") Resource resource,
             @QueryParam("start") Optional<TimestampParam> start, @QueryParam("end") Optional<TimestampParam> end,
             @QueryParam("context") Optional<String> contextId) {
 
@@ -73,7 +83,28 @@ public class SamplesResource {
         Optional<Timestamp> upper = Transform.toTimestamp(end);
         Context context = contextId.isPresent() ? new Context(contextId.get()) : Context.DEFAULT_CONTEXT;
 
-        return Transform.sampleDTOs(m_sampleRepository.select(context, resource, lower, upper));
+        Results<Sample> results = m_sampleRepository.select(context, resource, lower, upper);
+
+        return ResultsResponses.ok(results, Transform.sampleDTOs(results));
+    }
+
+    /**
+     * Streams samples as newline delimited JSON, one row per line, as they are read (for clients
+     * that {@code Accept: application/x-ndjson}).
+     */
+    @GET
+    @Timed
+    @Path("/{resource}")
+    @Produces(RowStreamingOutput.NDJSON_QS)
+    public StreamingOutput streamSamples(@PathParam("resource") Resource resource,
+            @QueryParam("start") Optional<TimestampParam> start, @QueryParam("end") Optional<TimestampParam> end,
+            @QueryParam("context") Optional<String> contextId) {
+
+        Optional<Timestamp> lower = Transform.toTimestamp(start);
+        Optional<Timestamp> upper = Transform.toTimestamp(end);
+        Context context = contextId.isPresent() ? new Context(contextId.get()) : Context.DEFAULT_CONTEXT;
+
+        return new RowStreamingOutput<>(m_sampleRepository.selectStream(context, resource, lower, upper), (Row<Sample> row) -> Transform.sampleDTOs(row));
     }
 
     @DELETE
@@ -85,7 +116,15 @@ public class SamplesResource {
                                 ? new Context(contextId.get())
                                 : Context.DEFAULT_CONTEXT;
 
-        m_sampleRepository.delete(context, resource);
+        // Remove the resource from the index while its samples are being deleted
+        CompletableFuture<Void> samplesDeleted = m_sampleRepository.deleteAsync(context, resource).toCompletableFuture();
         m_indexer.delete(context, resource);
+
+        try {
+            samplesDeleted.join();
+        }
+        catch (CompletionException e) {
+            throw (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause() : e;
+        }
     }
 }
@@ -18,6 +18,8 @@ package org.opennms.newts.rest;
 
 import javax.validation.constraints.Min;
 
+import org.opennms.newts.api.Duration;
+
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 
@@ -36,6 +38,17 @@ public class SearchConfig {
     @JsonProperty("separatorEscaping")
     private boolean m_isSeparatorEscapingEnabled = false;
 
+    @JsonProperty("coalescingWindow")
+    private String m_coalescingWindow = "5ms";
+
+    @Min(value = 1)
+    @JsonProperty("maxInFlightStatements")
+    private int m_maxInFlightStatements = 128;
+
+    @Min(value = 1)
+    @JsonProperty("maxQueuedStatements")
+    private int m_maxQueuedStatements = 8192;
+
     public boolean isEnabled() {
         return m_isEnabled;
     }
@@ -51,4 +64,16 @@ public class SearchConfig {
     public boolean isSeparatorEscapingEnabled() {
         return m_isSeparatorEscapingEnabled;
     }
+
+    public Duration getCoalescingWindow() {
+        return Duration.parse(m_coalescingWindow);
+    }
+
+    public int getMaxInFlightStatements() {
+        return m_maxInFlightStatements;
+    }
+
+    public int getMaxQueuedStatements() {
+        return m_maxQueuedStatements;
+    }
 }
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2024, The OpenNMS Group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opennms.newts.rest;
+
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+
+import javax.validation.constraints.Min;
+
+import org.opennms.newts.api.Duration;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.persistence.cassandra.QueryBudget;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.collect.Lists;
+
+
+public class StorageConfig {
+
+    @Min(value = 1)
+    @JsonProperty("maxBatchSize")
+    private int m_maxBatchSize = 16;
+
+    @Min(value = 1)
+    @JsonProperty("maxInFlightWrites")
+    private int m_maxInFlightWrites = 128;
+
+    @Min(value = 0)
+    @JsonProperty("readAhead")
+    private int m_readAhead = 2;
+
+    @Min(value = 1)
+    @JsonProperty("maxConcurrentReads")
+    private int m_maxConcurrentReads = 128;
+
+    @Min(value = 1)
+    @JsonProperty("selectThreads")
+    private int m_selectThreads = 16;
+
+    @Min(value = 1)
+    @JsonProperty("maxConcurrentDeletes")
+    private int m_maxConcurrentDeletes = 32;
+
+    @Min(value = 1)
+    @JsonProperty("deleteJobConcurrency")
+    private int m_deleteJobConcurrency = 8;
+
+    @JsonProperty("writeBehind")
+    private boolean m_writeBehind = false;
+
+    @Min(value = 1)
+    @JsonProperty("writeBehindFlushSize")
+    private int m_writeBehindFlushSize = 64;
+
+    @JsonProperty("writeBehindMaxAge")
+    private String m_writeBehindMaxAge = "1s";
+
+    @Min(value = 1)
+    @JsonProperty("writeBehindMaxBuffered")
+    private long m_writeBehindMaxBuffered = 100000;
+
+    @JsonProperty("blockStorage")
+    private boolean m_blockStorage = false;
+
+    @JsonProperty("blockSize")
+    private String m_blockSize = "4h";
+
+    @JsonProperty("rollupResolutions")
+    private List<String> m_rollupResolutions = Collections.emptyList();
+
+    @JsonProperty("rollupInterval")
+    private String m_rollupInterval = "5m";
+
+    @JsonProperty("rollupHeartbeat")
+    private String m_rollupHeartbeat = "10m";
+
+    @JsonProperty("resultCache")
+    private boolean m_resultCache = false;
+
+    @Min(value = 1)
+    @JsonProperty("resultCacheMaxWeight")
+    private long m_resultCacheMaxWeight = 1000000;
+
+    @JsonProperty("resultCacheMaxAge")
+    private String m_resultCacheMaxAge = "5m";
+
+    @JsonProperty("shardIndex")
+    private boolean m_shardIndex = false;
+
+    @JsonProperty("shardIndexSince")
+    private String m_shardIndexSince = null;
+
+    @JsonProperty("leanDecoding")
+    private boolean m_leanDecoding = true;
+
+    @JsonProperty("columnarProcessing")
+    private boolean m_columnarProcessing = false;
+
+    @Min(value = 0)
+    @JsonProperty("queryMaxSamples")
+    private long m_queryMaxSamples = 0;
+
+    @Min(value = 0)
+    @JsonProperty("queryMaxBytes")
+    private long m_queryMaxBytes = 0;
+
+    @JsonProperty("queryBudgetAction")
+    private QueryBudget.Action m_queryBudgetAction = QueryBudget.Action.REJECT;
+
+    public int getMaxBatchSize() {
+        return m_maxBatchSize;
+    }
+
+    public int getMaxInFlightWrites() {
+        return m_maxInFlightWrites;
+    }
+
+    public int getReadAhead() {
+        return m_readAhead;
+    }
+
+    public int getMaxConcurrentReads() {
+        return m_maxConcurrentReads;
+    }
+
+    public int getSelectThreads() {
+        return m_selectThreads;
+    }
+
+    public int getMaxConcurrentDeletes() {
+        return m_maxConcurrentDeletes;
+    }
+
+    public int getDeleteJobConcurrency() {
+        return m_deleteJobConcurrency;
+    }
+
+    public boolean isWriteBehindEnabled() {
+        return m_writeBehind;
+    }
+
+    public int getWriteBehindFlushSize() {
+        return m_writeBehindFlushSize;
+    }
+
+    public Duration getWriteBehindMaxAge() {
+        return Duration.parse(m_writeBehindMaxAge);
+    }
+
+    public long getWriteBehindMaxBuffered() {
+        return m_writeBehindMaxBuffered;
+    }
+
+    public boolean isBlockStorageEnabled() {
+        return m_blockStorage;
+    }
+
+    public Duration getBlockSize() {
+        return Duration.parse(m_blockSize);
+    }
+
+    public List<Duration> getRollupResolutions() {
+        List<Duration> resolutions = Lists.newArrayList();
+        for (String resolution : m_rollupResolutions) {
+            resolutions.add(Duration.parse(resolution));
+        }
+        return resolutions;
+    }
+
+    public Duration getRollupInterval() {
+        return Duration.parse(m_rollupInterval);
+    }
+
+    public Duration getRollupHeartbeat() {
+        return Duration.parse(m_rollupHeartbeat);
+    }
+
+    public boolean isResultCacheEnabled() {
+        return m_resultCache;
+    }
+
+    public long getResultCacheMaxWeight() {
+        return m_resultCacheMaxWeight;
+    }
+
+    public Duration getResultCacheMaxAge() {
+        return Duration.parse(m_resultCacheMaxAge);
+    }
+
+    public boolean isShardIndexEnabled() {
+        return m_shardIndex;
+    }
+
+    public Timestamp getShardIndexSince() {
+        return (m_shardIndexSince != null) ? Timestamp.fromEpochMillis(Instant.parse(m_shardIndexSince).toEpochMilli()) : null;
+    }
+
+    public boolean isLeanDecodingEnabled() {
+        return m_leanDecoding;
+    }
+
+    public boolean isColumnarProcessingEnabled() {
+        return m_columnarProcessing;
+    }
+
+    public long getQueryMaxSamples() {
+        return m_queryMaxSamples;
+    }
+
+    public long getQueryMaxBytes() {
+        return m_queryMaxBytes;
+    }
+
+    public QueryBudget.Action getQueryBudgetAction() {
+        return m_queryBudgetAction;
+    }
+}
@@ -119,24 +119,35 @@ class Transform {
 
             @Override
             public Collection<SampleDTO> apply(Row<Sample> input) {
-                return Collections2.transform(input.getElements(), new Function<Sample, SampleDTO>() {
-
-                    @Override
-                    public SampleDTO apply(Sample input) {
-                        return new SampleDTO(
-                                input.getTimestamp().asMillis(),
-                                new ResourceDTO(input.getResource().getId(), unwrapMap(input.getResource().getAttributes())),
-                                input.getName(),
-                                input.getType(),
-                                input.getValue(),
-                                input.getAttributes(),
-                                input.getContext().getId());
-                    }
-                });
+                return sampleDTOs(input);
             }
         }));
     }
 
+    /**
+     * Convert a row of samples to {@link SampleDTO}s.
+     *
+     * @param row
+     *            row of samples to convert.
+     * @return converted samples.
+     */
+    static Collection<SampleDTO> sampleDTOs(Row<Sample> row) {
+        return Collections2.transform(row.getElements(), new Function<Sample, SampleDTO>() {
+
+            @Override
+            public SampleDTO apply(Sample input) {
+                return new SampleDTO(
+                        input.getTimestamp().asMillis(),
+                        new ResourceDTO(input.getResource().getId(), unwrapMap(input.getResource().getAttributes())),
+                        input.getName(),
+                        input.getType(),
+                        input.getValue(),
+                        input.getAttributes(),
+                        input.getContext().getId());
+            }
+        });
+    }
+
     /**
      * Convert measurements to {@link MeasurementDTO}s.
      *
@@ -149,22 +160,33 @@ class Transform {
 
             @Override
             public Collection<MeasurementDTO> apply(Row<Measurement> input) {
-                return Collections2.transform(input.getElements(), new Function<Measurement, MeasurementDTO>() {
-
-                    @Override
-                    public MeasurementDTO apply(Measurement input) {
-                        return new MeasurementDTO(
-                                input.getTimestamp().asMillis(),
-                                new ResourceDTO(input.getResource().getId(), unwrapMap(input.getResource().getAttributes())),
-                                input.getName(),
-                                input.getValue(),
-                                input.getAttributes());
-                    }
-                });
+                return measurementDTOs(input);
             }
         }));
     }
 
+    /**
+     * Convert a row of measurements to {@link MeasurementDTO}s.
+     *
+     * @param row
+     *            row of measurements to convert.
+     * @return converted measurements.
+     */
+    static Collection<MeasurementDTO> measurementDTOs(Row<Measurement> row) {
+        return Collections2.transform(row.getElements(), new Function<Measurement, MeasurementDTO>() {
+
+            @Override
+            public MeasurementDTO apply(Measurement input) {
+                return new MeasurementDTO(
+                        input.getTimestamp().asMillis(),
+                        new ResourceDTO(input.getResource().getId(), unwrapMap(input.getResource().getAttributes())),
+                        input.getName(),
+                        input.getValue(),
+                        input.getAttributes());
+            }
+        });
+    }
+
     /**
      * Convert search results to {@link SearchResultDTO}s.
      *
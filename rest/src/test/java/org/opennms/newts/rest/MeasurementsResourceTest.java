@@ -17,19 +17,29 @@ package org.opennms.newts.rest;
 
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
+import javax.ws.rs.core.Response;
+
 import org.hamcrest.CoreMatchers;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.opennms.newts.api.Context;
 import org.opennms.newts.api.Duration;
 import org.opennms.newts.api.Measurement;
@@ -81,7 +91,8 @@ public class MeasurementsResourceTest {
                         Optional.of(new TimestampParam("1998-07-09T11:00:00-0500")),
                         Optional.of(new TimestampParam("1998-07-09T12:00:00-0500")),
                         Optional.of(new DurationParam("15m")),
-                        Optional.<String>absent()),
+                        Optional.<String>absent(),
+                        Optional.<Integer>absent()).getEntity(),
                 CoreMatchers.instanceOf(Collection.class));
 
         // Include the report in the request
@@ -92,10 +103,71 @@ public class MeasurementsResourceTest {
                         Optional.of(new TimestampParam("1998-07-09T11:00:00-0500")),
                         Optional.of(new TimestampParam("1998-07-09T12:00:00-0500")),
                         Optional.of(new DurationParam("15m")),
-                        Optional.<String>absent()),
+                        Optional.<String>absent(),
+                        Optional.<Integer>absent()).getEntity(),
                 CoreMatchers.instanceOf(Collection.class));
     }
 
+    @Test
+    public void testReportDescriptorsReused() throws Exception {
+        when(m_repository.select(any(Context.class), any(Resource.class), any(), any(), any(ResultDescriptor.class), any()))
+                .thenReturn(new Results<Measurement>());
+
+        for (int i = 0; i < 2; i++) {
+            m_resource.getMeasurements("temps", new Resource("localhost"), Optional.<TimestampParam> absent(), Optional.<TimestampParam> absent(),
+                    Optional.<DurationParam> absent(), Optional.<String> absent(), Optional.<Integer> absent());
+        }
+        for (int i = 0; i < 2; i++) {
+            m_resource.getMeasurements(getResultDescriptorDTO(), new Resource("localhost"), Optional.<TimestampParam> absent(),
+                    Optional.<TimestampParam> absent(), Optional.<DurationParam> absent(), Optional.<String> absent(), Optional.<Integer> absent());
+        }
+
+        ArgumentCaptor<ResultDescriptor> descriptors = ArgumentCaptor.forClass(ResultDescriptor.class);
+        verify(m_repository, times(4)).select(any(Context.class), any(Resource.class), any(), any(), descriptors.capture(), any());
+
+        // Named reports are transformed once; Those of requests, every time
+        List<ResultDescriptor> captured = descriptors.getAllValues();
+        assertSame(captured.get(0), captured.get(1));
+        assertNotSame(captured.get(2), captured.get(3));
+    }
+
+    @Test
+    public void testMaxDataPoints() throws Exception {
+        when(m_repository.select(any(Context.class), any(Resource.class), any(), any(), any(ResultDescriptor.class), any()))
+                .thenReturn(new Results<Measurement>());
+
+        m_resource.getMeasurements("temps", new Resource("localhost"), Optional.<TimestampParam> absent(), Optional.<TimestampParam> absent(),
+                Optional.<DurationParam> absent(), Optional.<String> absent(), Optional.of(1000));
+        m_resource.getMeasurements("temps", new Resource("localhost"), Optional.<TimestampParam> absent(), Optional.<TimestampParam> absent(),
+                Optional.<DurationParam> absent(), Optional.<String> absent(), Optional.<Integer> absent());
+
+        ArgumentCaptor<ResultDescriptor> descriptors = ArgumentCaptor.forClass(ResultDescriptor.class);
+        verify(m_repository, times(2)).select(any(Context.class), any(Resource.class), any(), any(), descriptors.capture(), any());
+
+        // The named report itself is left as it was
+        List<ResultDescriptor> captured = descriptors.getAllValues();
+        assertEquals(1000, captured.get(0).getMaxDataPoints());
+        assertEquals(0, captured.get(1).getMaxDataPoints());
+        assertEquals(captured.get(1).getExports(), captured.get(0).getExports());
+    }
+
+    @Test
+    public void testTruncatedHeader() throws Exception {
+        Results<Measurement> results = new Results<>();
+        when(m_repository.select(any(Context.class), any(Resource.class), any(), any(), any(ResultDescriptor.class), any()))
+                .thenReturn(results);
+
+        Response response = m_resource.getMeasurements("temps", new Resource("localhost"), Optional.<TimestampParam> absent(),
+                Optional.<TimestampParam> absent(), Optional.<DurationParam> absent(), Optional.<String> absent(), Optional.<Integer> absent());
+        assertNull(response.getHeaderString(ResultsResponses.TRUNCATED_HEADER));
+
+        results.setTruncated(true);
+
+        response = m_resource.getMeasurements("temps", new Resource("localhost"), Optional.<TimestampParam> absent(),
+                Optional.<TimestampParam> absent(), Optional.<DurationParam> absent(), Optional.<String> absent(), Optional.<Integer> absent());
+        assertEquals("true", response.getHeaderString(ResultsResponses.TRUNCATED_HEADER));
+    }
+
     private static ResultDescriptorDTO getResultDescriptorDTO() throws JsonProcessingException, IOException {
         InputStream json = MeasurementsResourceTest.class.getResourceAsStream(JSON_SAMPLE);
         return new ObjectMapper().reader(ResultDescriptorDTO.class).readValue(json);
@@ -24,6 +24,8 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Collection;
 import java.util.Collections;
 
@@ -32,6 +34,9 @@ import javax.ws.rs.core.Response;
 import org.hamcrest.CoreMatchers;
 import org.junit.Test;
 import org.opennms.newts.api.Context;
+import org.opennms.newts.api.Gauge;
+import org.opennms.newts.api.IteratorPublisher;
+import org.opennms.newts.api.MetricType;
 import org.opennms.newts.api.Resource;
 import org.opennms.newts.api.Results;
 import org.opennms.newts.api.Sample;
@@ -77,9 +82,59 @@ public class SamplesResourceTest {
                         new Resource("localhost"),
                         Optional.of(new TimestampParam("1998-07-09T11:00:00-0500")),
                         Optional.of(new TimestampParam("1998-07-09T12:00:00-0500")),
-                        Optional.<String>absent()),
+                        Optional.<String>absent()).getEntity(),
                 CoreMatchers.instanceOf(Collection.class));
 
     }
 
+    @Test
+    public void testGetSamplesTruncated() {
+
+        final Results<Sample> results = new Results<>();
+        results.setTruncated(true);
+
+        when(m_repository.select(Context.DEFAULT_CONTEXT, new Resource("localhost"), Optional.<Timestamp> absent(), Optional.<Timestamp> absent()))
+                .thenReturn(results);
+
+        Response response = m_resource.getSamples(
+                new Resource("localhost"),
+                Optional.<TimestampParam> absent(),
+                Optional.<TimestampParam> absent(),
+                Optional.<String> absent());
+
+        assertThat(response.getHeaderString(ResultsResponses.TRUNCATED_HEADER), equalTo("true"));
+
+    }
+
+    @Test
+    public void testStreamSamples() throws Exception {
+
+        final Results<Sample> results = new Results<>();
+        Resource resource = new Resource("localhost");
+        for (int i = 0; i < 100; i++) {
+            results.addElement(new Sample(Timestamp.fromEpochSeconds(900000000 + (i * 300)), resource, "m0", MetricType.GAUGE, new Gauge(i)));
+        }
+
+        when(
+                m_repository.selectStream(
+                        Context.DEFAULT_CONTEXT,
+                        resource,
+                        Optional.of(Timestamp.fromEpochSeconds(900000000)),
+                        Optional.of(Timestamp.fromEpochSeconds(900003600)))
+        ).thenReturn(new IteratorPublisher<>(() -> results.iterator()));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        m_resource.streamSamples(
+                resource,
+                Optional.of(new TimestampParam("1998-07-09T11:00:00-0500")),
+                Optional.of(new TimestampParam("1998-07-09T12:00:00-0500")),
+                Optional.<String>absent()).write(output);
+
+        String[] lines = output.toString(StandardCharsets.UTF_8.name()).split("\n");
+
+        assertThat(lines.length, equalTo(100));
+        assertThat(lines[0].startsWith("[{"), equalTo(true));
+
+    }
+
 }
@@ -40,17 +40,18 @@
         return transformed;
     }
 
+    // No more points than the graph can draw.
+    var MAX_DATA_POINTS = 1000;
+
     // Construct a measurements URL.
     function url(baseUrl, resource, resolution, range) {
-        var urlString = baseUrl+'/measurements/'+resource, args = [];
+        var urlString = baseUrl+'/measurements/'+resource, args = ['maxDataPoints='+MAX_DATA_POINTS];
 
         if (resolution)  args.push('resolution='+resolution);
         if (range.start) args.push('start='+new Date(range.start).toISOString());
         if (range.end)   args.push('end='+new Date(range.end).toISOString());
 
-        if (args.length > 0) {
-            urlString += '?' + args.join('&');
-        }
+        urlString += '?' + args.join('&');
 
         return urlString;
     }
@@ -141,7 +142,7 @@
         var vm = this, end, start;
         
         vm.showGraph = false;
-        vm.availableFunctions = [ 'MIN', 'AVERAGE', 'MAX' ];
+        vm.availableFunctions = [ 'MIN', 'AVERAGE', 'MAX', 'SUM', 'COUNT', 'LAST', 'STDDEV', 'P50', 'P90', 'P95', 'P99', 'DISTINCT_COUNT' ];
         vm.selectedMetrics = [];
         
         vm.getSelectedFunction = getSelectedFunction;